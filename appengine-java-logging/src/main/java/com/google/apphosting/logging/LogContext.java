@@ -13,9 +13,13 @@
  */
 package com.google.apphosting.logging;
 
+import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.Callable;
 import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -23,17 +27,46 @@ import java.util.stream.Stream;
  * <p>
  * <p>This is an implementation of a Mapped Diagnostic Context for use with the java.util.logging
  * framework.
+ * <p>
+ * <p>A context is immutable. Its properties are kept in parallel arrays of names and values, in
+ * the order they were added, so that formatting a record walks them with a plain loop. Contexts
+ * hold a handful of properties, looking one up by name scans the names.
  */
 public class LogContext {
 
+    public static final String TRACE_ID = "traceId";
+    public static final String REQUEST_LOG_ID = "requestLogId";
+    public static final String INSTANCE = "instance";
+
     private static final ThreadLocal<LogContext> threadContext = new ThreadLocal<>();
 
-    private final Map<String, Object> values;
+    private final String[] names;
+    private final Object[] values;
 
+    /**
+     * Creates a context holding a copy of {@code values}, in their iteration order.
+     */
     public LogContext(Map<String, Object> values) {
+        this(new String[values.size()], new Object[values.size()]);
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            names[i] = Objects.requireNonNull(entry.getKey(), "name");
+            this.values[i++] = entry.getValue();
+        }
+    }
+
+    private LogContext(String[] names, Object[] values) {
+        this.names = names;
         this.values = values;
     }
 
+    /**
+     * Returns a builder of contexts, such as the context of a request.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
     /**
      * Returns the log context associated with the current Thread.
      */
@@ -41,6 +74,29 @@ public class LogContext {
         return threadContext.get();
     }
 
+    /**
+     * Returns a Runnable executing {@code runnable} in the context of the current Thread, to run
+     * it on another Thread. Capturing the context only copies its reference, and the runnable
+     * itself is returned if the current Thread has no context.
+     *
+     * @param runnable the Runnable to be executed in the current context
+     */
+    public static Runnable wrap(Runnable runnable) {
+        LogContext context = current();
+        return context == null ? runnable : () -> context.execute(runnable);
+    }
+
+    /**
+     * Returns a Callable executing {@code callable} in the context of the current Thread, to run
+     * it on another Thread. See {@link #wrap(Runnable)}.
+     *
+     * @param callable the Callable to be executed in the current context
+     */
+    public static <T> Callable<T> wrap(Callable<T> callable) {
+        LogContext context = current();
+        return context == null ? callable : () -> context.execute(callable);
+    }
+
     /**
      * Execute a Runnable in this context. This context will be bound to the current Thread as the
      * Runnable is executing. It will automatically be unbound after execution.
@@ -90,20 +146,114 @@ public class LogContext {
      * @return the property's value
      */
     public <T> T get(String name, Class<T> type) {
-        return type.cast(values.get(name));
+        int index = indexOf(name);
+        return index < 0 ? null : type.cast(values[index]);
+    }
+
+    /**
+     * Returns a context with the properties of this one, and {@code name} set to {@code value}.
+     * This context is not changed.
+     *
+     * @param name  the name of the property
+     * @param value the value of the property
+     */
+    public LogContext with(String name, Object value) {
+        Objects.requireNonNull(name, "name");
+        int index = indexOf(name);
+        if (index >= 0) {
+            Object[] newValues = values.clone();
+            newValues[index] = value;
+            return new LogContext(names, newValues);
+        }
+        String[] newNames = Arrays.copyOf(names, names.length + 1);
+        Object[] newValues = Arrays.copyOf(values, values.length + 1);
+        newNames[names.length] = name;
+        newValues[values.length] = value;
+        return new LogContext(newNames, newValues);
+    }
+
+    /**
+     * Returns the number of properties in this context.
+     */
+    public int size() {
+        return names.length;
     }
 
     /**
      * Stream all property values defined in this context.
      */
     public Stream<Map.Entry<String, Object>> stream() {
-        return values.entrySet().stream();
+        return IntStream.range(0, names.length)
+                .mapToObj(i -> new AbstractMap.SimpleImmutableEntry<>(names[i], values[i]));
     }
 
     /**
      * Perform an action for each property in this context.
      */
     public void forEach(BiConsumer<String, Object> consumer) {
-        stream().forEach(entry -> consumer.accept(entry.getKey(), entry.getValue()));
+        for (int i = 0; i < names.length; i++) {
+            consumer.accept(names[i], values[i]);
+        }
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Builds a context, such as the context of a request with its trace id, request log id and
+     * instance. Setting a property again replaces its value.
+     */
+    public static final class Builder {
+        private String[] names = new String[4];
+        private Object[] values = new Object[4];
+        private int size;
+
+        private Builder() {
+        }
+
+        public Builder traceId(String traceId) {
+            return put(TRACE_ID, traceId);
+        }
+
+        public Builder requestLogId(String requestLogId) {
+            return put(REQUEST_LOG_ID, requestLogId);
+        }
+
+        public Builder instance(String instance) {
+            return put(INSTANCE, instance);
+        }
+
+        /**
+         * Sets a property of the context.
+         *
+         * @param name  the name of the property
+         * @param value the value of the property
+         */
+        public Builder put(String name, Object value) {
+            Objects.requireNonNull(name, "name");
+            for (int i = 0; i < size; i++) {
+                if (names[i].equals(name)) {
+                    values[i] = value;
+                    return this;
+                }
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            names[size] = name;
+            values[size++] = value;
+            return this;
+        }
+
+        public LogContext build() {
+            return new LogContext(Arrays.copyOf(names, size), Arrays.copyOf(values, size));
+        }
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.google.apphosting.logging;
+
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link JsonFormatter} and {@link StreamingJsonFormatter} on a log record in a
+ * {@link LogContext}, with and without a stack trace. Build with
+ * {@code mvn clean test-compile -Dbenchmarks}, run {@link #main} and compare the time and
+ * {@code gc.alloc.rate.norm}, the bytes allocated per record. Run with {@code -t 4} to see the
+ * effect of the lock of {@link JsonFormatter#formatMessage}.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class JsonFormatterBenchmark {
+    @Param({"false", "true"})
+    public boolean thrown;
+
+    private final JsonFormatter jsonFormatter = new JsonFormatter();
+    private final StreamingJsonFormatter streamingFormatter = new StreamingJsonFormatter();
+    private final LogContext context =
+            new LogContext(Collections.singletonMap("traceId", "105445aa7843bc8bf206b120001000"));
+    private final OutputStream nullStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+    private LogRecord record;
+
+    @Setup
+    public void setUp() {
+        record = new LogRecord(Level.INFO, "Request {0} completed in {1} ms \"ok\"");
+        record.setLoggerName("com.google.apphosting.vmruntime.VmRuntimeWebAppContext");
+        record.setSourceClassName("com.google.apphosting.vmruntime.VmRuntimeWebAppContext");
+        record.setSourceMethodName("handle");
+        record.setParameters(new Object[] {"/_ah/health", "12"});
+        if (thrown) {
+            record.setThrown(new IllegalStateException("failed").fillInStackTrace());
+        }
+    }
+
+    @Benchmark
+    public String jsonFormatter() throws Exception {
+        return context.execute(() -> jsonFormatter.format(record));
+    }
+
+    @Benchmark
+    public String streamingFormat() throws Exception {
+        return context.execute(() -> streamingFormatter.format(record));
+    }
+
+    /**
+     * The bytes of the record are written without creating a String.
+     */
+    @Benchmark
+    public OutputStream streamingWriteTo() throws Exception {
+        return context.execute(() -> {
+            streamingFormatter.writeTo(record, nullStream);
+            return nullStream;
+        });
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JsonFormatterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.google.apphosting.logging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogContextTest {
+
+    private final LogContext context =
+            new LogContext(Collections.singletonMap("traceId", "abcdef"));
+
+    @Test
+    public void wrapRestoresContextOnOtherThread() throws Exception {
+        AtomicReference<LogContext> seen = new AtomicReference<>();
+        Runnable runnable =
+                context.execute(() -> LogContext.wrap(() -> seen.set(LogContext.current())));
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+        assertSame(context, seen.get());
+    }
+
+    @Test
+    public void wrapCallableUnbindsAfterExecution() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Callable<LogContext> callable =
+                    context.execute(() -> LogContext.wrap(LogContext::current));
+            assertSame(context, executor.submit(callable).get());
+            assertNull(executor.submit(LogContext::current).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void wrapWithoutContextReturnsTask() throws Exception {
+        Runnable runnable = () -> { };
+        Callable<String> callable = () -> "result";
+        assertSame(runnable, LogContext.wrap(runnable));
+        assertSame(callable, LogContext.wrap(callable));
+    }
+
+    @Test
+    public void builderKeepsOrderAndReplacesValues() throws Exception {
+        LogContext built = LogContext.builder()
+                .traceId("abcdef")
+                .requestLogId("1234")
+                .instance("instance-1")
+                .put("count", 1)
+                .put("flag", true)
+                .put("count", 2)
+                .build();
+        assertEquals(5, built.size());
+        assertEquals("abcdef", built.get(LogContext.TRACE_ID, String.class));
+        assertEquals("1234", built.get(LogContext.REQUEST_LOG_ID, String.class));
+        assertEquals("instance-1", built.get(LogContext.INSTANCE, String.class));
+        assertEquals(Integer.valueOf(2), built.get("count", Integer.class));
+        assertNull(built.get("missing", String.class));
+
+        List<String> names = new ArrayList<>();
+        built.forEach((name, value) -> names.add(name));
+        assertEquals("[traceId, requestLogId, instance, count, flag]", names.toString());
+        assertEquals(5, built.stream().count());
+    }
+
+    @Test
+    public void withDerivesNewContext() throws Exception {
+        LogContext derived = context.with("instance", "instance-1");
+        assertEquals(1, context.size());
+        assertNull(context.get("instance", String.class));
+        assertEquals(2, derived.size());
+        assertEquals("abcdef", derived.get("traceId", String.class));
+        assertEquals("instance-1", derived.get("instance", String.class));
+
+        LogContext replaced = derived.with("traceId", "123456");
+        assertEquals(2, replaced.size());
+        assertEquals("123456", replaced.get("traceId", String.class));
+        assertEquals("abcdef", derived.get("traceId", String.class));
+    }
+
+    @Test
+    public void mapIsCopied() throws Exception {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("traceId", "abcdef");
+        values.put("missing", null);
+        LogContext copied = new LogContext(values);
+        values.put("traceId", "changed");
+        assertEquals("abcdef", copied.get("traceId", String.class));
+        assertEquals(2, copied.size());
+        assertNull(copied.get("missing", String.class));
+    }
+}
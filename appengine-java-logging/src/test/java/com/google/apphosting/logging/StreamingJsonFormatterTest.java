@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+package com.google.apphosting.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StreamingJsonFormatterTest {
+
+    private JsonFormatter expectedFormatter = new JsonFormatter();
+    private StreamingJsonFormatter formatter = new StreamingJsonFormatter();
+
+    private static LogRecord record(Level level, String message) {
+        LogRecord record = new LogRecord(level, message);
+        record.setMillis(12345_678);
+        record.setLoggerName("logger");
+        return record;
+    }
+
+    private void assertSameOutput(LogRecord record) throws Exception {
+        String expected = expectedFormatter.format(record);
+        assertEquals(expected, formatter.format(record));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        formatter.writeTo(record, out);
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+        assertArrayEquals(out.toByteArray(), formatter.formatBytes(record));
+    }
+
+    @Test
+    public void formatMatchesJsonFormatter() throws Exception {
+        assertSameOutput(record(Level.INFO, "message"));
+        assertSameOutput(record(Level.SEVERE, "error"));
+        assertSameOutput(record(Level.FINEST, null));
+
+        LogRecord record = record(Level.WARNING, "message");
+        record.setSourceClassName("class");
+        record.setSourceMethodName("method");
+        record.setMillis(-1);
+        assertSameOutput(record);
+    }
+
+    @Test
+    public void formatEscapesLikeJsonFormatter() throws Exception {
+        assertSameOutput(record(Level.INFO,
+                "quote \" backslash \\ controls \t\b\n\r\f\u0000\u001f <html>&'="));
+        assertSameOutput(record(Level.INFO,
+                "latin \u00e9 euro \u20ac separators \u2028 \u2029 emoji \ud83d\ude00"));
+    }
+
+    @Test
+    public void formatReplacesUnpairedSurrogates() throws Exception {
+        LogRecord record = record(Level.INFO, "low \ude00 high \ud83d x end \ud83d");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        formatter.writeTo(record, out);
+        assertArrayEquals(expectedFormatter.format(record).getBytes(StandardCharsets.UTF_8),
+                out.toByteArray());
+    }
+
+    @Test
+    public void formatIncludesParametersAndStackTrace() throws Exception {
+        LogRecord record = record(Level.INFO, "{0} and {1}");
+        record.setParameters(new Object[] {"first", 2});
+        record.setThrown(new IllegalStateException("thrown \"here\"").fillInStackTrace());
+        assertSameOutput(record);
+        assertEquals(expectedFormatter.formatMessage(record), formatter.formatMessage(record));
+    }
+
+    @Test
+    public void formatMessageMatchesMessageFormat() throws Exception {
+        String[] formats = {
+            "{0} and {1}", "{1}{0}{1}", "{00} {2}", "no placeholder {}", "{0} {5}", "'{0}' {1}",
+            "{0,number} {1}", "{ 0 } {1}", "} {0} {", "{0", "{3}", null
+        };
+        Object[][] parameters = {
+            {"first", "second"}, {"a", null}, {1234, "s"}, {"a\"b", new StringBuilder("sb")},
+            {"x", "y", "z", "w"}
+        };
+        for (String format : formats) {
+            for (Object[] parameter : parameters) {
+                LogRecord record = record(Level.INFO, format);
+                record.setParameters(parameter);
+                assertEquals(format, expectedFormatter.formatMessage(record),
+                        formatter.formatMessage(record));
+                assertSameOutput(record);
+            }
+        }
+    }
+
+    @Test
+    public void formatIncludesLogContext() throws Exception {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("traceId", "abc\"def");
+        values.put("count", 42L);
+        values.put("negative", -7);
+        values.put("ratio", 0.25);
+        values.put("flag", true);
+        values.put("missing", null);
+        values.put("object", new StringBuilder("built"));
+        LogContext context = new LogContext(values);
+        context.execute(() -> {
+            assertSameOutput(record(Level.INFO, "message"));
+            return null;
+        });
+    }
+
+    @Test
+    public void formatIsReentrant() throws Exception {
+        LogRecord record = record(Level.INFO, "{0}");
+        record.setParameters(new Object[] {new Object() {
+            @Override
+            public String toString() {
+                return formatter.format(record(Level.INFO, "nested")).trim();
+            }
+        }});
+        assertEquals(expectedFormatter.format(record), formatter.format(record));
+    }
+
+    @Test
+    public void formatShrinksHugeBuffers() throws Exception {
+        StringBuilder message = new StringBuilder();
+        while (message.length() < 1024 * 1024) {
+            message.append("line ").append(message.length()).append('\n');
+        }
+        assertSameOutput(record(Level.INFO, message.toString()));
+        assertSameOutput(record(Level.INFO, "small"));
+    }
+}
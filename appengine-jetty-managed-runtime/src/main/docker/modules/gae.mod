@@ -4,6 +4,7 @@
 
 [depend]
 http
+client
 annotations
 plus
 quickstart
@@ -74,6 +74,9 @@ class AppEngineAuthentication {
    */
   private static final String AUTH_URL_PREFIX = "/_ah/";
 
+  // Admin page under AUTH_URL_PREFIX, guarded by a security constraint of webdefault.xml.
+  private static final String METRICS_URL = "/_ah/metrics";
+
   private static final String AUTH_METHOD = "Google Login";
 
   private static final String REALM_NAME = "Google App Engine";
@@ -121,11 +124,14 @@ class AppEngineAuthentication {
      * Checks if the request could to to the login page.
      *
      * @param uri The uri requested.
+     * @param pathInContext The decoded and canonical path requested, which the security
+     *     constraints and the servlets are mapped on.
      *
-     * @return True if the uri starts with "/_ah/", false otherwise.
+     * @return True if the uri starts with "/_ah/" and the path is not the metrics page, false
+     *     otherwise.
      */
-    private static boolean isLoginOrErrorPage(String uri) {
-      return uri.indexOf(AUTH_URL_PREFIX) == 0;
+    private static boolean isLoginOrErrorPage(String uri, String pathInContext) {
+      return uri.indexOf(AUTH_URL_PREFIX) == 0 && !METRICS_URL.equals(pathInContext);
     }
 
     private AppEngineAuthenticator(VmRuntimeTrustedAddressChecker checker) {
@@ -195,7 +201,8 @@ class AppEngineAuthentication {
       // that we can log out properly.  Specifically, watch out for
       // the case where the user logs in, but as a role that isn't
       // allowed to see /*.  They should still be able to log out.
-      if (isLoginOrErrorPage(uri) && !DeferredAuthentication.isDeferred(response)) {
+      String pathInContext = URIUtil.addPaths(request.getServletPath(), request.getPathInfo());
+      if (isLoginOrErrorPage(uri, pathInContext) && !DeferredAuthentication.isDeferred(response)) {
         log.fine("Got " + uri + ", returning DeferredAuthentication to "
             + "imply authentication is in progress.");
         return new DeferredAuthentication(this);
@@ -203,7 +203,6 @@ public class VmRuntimeWebAppContext
     setAttribute("org.eclipse.jetty.server.webapp.ContainerIncludeJarPattern", ".*\\.jar");
     metadataCache = new VmMetadataCache();
     wallclockTimer = new VmTimer();
-    ApiProxy.setDelegate(new VmApiProxyDelegate());
   }
 
   /**
@@ -240,6 +239,11 @@ public class VmRuntimeWebAppContext
       appEngineWebXml = appEngineWebXmlReader.readAppEngineWebXml();
     }
     VmRuntimeUtils.installSystemProperties(defaultEnvironment, appEngineWebXml);
+    // Created once the system properties are installed, so that they can configure it.
+    VmApiProxyDelegate apiProxyDelegate = new VmApiProxyDelegate();
+    ApiProxy.setDelegate(apiProxyDelegate);
+    // Connect to the API server while the application starts.
+    apiProxyDelegate.warmUpConnections(VmRuntimeUtils.getApiServerAddress());
     VmRuntimeLogHandler.init();
     VmRuntimeFileLogHandler.init();
 
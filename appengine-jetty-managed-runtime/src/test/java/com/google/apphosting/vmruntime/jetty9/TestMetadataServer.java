@@ -25,6 +25,8 @@ import java.io.OutputStreamWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
@@ -37,6 +39,7 @@ public class TestMetadataServer implements Runnable {
   private final int metadataPort;
   private HashMap<String, String> responses = new HashMap<String, String>();
   private boolean run = true;
+  private final CountDownLatch listening = new CountDownLatch(1);
 
   /**
    * Constructor.
@@ -56,6 +59,15 @@ public class TestMetadataServer implements Runnable {
   public void addMetadata(String path, String value) {
     responses.put(PATH_PREFIX + path, value);
   }
+
+  /**
+   * Waits until the server accepts connections.
+   *
+   * @return True if the server is listening, false if it did not start in time.
+   */
+  public boolean waitForListening(long timeout, TimeUnit unit) throws InterruptedException {
+    return listening.await(timeout, unit);
+  }
   
   /**
    * Starts a single threaded metadata server.
@@ -67,6 +79,7 @@ public class TestMetadataServer implements Runnable {
       logger.fine("TRYING TO Listen for metadata requests at port: " + metadataPort);
       serverSocket = new ServerSocket(metadataPort);
       logger.fine("Listening for metadata requests at port: " + metadataPort);
+      listening.countDown();
       while (run) {
         final Socket clientSocket = serverSocket.accept();
         BufferedWriter responseWriter = null;
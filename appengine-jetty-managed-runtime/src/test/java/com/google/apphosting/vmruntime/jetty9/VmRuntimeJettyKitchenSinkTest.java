@@ -17,6 +17,7 @@ package com.google.apphosting.vmruntime.jetty9;
 
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.UserServicePb.CreateLoginURLResponse;
 import com.google.apphosting.vmruntime.VmApiProxyDelegate;
 import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
 import com.google.apphosting.vmruntime.VmRuntimeUtils;
@@ -118,6 +119,66 @@ public class VmRuntimeJettyKitchenSinkTest extends VmRuntimeTestBase {
     assertEquals("ok", lines[0].trim());
   }
 
+  /**
+   * Test that the metrics servlet was loaded and responds with the API call metrics.
+   *
+   * @throws Exception
+   */
+  public void testMetrics() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) createUrl("/_ah/metrics").openConnection();
+    connection.setRequestProperty(VmApiProxyEnvironment.EMAIL_HEADER, "isdal@google.com");
+    connection.setRequestProperty(VmApiProxyEnvironment.AUTH_DOMAIN_HEADER, "google.com");
+    connection.setRequestProperty(VmApiProxyEnvironment.IS_ADMIN_HEADER, "1");
+    String[] lines = fetchUrlConnection(connection);
+    assertEquals("# TYPE appengine_api_calls_total counter", lines[0].trim());
+  }
+
+  public void testMetrics_RequiresAdmin() throws Exception {
+    // Fake the expected call to "user/CreateLoginUrl" for the unauthenticated request.
+    CreateLoginURLResponse loginUrlResponse = new CreateLoginURLResponse();
+    loginUrlResponse.setLoginUrl("http://login-url");
+    FakeableVmApiProxyDelegate fakeApiProxy = new FakeableVmApiProxyDelegate();
+    ApiProxy.setDelegate(fakeApiProxy);
+    fakeApiProxy.addApiResponse(loginUrlResponse);
+
+    HttpClient httpClient = new HttpClient();
+    httpClient.getHttpConnectionManager().getParams().setConnectionTimeout(30000);
+    GetMethod get = new GetMethod(createUrl("/_ah/metrics").toString());
+    get.setFollowRedirects(false);
+    assertEquals(302, httpClient.executeMethod(get));
+    assertEquals("http://login-url", get.getResponseHeader("Location").getValue());
+
+    get = new GetMethod(createUrl("/_ah/metrics").toString());
+    get.addRequestHeader(VmApiProxyEnvironment.EMAIL_HEADER, "isdal@google.com");
+    get.addRequestHeader(VmApiProxyEnvironment.AUTH_DOMAIN_HEADER, "google.com");
+    get.setFollowRedirects(false);
+    assertEquals(403, httpClient.executeMethod(get));
+  }
+
+  public void testMetrics_RequiresAdminForEncodedPaths() throws Exception {
+    CreateLoginURLResponse loginUrlResponse = new CreateLoginURLResponse();
+    loginUrlResponse.setLoginUrl("http://login-url");
+    FakeableVmApiProxyDelegate fakeApiProxy = new FakeableVmApiProxyDelegate();
+    ApiProxy.setDelegate(fakeApiProxy);
+    fakeApiProxy.addApiResponse(loginUrlResponse);
+    fakeApiProxy.addApiResponse(loginUrlResponse);
+
+    HttpClient httpClient = new HttpClient();
+    httpClient.getHttpConnectionManager().getParams().setConnectionTimeout(30000);
+    for (String path : new String[] {"/_ah/metrics;x", "/_ah/%6Detrics"}) {
+      GetMethod get = new GetMethod(createUrl(path).toString());
+      get.setFollowRedirects(false);
+      assertEquals(path, 302, httpClient.executeMethod(get));
+      assertEquals("http://login-url", get.getResponseHeader("Location").getValue());
+
+      get = new GetMethod(createUrl(path).toString());
+      get.addRequestHeader(VmApiProxyEnvironment.EMAIL_HEADER, "isdal@google.com");
+      get.addRequestHeader(VmApiProxyEnvironment.AUTH_DOMAIN_HEADER, "google.com");
+      get.setFollowRedirects(false);
+      assertEquals(path, 403, httpClient.executeMethod(get));
+    }
+  }
+
     public void testAsyncRequests_WaitUntilDone() throws Exception {
     long sleepTime = 2000;
     FakeableVmApiProxyDelegate fakeApiProxy = new FakeableVmApiProxyDelegate();
@@ -18,6 +18,8 @@ package com.google.apphosting.utils.servlet;
 
 import com.google.apphosting.utils.http.HttpRequest;
 
+import java.util.Enumeration;
+
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -41,6 +43,14 @@ public class HttpServletRequestAdapter implements HttpRequest {
     return request.getHeader(name);
   }
 
+  /**
+   * Returns the names of the headers of the request, see
+   * {@link HttpServletRequest#getHeaderNames()}.
+   */
+  public Enumeration<String> getHeaderNames() {
+    return request.getHeaderNames();
+  }
+
   @Override
   public String getParameter(String name) {
     return request.getParameter(name);
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.utils.servlet;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.apphosting.vmruntime.VmApiCallMetrics;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * {@code VmMetricsServlet} responds with the metrics of the API calls made by the app, in the
+ * Prometheus text format.
+ *
+ * This handler should be mapped to /_ah/metrics on VM Runtimes, and only responds to admins.
+ *
+ */
+public class VmMetricsServlet extends HttpServlet {
+
+  @Override
+  public void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // Also guarded by a security constraint, checked again in case the constraint is bypassed.
+    UserService userService = UserServiceFactory.getUserService();
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "Not an admin request.");
+      return;
+    }
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("UTF-8");
+    VmApiCallMetrics.getInstance().writeText(response.getWriter());
+  }
+}
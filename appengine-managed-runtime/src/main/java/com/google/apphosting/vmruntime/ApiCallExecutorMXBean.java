@@ -0,0 +1,45 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+/**
+ * JMX view of the bounded executor running async API calls, see {@link VmApiCallExecutor}.
+ *
+ */
+public interface ApiCallExecutorMXBean {
+  int getMaxThreads();
+
+  int getMaxQueuedTasks();
+
+  int getThreadCount();
+
+  int getActiveThreadCount();
+
+  int getQueuedTaskCount();
+
+  long getCompletedTaskCount();
+
+  long getRejectedTaskCount();
+
+  double getQueueWaitMicrosMean();
+
+  long getQueueWaitMicrosP50();
+
+  long getQueueWaitMicrosP99();
+
+  long getQueueWaitMicrosMax();
+}
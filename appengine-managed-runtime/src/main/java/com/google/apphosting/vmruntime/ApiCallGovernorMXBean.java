@@ -0,0 +1,41 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+/**
+ * JMX view of the instance-wide limit on API calls in flight, see {@link VmApiCallGovernor}.
+ *
+ */
+public interface ApiCallGovernorMXBean {
+  /**
+   * Returns the current limit on the number of API calls in flight.
+   */
+  int getLimit();
+
+  int getMaxLimit();
+
+  int getInFlightCallCount();
+
+  int getWaitingCallCount();
+
+  /**
+   * Returns the number of times the limit was lowered after slow or failed calls.
+   */
+  long getLimitDecreaseCount();
+
+  long getTimedOutCallCount();
+}
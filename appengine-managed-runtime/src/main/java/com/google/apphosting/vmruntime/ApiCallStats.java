@@ -0,0 +1,161 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the calls made to one API method. Updates are lock-free and do not allocate.
+ *
+ */
+public final class ApiCallStats implements ApiCallStatsMXBean {
+  private static final RemoteApiPb.RpcError.ErrorCode[] ERROR_CODES =
+      RemoteApiPb.RpcError.ErrorCode.values();
+
+  private final String service;
+  private final String method;
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final AtomicLongArray rpcErrors = new AtomicLongArray(ERROR_CODES.length);
+  private final LongAdder requestBytes = new LongAdder();
+  private final LongAdder responseBytes = new LongAdder();
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  final LatencyHistogram latency = new LatencyHistogram();
+  // Latency of the first attempts of hedged calls, which sets their hedge delay.
+  final LatencyHistogram firstAttemptLatency = new LatencyHistogram();
+
+  ApiCallStats(String service, String method) {
+    this.service = service;
+    this.method = method;
+  }
+
+  /**
+   * Records a completed call.
+   *
+   * @param response the API response, or null if the call failed
+   */
+  void recordCall(int requestSize, byte[] response, long latencyNanos) {
+    calls.increment();
+    requestBytes.add(requestSize);
+    if (response == null) {
+      errors.increment();
+    } else {
+      responseBytes.add(response.length);
+    }
+    latency.record(latencyNanos / 1000);
+  }
+
+  void recordRpcError(int code) {
+    if (code >= 0 && code < ERROR_CODES.length) {
+      rpcErrors.incrementAndGet(code);
+    }
+  }
+
+  void recordHedge() {
+    hedges.increment();
+  }
+
+  void recordRetry() {
+    retries.increment();
+  }
+
+  void recordFirstAttempt(long latencyNanos) {
+    firstAttemptLatency.record(latencyNanos / 1000);
+  }
+
+  @Override
+  public String getService() {
+    return service;
+  }
+
+  @Override
+  public String getMethod() {
+    return method;
+  }
+
+  @Override
+  public long getCallCount() {
+    return calls.sum();
+  }
+
+  @Override
+  public long getErrorCount() {
+    return errors.sum();
+  }
+
+  @Override
+  public Map<String, Long> getRpcErrorCounts() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    for (int i = 0; i < ERROR_CODES.length; i++) {
+      long count = rpcErrors.get(i);
+      if (count > 0) {
+        counts.put(ERROR_CODES[i].name(), count);
+      }
+    }
+    return counts;
+  }
+
+  @Override
+  public long getRequestBytes() {
+    return requestBytes.sum();
+  }
+
+  @Override
+  public long getResponseBytes() {
+    return responseBytes.sum();
+  }
+
+  @Override
+  public long getHedgedAttemptCount() {
+    return hedges.sum();
+  }
+
+  @Override
+  public long getRetriedAttemptCount() {
+    return retries.sum();
+  }
+
+  @Override
+  public double getLatencyMicrosMean() {
+    return latency.getMean();
+  }
+
+  @Override
+  public long getLatencyMicrosP50() {
+    return latency.getPercentile(50);
+  }
+
+  @Override
+  public long getLatencyMicrosP95() {
+    return latency.getPercentile(95);
+  }
+
+  @Override
+  public long getLatencyMicrosP99() {
+    return latency.getPercentile(99);
+  }
+
+  @Override
+  public long getLatencyMicrosMax() {
+    return latency.getMax();
+  }
+}
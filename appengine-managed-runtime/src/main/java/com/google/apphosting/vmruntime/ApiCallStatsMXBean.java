@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apphosting.vmruntime;
+
+import java.util.Map;
+
+/**
+ * JMX view of the calls made to one API method, see {@link VmApiCallMetrics}.
+ *
+ */
+public interface ApiCallStatsMXBean {
+  String getService();
+
+  String getMethod();
+
+  long getCallCount();
+
+  long getErrorCount();
+
+  /**
+   * Returns the number of calls failed with each RemoteApi RpcError code.
+   */
+  Map<String, Long> getRpcErrorCounts();
+
+  long getRequestBytes();
+
+  long getResponseBytes();
+
+  /**
+   * Returns the number of duplicate attempts sent for slow calls, see {@link VmApiCallHedger}.
+   */
+  long getHedgedAttemptCount();
+
+  /**
+   * Returns the number of attempts sent again after an I/O error, see {@link VmApiCallHedger}.
+   */
+  long getRetriedAttemptCount();
+
+  double getLatencyMicrosMean();
+
+  long getLatencyMicrosP50();
+
+  long getLatencyMicrosP95();
+
+  long getLatencyMicrosP99();
+
+  long getLatencyMicrosMax();
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import static com.google.apphosting.vmruntime.ProtoWire.WIRETYPE_LENGTH_DELIMITED;
+import static com.google.apphosting.vmruntime.ProtoWire.WIRETYPE_VARINT;
+import static com.google.apphosting.vmruntime.ProtoWire.varintSize;
+
+import java.util.Arrays;
+
+/**
+ * Append-only buffer of app log lines, each encoded once into the wire format of a
+ * {@code LogServicePb.UserAppLogGroup} when it is added.
+ *
+ * <p>Flushing the buffer only writes the header of the {@code FlushRequest.logs} field in front
+ * of the encoded lines and copies them out, instead of building and serializing the protobuf
+ * messages. The byte count of the buffer is the exact size of the encoded lines. The backing
+ * arrays are pooled between flushes, see {@link ByteArrayPool}.
+ *
+ * <p>This class is not thread safe.
+ *
+ */
+final class AppLogLineBuffer {
+  // Field numbers of LogServicePb.UserAppLogLine, serialized in this order.
+  private static final int LINE_TIMESTAMP_USEC_FIELD = 1;
+  private static final int LINE_LEVEL_FIELD = 2;
+  private static final int LINE_MESSAGE_FIELD = 3;
+
+  // Field number of LogServicePb.UserAppLogGroup.log_line.
+  private static final int GROUP_LOG_LINE_FIELD = 2;
+
+  // Field number of LogServicePb.FlushRequest.logs.
+  private static final int FLUSH_LOGS_FIELD = 1;
+
+  // Room left in front of the lines for the header of the FlushRequest.logs field: a one byte
+  // tag and a length of up to 5 bytes.
+  private static final int HEADER_SIZE = 6;
+
+  private byte[] buffer;  // null while the buffer is empty.
+  private int position = HEADER_SIZE;
+
+  /**
+   * Returns the number of bytes of {@code message} encoded in UTF-8.
+   */
+  static int encodedLength(String message) {
+    int length = message.length();
+    int encodedLength = length;
+    for (int i = 0; i < length; i++) {
+      char c = message.charAt(i);
+      if (c >= 0x800) {
+        if (Character.isHighSurrogate(c) && i + 1 < length
+            && Character.isLowSurrogate(message.charAt(i + 1))) {
+          // 4 bytes for the pair of chars.
+          encodedLength += 2;
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          encodedLength += 2;
+        }  // else: unpaired surrogates are encoded as '?'.
+      } else if (c >= 0x80) {
+        encodedLength++;
+      }
+    }
+    return encodedLength;
+  }
+
+  /**
+   * Returns the number of bytes a log line takes in a UserAppLogGroup.
+   *
+   * @param messageLength the length of the message, as returned by {@link #encodedLength}.
+   */
+  static int lineSize(long timestampUsec, int level, int messageLength) {
+    int lineLength = lineLength(timestampUsec, level, messageLength);
+    return 1 + varintSize(lineLength) + lineLength;
+  }
+
+  private static int lineLength(long timestampUsec, int level, int messageLength) {
+    return 1 + varintSize(timestampUsec) + 1 + varintSize(level) + 1 + varintSize(messageLength)
+        + messageLength;
+  }
+
+  /**
+   * Encodes a log line at the end of the buffer.
+   *
+   * @param messageLength the length of the message, as returned by {@link #encodedLength}.
+   */
+  void append(long timestampUsec, int level, String message, int messageLength) {
+    int lineLength = lineLength(timestampUsec, level, messageLength);
+    ensureCapacity(1 + varintSize(lineLength) + lineLength);
+    position = putTag(position, GROUP_LOG_LINE_FIELD, WIRETYPE_LENGTH_DELIMITED);
+    position = putVarint(position, lineLength);
+    position = putTag(position, LINE_TIMESTAMP_USEC_FIELD, WIRETYPE_VARINT);
+    position = putVarint(position, timestampUsec);
+    position = putTag(position, LINE_LEVEL_FIELD, WIRETYPE_VARINT);
+    position = putVarint(position, level);
+    position = putTag(position, LINE_MESSAGE_FIELD, WIRETYPE_LENGTH_DELIMITED);
+    position = putVarint(position, messageLength);
+    position = putUtf8(position, message);
+  }
+
+  boolean isEmpty() {
+    return position == HEADER_SIZE;
+  }
+
+  /**
+   * Returns the number of bytes of the encoded lines.
+   */
+  int getByteCount() {
+    return position - HEADER_SIZE;
+  }
+
+  /**
+   * Returns a serialized FlushRequest of the buffered lines, and empties the buffer.
+   */
+  byte[] toFlushRequest() {
+    int length = getByteCount();
+    int start = HEADER_SIZE - 1 - varintSize(length);
+    byte[] request;
+    if (buffer == null) {
+      request = new byte[] {(byte) (FLUSH_LOGS_FIELD << 3 | WIRETYPE_LENGTH_DELIMITED), 0};
+    } else {
+      putVarint(putTag(start, FLUSH_LOGS_FIELD, WIRETYPE_LENGTH_DELIMITED), length);
+      request = Arrays.copyOfRange(buffer, start, position);
+      ByteArrayPool.SHARED.release(buffer);
+    }
+    buffer = null;
+    position = HEADER_SIZE;
+    return request;
+  }
+
+  private void ensureCapacity(int length) {
+    int required = position + length;
+    if (buffer == null) {
+      buffer = ByteArrayPool.SHARED.acquire(required);
+    } else if (required > buffer.length) {
+      byte[] grown = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+      ByteArrayPool.SHARED.release(buffer);
+      buffer = grown;
+    }
+  }
+
+  private int putTag(int position, int fieldNumber, int wireType) {
+    return ProtoWire.putTag(buffer, position, fieldNumber, wireType);
+  }
+
+  private int putVarint(int position, long value) {
+    return ProtoWire.putVarint(buffer, position, value);
+  }
+
+  private int putUtf8(int position, String message) {
+    byte[] target = buffer;
+    int length = message.length();
+    for (int i = 0; i < length; i++) {
+      char c = message.charAt(i);
+      if (c < 0x80) {
+        target[position++] = (byte) c;
+      } else if (c < 0x800) {
+        target[position++] = (byte) (0xC0 | (c >> 6));
+        target[position++] = (byte) (0x80 | (c & 0x3F));
+      } else if (!Character.isSurrogate(c)) {
+        target[position++] = (byte) (0xE0 | (c >> 12));
+        target[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        target[position++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(message.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, message.charAt(++i));
+        target[position++] = (byte) (0xF0 | (codePoint >> 18));
+        target[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        target[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        target[position++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else {
+        target[position++] = '?';
+      }
+    }
+    return position;
+  }
+}
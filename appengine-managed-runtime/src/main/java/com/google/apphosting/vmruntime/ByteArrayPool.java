@@ -0,0 +1,79 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the byte arrays holding serialized API messages between calls.
+ *
+ * <p>The pool is bounded by the total size of the arrays it retains, not by their number, so
+ * that a burst of large messages cannot pin a lot of heap. Arrays larger than a quarter of that
+ * budget are left to the GC.
+ *
+ */
+final class ByteArrayPool {
+  static final int MIN_BUFFER_SIZE = 8 * 1024;
+
+  // Pool shared by all the buffers of the runtime.
+  static final ByteArrayPool SHARED = new ByteArrayPool(4 * 1024 * 1024);
+
+  private final long maxRetainedBytes;
+  private final int maxBufferSize;
+  private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+  private final AtomicLong retainedBytes = new AtomicLong();
+
+  ByteArrayPool(long maxRetainedBytes) {
+    this.maxRetainedBytes = maxRetainedBytes;
+    this.maxBufferSize = (int) Math.min(maxRetainedBytes / 4, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns a pooled array of at least {@code minSize} bytes, or a new one.
+   */
+  byte[] acquire(int minSize) {
+    byte[] buffer = buffers.poll();
+    if (buffer != null) {
+      if (buffer.length >= minSize) {
+        retainedBytes.addAndGet(-buffer.length);
+        return buffer;
+      }
+      buffers.offer(buffer);
+    }
+    return new byte[Math.max(minSize, MIN_BUFFER_SIZE)];
+  }
+
+  /**
+   * Returns an array to the pool, unless it is too large or the pool is full.
+   */
+  void release(byte[] buffer) {
+    if (buffer == null || buffer.length > maxBufferSize) {
+      return;
+    }
+    if (retainedBytes.addAndGet(buffer.length) <= maxRetainedBytes) {
+      buffers.offer(buffer);
+    } else {
+      retainedBytes.addAndGet(-buffer.length);
+    }
+  }
+
+  long getRetainedBytes() {
+    return retainedBytes.get();
+  }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Limits the rate of the records logged from each call site, such as {@code INFO=100,FINE=10}
+ * records per second.
+ *
+ * <p>A call site is the logger, source class and source method of a record. A limit applies to
+ * the records of its level and of the levels below it, down to the next configured level, and
+ * records above the highest configured level are never limited. Each call site has its own token
+ * bucket per limit, allowing bursts of up to one second of records, kept in a single atomic
+ * counter so that checking a record does not lock.
+ *
+ * <p>The records suppressed at a call site are counted, and the count is reported with the next
+ * record admitted from the call site once {@link #SUMMARY_INTERVAL_NANOS} have passed since the
+ * previous report. The counts of a storm which stopped are reported at the end of the last
+ * request which had a record suppressed, by {@link #drainSuppressed}.
+ *
+ * <p>Past {@code maxCallSites} call sites, the buckets which refilled and have nothing to report
+ * are evicted, as a new bucket behaves the same.
+ *
+ */
+final class LogRateLimiter {
+  static final LogRateLimiter UNLIMITED = new LogRateLimiter(new int[0], new int[0], 0);
+
+  static final long SUMMARY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  // Idle buckets are evicted past this, to bound the memory of the buckets.
+  static final int MAX_CALL_SITES = 4096;
+  // How often the buckets may be scanned for idle ones, the call sites added in the meantime may
+  // exceed the maximum.
+  private static final long EVICTION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Receives the count of the records suppressed at a call site.
+   */
+  interface SuppressedConsumer {
+    void accept(String callSite, Level level, long suppressed);
+  }
+
+  private final int[] levels;
+  private final long[] intervalNanos;
+  private final long[] burstNanos;
+  private final int maxCallSites;
+  private final Map<CallSite, Bucket> buckets = new ConcurrentHashMap<>();
+  // The buckets which may have suppressed records to report.
+  private final Queue<Bucket> pending = new ConcurrentLinkedQueue<>();
+  // The last eviction scan, 0 before the first one.
+  private final AtomicLong lastEvictionNanos = new AtomicLong();
+
+  private LogRateLimiter(int[] levels, int[] recordsPerSecond, int maxCallSites) {
+    this.levels = levels;
+    this.intervalNanos = new long[levels.length];
+    this.burstNanos = new long[levels.length];
+    this.maxCallSites = maxCallSites;
+    for (int i = 0; i < levels.length; i++) {
+      intervalNanos[i] = TimeUnit.SECONDS.toNanos(1) / recordsPerSecond[i];
+      burstNanos[i] = intervalNanos[i] * (recordsPerSecond[i] - 1);
+    }
+  }
+
+  /**
+   * Parses a comma separated list of {@code LEVEL=recordsPerSecond} entries.
+   *
+   * @throws IllegalArgumentException if an entry is malformed, its level is unknown or its rate
+   *     is not positive.
+   */
+  static LogRateLimiter parse(String spec) {
+    return parse(spec, MAX_CALL_SITES);
+  }
+
+  static LogRateLimiter parse(String spec, int maxCallSites) {
+    TreeMap<Integer, Integer> limits = new TreeMap<>();
+    for (String entry : spec.split(",")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      int equals = entry.indexOf('=');
+      if (equals <= 0) {
+        throw new IllegalArgumentException("Expected LEVEL=recordsPerSecond: " + entry);
+      }
+      Level level = Level.parse(entry.substring(0, equals).trim());
+      int rate = Integer.parseInt(entry.substring(equals + 1).trim());
+      if (rate <= 0) {
+        throw new IllegalArgumentException("Expected a positive rate: " + entry);
+      }
+      limits.put(level.intValue(), rate);
+    }
+    if (limits.isEmpty()) {
+      return UNLIMITED;
+    }
+    int[] levels = new int[limits.size()];
+    int[] rates = new int[limits.size()];
+    int i = 0;
+    for (Map.Entry<Integer, Integer> limit : limits.entrySet()) {
+      levels[i] = limit.getKey();
+      rates[i++] = limit.getValue();
+    }
+    return new LogRateLimiter(levels, rates, maxCallSites);
+  }
+
+  boolean isEmpty() {
+    return levels.length == 0;
+  }
+
+  /**
+   * Takes a token for a record from the bucket of its call site.
+   *
+   * @param owner the request logging the record, which reports the suppressed records at its end
+   *     if it is the last one to have a record suppressed at the call site
+   * @return -1 if the record must be suppressed, otherwise the number of records suppressed at
+   *     the call site to report along with this record, usually 0.
+   */
+  long acquire(LogRecord record, Object owner, long nowNanos) {
+    int limit = limitIndex(record.getLevel().intValue());
+    if (limit < 0) {
+      return 0;
+    }
+    Bucket bucket = bucket(new CallSite(record.getLoggerName(), record.getSourceClassName(),
+        record.getSourceMethodName(), limit), nowNanos);
+    if (!bucket.tryAcquire(nowNanos, intervalNanos[limit], burstNanos[limit])) {
+      bucket.owner = owner;
+      bucket.level = record.getLevel();
+      bucket.suppressed.incrementAndGet();
+      if (bucket.queued.compareAndSet(false, true)) {
+        pending.add(bucket);
+      }
+      return -1;
+    }
+    if (bucket.suppressed.get() == 0
+        || nowNanos - bucket.lastSummaryNanos < SUMMARY_INTERVAL_NANOS) {
+      return 0;
+    }
+    bucket.lastSummaryNanos = nowNanos;
+    return bucket.suppressed.getAndSet(0);
+  }
+
+  /**
+   * Returns the index of the lowest configured level at or above a level, or -1 if none.
+   */
+  private int limitIndex(int level) {
+    int index = Arrays.binarySearch(levels, level);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return index < levels.length ? index : -1;
+  }
+
+  /**
+   * Reports the records suppressed at the call sites where {@code owner} was the last request to
+   * have a record suppressed, when it ends: no record admitted from these call sites may come to
+   * report them.
+   */
+  void drainSuppressed(Object owner, long nowNanos, SuppressedConsumer consumer) {
+    for (Iterator<Bucket> iterator = pending.iterator(); iterator.hasNext(); ) {
+      Bucket bucket = iterator.next();
+      if (bucket.owner == owner) {
+        bucket.owner = null;
+        long suppressed = bucket.suppressed.getAndSet(0);
+        if (suppressed > 0) {
+          bucket.lastSummaryNanos = nowNanos;
+          consumer.accept(bucket.callSite.toString(), bucket.level, suppressed);
+        }
+      }
+      if (bucket.suppressed.get() == 0) {
+        iterator.remove();
+        bucket.queued.set(false);
+        // Queue it again if a record was suppressed since the check.
+        if (bucket.suppressed.get() > 0 && bucket.queued.compareAndSet(false, true)) {
+          pending.add(bucket);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of call sites with a bucket.
+   */
+  int callSiteCount() {
+    return buckets.size();
+  }
+
+  private Bucket bucket(CallSite callSite, long nowNanos) {
+    Bucket bucket = buckets.get(callSite);
+    if (bucket != null) {
+      return bucket;
+    }
+    if (buckets.size() >= maxCallSites) {
+      evictIdleBuckets(nowNanos);
+    }
+    return buckets.computeIfAbsent(callSite, key -> new Bucket(key, nowNanos));
+  }
+
+  private void evictIdleBuckets(long nowNanos) {
+    long last = lastEvictionNanos.get();
+    if ((last != 0 && nowNanos - last < EVICTION_INTERVAL_NANOS)
+        || !lastEvictionNanos.compareAndSet(last, nowNanos)) {
+      return;
+    }
+    buckets.values().removeIf(bucket -> bucket.isIdle(nowNanos));
+  }
+
+  /**
+   * Describes the call site of a record in the summaries of its suppressed records.
+   */
+  static String describeCallSite(
+      String loggerName, String sourceClassName, String sourceMethodName) {
+    if (sourceClassName == null) {
+      return String.valueOf(loggerName);
+    }
+    return sourceClassName + (sourceMethodName != null ? " " + sourceMethodName : "");
+  }
+
+  /**
+   * A token bucket kept as the time its next token is due (the generic cell rate algorithm).
+   */
+  private static final class Bucket {
+    final CallSite callSite;
+    private final AtomicLong nextTokenNanos;
+    final AtomicLong suppressed = new AtomicLong();
+    volatile long lastSummaryNanos;
+    // The request and the level of the last suppressed record.
+    volatile Object owner;
+    volatile Level level;
+    // Whether the bucket is in the pending queue.
+    final AtomicBoolean queued = new AtomicBoolean();
+
+    Bucket(CallSite callSite, long nowNanos) {
+      this.callSite = callSite;
+      nextTokenNanos = new AtomicLong(nowNanos);
+      lastSummaryNanos = nowNanos;
+    }
+
+    /**
+     * Returns whether the bucket is full and has no suppressed records to report.
+     */
+    boolean isIdle(long nowNanos) {
+      return nextTokenNanos.get() - nowNanos <= 0 && suppressed.get() == 0;
+    }
+
+    boolean tryAcquire(long nowNanos, long intervalNanos, long burstNanos) {
+      while (true) {
+        long next = nextTokenNanos.get();
+        // A bucket left idle fills up to its burst, not past it.
+        long start = next - nowNanos < 0 ? nowNanos : next;
+        if (start - nowNanos > burstNanos) {
+          return false;
+        }
+        if (nextTokenNanos.compareAndSet(next, start + intervalNanos)) {
+          return true;
+        }
+      }
+    }
+  }
+
+  private static final class CallSite {
+    private final String loggerName;
+    private final String sourceClassName;
+    private final String sourceMethodName;
+    private final int limit;
+
+    CallSite(String loggerName, String sourceClassName, String sourceMethodName, int limit) {
+      this.loggerName = loggerName;
+      this.sourceClassName = sourceClassName;
+      this.sourceMethodName = sourceMethodName;
+      this.limit = limit;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CallSite)) {
+        return false;
+      }
+      CallSite other = (CallSite) obj;
+      return limit == other.limit
+          && Objects.equals(loggerName, other.loggerName)
+          && Objects.equals(sourceClassName, other.sourceClassName)
+          && Objects.equals(sourceMethodName, other.sourceMethodName);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = Objects.hashCode(loggerName);
+      hash = 31 * hash + Objects.hashCode(sourceClassName);
+      hash = 31 * hash + Objects.hashCode(sourceMethodName);
+      return 31 * hash + limit;
+    }
+
+    @Override
+    public String toString() {
+      return describeCallSite(loggerName, sourceClassName, sourceMethodName);
+    }
+  }
+}
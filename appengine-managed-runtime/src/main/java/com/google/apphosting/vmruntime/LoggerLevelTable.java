@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Minimum levels of the records of the loggers under some name prefixes, such as
+ * {@code org.eclipse.jetty=INFO, com.google.apphosting=WARNING}.
+ *
+ * <p>A prefix applies to the logger of the same name and to its descendants, the longest prefix
+ * wins. The level resolved for a logger name is cached, so that checking a record usually costs
+ * a single hash lookup.
+ *
+ */
+final class LoggerLevelTable {
+  static final LoggerLevelTable EMPTY = new LoggerLevelTable(new HashMap<String, Integer>());
+
+  // Logger names whose level is not cached past this, to bound the memory of the cache.
+  private static final int MAX_CACHED_NAMES = 4096;
+
+  private final Map<String, Integer> prefixLevels;
+  private final Map<String, Integer> cachedLevels = new ConcurrentHashMap<>();
+
+  private LoggerLevelTable(Map<String, Integer> prefixLevels) {
+    this.prefixLevels = prefixLevels;
+  }
+
+  /**
+   * Parses a comma separated list of {@code prefix=LEVEL} entries.
+   *
+   * @throws IllegalArgumentException if an entry is malformed or its level is unknown.
+   */
+  static LoggerLevelTable parse(String spec) {
+    Map<String, Integer> prefixLevels = new HashMap<>();
+    for (String entry : spec.split(",")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      int equals = entry.indexOf('=');
+      if (equals <= 0) {
+        throw new IllegalArgumentException("Expected prefix=LEVEL: " + entry);
+      }
+      String prefix = entry.substring(0, equals).trim();
+      Level level = Level.parse(entry.substring(equals + 1).trim());
+      prefixLevels.put(prefix, level.intValue());
+    }
+    return prefixLevels.isEmpty() ? EMPTY : new LoggerLevelTable(prefixLevels);
+  }
+
+  boolean isEmpty() {
+    return prefixLevels.isEmpty();
+  }
+
+  /**
+   * Returns whether a record of a logger passes the level of the longest matching prefix.
+   */
+  boolean isLoggable(String loggerName, Level level) {
+    if (prefixLevels.isEmpty() || loggerName == null) {
+      return true;
+    }
+    Integer minimum = cachedLevels.get(loggerName);
+    if (minimum == null) {
+      minimum = resolve(loggerName);
+      if (cachedLevels.size() < MAX_CACHED_NAMES) {
+        cachedLevels.put(loggerName, minimum);
+      }
+    }
+    return level.intValue() >= minimum;
+  }
+
+  private int resolve(String loggerName) {
+    String name = loggerName;
+    while (true) {
+      Integer level = prefixLevels.get(name);
+      if (level != null) {
+        return level;
+      }
+      int dot = name.lastIndexOf('.');
+      if (dot < 0) {
+        return Integer.MIN_VALUE;
+      }
+      name = name.substring(0, dot);
+    }
+  }
+}
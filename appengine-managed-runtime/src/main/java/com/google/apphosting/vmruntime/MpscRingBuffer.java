@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for many producer threads and a single consumer thread.
+ *
+ * <p>Each slot of the ring has a sequence number telling whether it is free for the producer
+ * claiming the position, or holds the element the consumer expects next. Producers claim
+ * positions with a compare-and-set on the tail, then publish their element by advancing the
+ * sequence of its slot, so a full ring is detected without taking any lock.
+ *
+ */
+final class MpscRingBuffer<E> {
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+  // The next position claimed by a producer.
+  private final AtomicLong tail = new AtomicLong();
+  // The next position read by the consumer, only accessed by the consumer thread.
+  private long head;
+
+  /**
+   * @param capacity The maximum number of queued elements, rounded up to a power of two.
+   */
+  MpscRingBuffer(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = this.capacity - 1;
+    this.elements = new AtomicReferenceArray<>(this.capacity);
+    this.sequences = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Adds an element, unless the ring is full. Never blocks.
+   *
+   * @return Whether the element was added.
+   */
+  boolean offer(E element) {
+    long position = tail.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        // The slot still holds the element queued one turn of the ring ago.
+        return false;
+      } else {
+        // Another producer claimed the position.
+        position = tail.get();
+      }
+    }
+    elements.lazySet(index, element);
+    sequences.set(index, position + 1);
+    return true;
+  }
+
+  /**
+   * Removes the oldest element. Must only be called by the consumer thread.
+   *
+   * @return The element, or null if there is none published yet.
+   */
+  E poll() {
+    int index = (int) head & mask;
+    if (sequences.get(index) != head + 1) {
+      return null;
+    }
+    E element = elements.get(index);
+    elements.lazySet(index, null);
+    sequences.lazySet(index, head + capacity);
+    head++;
+    return element;
+  }
+
+  /**
+   * Returns whether no element is published. Must only be called by the consumer thread.
+   */
+  boolean isEmpty() {
+    return sequences.get((int) head & mask) != head + 1;
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+/**
+ * Helpers writing and reading the protocol buffer wire format directly into byte arrays, for the
+ * messages the runtime serializes without building them.
+ *
+ */
+final class ProtoWire {
+  static final int WIRETYPE_VARINT = 0;
+  static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+  private ProtoWire() {
+  }
+
+  /**
+   * Writes the tag of a field at {@code position}, and returns the position following it.
+   */
+  static int putTag(byte[] target, int position, int fieldNumber, int wireType) {
+    return putVarint(target, position, fieldNumber << 3 | wireType);
+  }
+
+  /**
+   * Writes a varint at {@code position}, and returns the position following it.
+   */
+  static int putVarint(byte[] target, int position, long value) {
+    while ((value & ~0x7FL) != 0) {
+      target[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    target[position++] = (byte) value;
+    return position;
+  }
+
+  static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Returns the position following the varint at {@code position}, or -1 if it is truncated or
+   * longer than 5 bytes.
+   */
+  static int skipVarint(byte[] buffer, int position, int end) {
+    for (int i = 0; i < 5 && position < end; i++) {
+      if (buffer[position++] >= 0) {
+        return position;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reads the varint in {@code buffer[position, end)}, as delimited by {@link #skipVarint}.
+   */
+  static long readVarint(byte[] buffer, int position, int end) {
+    long value = 0;
+    for (int shift = 0; position < end; shift += 7) {
+      value |= (long) (buffer[position++] & 0x7F) << shift;
+    }
+    return value;
+  }
+}
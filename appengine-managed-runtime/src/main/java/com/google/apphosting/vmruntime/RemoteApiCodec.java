@@ -0,0 +1,310 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static com.google.apphosting.vmruntime.ProtoWire.WIRETYPE_LENGTH_DELIMITED;
+import static com.google.apphosting.vmruntime.ProtoWire.putTag;
+import static com.google.apphosting.vmruntime.ProtoWire.putVarint;
+import static com.google.apphosting.vmruntime.ProtoWire.readVarint;
+import static com.google.apphosting.vmruntime.ProtoWire.skipVarint;
+import static com.google.apphosting.vmruntime.ProtoWire.varintSize;
+
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.RPCFailedException;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Encodes and decodes the RemoteApi envelope of API calls without copying the API payloads.
+ *
+ * <p>A {@link RemoteApiPb.Request} is serialized as a few bytes of framing around the caller's
+ * request data, which is written to the connection as is. The response data is sliced out of the
+ * {@link RemoteApiPb.Response} read into a pooled buffer; responses carrying an error are fully
+ * parsed.
+ *
+ */
+final class RemoteApiCodec {
+  private static final Logger logger = Logger.getLogger(RemoteApiCodec.class.getName());
+
+  private static final String CONTENT_TYPE = "application/octet-stream";
+
+  // Field numbers of RemoteApiPb.Request, serialized in this order.
+  private static final int REQUEST_SERVICE_NAME_FIELD = 2;
+  private static final int REQUEST_METHOD_FIELD = 3;
+  private static final int REQUEST_REQUEST_FIELD = 4;
+  private static final int REQUEST_REQUEST_ID_FIELD = 5;
+
+  // Field number of RemoteApiPb.Response.response, the others carry errors.
+  private static final int RESPONSE_RESPONSE_FIELD = 1;
+
+  private RemoteApiCodec() {
+  }
+
+  /**
+   * Returns the RemoteApi Request wrapping the payload of an API call, ready to be sent.
+   *
+   * @param packageName The API call package
+   * @param methodName The API call method
+   * @param requestId The ticket of the request making the call
+   * @param requestData The API call payload, referenced and not copied
+   */
+  static RequestEntity encodeRequest(String packageName, String methodName, String requestId,
+      byte[] requestData) {
+    byte[] serviceName = packageName.getBytes(StandardCharsets.UTF_8);
+    byte[] method = methodName.getBytes(StandardCharsets.UTF_8);
+    byte[] head = new byte[fieldSize(REQUEST_SERVICE_NAME_FIELD, serviceName.length)
+        + fieldSize(REQUEST_METHOD_FIELD, method.length)
+        + fieldSize(REQUEST_REQUEST_FIELD, requestData.length) - requestData.length];
+    int position = putField(head, 0, REQUEST_SERVICE_NAME_FIELD, serviceName);
+    position = putField(head, position, REQUEST_METHOD_FIELD, method);
+    putFieldHeader(head, position, REQUEST_REQUEST_FIELD, requestData.length);
+
+    byte[] tail;
+    if (requestId == null) {
+      tail = new byte[0];
+    } else {
+      byte[] id = requestId.getBytes(StandardCharsets.UTF_8);
+      tail = new byte[fieldSize(REQUEST_REQUEST_ID_FIELD, id.length)];
+      putField(tail, 0, REQUEST_REQUEST_ID_FIELD, id);
+    }
+    return new RequestEntity(head, requestData, tail);
+  }
+
+  /**
+   * A serialized RemoteApiPb.Request, held as the framing before and after the API payload.
+   */
+  static final class RequestEntity extends AbstractHttpEntity {
+    private final byte[] head;
+    private final byte[] payload;
+    private final byte[] tail;
+
+    private RequestEntity(byte[] head, byte[] payload, byte[] tail) {
+      this.head = head;
+      this.payload = payload;
+      this.tail = tail;
+      setContentType(CONTENT_TYPE);
+      setChunked(false);
+    }
+
+    /**
+     * Returns the serialized request as buffers to be written in order.
+     */
+    ByteBuffer[] toByteBuffers() {
+      return new ByteBuffer[] {
+          ByteBuffer.wrap(head), ByteBuffer.wrap(payload), ByteBuffer.wrap(tail)};
+    }
+
+    /**
+     * Returns the serialized request as arrays to be written in order.
+     */
+    byte[][] toByteArrays() {
+      return new byte[][] {head, payload, tail};
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public long getContentLength() {
+      return head.length + payload.length + tail.length;
+    }
+
+    @Override
+    public InputStream getContent() {
+      return new SequenceInputStream(new ByteArrayInputStream(head),
+          new SequenceInputStream(new ByteArrayInputStream(payload),
+              new ByteArrayInputStream(tail)));
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      out.write(head);
+      out.write(payload);
+      out.write(tail);
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+  }
+
+  /**
+   * Accumulates the body of an API server response in a pooled buffer.
+   *
+   * <p>{@link #release()} must be called once the response has been decoded.
+   */
+  static final class ResponseBuffer {
+    private byte[] buffer;
+    private int size;
+
+    /**
+     * @param sizeHint the expected size of the response, or a negative value if it is unknown
+     */
+    ResponseBuffer(long sizeHint) {
+      buffer = ByteArrayPool.SHARED.acquire((int) Math.min(Math.max(sizeHint, 0),
+          VmApiProxyAsyncClient.MAX_RESPONSE_SIZE));
+    }
+
+    int size() {
+      return size;
+    }
+
+    void append(byte[] bytes, int offset, int length) throws IOException {
+      ensureCapacity(length);
+      System.arraycopy(bytes, offset, buffer, size, length);
+      size += length;
+    }
+
+    void append(ByteBuffer bytes) throws IOException {
+      int length = bytes.remaining();
+      ensureCapacity(length);
+      bytes.get(buffer, size, length);
+      size += length;
+    }
+
+    /**
+     * Appends the content of {@code in} until its end.
+     */
+    void readFrom(InputStream in) throws IOException {
+      while (true) {
+        if (size == buffer.length) {
+          // Only grow the buffer if the size hint was wrong.
+          int next = in.read();
+          if (next < 0) {
+            return;
+          }
+          ensureCapacity(1);
+          buffer[size++] = (byte) next;
+        }
+        int read = in.read(buffer, size, buffer.length - size);
+        if (read < 0) {
+          return;
+        }
+        size += read;
+      }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+      if (length > VmApiProxyAsyncClient.MAX_RESPONSE_SIZE - size) {
+        throw new IOException(
+            "API response exceeds " + VmApiProxyAsyncClient.MAX_RESPONSE_SIZE + " bytes");
+      }
+      if (size + length > buffer.length) {
+        int capacity = (int) Math.min(
+            Math.max((long) buffer.length * 2, size + length),
+            VmApiProxyAsyncClient.MAX_RESPONSE_SIZE);
+        byte[] grown = ByteArrayPool.SHARED.acquire(capacity);
+        System.arraycopy(buffer, 0, grown, 0, size);
+        ByteArrayPool.SHARED.release(buffer);
+        buffer = grown;
+      }
+    }
+
+    /**
+     * Returns the API response carried by the buffered RemoteApiPb.Response, or throws the API
+     * exception matching the error it contains.
+     */
+    byte[] decodeResponse(String packageName, String methodName) throws ApiProxyException {
+      return RemoteApiCodec.decodeResponse(buffer, 0, size, packageName, methodName);
+    }
+
+    @Override
+    public String toString() {
+      return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    void release() {
+      ByteArrayPool.SHARED.release(buffer);
+      buffer = null;
+    }
+  }
+
+  /**
+   * Returns the API response carried by the RemoteApiPb.Response serialized in
+   * {@code buffer[offset, offset + length)}, or throws the API exception matching the error it
+   * contains.
+   */
+  static byte[] decodeResponse(byte[] buffer, int offset, int length, String packageName,
+      String methodName) throws ApiProxyException {
+    // Only the response field is expected on success: find it without parsing the message.
+    int end = offset + length;
+    int position = offset;
+    int responseStart = -1;
+    int responseLength = 0;
+    while (position < end) {
+      int next = skipVarint(buffer, position, end);
+      if (next < 0
+          || readVarint(buffer, position, next)
+              != (RESPONSE_RESPONSE_FIELD << 3 | WIRETYPE_LENGTH_DELIMITED)) {
+        break;
+      }
+      position = next;
+      next = skipVarint(buffer, position, end);
+      if (next < 0) {
+        break;
+      }
+      long fieldLength = readVarint(buffer, position, next);
+      position = next;
+      if (fieldLength > end - position) {
+        break;
+      }
+      responseStart = position;
+      responseLength = (int) fieldLength;
+      position += responseLength;
+    }
+    if (position == end && responseStart >= 0) {
+      return Arrays.copyOfRange(buffer, responseStart, responseStart + responseLength);
+    }
+
+    // An error, or a message not matching the fast path.
+    RemoteApiPb.Response remoteResponse = new RemoteApiPb.Response();
+    if (!remoteResponse.parseFrom(buffer, offset, length)) {
+      logger.info("HTTP ApiProxy unable to parse response for " + packageName + "." + methodName);
+      throw new RPCFailedException(packageName, methodName);
+    }
+    return VmApiProxyDelegate.getResponseOrThrow(remoteResponse, packageName, methodName);
+  }
+
+  private static int fieldSize(int fieldNumber, int length) {
+    return varintSize(fieldNumber << 3 | WIRETYPE_LENGTH_DELIMITED) + varintSize(length) + length;
+  }
+
+  private static int putField(byte[] target, int position, int fieldNumber, byte[] value) {
+    position = putFieldHeader(target, position, fieldNumber, value.length);
+    System.arraycopy(value, 0, target, position, value.length);
+    return position + value.length;
+  }
+
+  private static int putFieldHeader(byte[] target, int position, int fieldNumber, int length) {
+    position = putTag(target, position, fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+    return putVarint(target, position, length);
+  }
+}
@@ -0,0 +1,510 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.repackaged.com.google.io.protocol.ProtocolMessage;
+import com.google.appengine.repackaged.com.google.protobuf.ByteString;
+import com.google.appengine.repackaged.com.google.protobuf.InvalidProtocolBufferException;
+import com.google.apphosting.api.ApiProxy;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Merges the async {@code memcache.Get} and {@code datastore_v3.Get} calls made by a request in
+ * quick succession into a single API call.
+ *
+ * <p>A call is held for {@code delayMicros}, or until {@code maxBatchSize} calls or
+ * {@code maxBatchKeys} keys are queued, with the other calls of the same request to the same
+ * method that only differ by their keys. The batch is sent as one call for all of their keys, and
+ * its response is split back into one response per call. If the merged call fails with an error
+ * that one of the calls may have caused, or its response cannot be split, the calls are sent one
+ * by one. Datastore gets allowing deferred results are not merged, as their response cannot be
+ * split by position.
+ *
+ */
+final class VmApiCallCoalescer {
+  private static final Logger logger = Logger.getLogger(VmApiCallCoalescer.class.getName());
+
+  // System properties overriding the batching settings.
+  static final String DELAY_MICROS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallCoalescer.delayMicros";
+  static final String MAX_BATCH_SIZE_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallCoalescer.maxBatchSize";
+  static final String MAX_BATCH_KEYS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallCoalescer.maxBatchKeys";
+
+  static final int DEFAULT_DELAY_MICROS = 300;
+  static final int DEFAULT_MAX_BATCH_SIZE = 32;
+  // The most keys of a datastore get.
+  static final int DEFAULT_MAX_BATCH_KEYS = 1000;
+
+  private static final String GET_METHOD = "Get";
+
+  private static final ScheduledExecutorService scheduler = createScheduler();
+
+  /**
+   * Sends an API call, see {@link VmApiProxyAsyncClient#send}.
+   */
+  interface Sender {
+    CompletableFuture<byte[]> send(VmApiProxyEnvironment environment, String packageName,
+        String methodName, byte[] requestData, int timeoutMs);
+  }
+
+  private final Sender sender;
+  private final long delayMicros;
+  private final int maxBatchSize;
+  private final int maxBatchKeys;
+  private final Map<BatchKey, Batch<?>> batches = new ConcurrentHashMap<>();
+
+  VmApiCallCoalescer(Sender sender) {
+    this(sender, Long.getLong(DELAY_MICROS_PROPERTY, DEFAULT_DELAY_MICROS),
+        Integer.getInteger(MAX_BATCH_SIZE_PROPERTY, DEFAULT_MAX_BATCH_SIZE),
+        Integer.getInteger(MAX_BATCH_KEYS_PROPERTY, DEFAULT_MAX_BATCH_KEYS));
+  }
+
+  VmApiCallCoalescer(Sender sender, long delayMicros, int maxBatchSize) {
+    this(sender, delayMicros, maxBatchSize, DEFAULT_MAX_BATCH_KEYS);
+  }
+
+  VmApiCallCoalescer(Sender sender, long delayMicros, int maxBatchSize, int maxBatchKeys) {
+    this.sender = sender;
+    this.delayMicros = delayMicros;
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchKeys = maxBatchKeys;
+  }
+
+  private static ScheduledExecutorService createScheduler() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "ApiCallCoalescer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  private static Codec<?> getCodec(String packageName, String methodName) {
+    if (!GET_METHOD.equals(methodName)) {
+      return null;
+    }
+    switch (packageName) {
+      case "memcache":
+        return MemcacheGetCodec.INSTANCE;
+      case "datastore_v3":
+        return DatastoreGetCodec.INSTANCE;
+      default:
+        return null;
+    }
+  }
+
+  boolean isCoalesced(String packageName, String methodName) {
+    return getCodec(packageName, methodName) != null;
+  }
+
+  /**
+   * Queues an API call to be sent with the other calls of its batch.
+   *
+   * @return a future completed like the one returned by the {@link Sender}
+   */
+  CompletableFuture<byte[]> call(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, int timeoutMs) {
+    return call(getCodec(packageName, methodName), environment, packageName, methodName,
+        requestData, timeoutMs);
+  }
+
+  private <R> CompletableFuture<byte[]> call(Codec<R> codec, VmApiProxyEnvironment environment,
+      String packageName, String methodName, byte[] requestData, int timeoutMs) {
+    R request = codec.parse(requestData);
+    if (request == null || codec.keyCount(request) > maxBatchKeys) {
+      return sender.send(environment, packageName, methodName, requestData, timeoutMs);
+    }
+    BatchKey key = new BatchKey(environment, packageName, codec.withoutKeys(request));
+    PendingCall<R> call = new PendingCall<>(request, requestData, timeoutMs);
+    int keys = codec.keyCount(request);
+    while (true) {
+      Batch<R> batch = batch(key, codec, environment, packageName, methodName);
+      boolean added;
+      synchronized (batch) {
+        if (batch.closed) {
+          // Sent by another thread, which is about to remove it.
+          continue;
+        }
+        // A call whose keys do not fit sends the batch, and starts the next one.
+        added = batch.keys + keys <= maxBatchKeys;
+        if (added) {
+          batch.calls.add(call);
+          batch.keys += keys;
+          if (batch.calls.size() == 1 && batch.keys < maxBatchKeys) {
+            scheduler.schedule(() -> flush(batch), delayMicros, TimeUnit.MICROSECONDS);
+            return call.result;
+          } else if (batch.calls.size() < maxBatchSize && batch.keys < maxBatchKeys) {
+            return call.result;
+          }
+        }
+        close(batch);
+      }
+      send(batch);
+      if (added) {
+        return call.result;
+      }
+    }
+  }
+
+  /**
+   * Returns the open batch of {@code key}, adding a new one if there is none.
+   */
+  @SuppressWarnings("unchecked")
+  private <R> Batch<R> batch(BatchKey key, Codec<R> codec, VmApiProxyEnvironment environment,
+      String packageName, String methodName) {
+    // The codec is chosen by the package in the key, so the batch has the type of the call.
+    return (Batch<R>) batches.computeIfAbsent(
+        key, k -> new Batch<>(k, codec, environment, packageName, methodName));
+  }
+
+  private void flush(Batch<?> batch) {
+    synchronized (batch) {
+      if (batch.closed) {
+        return;
+      }
+      close(batch);
+    }
+    send(batch);
+  }
+
+  private void close(Batch<?> batch) {
+    batch.closed = true;
+    batches.remove(batch.key, batch);
+  }
+
+  private <R> void send(Batch<R> batch) {
+    List<PendingCall<R>> calls = batch.calls;
+    if (calls.size() == 1) {
+      sendAlone(batch, calls.get(0));
+      return;
+    }
+    int timeoutMs = Integer.MAX_VALUE;
+    List<R> requests = new ArrayList<>(calls.size());
+    for (PendingCall<R> call : calls) {
+      timeoutMs = Math.min(timeoutMs, call.timeoutMs);
+      requests.add(call.request);
+    }
+    sender.send(batch.environment, batch.packageName, batch.methodName,
+        batch.codec.merge(requests), timeoutMs)
+        .whenComplete((response, failure) -> {
+          if (failure != null) {
+            Throwable cause = unwrap(failure);
+            if (isCausedByOneCall(cause)) {
+              logger.info("A batch of " + calls.size() + " " + batch.packageName + "."
+                  + batch.methodName + " calls failed with " + cause
+                  + ", sending them one by one.");
+              sendOneByOne(batch, calls);
+              return;
+            }
+            for (PendingCall<R> call : calls) {
+              call.result.completeExceptionally(cause);
+            }
+            return;
+          }
+          List<byte[]> responses;
+          try {
+            responses = batch.codec.split(response, requests);
+          } catch (InvalidProtocolBufferException | RuntimeException e) {
+            responses = null;
+          }
+          if (responses == null) {
+            logger.warning("Could not split the response of a batch of " + calls.size() + " "
+                + batch.packageName + "." + batch.methodName + " calls, sending them one by one.");
+            sendOneByOne(batch, calls);
+            return;
+          }
+          for (int i = 0; i < calls.size(); i++) {
+            calls.get(i).result.complete(responses.get(i));
+          }
+        });
+  }
+
+  /**
+   * Returns whether a merged call may have failed because of the keys or the size of one of its
+   * calls, which would then fail the others. Failures of the API service fail all the calls.
+   */
+  private static boolean isCausedByOneCall(Throwable failure) {
+    return failure instanceof ApiProxy.ApplicationException
+        || failure instanceof ApiProxy.ArgumentException
+        || failure instanceof ApiProxy.RequestTooLargeException
+        || failure instanceof ApiProxy.ResponseTooLargeException;
+  }
+
+  private <R> void sendOneByOne(Batch<R> batch, List<PendingCall<R>> calls) {
+    for (PendingCall<R> call : calls) {
+      sendAlone(batch, call);
+    }
+  }
+
+  private void sendAlone(Batch<?> batch, PendingCall<?> call) {
+    sender.send(batch.environment, batch.packageName, batch.methodName, call.requestData,
+        call.timeoutMs)
+        .whenComplete((response, failure) -> {
+          if (failure != null) {
+            call.result.completeExceptionally(unwrap(failure));
+          } else {
+            call.result.complete(response);
+          }
+        });
+  }
+
+  private static Throwable unwrap(Throwable failure) {
+    if (failure instanceof CompletionException && failure.getCause() != null) {
+      return failure.getCause();
+    }
+    return failure;
+  }
+
+  /**
+   * Identifies the calls that can be merged: same request, same method, same arguments other than
+   * the keys.
+   */
+  private static final class BatchKey {
+    private final VmApiProxyEnvironment environment;
+    private final String packageName;
+    private final byte[] arguments;
+    private final int hash;
+
+    BatchKey(VmApiProxyEnvironment environment, String packageName, byte[] arguments) {
+      this.environment = environment;
+      this.packageName = packageName;
+      this.arguments = arguments;
+      this.hash = (System.identityHashCode(environment) * 31 + packageName.hashCode()) * 31
+          + Arrays.hashCode(arguments);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof BatchKey)) {
+        return false;
+      }
+      BatchKey other = (BatchKey) o;
+      return environment == other.environment && packageName.equals(other.packageName)
+          && Arrays.equals(arguments, other.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Batch<R> {
+    final BatchKey key;
+    final Codec<R> codec;
+    final VmApiProxyEnvironment environment;
+    final String packageName;
+    final String methodName;
+    final List<PendingCall<R>> calls = new ArrayList<>();  // Guarded by this.
+    int keys;  // Guarded by this.
+    boolean closed;  // Guarded by this.
+
+    Batch(BatchKey key, Codec<R> codec, VmApiProxyEnvironment environment, String packageName,
+        String methodName) {
+      this.key = key;
+      this.codec = codec;
+      this.environment = environment;
+      this.packageName = packageName;
+      this.methodName = methodName;
+    }
+  }
+
+  private static final class PendingCall<R> {
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    final R request;
+    final byte[] requestData;
+    final int timeoutMs;
+
+    PendingCall(R request, byte[] requestData, int timeoutMs) {
+      this.request = request;
+      this.requestData = requestData;
+      this.timeoutMs = timeoutMs;
+    }
+  }
+
+  /**
+   * Merges the requests of a get method and splits its responses.
+   */
+  private abstract static class Codec<R> {
+    /**
+     * Returns the parsed request, or null if it cannot be merged with others.
+     */
+    abstract R parse(byte[] requestData);
+
+    /**
+     * Returns the request without its keys, which must be equal for requests to be merged.
+     */
+    abstract byte[] withoutKeys(R request);
+
+    abstract int keyCount(R request);
+
+    abstract byte[] merge(List<R> requests);
+
+    /**
+     * Returns the response of each of the merged {@code requests}, or null if the merged
+     * {@code response} cannot be split.
+     */
+    abstract List<byte[]> split(byte[] response, List<R> requests)
+        throws InvalidProtocolBufferException;
+  }
+
+  private static final class MemcacheGetCodec extends Codec<MemcacheGetRequest> {
+    static final MemcacheGetCodec INSTANCE = new MemcacheGetCodec();
+
+    @Override
+    MemcacheGetRequest parse(byte[] requestData) {
+      try {
+        return MemcacheGetRequest.parseFrom(requestData);
+      } catch (InvalidProtocolBufferException e) {
+        return null;
+      }
+    }
+
+    @Override
+    byte[] withoutKeys(MemcacheGetRequest request) {
+      return request.toBuilder().clearKey().build().toByteArray();
+    }
+
+    @Override
+    int keyCount(MemcacheGetRequest request) {
+      return request.getKeyCount();
+    }
+
+    @Override
+    byte[] merge(List<MemcacheGetRequest> requests) {
+      Set<ByteString> keys = new LinkedHashSet<>();
+      for (MemcacheGetRequest request : requests) {
+        keys.addAll(request.getKeyList());
+      }
+      return requests.get(0).toBuilder().clearKey().addAllKey(keys).build().toByteArray();
+    }
+
+    @Override
+    List<byte[]> split(byte[] response, List<MemcacheGetRequest> requests)
+        throws InvalidProtocolBufferException {
+      // Items are only returned for the keys found, in no particular order.
+      Map<ByteString, MemcacheGetResponse.Item> items = new HashMap<>();
+      for (MemcacheGetResponse.Item item : MemcacheGetResponse.parseFrom(response).getItemList()) {
+        items.put(item.getKey(), item);
+      }
+      List<byte[]> responses = new ArrayList<>(requests.size());
+      for (MemcacheGetRequest request : requests) {
+        MemcacheGetResponse.Builder builder = MemcacheGetResponse.newBuilder();
+        for (ByteString key : new LinkedHashSet<>(request.getKeyList())) {
+          MemcacheGetResponse.Item item = items.get(key);
+          if (item != null) {
+            builder.addItem(item);
+          }
+        }
+        responses.add(builder.build().toByteArray());
+      }
+      return responses;
+    }
+  }
+
+  /**
+   * Merges {@code datastore_v3.Get} calls. The requests are only cast to {@code GetRequest} in the
+   * method bodies, as javac warns about the imports and signatures naming {@code DatastorePb}, an
+   * auxiliary class of DatastoreV3Pb.java, which the SDK does not ship.
+   */
+  private static final class DatastoreGetCodec extends Codec<ProtocolMessage<?>> {
+    static final DatastoreGetCodec INSTANCE = new DatastoreGetCodec();
+
+    @Override
+    ProtocolMessage<?> parse(byte[] requestData) {
+      com.google.apphosting.api.DatastorePb.GetRequest request =
+          new com.google.apphosting.api.DatastorePb.GetRequest();
+      if (!request.parseFrom(requestData) || request.isAllowDeferred()) {
+        return null;
+      }
+      return request;
+    }
+
+    @Override
+    byte[] withoutKeys(ProtocolMessage<?> request) {
+      com.google.apphosting.api.DatastorePb.GetRequest getRequest =
+          (com.google.apphosting.api.DatastorePb.GetRequest) request;
+      return getRequest.clone().clearKey().toByteArray();
+    }
+
+    @Override
+    int keyCount(ProtocolMessage<?> request) {
+      return ((com.google.apphosting.api.DatastorePb.GetRequest) request).keySize();
+    }
+
+    @Override
+    byte[] merge(List<ProtocolMessage<?>> requests) {
+      com.google.apphosting.api.DatastorePb.GetRequest merged =
+          ((com.google.apphosting.api.DatastorePb.GetRequest) requests.get(0)).clone().clearKey();
+      for (ProtocolMessage<?> request : requests) {
+        for (Reference key : ((com.google.apphosting.api.DatastorePb.GetRequest) request).keys()) {
+          merged.addKey(key);
+        }
+      }
+      return merged.toByteArray();
+    }
+
+    @Override
+    List<byte[]> split(byte[] response, List<ProtocolMessage<?>> requests) {
+      // Without deferred results, there is one entity per key, in the order of the keys.
+      com.google.apphosting.api.DatastorePb.GetResponse merged =
+          new com.google.apphosting.api.DatastorePb.GetResponse();
+      int keys = 0;
+      for (ProtocolMessage<?> request : requests) {
+        keys += keyCount(request);
+      }
+      if (!merged.parseFrom(response) || merged.deferredSize() != 0
+          || (merged.hasInOrder() && !merged.isInOrder()) || merged.entitySize() != keys) {
+        return null;
+      }
+      List<byte[]> responses = new ArrayList<>(requests.size());
+      int next = 0;
+      for (ProtocolMessage<?> request : requests) {
+        com.google.apphosting.api.DatastorePb.GetResponse split =
+            new com.google.apphosting.api.DatastorePb.GetResponse();
+        if (merged.hasInOrder()) {
+          split.setInOrder(merged.isInOrder());
+        }
+        for (int i = keyCount(request); i > 0; i--) {
+          split.addEntity(merged.getEntity(next++));
+        }
+        responses.add(split.toByteArray());
+      }
+      return responses;
+    }
+  }
+}
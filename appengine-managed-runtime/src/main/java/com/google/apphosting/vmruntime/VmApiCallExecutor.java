@@ -0,0 +1,388 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded executor for the async API calls of the blocking transport.
+ *
+ * <p>At most {@code maxThreads} calls run at once. Other calls are queued, up to
+ * {@code maxQueuedTasks} in total and {@code maxQueuedTasksPerRequest} for any one request, and
+ * further calls are rejected. Queued calls are grouped by the request submitting them, taken
+ * from the environment of the submitting thread, and the requests take turns: a request with
+ * hundreds of queued calls does not delay the first call of another one.
+ *
+ */
+public final class VmApiCallExecutor extends AbstractExecutorService
+    implements ApiCallExecutorMXBean {
+  private static final Logger logger = Logger.getLogger(VmApiCallExecutor.class.getName());
+
+  // System properties overriding the limits of the executor.
+  static final String MAX_THREADS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallExecutor.maxThreads";
+  static final String MAX_QUEUED_TASKS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallExecutor.maxQueuedTasks";
+  static final String MAX_QUEUED_TASKS_PER_REQUEST_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallExecutor.maxQueuedTasksPerRequest";
+
+  static final int DEFAULT_MAX_THREADS = 200;
+  static final int DEFAULT_MAX_QUEUED_TASKS = 10000;
+  static final int DEFAULT_MAX_QUEUED_TASKS_PER_REQUEST =
+      VmApiProxyEnvironment.MAX_PENDING_API_CALLS;
+
+  // Idle threads above the first one exit after this delay.
+  private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+  // Groups the tasks submitted from threads without an API environment.
+  private static final Object NO_REQUEST = new Object();
+
+  private final int maxThreads;
+  private final int maxQueuedTasks;
+  private final int maxQueuedTasksPerRequest;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition taskAvailable = lock.newCondition();
+  private final Condition terminated = lock.newCondition();
+
+  // All guarded by lock.
+  private final Map<Object, RequestQueue> queues = new IdentityHashMap<>();
+  private final ArrayDeque<RequestQueue> readyQueues = new ArrayDeque<>();
+  private final Set<Thread> workers = new HashSet<>();
+  private int queuedTasks;
+  private int idleThreads;
+  private boolean shutdown;
+
+  private final AtomicInteger activeThreads = new AtomicInteger();
+  private final AtomicInteger threadIds = new AtomicInteger();
+  private final LongAdder completedTasks = new LongAdder();
+  private final LongAdder rejectedTasks = new LongAdder();
+  private final LatencyHistogram queueWait = new LatencyHistogram();
+
+  VmApiCallExecutor() {
+    this(Integer.getInteger(MAX_THREADS_PROPERTY, DEFAULT_MAX_THREADS),
+        Integer.getInteger(MAX_QUEUED_TASKS_PROPERTY, DEFAULT_MAX_QUEUED_TASKS),
+        Integer.getInteger(
+            MAX_QUEUED_TASKS_PER_REQUEST_PROPERTY, DEFAULT_MAX_QUEUED_TASKS_PER_REQUEST));
+  }
+
+  VmApiCallExecutor(int maxThreads, int maxQueuedTasks, int maxQueuedTasksPerRequest) {
+    if (maxThreads <= 0 || maxQueuedTasks < 0 || maxQueuedTasksPerRequest < 0) {
+      throw new IllegalArgumentException("Invalid API call executor limits");
+    }
+    this.maxThreads = maxThreads;
+    this.maxQueuedTasks = maxQueuedTasks;
+    this.maxQueuedTasksPerRequest = maxQueuedTasksPerRequest;
+  }
+
+  /**
+   * The tasks queued by one request.
+   */
+  private static final class RequestQueue {
+    final Object owner;
+    final ArrayDeque<QueuedTask> tasks = new ArrayDeque<>();
+
+    RequestQueue(Object owner) {
+      this.owner = owner;
+    }
+  }
+
+  private static final class QueuedTask {
+    final Runnable task;
+    final long queuedNanos;
+
+    QueuedTask(Runnable task, long queuedNanos) {
+      this.task = task;
+      this.queuedNanos = queuedNanos;
+    }
+  }
+
+  /**
+   * Queues {@code task}.
+   *
+   * @throws RejectedExecutionException if the executor was shut down, or too many tasks are
+   *         queued
+   */
+  @Override
+  public void execute(Runnable task) {
+    if (task == null) {
+      throw new NullPointerException();
+    }
+    Object owner = ApiProxy.getCurrentEnvironment();
+    if (owner == null) {
+      owner = NO_REQUEST;
+    }
+    lock.lock();
+    try {
+      if (shutdown) {
+        throw new RejectedExecutionException("The API call executor was shut down");
+      }
+      RequestQueue queue = queues.get(owner);
+      int queuedByRequest = queue == null ? 0 : queue.tasks.size();
+      // Queued tasks are only counted once the threads are all busy.
+      boolean threadAvailable = queuedTasks < idleThreads + maxThreads - workers.size();
+      if (!threadAvailable
+          && (queuedTasks >= maxQueuedTasks || queuedByRequest >= maxQueuedTasksPerRequest)) {
+        rejectedTasks.increment();
+        throw new RejectedExecutionException("Too many queued API calls");
+      }
+      if (queue == null) {
+        queue = new RequestQueue(owner);
+        queues.put(owner, queue);
+      }
+      queue.tasks.add(new QueuedTask(task, System.nanoTime()));
+      if (queue.tasks.size() == 1) {
+        readyQueues.add(queue);
+      }
+      queuedTasks++;
+      if (queuedTasks > idleThreads && workers.size() < maxThreads) {
+        startWorker();
+      } else {
+        taskAvailable.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void startWorker() {
+    Thread worker = new Thread(this::runWorker, "ApiCallExecutor-" + threadIds.incrementAndGet());
+    worker.setDaemon(true);
+    workers.add(worker);
+    worker.start();
+  }
+
+  private void runWorker() {
+    while (true) {
+      QueuedTask task = takeTask();
+      if (task == null) {
+        return;
+      }
+      queueWait.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - task.queuedNanos));
+      activeThreads.incrementAndGet();
+      try {
+        task.task.run();
+      } catch (RuntimeException | Error e) {
+        logger.log(Level.WARNING, "Uncaught exception in an API call", e);
+      } finally {
+        activeThreads.decrementAndGet();
+        completedTasks.increment();
+      }
+    }
+  }
+
+  /**
+   * Returns the next task, taking turns between the requests, or null if the calling worker
+   * should exit.
+   */
+  private QueuedTask takeTask() {
+    lock.lock();
+    try {
+      long keepAliveNanos = KEEP_ALIVE_NANOS;
+      while (readyQueues.isEmpty()) {
+        if (shutdown || keepAliveNanos <= 0 && workers.size() > 1) {
+          exitWorker();
+          return null;
+        }
+        idleThreads++;
+        try {
+          keepAliveNanos = taskAvailable.awaitNanos(keepAliveNanos);
+        } catch (InterruptedException e) {
+          // Interrupted by shutdownNow(), or left over from the last task.
+        } finally {
+          idleThreads--;
+        }
+      }
+      RequestQueue queue = readyQueues.poll();
+      QueuedTask task = queue.tasks.poll();
+      if (queue.tasks.isEmpty()) {
+        queues.remove(queue.owner);
+      } else {
+        readyQueues.add(queue);
+      }
+      queuedTasks--;
+      // Clear the interrupt status the last task may have left.
+      Thread.interrupted();
+      return task;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void exitWorker() {
+    workers.remove(Thread.currentThread());
+    if (shutdown && workers.isEmpty()) {
+      terminated.signalAll();
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    lock.lock();
+    try {
+      shutdown = true;
+      taskAvailable.signalAll();
+      if (workers.isEmpty()) {
+        terminated.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    lock.lock();
+    try {
+      shutdown();
+      List<Runnable> tasks = new ArrayList<>(queuedTasks);
+      for (RequestQueue queue : readyQueues) {
+        for (QueuedTask task : queue.tasks) {
+          tasks.add(task.task);
+        }
+      }
+      readyQueues.clear();
+      queues.clear();
+      queuedTasks = 0;
+      for (Thread worker : workers) {
+        worker.interrupt();
+      }
+      return tasks;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isShutdown() {
+    lock.lock();
+    try {
+      return shutdown;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isTerminated() {
+    lock.lock();
+    try {
+      return shutdown && workers.isEmpty();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      while (!(shutdown && workers.isEmpty())) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = terminated.awaitNanos(nanos);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+  @Override
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  @Override
+  public int getThreadCount() {
+    lock.lock();
+    try {
+      return workers.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getActiveThreadCount() {
+    return activeThreads.get();
+  }
+
+  @Override
+  public int getQueuedTaskCount() {
+    lock.lock();
+    try {
+      return queuedTasks;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long getCompletedTaskCount() {
+    return completedTasks.sum();
+  }
+
+  @Override
+  public long getRejectedTaskCount() {
+    return rejectedTasks.sum();
+  }
+
+  @Override
+  public double getQueueWaitMicrosMean() {
+    return queueWait.getMean();
+  }
+
+  @Override
+  public long getQueueWaitMicrosP50() {
+    return queueWait.getPercentile(50);
+  }
+
+  @Override
+  public long getQueueWaitMicrosP99() {
+    return queueWait.getPercentile(99);
+  }
+
+  @Override
+  public long getQueueWaitMicrosMax() {
+    return queueWait.getMax();
+  }
+}
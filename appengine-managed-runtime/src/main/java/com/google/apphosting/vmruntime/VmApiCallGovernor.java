@@ -0,0 +1,299 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Instance-wide limit on the API calls in flight, shared by all the requests.
+ *
+ * <p>Each request limits its own calls to {@link VmApiProxyEnvironment#MAX_CONCURRENT_API_CALLS}
+ * running ones. The governor adds a second, instance-wide tier: a call runs once it also got one
+ * of {@link #getLimit} permits. The limit adapts to the API server with AIMD. It grows by one
+ * every {@code limit} calls that complete in time while it is in use, and shrinks by
+ * {@code backoffPercent} when a call fails because of the API server, or takes more than
+ * {@code latencyFactor} times the median latency of its method. Only calls started after the
+ * previous decrease can lower it again, so that a burst of slow calls counts once.
+ *
+ * <p>Calls waiting for a permit are grouped by request, and the requests take turns: a request
+ * with many calls waiting does not delay the first call of another one.
+ *
+ */
+public final class VmApiCallGovernor implements ApiCallGovernorMXBean {
+  // System properties overriding the settings of the governor.
+  static final String INITIAL_LIMIT_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallGovernor.initialLimit";
+  static final String MIN_LIMIT_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallGovernor.minLimit";
+  static final String MAX_LIMIT_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallGovernor.maxLimit";
+  static final String LATENCY_FACTOR_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallGovernor.latencyFactor";
+  static final String BACKOFF_PERCENT_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCallGovernor.backoffPercent";
+
+  static final int DEFAULT_INITIAL_LIMIT = 20;
+  static final int DEFAULT_MIN_LIMIT = 4;
+  // The size of the pool of connections to the API server.
+  static final int DEFAULT_MAX_LIMIT = VmApiProxyEnvironment.MAX_CONCURRENT_API_CALLS;
+  static final int DEFAULT_LATENCY_FACTOR = 3;
+  static final int DEFAULT_BACKOFF_PERCENT = 90;
+
+  // The latency of a method is only compared to its median once it is known.
+  static final long MIN_SAMPLES = 20;
+
+  /** A call waiting for a permit. */
+  private static final class Waiter {
+    final Condition granted;
+    boolean isGranted;
+
+    Waiter(Condition granted) {
+      this.granted = granted;
+    }
+  }
+
+  /** The calls of one request waiting for a permit. */
+  private static final class RequestQueue {
+    final Object request;
+    final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+    RequestQueue(Object request) {
+      this.request = request;
+    }
+  }
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final int latencyFactor;
+  private final double backoffRatio;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // Guarded by lock.
+  private double limit;
+  private int inFlight;
+  private int waiting;
+  private long lastDecreaseNanos;
+  private long limitDecreaseCount;
+  private long timedOutCallCount;
+  // The requests with calls waiting, and whose turn is next.
+  private final Map<Object, RequestQueue> queues = new IdentityHashMap<>();
+  private final ArrayDeque<RequestQueue> turns = new ArrayDeque<>();
+
+  VmApiCallGovernor() {
+    this(Integer.getInteger(INITIAL_LIMIT_PROPERTY, DEFAULT_INITIAL_LIMIT),
+        Integer.getInteger(MIN_LIMIT_PROPERTY, DEFAULT_MIN_LIMIT),
+        Integer.getInteger(MAX_LIMIT_PROPERTY, DEFAULT_MAX_LIMIT),
+        Integer.getInteger(LATENCY_FACTOR_PROPERTY, DEFAULT_LATENCY_FACTOR),
+        Integer.getInteger(BACKOFF_PERCENT_PROPERTY, DEFAULT_BACKOFF_PERCENT));
+  }
+
+  VmApiCallGovernor(int initialLimit, int minLimit, int maxLimit, int latencyFactor,
+      int backoffPercent) {
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.latencyFactor = latencyFactor;
+    this.backoffRatio = Math.min(100, Math.max(1, backoffPercent)) / 100.0;
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    this.lastDecreaseNanos = System.nanoTime();
+  }
+
+  /**
+   * Waits for a permit to run an API call.
+   *
+   * @param request the request making the call, used to share the permits fairly
+   * @param maxWaitMs how long to wait for a permit
+   * @throws ApiProxyException if no permit was granted in time, or the thread was interrupted
+   */
+  void acquire(Object request, long maxWaitMs) throws ApiProxyException {
+    lock.lock();
+    try {
+      if (turns.isEmpty() && inFlight < (int) limit) {
+        inFlight++;
+        return;
+      }
+      Waiter waiter = new Waiter(lock.newCondition());
+      RequestQueue queue = queues.get(request);
+      if (queue == null) {
+        queue = new RequestQueue(request);
+        queues.put(request, queue);
+        turns.add(queue);
+      }
+      queue.waiters.add(waiter);
+      waiting++;
+      long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+      boolean interrupted = false;
+      try {
+        while (!waiter.isGranted) {
+          if (remainingNanos <= 0) {
+            timedOutCallCount++;
+            throw new ApiProxyException(
+                "Timed out while waiting for the instance-wide API call limit.");
+          }
+          remainingNanos = waiter.granted.awaitNanos(remainingNanos);
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+        Thread.currentThread().interrupt();
+        throw new ApiProxyException(
+            "Thread interrupted while waiting for the instance-wide API call limit.");
+      } finally {
+        if (!waiter.isGranted) {
+          waiting--;
+          queue.waiters.remove(waiter);
+          if (queue.waiters.isEmpty()) {
+            queues.remove(request);
+            turns.remove(queue);
+          }
+        } else if (interrupted) {
+          // Granted concurrently with the interrupt: the call is not run, give the permit back.
+          inFlight--;
+          grantPermits();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes a permit to run an API call if one is free and no call is waiting for one. Never
+   * blocks.
+   *
+   * @return whether a permit was taken
+   */
+  boolean tryAcquire() {
+    lock.lock();
+    try {
+      if (turns.isEmpty() && inFlight < (int) limit) {
+        inFlight++;
+        return true;
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the permit of a completed API call, and adjusts the limit.
+   *
+   * @param startNanos when the call was started, after its permit was granted
+   * @param stats the stats of the method called, recording its latency
+   * @param latencyNanos how long the call took
+   * @param failed whether the call failed because of the API server
+   */
+  void release(long startNanos, ApiCallStats stats, long latencyNanos, boolean failed) {
+    boolean congested = failed || (stats.latency.getCount() >= MIN_SAMPLES
+        && TimeUnit.NANOSECONDS.toMicros(latencyNanos)
+            > latencyFactor * stats.latency.getPercentile(50));
+    lock.lock();
+    try {
+      inFlight--;
+      if (congested) {
+        if (startNanos - lastDecreaseNanos > 0) {
+          limit = Math.max(minLimit, limit * backoffRatio);
+          lastDecreaseNanos = System.nanoTime();
+          limitDecreaseCount++;
+        }
+      } else if (inFlight + 1 >= limit / 2) {
+        // Only grow the limit while it is in use.
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+      grantPermits();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void grantPermits() {
+    while (inFlight < (int) limit && !turns.isEmpty()) {
+      RequestQueue queue = turns.poll();
+      Waiter waiter = queue.waiters.poll();
+      if (queue.waiters.isEmpty()) {
+        queues.remove(queue.request);
+      } else {
+        turns.add(queue);
+      }
+      waiting--;
+      inFlight++;
+      waiter.isGranted = true;
+      waiter.granted.signal();
+    }
+  }
+
+  @Override
+  public int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  @Override
+  public int getInFlightCallCount() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getWaitingCallCount() {
+    lock.lock();
+    try {
+      return waiting;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long getLimitDecreaseCount() {
+    lock.lock();
+    try {
+      return limitDecreaseCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long getTimedOutCallCount() {
+    lock.lock();
+    try {
+      return timedOutCallCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+
+/**
+ * Hedges and retries calls to idempotent API methods.
+ *
+ * <p>A duplicate of a call is sent when it has been pending for longer than the 95th percentile
+ * latency of the first attempts of its method, and the first response wins; the attempts still in
+ * flight are then cancelled. A call failed by an I/O error is retried once if it has no other
+ * attempt in flight. No attempt is started past the call timeout or the request deadline.
+ *
+ */
+final class VmApiCallHedger {
+  private static final Logger logger = Logger.getLogger(VmApiCallHedger.class.getName());
+
+  // The original attempt, one hedged or retried attempt, and one more retry.
+  static final int MAX_ATTEMPTS = 3;
+
+  // Calls are only hedged once their method latency is known.
+  static final long MIN_SAMPLES = 20;
+  private static final long MIN_HEDGE_DELAY_MICROS = 1000;
+
+  private static final ScheduledExecutorService scheduler = createScheduler();
+
+  private final Map<String, Set<String>> methods;
+  private final VmApiCallMetrics metrics;
+
+  /**
+   * @param allowList comma separated {@code package.method} names of the idempotent API methods
+   */
+  VmApiCallHedger(String allowList, VmApiCallMetrics metrics) {
+    Map<String, Set<String>> parsed = new HashMap<>();
+    for (String entry : allowList.split(",")) {
+      entry = entry.trim();
+      int dot = entry.indexOf('.');
+      if (dot <= 0 || dot == entry.length() - 1) {
+        if (!entry.isEmpty()) {
+          logger.warning("Ignoring invalid hedged API method '" + entry + "'");
+        }
+        continue;
+      }
+      parsed.computeIfAbsent(entry.substring(0, dot), p -> new HashSet<>())
+          .add(entry.substring(dot + 1));
+    }
+    this.methods = Collections.unmodifiableMap(parsed);
+    this.metrics = metrics;
+  }
+
+  private static ScheduledExecutorService createScheduler() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "ApiCallHedger");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  boolean isHedged(String packageName, String methodName) {
+    Set<String> packageMethods = methods.get(packageName);
+    return packageMethods != null && packageMethods.contains(methodName);
+  }
+
+  /**
+   * Makes an API call, hedging and retrying its attempts.
+   *
+   * @param timeoutMs the timeout of the API call
+   * @param remainingMillis the time left until the request deadline
+   * @param attempt sends one attempt with the given timeout. Attempts failing with an
+   *        {@link ApiProxyException} are final, any other failure is retried. The first attempt
+   *        is sent from the calling thread, after the hedge is scheduled, so it may block until
+   *        its response is read. The other attempts are sent from the hedging thread or from the
+   *        thread completing the previous attempt, and must not block.
+   * @return a future completed with the first response, or with the last failure. Cancelling it
+   *         cancels the attempts in flight.
+   */
+  CompletableFuture<byte[]> call(String packageName, String methodName, int timeoutMs,
+      long remainingMillis, IntFunction<CompletableFuture<byte[]>> attempt) {
+    ApiCallStats stats = metrics.getStats(packageName, methodName);
+    HedgedCall call = new HedgedCall(stats, timeoutMs, remainingMillis, attempt);
+    if (stats.firstAttemptLatency.getCount() >= MIN_SAMPLES) {
+      long hedgeDelayMicros =
+          Math.max(stats.firstAttemptLatency.getPercentile(95), MIN_HEDGE_DELAY_MICROS);
+      ScheduledFuture<?> hedge =
+          scheduler.schedule(call::hedge, hedgeDelayMicros, TimeUnit.MICROSECONDS);
+      call.result.whenComplete((response, failure) -> hedge.cancel(false));
+    }
+    call.startAttempt();
+    return call.result;
+  }
+
+  /**
+   * The attempts of one API call.
+   */
+  private static final class HedgedCall {
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    private final ApiCallStats stats;
+    private final IntFunction<CompletableFuture<byte[]>> attempt;
+    private final int timeoutMs;
+    private final long startNanos;
+    private final long deadlineNanos;
+    // The first attempt is counted from the start, so that the hedge never sends it.
+    private int attempts = 1;  // Guarded by this.
+    private int inFlight = 1;  // Guarded by this.
+    private final List<CompletableFuture<byte[]>> pending = new ArrayList<>();  // Guarded by this.
+
+    HedgedCall(ApiCallStats stats, int timeoutMs, long remainingMillis,
+        IntFunction<CompletableFuture<byte[]>> attempt) {
+      this.stats = stats;
+      this.attempt = attempt;
+      this.timeoutMs = timeoutMs;
+      this.startNanos = System.nanoTime();
+      this.deadlineNanos = startNanos
+          + TimeUnit.MILLISECONDS.toNanos(Math.min(timeoutMs, Math.max(remainingMillis, 0)));
+      result.whenComplete((response, failure) -> cancelPending());
+    }
+
+    private long remainingMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    }
+
+    /**
+     * Sends the first attempt, with the full timeout of the call.
+     */
+    void startAttempt() {
+      send(timeoutMs, true);
+    }
+
+    /**
+     * Sends a duplicate of the call if it is still pending.
+     */
+    void hedge() {
+      if (startExtraAttempt(1)) {
+        stats.recordHedge();
+      }
+    }
+
+    /**
+     * Starts another attempt if the call is still pending with at most {@code maxInFlight}
+     * attempts, and time is left.
+     */
+    private boolean startExtraAttempt(int maxInFlight) {
+      long remaining = remainingMillis();
+      synchronized (this) {
+        if (result.isDone() || attempts >= MAX_ATTEMPTS || inFlight > maxInFlight
+            || remaining <= 0) {
+          return false;
+        }
+        attempts++;
+        inFlight++;
+      }
+      send((int) remaining, false);
+      return true;
+    }
+
+    private void send(int timeoutMs, boolean first) {
+      CompletableFuture<byte[]> future;
+      try {
+        future = attempt.apply(timeoutMs);
+      } catch (RuntimeException e) {
+        onAttemptCompleted(null, e);
+        return;
+      }
+      synchronized (this) {
+        pending.add(future);
+      }
+      if (result.isDone()) {
+        // The call completed while the attempt was sent, cancelPending() may have missed it.
+        future.cancel(true);
+      }
+      future.whenComplete((response, failure) -> {
+        synchronized (this) {
+          pending.remove(future);
+        }
+        if (first) {
+          // Only first attempts set the hedge delay, hedged calls would skew it down.
+          stats.recordFirstAttempt(System.nanoTime() - startNanos);
+        }
+        onAttemptCompleted(response, failure);
+      });
+    }
+
+    /**
+     * Cancels the attempts in flight once the call is complete.
+     */
+    private void cancelPending() {
+      List<CompletableFuture<byte[]>> losers;
+      synchronized (this) {
+        losers = new ArrayList<>(pending);
+      }
+      for (CompletableFuture<byte[]> loser : losers) {
+        loser.cancel(true);
+      }
+    }
+
+    private void onAttemptCompleted(byte[] response, Throwable failure) {
+      if (failure instanceof CompletionException && failure.getCause() != null) {
+        failure = failure.getCause();
+      }
+      boolean lastAttempt;
+      synchronized (this) {
+        inFlight--;
+        lastAttempt = inFlight == 0;
+      }
+      if (failure == null) {
+        result.complete(response);
+      } else if (failure instanceof ApiProxyException) {
+        result.completeExceptionally(failure);
+      } else if (lastAttempt) {
+        if (startExtraAttempt(0)) {
+          stats.recordRetry();
+        } else {
+          result.completeExceptionally(failure);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apphosting.vmruntime;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the {@link ApiCallStats} of every API method called by the app.
+ *
+ * <p>The stats of each method are registered as an MXBean named
+ * {@code com.google.apphosting.vmruntime:type=ApiCalls,service=<package>,method=<method>}, and
+ * are served in the Prometheus text format by
+ * {@link com.google.apphosting.utils.servlet.VmMetricsServlet} on /_ah/metrics.
+ *
+ */
+public final class VmApiCallMetrics {
+  private static final Logger logger = Logger.getLogger(VmApiCallMetrics.class.getName());
+
+  static final String JMX_DOMAIN = "com.google.apphosting.vmruntime";
+
+  private static final VmApiCallMetrics INSTANCE = new VmApiCallMetrics(true);
+
+  private final boolean registerMXBeans;
+  // Keyed by package then method, so that looking up the stats of a call does not allocate.
+  private final ConcurrentMap<String, ConcurrentMap<String, ApiCallStats>> stats =
+      new ConcurrentHashMap<>();
+  // The executor running async API calls, if it is bounded.
+  private volatile VmApiCallExecutor executor;
+  // The instance-wide limit on API calls in flight, if enabled.
+  private volatile VmApiCallGovernor governor;
+  // The circuit breakers of the services called so far, if enabled.
+  private final ConcurrentMap<String, VmApiCircuitBreaker> circuitBreakers =
+      new ConcurrentHashMap<>();
+
+  VmApiCallMetrics(boolean registerMXBeans) {
+    this.registerMXBeans = registerMXBeans;
+  }
+
+  /**
+   * Returns the metrics of the API calls made by this process.
+   */
+  public static VmApiCallMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the stats of calls to {@code packageName.methodName}, creating them on first use.
+   */
+  ApiCallStats getStats(String packageName, String methodName) {
+    ConcurrentMap<String, ApiCallStats> methods = stats.get(packageName);
+    if (methods == null) {
+      methods = stats.computeIfAbsent(packageName, p -> new ConcurrentHashMap<>());
+    }
+    ApiCallStats methodStats = methods.get(methodName);
+    if (methodStats == null) {
+      methodStats = methods.computeIfAbsent(methodName, m -> createStats(packageName, m));
+    }
+    return methodStats;
+  }
+
+  private ApiCallStats createStats(String packageName, String methodName) {
+    ApiCallStats methodStats = new ApiCallStats(packageName, methodName);
+    if (registerMXBeans) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(methodStats, new ObjectName(
+            JMX_DOMAIN + ":type=ApiCalls,service=" + quote(packageName)
+            + ",method=" + quote(methodName)));
+      } catch (JMException | RuntimeException e) {
+        logger.log(Level.WARNING,
+            "Unable to register the metrics of " + packageName + "." + methodName, e);
+      }
+    }
+    return methodStats;
+  }
+
+  /**
+   * Registers the executor running async API calls, replacing any previous one.
+   */
+  void registerExecutor(VmApiCallExecutor executor) {
+    this.executor = executor;
+    if (registerMXBeans) {
+      try {
+        ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ApiCallExecutor");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+        server.registerMBean(executor, name);
+      } catch (JMException | RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to register the metrics of the API call executor", e);
+      }
+    }
+  }
+
+  /**
+   * Registers the instance-wide limit on API calls in flight, replacing any previous one.
+   */
+  void registerGovernor(VmApiCallGovernor governor) {
+    this.governor = governor;
+    if (registerMXBeans) {
+      try {
+        ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ApiCallGovernor");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+        server.registerMBean(governor, name);
+      } catch (JMException | RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to register the metrics of the API call governor", e);
+      }
+    }
+  }
+
+  /**
+   * Registers the circuit breaker of a service, replacing any previous one.
+   */
+  void registerCircuitBreaker(VmApiCircuitBreaker circuitBreaker) {
+    circuitBreakers.put(circuitBreaker.getService(), circuitBreaker);
+    if (registerMXBeans) {
+      try {
+        ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ApiCircuitBreaker,service="
+            + quote(circuitBreaker.getService()));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+        server.registerMBean(circuitBreaker, name);
+      } catch (JMException | RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to register the circuit breaker of "
+            + circuitBreaker.getService(), e);
+      }
+    }
+  }
+
+  private static String quote(String value) {
+    return value.matches("[\\w.-]+") ? value : ObjectName.quote(value);
+  }
+
+  /**
+   * Records a completed API call.
+   *
+   * @param response the API response, or null if the call failed
+   */
+  void recordCall(String packageName, String methodName, byte[] request, byte[] response,
+      long latencyNanos) {
+    getStats(packageName, methodName).recordCall(
+        request == null ? 0 : request.length, response, latencyNanos);
+  }
+
+  /**
+   * Records the RemoteApi RpcError code an API call failed with.
+   */
+  void recordRpcError(String packageName, String methodName, int code) {
+    getStats(packageName, methodName).recordRpcError(code);
+  }
+
+  /**
+   * Returns the stats of all the API methods called so far, sorted by package and method.
+   */
+  public List<ApiCallStats> getAllStats() {
+    List<ApiCallStats> all = new ArrayList<>();
+    for (Map<String, ApiCallStats> methods : stats.values()) {
+      all.addAll(methods.values());
+    }
+    all.sort(Comparator.comparing(ApiCallStats::getService)
+        .thenComparing(ApiCallStats::getMethod));
+    return all;
+  }
+
+  /**
+   * Writes the metrics in the Prometheus text exposition format.
+   */
+  public void writeText(PrintWriter writer) {
+    List<ApiCallStats> all = getAllStats();
+    writeCounter(writer, all, "appengine_api_calls_total", ApiCallStats::getCallCount);
+    writeCounter(writer, all, "appengine_api_errors_total", ApiCallStats::getErrorCount);
+    writeCounter(writer, all, "appengine_api_request_bytes_total", ApiCallStats::getRequestBytes);
+    writeCounter(
+        writer, all, "appengine_api_response_bytes_total", ApiCallStats::getResponseBytes);
+    writeCounter(
+        writer, all, "appengine_api_hedged_attempts_total", ApiCallStats::getHedgedAttemptCount);
+    writeCounter(
+        writer, all, "appengine_api_retried_attempts_total", ApiCallStats::getRetriedAttemptCount);
+
+    writer.println("# TYPE appengine_api_rpc_errors_total counter");
+    for (ApiCallStats methodStats : all) {
+      for (Map.Entry<String, Long> entry : methodStats.getRpcErrorCounts().entrySet()) {
+        writer.println("appengine_api_rpc_errors_total{" + labels(methodStats)
+            + ",code=\"" + entry.getKey() + "\"} " + entry.getValue());
+      }
+    }
+
+    writer.println("# TYPE appengine_api_latency_microseconds summary");
+    for (ApiCallStats methodStats : all) {
+      String labels = labels(methodStats);
+      LatencyHistogram latency = methodStats.latency;
+      writer.println("appengine_api_latency_microseconds{" + labels + ",quantile=\"0.5\"} "
+          + latency.getPercentile(50));
+      writer.println("appengine_api_latency_microseconds{" + labels + ",quantile=\"0.95\"} "
+          + latency.getPercentile(95));
+      writer.println("appengine_api_latency_microseconds{" + labels + ",quantile=\"0.99\"} "
+          + latency.getPercentile(99));
+      writer.println("appengine_api_latency_microseconds{" + labels + ",quantile=\"1\"} "
+          + latency.getMax());
+      writer.println("appengine_api_latency_microseconds_sum{" + labels + "} "
+          + latency.getSum());
+      writer.println("appengine_api_latency_microseconds_count{" + labels + "} "
+          + latency.getCount());
+    }
+
+    VmApiCallExecutor executor = this.executor;
+    if (executor != null) {
+      writeGauge(writer, "appengine_api_executor_threads", executor.getThreadCount());
+      writeGauge(writer, "appengine_api_executor_active_threads", executor.getActiveThreadCount());
+      writeGauge(writer, "appengine_api_executor_queued_tasks", executor.getQueuedTaskCount());
+      writer.println("# TYPE appengine_api_executor_rejected_tasks_total counter");
+      writer.println("appengine_api_executor_rejected_tasks_total "
+          + executor.getRejectedTaskCount());
+      writer.println("# TYPE appengine_api_executor_queue_wait_microseconds summary");
+      writer.println("appengine_api_executor_queue_wait_microseconds{quantile=\"0.5\"} "
+          + executor.getQueueWaitMicrosP50());
+      writer.println("appengine_api_executor_queue_wait_microseconds{quantile=\"0.99\"} "
+          + executor.getQueueWaitMicrosP99());
+      writer.println("appengine_api_executor_queue_wait_microseconds{quantile=\"1\"} "
+          + executor.getQueueWaitMicrosMax());
+    }
+
+    VmApiCallGovernor governor = this.governor;
+    if (governor != null) {
+      writeGauge(writer, "appengine_api_governor_limit", governor.getLimit());
+      writeGauge(writer, "appengine_api_governor_in_flight_calls", governor.getInFlightCallCount());
+      writeGauge(writer, "appengine_api_governor_waiting_calls", governor.getWaitingCallCount());
+      writer.println("# TYPE appengine_api_governor_limit_decreases_total counter");
+      writer.println("appengine_api_governor_limit_decreases_total "
+          + governor.getLimitDecreaseCount());
+      writer.println("# TYPE appengine_api_governor_timed_out_calls_total counter");
+      writer.println("appengine_api_governor_timed_out_calls_total "
+          + governor.getTimedOutCallCount());
+    }
+
+    if (!circuitBreakers.isEmpty()) {
+      List<VmApiCircuitBreaker> breakers = new ArrayList<>(circuitBreakers.values());
+      breakers.sort(Comparator.comparing(VmApiCircuitBreaker::getService));
+      // 0 when closed, 1 when open and 2 when half-open.
+      writer.println("# TYPE appengine_api_circuit_breaker_state gauge");
+      for (VmApiCircuitBreaker breaker : breakers) {
+        writer.println("appengine_api_circuit_breaker_state{service=\"" + breaker.getService()
+            + "\"} " + breaker.state().ordinal());
+      }
+      writer.println("# TYPE appengine_api_circuit_breaker_opened_total counter");
+      for (VmApiCircuitBreaker breaker : breakers) {
+        writer.println("appengine_api_circuit_breaker_opened_total{service=\""
+            + breaker.getService() + "\"} " + breaker.getOpenedCount());
+      }
+      writer.println("# TYPE appengine_api_circuit_breaker_rejected_calls_total counter");
+      for (VmApiCircuitBreaker breaker : breakers) {
+        writer.println("appengine_api_circuit_breaker_rejected_calls_total{service=\""
+            + breaker.getService() + "\"} " + breaker.getRejectedCallCount());
+      }
+    }
+  }
+
+  private static void writeGauge(PrintWriter writer, String name, long value) {
+    writer.println("# TYPE " + name + " gauge");
+    writer.println(name + " " + value);
+  }
+
+  private static void writeCounter(PrintWriter writer, List<ApiCallStats> all, String name,
+      ToLongFunction<ApiCallStats> value) {
+    writer.println("# TYPE " + name + " counter");
+    for (ApiCallStats methodStats : all) {
+      writer.println(name + "{" + labels(methodStats) + "} " + value.applyAsLong(methodStats));
+    }
+  }
+
+  private static String labels(ApiCallStats methodStats) {
+    return "service=\"" + methodStats.getService() + "\",method=\"" + methodStats.getMethod()
+        + "\"";
+  }
+}
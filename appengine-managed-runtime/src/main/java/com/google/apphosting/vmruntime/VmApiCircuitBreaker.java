@@ -0,0 +1,269 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker of the API calls to one service, e.g. {@code memcache} or
+ * {@code datastore_v3}.
+ *
+ * <p>The breaker is closed while the service is healthy. It opens when at least
+ * {@code failureRatePercent} of the last {@code windowSize} calls failed, or when at least
+ * {@code slowCallRatePercent} of them took {@code slowCallMillis} or more. While it is open, calls
+ * are rejected without being sent, so that requests fail fast instead of piling up behind a
+ * struggling service. After {@code openMillis} the breaker lets {@code probeCalls} calls through:
+ * it closes again if they all succeed in time, and opens again otherwise.
+ *
+ * <p>Callers take a permit with {@link #tryAcquire} before sending a call, and report its outcome
+ * with {@link #onCompletion}, or with {@link #release} if the call was not sent after all.
+ *
+ */
+public final class VmApiCircuitBreaker implements ApiCircuitBreakerMXBean {
+  private static final Logger logger = Logger.getLogger(VmApiCircuitBreaker.class.getName());
+
+  // System properties overriding the settings of the breakers.
+  static final String WINDOW_SIZE_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCircuitBreaker.windowSize";
+  static final String MIN_CALLS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCircuitBreaker.minCalls";
+  static final String FAILURE_RATE_PERCENT_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCircuitBreaker.failureRatePercent";
+  static final String SLOW_CALL_MILLIS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCircuitBreaker.slowCallMillis";
+  static final String SLOW_CALL_RATE_PERCENT_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCircuitBreaker.slowCallRatePercent";
+  static final String OPEN_MILLIS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCircuitBreaker.openMillis";
+  static final String PROBE_CALLS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiCircuitBreaker.probeCalls";
+
+  static final int DEFAULT_WINDOW_SIZE = 50;
+  static final int DEFAULT_MIN_CALLS = 20;
+  static final int DEFAULT_FAILURE_RATE_PERCENT = 50;
+  static final int DEFAULT_SLOW_CALL_MILLIS = 10000;
+  static final int DEFAULT_SLOW_CALL_RATE_PERCENT = 80;
+  static final int DEFAULT_OPEN_MILLIS = 5000;
+  static final int DEFAULT_PROBE_CALLS = 3;
+
+  // Returned by tryAcquire() when the call must be rejected.
+  static final int REJECTED = -1;
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private static final byte SUCCESS = 0;
+  private static final byte FAILURE = 1;
+  private static final byte SLOW = 2;
+
+  private final String service;
+  private final int minCalls;
+  private final int failureRatePercent;
+  private final long slowCallNanos;
+  private final int slowCallRatePercent;
+  private final long openNanos;
+  private final int probeCalls;
+  private final LongSupplier nanoTime;
+
+  // Outcomes of the last calls while closed, in a ring.
+  private final byte[] outcomes;
+  private int next;
+  private int calls;
+  private int failures;
+  private int slowCalls;
+
+  private State state = State.CLOSED;
+  // Incremented on every state change, so that the outcomes of calls started in an earlier
+  // state are ignored.
+  private int generation;
+  private long openedAt;
+  private int probesInFlight;
+  private int probeSuccesses;
+
+  private long openedCount;
+  private long rejectedCallCount;
+
+  VmApiCircuitBreaker(String service) {
+    this(service,
+        Integer.getInteger(WINDOW_SIZE_PROPERTY, DEFAULT_WINDOW_SIZE),
+        Integer.getInteger(MIN_CALLS_PROPERTY, DEFAULT_MIN_CALLS),
+        Integer.getInteger(FAILURE_RATE_PERCENT_PROPERTY, DEFAULT_FAILURE_RATE_PERCENT),
+        Integer.getInteger(SLOW_CALL_MILLIS_PROPERTY, DEFAULT_SLOW_CALL_MILLIS),
+        Integer.getInteger(SLOW_CALL_RATE_PERCENT_PROPERTY, DEFAULT_SLOW_CALL_RATE_PERCENT),
+        Integer.getInteger(OPEN_MILLIS_PROPERTY, DEFAULT_OPEN_MILLIS),
+        Integer.getInteger(PROBE_CALLS_PROPERTY, DEFAULT_PROBE_CALLS),
+        System::nanoTime);
+  }
+
+  VmApiCircuitBreaker(String service, int windowSize, int minCalls, int failureRatePercent,
+      int slowCallMillis, int slowCallRatePercent, int openMillis, int probeCalls,
+      LongSupplier nanoTime) {
+    this.service = service;
+    this.outcomes = new byte[Math.max(1, windowSize)];
+    this.minCalls = Math.max(1, Math.min(minCalls, outcomes.length));
+    this.failureRatePercent = failureRatePercent;
+    this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+    this.slowCallRatePercent = slowCallRatePercent;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.probeCalls = Math.max(1, probeCalls);
+    this.nanoTime = nanoTime;
+  }
+
+  /**
+   * Takes a permit to send a call.
+   *
+   * @return the permit to pass to {@link #onCompletion} or {@link #release}, or
+   *         {@link #REJECTED} if the breaker is open and the call must not be sent.
+   */
+  synchronized int tryAcquire() {
+    if (state == State.OPEN) {
+      if (nanoTime.getAsLong() - openedAt < openNanos) {
+        rejectedCallCount++;
+        return REJECTED;
+      }
+      transition(State.HALF_OPEN);
+    }
+    if (state == State.HALF_OPEN) {
+      if (probesInFlight >= probeCalls - probeSuccesses) {
+        rejectedCallCount++;
+        return REJECTED;
+      }
+      probesInFlight++;
+    }
+    return generation;
+  }
+
+  /**
+   * Records the outcome of a call sent with {@code permit}.
+   *
+   * @param failed whether the call failed because of the service, rather than of the app
+   * @param latencyNanos how long the call took
+   */
+  synchronized void onCompletion(int permit, boolean failed, long latencyNanos) {
+    if (permit != generation) {
+      return;
+    }
+    byte outcome = failed ? FAILURE : latencyNanos >= slowCallNanos ? SLOW : SUCCESS;
+    switch (state) {
+      case CLOSED:
+        record(outcome);
+        if (calls >= minCalls && (failures * 100 >= failureRatePercent * calls
+            || slowCalls * 100 >= slowCallRatePercent * calls)) {
+          logger.warning("Opening the circuit breaker of the " + service + " API: " + failures
+              + " failed and " + slowCalls + " slow calls out of the last " + calls + ".");
+          transition(State.OPEN);
+        }
+        break;
+      case HALF_OPEN:
+        probesInFlight--;
+        if (outcome != SUCCESS) {
+          transition(State.OPEN);
+        } else if (++probeSuccesses >= probeCalls) {
+          logger.info("Closing the circuit breaker of the " + service + " API.");
+          transition(State.CLOSED);
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Returns the permit of a call that was not sent after all.
+   */
+  synchronized void release(int permit) {
+    if (permit == generation && state == State.HALF_OPEN) {
+      probesInFlight--;
+    }
+  }
+
+  private void record(byte outcome) {
+    if (calls == outcomes.length) {
+      forget(outcomes[next]);
+    } else {
+      calls++;
+    }
+    outcomes[next] = outcome;
+    if (outcome == FAILURE) {
+      failures++;
+    } else if (outcome == SLOW) {
+      slowCalls++;
+    }
+    next = (next + 1) % outcomes.length;
+  }
+
+  private void forget(byte outcome) {
+    if (outcome == FAILURE) {
+      failures--;
+    } else if (outcome == SLOW) {
+      slowCalls--;
+    }
+  }
+
+  private void transition(State newState) {
+    state = newState;
+    generation = (generation + 1) & Integer.MAX_VALUE;
+    probesInFlight = 0;
+    probeSuccesses = 0;
+    if (newState == State.OPEN) {
+      openedAt = nanoTime.getAsLong();
+      openedCount++;
+    } else if (newState == State.CLOSED) {
+      next = 0;
+      calls = 0;
+      failures = 0;
+      slowCalls = 0;
+    }
+  }
+
+  synchronized State state() {
+    return state;
+  }
+
+  @Override
+  public String getService() {
+    return service;
+  }
+
+  @Override
+  public synchronized String getState() {
+    return state.name();
+  }
+
+  @Override
+  public synchronized int getFailureRatePercent() {
+    return calls == 0 ? 0 : failures * 100 / calls;
+  }
+
+  @Override
+  public synchronized int getSlowCallRatePercent() {
+    return calls == 0 ? 0 : slowCalls * 100 / calls;
+  }
+
+  @Override
+  public synchronized long getOpenedCount() {
+    return openedCount;
+  }
+
+  @Override
+  public synchronized long getRejectedCallCount() {
+    return rejectedCallCount;
+  }
+}
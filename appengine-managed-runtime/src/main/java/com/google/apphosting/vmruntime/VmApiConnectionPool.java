@@ -0,0 +1,194 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sizes the pool of connections of the blocking transport to the API server.
+ *
+ * <p>At startup, {@link #warmUp} opens {@code warmUpConnections} connections ahead of the first
+ * requests, so that they do not pay for the TCP connects. Afterwards idle connections are closed
+ * after {@code minIdleSeconds} on an instance making few API calls, and kept up to
+ * {@code maxIdleSeconds} as the recent call rate grows, so that the pool of a busy instance
+ * survives the pauses between bursts of requests.
+ *
+ */
+final class VmApiConnectionPool {
+  private static final Logger logger = Logger.getLogger(VmApiConnectionPool.class.getName());
+
+  // System properties overriding the settings of the pool.
+  static final String WARM_UP_CONNECTIONS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiConnectionPool.warmUpConnections";
+  static final String MIN_IDLE_SECONDS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiConnectionPool.minIdleSeconds";
+  static final String MAX_IDLE_SECONDS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiConnectionPool.maxIdleSeconds";
+
+  static final int DEFAULT_WARM_UP_CONNECTIONS = 8;
+  static final int DEFAULT_MIN_IDLE_SECONDS = 60;
+  static final int DEFAULT_MAX_IDLE_SECONDS = 180;
+
+  // Average number of calls per second at and above which idle connections are kept for
+  // maxIdleSeconds.
+  static final double BUSY_CALL_RATE = 1.0;
+
+  private static final int WARM_UP_CONNECT_TIMEOUT_MS = 5000;
+
+  private final ClientConnectionManager connectionManager;
+  private final int warmUpConnections;
+  private final long minIdleMillis;
+  private final long maxIdleMillis;
+
+  private final LongAdder calls = new LongAdder();
+
+  // Average calls per second, decaying with a half-life of maxIdleSeconds. Only updated by the
+  // idle connection monitor.
+  private volatile double callRate;
+
+  VmApiConnectionPool(ClientConnectionManager connectionManager) {
+    this(connectionManager,
+        Integer.getInteger(WARM_UP_CONNECTIONS_PROPERTY, DEFAULT_WARM_UP_CONNECTIONS),
+        Integer.getInteger(MIN_IDLE_SECONDS_PROPERTY, DEFAULT_MIN_IDLE_SECONDS),
+        Integer.getInteger(MAX_IDLE_SECONDS_PROPERTY, DEFAULT_MAX_IDLE_SECONDS));
+  }
+
+  VmApiConnectionPool(ClientConnectionManager connectionManager, int warmUpConnections,
+      int minIdleSeconds, int maxIdleSeconds) {
+    this.connectionManager = connectionManager;
+    this.warmUpConnections = Math.max(0, warmUpConnections);
+    this.minIdleMillis = TimeUnit.SECONDS.toMillis(minIdleSeconds);
+    this.maxIdleMillis = TimeUnit.SECONDS.toMillis(Math.max(minIdleSeconds, maxIdleSeconds));
+  }
+
+  /**
+   * Records an API call sent through the pool.
+   */
+  void recordCall() {
+    calls.increment();
+  }
+
+  /**
+   * Folds the calls recorded since the last update into the call rate.
+   *
+   * @param elapsedMillis the time since the last update.
+   */
+  void updateCallRate(long elapsedMillis) {
+    if (elapsedMillis <= 0) {
+      return;
+    }
+    double decay = Math.pow(0.5, (double) elapsedMillis / maxIdleMillis);
+    double recentRate = calls.sumThenReset() * 1000.0 / elapsedMillis;
+    callRate = callRate * decay + recentRate * (1 - decay);
+  }
+
+  double getCallRate() {
+    return callRate;
+  }
+
+  /**
+   * Returns how long connections may stay idle before they are closed, given the call rate.
+   */
+  long getIdleTimeoutMillis() {
+    double load = Math.min(1.0, callRate / BUSY_CALL_RATE);
+    return minIdleMillis + (long) ((maxIdleMillis - minIdleMillis) * load);
+  }
+
+  /**
+   * Closes the expired connections, and the ones idle for longer than the idle timeout.
+   */
+  void closeIdleConnections() {
+    connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(getIdleTimeoutMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Opens {@code warmUpConnections} connections to the API server in the background, and
+   * returns them to the pool.
+   *
+   * @param server the host:port of the API server.
+   * @return a future completed with the number of connections opened.
+   */
+  CompletableFuture<Integer> warmUp(String server) {
+    if (warmUpConnections == 0) {
+      return CompletableFuture.completedFuture(0);
+    }
+    CompletableFuture<Integer> result = new CompletableFuture<>();
+    Thread thread = new Thread(() -> result.complete(openConnections(server)),
+        "ApiConnectionWarmUp");
+    thread.setDaemon(true);
+    thread.start();
+    return result;
+  }
+
+  private int openConnections(String server) {
+    URI uri = URI.create("http://" + server);
+    HttpRoute route = new HttpRoute(new HttpHost(uri.getHost(), uri.getPort(), "http"));
+    HttpParams params = new BasicHttpParams();
+    params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, WARM_UP_CONNECT_TIMEOUT_MS);
+    params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, Boolean.TRUE);
+
+    int count = warmUpConnections;
+    if (connectionManager instanceof PoolingClientConnectionManager) {
+      count = Math.min(count,
+          ((PoolingClientConnectionManager) connectionManager).getDefaultMaxPerRoute());
+    }
+
+    // Lease all the connections before opening them, so that each one is a new connection.
+    List<ManagedClientConnection> connections = new ArrayList<>(count);
+    int opened = 0;
+    try {
+      for (int i = 0; i < count; i++) {
+        connections.add(connectionManager.requestConnection(route, null)
+            .getConnection(WARM_UP_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+      }
+      for (ManagedClientConnection connection : connections) {
+        if (!connection.isOpen()) {
+          connection.open(route, new BasicHttpContext(), params);
+        }
+        connection.markReusable();
+        opened++;
+      }
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      logger.log(Level.INFO, "Could not warm up the connections to the API server " + server
+          + ", opened " + opened + " of " + count, e);
+    } finally {
+      for (ManagedClientConnection connection : connections) {
+        connectionManager.releaseConnection(connection, -1, TimeUnit.MILLISECONDS);
+      }
+    }
+    return opened;
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.RPCFailedException;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Non-blocking client for the VM's HTTP API proxy.
+ *
+ * <p>Requests are written and responses are read by Jetty's selector and a small shared thread
+ * pool, so an API call does not occupy a thread while it is in flight. The future returned by
+ * {@link #send} is completed from the I/O callback, once the response has been decoded.
+ *
+ */
+abstract class VmApiProxyAsyncClient {
+  static final String CONTENT_TYPE = "application/octet-stream";
+
+  // API responses are limited to 32 MB, leave some room for the RemoteApi envelope.
+  static final int MAX_RESPONSE_SIZE = 33 * 1024 * 1024;
+
+  // Threads used for the selector and the response callbacks. Callbacks never block, so this
+  // does not need to scale with the number of in-flight calls.
+  private static final int MAX_CLIENT_THREADS = 16;
+
+  /**
+   * Creates and starts a client using HTTP/1.1 connections to the API server.
+   */
+  static VmApiProxyAsyncClient create() {
+    return VmApiProxyHttp1Client.start(new HttpClient());
+  }
+
+  /**
+   * Creates and starts a client multiplexing calls over HTTP/2 (h2c) connections to the API
+   * server.
+   */
+  static VmApiProxyAsyncClient createHttp2() {
+    return VmApiProxyHttp2Client.start(new HTTP2Client());
+  }
+
+  /**
+   * Sends an API call to the API server without blocking.
+   *
+   * @param environment The current VMApiProxyEnvironment
+   * @param packageName The API call package
+   * @param methodName The API call method
+   * @param requestData The POST payload.
+   * @param timeoutMs The timeout for this request
+   * @return a future completed with the API response. The future fails with an
+   *         {@link RPCFailedException} if the API server returned an HTTP error, with the
+   *         matching {@link ApiProxyException} if the API call failed, or with the underlying
+   *         I/O exception if the call could not be completed. Cancelling the future aborts the
+   *         call.
+   */
+  abstract CompletableFuture<byte[]> send(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, int timeoutMs);
+
+  /**
+   * Stops the client, failing all in-flight calls.
+   */
+  abstract void stop() throws Exception;
+
+  static QueuedThreadPool createExecutor() {
+    QueuedThreadPool executor = new QueuedThreadPool(MAX_CLIENT_THREADS);
+    executor.setName("ApiProxyClient");
+    executor.setDaemon(true);
+    return executor;
+  }
+
+  /**
+   * Passes the HTTP headers of an API call, other than the content headers, to {@code header}.
+   */
+  static void addCallHeaders(VmApiProxyEnvironment environment, int timeoutMs,
+      BiConsumer<String, String> header) {
+    header.accept(VmApiProxyDelegate.RPC_STUB_ID_HEADER, VmApiProxyDelegate.REQUEST_STUB_ID);
+    header.accept(VmApiProxyDelegate.RPC_METHOD_HEADER, VmApiProxyDelegate.REQUEST_STUB_METHOD);
+    header.accept(VmApiProxyDelegate.RPC_DEADLINE_HEADER,
+        VmApiProxyDelegate.getDeadlineHeader(environment, timeoutMs));
+
+    // Tie the API call to the original request, see VmApiProxyDelegate.createRequest().
+    Object dapperHeader = environment.getAttributes()
+        .get(VmApiProxyEnvironment.AttributeMapping.DAPPER_ID.attributeKey);
+    if (dapperHeader instanceof String) {
+      header.accept(
+          VmApiProxyEnvironment.AttributeMapping.DAPPER_ID.headerKey, (String) dapperHeader);
+    }
+    Object traceHeader = environment.getAttributes()
+        .get(VmApiProxyEnvironment.AttributeMapping.CLOUD_TRACE_CONTEXT.attributeKey);
+    if (traceHeader instanceof String) {
+      header.accept(
+          VmApiProxyEnvironment.AttributeMapping.CLOUD_TRACE_CONTEXT.headerKey,
+          (String) traceHeader);
+    }
+  }
+}
@@ -34,21 +34,22 @@ import com.google.apphosting.api.ApiProxy.ApiConfig;
 import com.google.apphosting.api.ApiProxy.ApiProxyException;
 import com.google.apphosting.api.ApiProxy.LogRecord;
 import com.google.apphosting.api.ApiProxy.RPCFailedException;
+import com.google.apphosting.logging.LogContext;
 import com.google.apphosting.utils.remoteapi.RemoteApiPb;
 
 
 import com.google.appengine.repackaged.com.google.common.collect.Lists;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnManagerPNames;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpParams;
@@ -56,14 +57,29 @@ import org.apache.http.protocol.BasicHttpContext;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.net.URI;
 import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -76,6 +92,8 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
 
   private static final Logger logger = Logger.getLogger(VmApiProxyDelegate.class.getName());
 
+  private static final VmApiCallMetrics metrics = VmApiCallMetrics.getInstance();
+
   public static final String RPC_DEADLINE_HEADER = "X-Google-RPC-Service-Deadline";
   public static final String RPC_STUB_ID_HEADER = "X-Google-RPC-Service-Endpoint";
   public static final String RPC_METHOD_HEADER = "X-Google-RPC-Service-Method";
@@ -95,13 +113,78 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
   // Wait for 1000 ms in addition to the RPC timeout before closing the HTTP connection.
   static final int ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS = 1000;
 
+  // System property selecting how API calls are sent to the API server:
+  //   "blocking" (default): Apache HttpClient, async calls are run on a thread pool.
+  //   "async": non-blocking Jetty HttpClient, async calls do not hold a thread while in flight.
+  //   "h2c": like "async", but calls are multiplexed over a few HTTP/2 connections, see
+  //          VmApiProxyHttp2Client for its settings.
+  public static final String TRANSPORT_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.transport";
+  static final String BLOCKING_TRANSPORT = "blocking";
+  static final String ASYNC_TRANSPORT = "async";
+  static final String HTTP2_TRANSPORT = "h2c";
+
+  // System property listing the idempotent API methods whose calls are hedged and retried on I/O
+  // errors, as comma separated package.method names, e.g. "memcache.Get,datastore_v3.Get". See
+  // VmApiCallHedger.
+  public static final String HEDGED_METHODS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.hedgedMethods";
+
+  // System property enabling the merging of the async memcache and datastore gets made by a
+  // request into batched calls, see VmApiCallCoalescer for its settings.
+  public static final String COALESCE_GETS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.coalesceGets";
+
+  // System property enabling a circuit breaker per API service, failing the calls to a service
+  // fast while it is unhealthy. See VmApiCircuitBreaker for its settings.
+  public static final String CIRCUIT_BREAKER_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.circuitBreaker";
+
+  // System property enabling an instance-wide limit on the API calls in flight, adapted to the
+  // latency of the API server, on top of the per-request limits. See VmApiCallGovernor for its
+  // settings.
+  public static final String CONCURRENCY_GOVERNOR_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.concurrencyGovernor";
+
+  // System property selecting the executor running the async calls of the blocking transport:
+  //   "cached" (default): one thread per call in flight, without limit.
+  //   "bounded": a bounded pool and queue shared fairly between requests, rejecting the calls
+  //              over its limits. See VmApiCallExecutor for its settings.
+  //   "virtual": one virtual thread per call, on Java 21 and later. This is the default in the
+  //              virtual thread mode, see VmVirtualThreads.
+  public static final String EXECUTOR_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.executor";
+  static final String CACHED_EXECUTOR = "cached";
+  static final String BOUNDED_EXECUTOR = "bounded";
+  static final String VIRTUAL_EXECUTOR = "virtual";
+
+  // Threads running the hedged and retried attempts of blocking calls.
+  private static final int MAX_HEDGE_THREADS = 16;
+  private static final ExecutorService hedgeExecutor = createHedgeExecutor();
+
   protected int defaultTimeoutMs;
   protected final ExecutorService executor;
 
   protected final HttpClient httpclient;
 
+  // Non-blocking client, null when the "blocking" transport is selected.
+  final VmApiProxyAsyncClient asyncClient;
+
+  final VmApiConnectionPool connectionPool;
+
   final IdleConnectionMonitorThread monitorThread;
 
+  private final VmApiCallHedger hedger;
+
+  // Null unless async gets are coalesced.
+  private final VmApiCallCoalescer coalescer;
+
+  // Circuit breakers by package, null unless they are enabled.
+  private final ConcurrentMap<String, VmApiCircuitBreaker> circuitBreakers;
+
+  // Null unless the concurrency governor is enabled.
+  private final VmApiCallGovernor governor;
+
   private static ClientConnectionManager createConnectionManager() {
     PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
     connectionManager.setMaxTotal(VmApiProxyEnvironment.MAX_CONCURRENT_API_CALLS);
@@ -109,19 +192,100 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
     return connectionManager;
   }
 
+  private static VmApiProxyAsyncClient createAsyncClient() {
+    String transport = System.getProperty(TRANSPORT_PROPERTY, BLOCKING_TRANSPORT);
+    switch (transport) {
+      case BLOCKING_TRANSPORT:
+        return null;
+      case ASYNC_TRANSPORT:
+        return VmApiProxyAsyncClient.create();
+      case HTTP2_TRANSPORT:
+        return VmApiProxyAsyncClient.createHttp2();
+      default:
+        logger.warning("Unknown API transport '" + transport + "', using the blocking transport.");
+        return null;
+    }
+  }
+
+  private static ExecutorService createExecutor() {
+    String executor = System.getProperty(EXECUTOR_PROPERTY,
+        VmVirtualThreads.isEnabled() ? VIRTUAL_EXECUTOR : CACHED_EXECUTOR);
+    switch (executor) {
+      case CACHED_EXECUTOR:
+        return Executors.newCachedThreadPool();
+      case BOUNDED_EXECUTOR:
+        VmApiCallExecutor boundedExecutor = new VmApiCallExecutor();
+        metrics.registerExecutor(boundedExecutor);
+        return boundedExecutor;
+      case VIRTUAL_EXECUTOR:
+        ExecutorService virtualExecutor = VmVirtualThreads.newApiCallExecutor();
+        if (virtualExecutor != null) {
+          return virtualExecutor;
+        }
+        logger.warning("Virtual threads are not available, using a cached pool.");
+        return Executors.newCachedThreadPool();
+      default:
+        logger.warning("Unknown API call executor '" + executor + "', using a cached pool.");
+        return Executors.newCachedThreadPool();
+    }
+  }
+
+  private static ExecutorService createHedgeExecutor() {
+    // A hedge is skipped rather than queued when all the threads are busy.
+    return new ThreadPoolExecutor(0, MAX_HEDGE_THREADS, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), runnable -> {
+          Thread thread = new Thread(runnable, "ApiCallHedge");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  private static VmApiCallGovernor createGovernor() {
+    if (!Boolean.getBoolean(CONCURRENCY_GOVERNOR_PROPERTY)) {
+      return null;
+    }
+    VmApiCallGovernor governor = new VmApiCallGovernor();
+    metrics.registerGovernor(governor);
+    return governor;
+  }
+
   public VmApiProxyDelegate() {
-    this(new DefaultHttpClient(createConnectionManager()));
+    this(new DefaultHttpClient(createConnectionManager()), createAsyncClient());
   }
 
   
   VmApiProxyDelegate(HttpClient httpclient) {
+    this(httpclient, null);
+  }
+
+  VmApiProxyDelegate(HttpClient httpclient, VmApiProxyAsyncClient asyncClient) {
     this.defaultTimeoutMs = DEFAULT_RPC_TIMEOUT_MS;
-    this.executor = Executors.newCachedThreadPool();
+    this.executor = createExecutor();
     this.httpclient = httpclient;
-    this.monitorThread = new IdleConnectionMonitorThread(httpclient.getConnectionManager());
+    this.asyncClient = asyncClient;
+    this.hedger = new VmApiCallHedger(System.getProperty(HEDGED_METHODS_PROPERTY, ""), metrics);
+    this.coalescer =
+        Boolean.getBoolean(COALESCE_GETS_PROPERTY) ? new VmApiCallCoalescer(this::sendCall) : null;
+    this.circuitBreakers =
+        Boolean.getBoolean(CIRCUIT_BREAKER_PROPERTY) ? new ConcurrentHashMap<>() : null;
+    this.governor = createGovernor();
+    this.connectionPool = new VmApiConnectionPool(httpclient.getConnectionManager());
+    this.monitorThread = new IdleConnectionMonitorThread(connectionPool);
     this.monitorThread.start();
   }
 
+  /**
+   * Opens connections to the API server ahead of the first API calls, in the background. Does
+   * nothing unless the blocking transport is used. See {@link VmApiConnectionPool}.
+   *
+   * @param server the host:port of the API server.
+   */
+  public void warmUpConnections(String server) {
+    if (asyncClient == null) {
+      connectionPool.warmUp(server);
+    }
+  }
+
   @Override
   public byte[] makeSyncCall(
         VmApiProxyEnvironment environment,
@@ -149,19 +313,145 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
       byte[] requestData,
       int timeoutMs,
       boolean wasAsync) {
-    // If this was caused by an async call we need to return the pending call semaphore.
-    environment.apiCallStarted(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS, wasAsync);
+    VmApiCircuitBreaker circuitBreaker = getCircuitBreaker(packageName);
+    int permit = circuitBreaker != null ? circuitBreaker.tryAcquire() : 0;
+    if (permit == VmApiCircuitBreaker.REJECTED) {
+      if (wasAsync) {
+        environment.aSyncApiCallRejected();
+      }
+      throw constructApiException(packageName, methodName);
+    }
+    long start;
     try {
-      return runSyncCall(environment, packageName, methodName, requestData, timeoutMs);
+      // If this was caused by an async call we need to return the pending call semaphore.
+      start = startCall(environment, wasAsync);
+    } catch (RuntimeException e) {
+      if (circuitBreaker != null) {
+        circuitBreaker.release(permit);
+      }
+      throw e;
+    }
+    byte[] response = null;
+    RuntimeException failure = null;
+    try {
+      response = runSyncCall(environment, packageName, methodName, requestData, timeoutMs);
+      return response;
+    } catch (RuntimeException e) {
+      failure = e;
+      throw e;
     } finally {
-      environment.apiCallCompleted();
+      long latencyNanos = System.nanoTime() - start;
+      boolean failed = response == null && isServiceFailure(failure);
+      metrics.recordCall(packageName, methodName, requestData, response, latencyNanos);
+      if (circuitBreaker != null) {
+        circuitBreaker.onCompletion(permit, failed, latencyNanos);
+      }
+      completeCall(environment, packageName, methodName, start, latencyNanos, failed);
     }
   }
 
+  /**
+   * Waits until the call may run under the per-request limit on running calls, then under the
+   * instance-wide one if the concurrency governor is enabled.
+   *
+   * @param releasePendingCall whether the call was made asynchronously, and holds a pending call
+   *        semaphore to release
+   * @return the time the call started
+   */
+  private long startCall(VmApiProxyEnvironment environment, boolean releasePendingCall) {
+    environment.apiCallStarted(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS, releasePendingCall);
+    if (governor != null) {
+      try {
+        governor.acquire(environment, VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS);
+      } catch (RuntimeException e) {
+        environment.apiCallCompleted();
+        throw e;
+      }
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Releases the limits taken by {@link #startCall}.
+   */
+  private void completeCall(VmApiProxyEnvironment environment, String packageName,
+      String methodName, long start, long latencyNanos, boolean failed) {
+    if (governor != null) {
+      governor.release(start, metrics.getStats(packageName, methodName), latencyNanos, failed);
+    }
+    environment.apiCallCompleted();
+  }
+
+  /**
+   * Returns the circuit breaker of {@code packageName}, or null if circuit breakers are disabled.
+   */
+  private VmApiCircuitBreaker getCircuitBreaker(String packageName) {
+    if (circuitBreakers == null) {
+      return null;
+    }
+    VmApiCircuitBreaker circuitBreaker = circuitBreakers.get(packageName);
+    if (circuitBreaker == null) {
+      circuitBreaker = circuitBreakers.computeIfAbsent(packageName, p -> {
+        VmApiCircuitBreaker created = new VmApiCircuitBreaker(p);
+        metrics.registerCircuitBreaker(created);
+        return created;
+      });
+    }
+    return circuitBreaker;
+  }
+
+  /**
+   * Returns whether a call failed because of the API server or the service, rather than because
+   * of the request of the app. Null stands for an error thrown by the call.
+   */
+  static boolean isServiceFailure(Throwable failure) {
+    if (failure instanceof CompletionException && failure.getCause() != null) {
+      failure = failure.getCause();
+    }
+    if (!(failure instanceof ApiProxyException)) {
+      // I/O errors are reported with the exceptions of constructApiException().
+      return true;
+    }
+    return failure instanceof RPCFailedException
+        || failure instanceof ApiProxy.ApiDeadlineExceededException
+        || failure instanceof ApiProxy.UnknownException;
+  }
+
   
   protected byte[] runSyncCall(VmApiProxyEnvironment environment, String packageName,
       String methodName, byte[] requestData, int timeoutMs) {
-    HttpPost request = createRequest(environment, packageName, methodName, requestData, timeoutMs);
+    if (hedger.isHedged(packageName, methodName)) {
+      return waitForNonBlockingCall(
+          sendHedgedCall(environment, packageName, methodName, requestData, timeoutMs),
+          packageName, methodName, timeoutMs);
+    }
+    if (asyncClient != null) {
+      return waitForNonBlockingCall(
+          sendNonBlockingCall(environment, packageName, methodName, requestData, timeoutMs),
+          packageName, methodName, timeoutMs);
+    }
+    try {
+      return sendBlockingCall(environment, packageName, methodName, requestData, timeoutMs);
+    } catch (IOException e) {
+      logger.info(
+          "HTTP ApiProxy I/O error for " + packageName + "." + methodName + ": " + e.getMessage());
+      throw constructApiException(packageName, methodName);
+    }
+  }
+
+  /**
+   * Sends an API call through the Apache HttpClient, blocking until its response is read.
+   */
+  private byte[] sendBlockingCall(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, int timeoutMs) throws IOException {
+    return sendBlockingCall(
+        createRequest(environment, packageName, methodName, requestData, timeoutMs),
+        packageName, methodName);
+  }
+
+  private byte[] sendBlockingCall(HttpPost request, String packageName, String methodName)
+      throws IOException {
+    connectionPool.recordCall();
     try {
       // Create a new http context for each call as the default context is not thread safe.
       BasicHttpContext context = new BasicHttpContext();
@@ -175,29 +465,200 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
           throw new RPCFailedException(packageName, methodName);
         }
       }
-      try (BufferedInputStream bis = new BufferedInputStream(response.getEntity().getContent())) {
-        RemoteApiPb.Response remoteResponse = new RemoteApiPb.Response();
-        if (!remoteResponse.parseFrom(bis)) {
-          logger.info(
-              "HTTP ApiProxy unable to parse response for " + packageName + "." + methodName);
-          throw new RPCFailedException(packageName, methodName);
-        }
-        // If the response contains an error, convert it to the expected api exception and throw.
-        if (remoteResponse.hasRpcError() || remoteResponse.hasApplicationError()) {
-          throw convertRemoteError(remoteResponse, packageName, methodName, logger);
-        }
-        // Success, return the response.
-        return remoteResponse.getResponseAsBytes();
+      RemoteApiCodec.ResponseBuffer body =
+          new RemoteApiCodec.ResponseBuffer(response.getEntity().getContentLength());
+      try (InputStream content = response.getEntity().getContent()) {
+        body.readFrom(content);
+        return body.decodeResponse(packageName, methodName);
+      } finally {
+        body.release();
       }
-    } catch (IOException e) {
-      logger.info(
-          "HTTP ApiProxy I/O error for " + packageName + "." + methodName + ": " + e.getMessage());
-      throw constructApiException(packageName, methodName);
     } finally {
       request.releaseConnection();
     }
   }
 
+  /**
+   * Sends a call to an idempotent API method through {@link VmApiCallHedger}. Attempts are sent
+   * through the non-blocking client if there is one. Otherwise the first attempt runs on the
+   * calling thread, which may be a worker of the executor, and the hedged and retried attempts on
+   * the hedging pool, so that no thread ever waits for a call queued on its own executor. The
+   * returned future is completed like the one of {@link #sendNonBlockingCall}, cancelling it
+   * cancels the attempts in flight.
+   */
+  private CompletableFuture<byte[]> sendHedgedCall(final VmApiProxyEnvironment environment,
+      final String packageName, final String methodName, final byte[] requestData,
+      int timeoutMs) {
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    final AtomicBoolean firstAttempt = new AtomicBoolean(true);
+    final CompletableFuture<byte[]> hedged = hedger.call(packageName, methodName, timeoutMs,
+        environment.getRemainingMillis(), attemptTimeoutMs -> {
+          if (asyncClient != null) {
+            return asyncClient.send(
+                environment, packageName, methodName, requestData, attemptTimeoutMs);
+          }
+          final HttpPost request = createRequest(
+              environment, packageName, methodName, requestData, attemptTimeoutMs);
+          // Frees the connection of the attempts still blocked once the call is complete.
+          result.whenComplete((response, failure) -> request.abort());
+          if (firstAttempt.compareAndSet(true, false)) {
+            CompletableFuture<byte[]> attempt = new CompletableFuture<>();
+            try {
+              attempt.complete(sendBlockingCall(request, packageName, methodName));
+            } catch (IOException | RuntimeException e) {
+              attempt.completeExceptionally(e);
+            }
+            return attempt;
+          }
+          return supplyOnHedgeExecutor(() -> {
+            try {
+              return sendBlockingCall(request, packageName, methodName);
+            } catch (IOException e) {
+              throw new CompletionException(e);
+            }
+          });
+        });
+    hedged.whenComplete(inLogContext((response, failure) -> {
+      if (failure != null) {
+        result.completeExceptionally(
+            convertTransportFailure(failure, packageName, methodName));
+      } else {
+        result.complete(response);
+      }
+    }));
+    result.whenComplete((response, failure) -> hedged.cancel(true));
+    return result;
+  }
+
+  /**
+   * Runs a hedged or retried attempt of a blocking call on the hedging pool. The returned future
+   * fails with the {@link RejectedExecutionException} if the pool is busy, which the hedger does
+   * not treat as final.
+   */
+  private static CompletableFuture<byte[]> supplyOnHedgeExecutor(Supplier<byte[]> call) {
+    try {
+      return CompletableFuture.supplyAsync(
+          call, task -> hedgeExecutor.execute(LogContext.wrap(task)));
+    } catch (RejectedExecutionException e) {
+      CompletableFuture<byte[]> rejected = new CompletableFuture<>();
+      rejected.completeExceptionally(e);
+      return rejected;
+    }
+  }
+
+  /**
+   * Returns the API response carried by {@code remoteResponse}, or throws the API exception
+   * matching the error it contains.
+   */
+  static byte[] getResponseOrThrow(RemoteApiPb.Response remoteResponse,
+      String packageName, String methodName) {
+    // If the response contains an error, convert it to the expected api exception and throw.
+    if (remoteResponse.hasRpcError() || remoteResponse.hasApplicationError()) {
+      throw convertRemoteError(remoteResponse, packageName, methodName, logger);
+    }
+    // Success, return the response.
+    return remoteResponse.getResponseAsBytes();
+  }
+
+  /**
+   * Sends an API call without waiting for its response, through the non-blocking client if there
+   * is one, or on the executor otherwise. The returned future is completed like the one of
+   * {@link #sendNonBlockingCall}.
+   */
+  private CompletableFuture<byte[]> sendCall(final VmApiProxyEnvironment environment,
+      final String packageName, final String methodName, final byte[] requestData,
+      final int timeoutMs) {
+    if (asyncClient == null) {
+      return supplyOnExecutor(
+          () -> runSyncCall(environment, packageName, methodName, requestData, timeoutMs));
+    }
+    if (hedger.isHedged(packageName, methodName)) {
+      return sendHedgedCall(environment, packageName, methodName, requestData, timeoutMs);
+    }
+    return sendNonBlockingCall(environment, packageName, methodName, requestData, timeoutMs);
+  }
+
+  /**
+   * Runs {@code call} on the executor, in the {@link LogContext} of the calling thread. The
+   * returned future fails with an {@link ApiProxyException} if the executor rejects the call.
+   */
+  private CompletableFuture<byte[]> supplyOnExecutor(Supplier<byte[]> call) {
+    try {
+      return CompletableFuture.supplyAsync(call, task -> executor.execute(LogContext.wrap(task)));
+    } catch (RejectedExecutionException e) {
+      CompletableFuture<byte[]> rejected = new CompletableFuture<>();
+      rejected.completeExceptionally(new ApiProxyException(e.getMessage()));
+      return rejected;
+    }
+  }
+
+  /**
+   * Sends an API call through the non-blocking client. The returned future is completed from the
+   * client's I/O callback with the API response, or with the API exception the call failed with.
+   */
+  private CompletableFuture<byte[]> sendNonBlockingCall(VmApiProxyEnvironment environment,
+      final String packageName, final String methodName, byte[] requestData, int timeoutMs) {
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    asyncClient.send(environment, packageName, methodName, requestData, timeoutMs)
+        .whenComplete(inLogContext((response, failure) -> {
+          if (failure != null) {
+            result.completeExceptionally(
+                convertTransportFailure(failure, packageName, methodName));
+          } else {
+            result.complete(response);
+          }
+        }));
+    return result;
+  }
+
+  /**
+   * Returns a callback running {@code action} in the {@link LogContext} of the calling thread,
+   * for the callbacks run by the I/O threads of the non-blocking client.
+   */
+  private static <T> BiConsumer<T, Throwable> inLogContext(BiConsumer<T, Throwable> action) {
+    LogContext logContext = LogContext.current();
+    if (logContext == null) {
+      return action;
+    }
+    return (value, failure) -> logContext.execute(() -> action.accept(value, failure));
+  }
+
+  private RuntimeException convertTransportFailure(
+      Throwable failure, String packageName, String methodName) {
+    if (failure instanceof ApiProxyException) {
+      return (ApiProxyException) failure;
+    }
+    logger.info("HTTP ApiProxy I/O error for " + packageName + "." + methodName + ": "
+        + failure.getMessage());
+    return constructApiException(packageName, methodName);
+  }
+
+  /**
+   * Blocks until a call sent through the non-blocking client completes, for synchronous calls.
+   * Gives up like the blocking transport once the deadline of the call and the HTTP buffer have
+   * passed.
+   */
+  private static byte[] waitForNonBlockingCall(
+      Future<byte[]> call, String packageName, String methodName, int timeoutMs) {
+    try {
+      return call.get(timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      logger.log(Level.WARNING,
+          "Unexpected failure of API call " + packageName + "." + methodName, e.getCause());
+      throw new ApiProxy.UnknownException(packageName, methodName);
+    } catch (TimeoutException e) {
+      call.cancel(true);
+      throw new ApiProxy.ApiDeadlineExceededException(packageName, methodName);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      call.cancel(true);
+      throw new ApiProxy.CancelledException(packageName, methodName);
+    }
+  }
+
   // TODO(ludo) remove when the correct exceptions have public constructor.
   private RuntimeException constructException(
       String exceptionClassName, String message, String packageName, String methodName) {
@@ -252,6 +713,9 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
   /**
    * Create an HTTP post request suitable for sending to the API server.
    *
+   * <p>This runs for every API call: the parts of the request that only depend on the server or
+   * on the timeout are built once and shared by the requests, see {@link RequestTemplates}.
+   *
    * @param environment The current VMApiProxyEnvironment
    * @param packageName The API call package
    * @param methodName The API call method
@@ -259,49 +723,23 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
    * @param timeoutMs The timeout for this request
    * @return an HttpPost object to send to the API.
    */
-  // 
   static HttpPost createRequest(VmApiProxyEnvironment environment, String packageName,
       String methodName, byte[] requestData, int timeoutMs) {
-    // Wrap the payload in a RemoteApi Request.
-    RemoteApiPb.Request remoteRequest = new RemoteApiPb.Request();
-    remoteRequest.setServiceName(packageName);
-    remoteRequest.setMethod(methodName);
-    remoteRequest.setRequestId(environment.getTicket());
-    remoteRequest.setRequestAsBytes(requestData);
-
-    HttpPost request = new HttpPost("http://" + environment.getServer() + REQUEST_ENDPOINT);
-    request.setHeader(RPC_STUB_ID_HEADER, REQUEST_STUB_ID);
-    request.setHeader(RPC_METHOD_HEADER, REQUEST_STUB_METHOD);
-
-    // Set TCP connection timeouts.
-    HttpParams params = new BasicHttpParams();
-    params.setLongParameter(ConnManagerPNames.TIMEOUT,
-        timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
-    params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,
-        timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
-    params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT,
-        timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
-
-    // Performance tweaks.
-    params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, Boolean.TRUE);
-    params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, Boolean.FALSE);
-    request.setParams(params);
+    HttpPost request = new HttpPost(RequestTemplates.getRequestUri(environment.getServer()));
+    request.addHeader(RequestTemplates.STUB_ID_HEADER);
+    request.addHeader(RequestTemplates.STUB_METHOD_HEADER);
 
-    // The request deadline can be overwritten by the environment, read deadline if available.
-    Double deadline = (Double) (environment.getAttributes().get(API_DEADLINE_KEY));
-    if (deadline == null) {
-      request.setHeader(RPC_DEADLINE_HEADER,
-          Double.toString(TimeUnit.SECONDS.convert(timeoutMs, TimeUnit.MILLISECONDS)));
-    } else {
-      request.setHeader(RPC_DEADLINE_HEADER, Double.toString(deadline));
-    }
+    // TCP connection timeouts and performance tweaks.
+    request.setParams(RequestTemplates.getParams(timeoutMs));
+
+    request.addHeader(RPC_DEADLINE_HEADER, getDeadlineHeader(environment, timeoutMs));
 
     // If the incoming request has a dapper trace header: set it on outgoing API calls
     // so they are tied to the original request.
     Object dapperHeader = environment.getAttributes()
         .get(VmApiProxyEnvironment.AttributeMapping.DAPPER_ID.attributeKey);
     if (dapperHeader instanceof String) {
-      request.setHeader(
+      request.addHeader(
           VmApiProxyEnvironment.AttributeMapping.DAPPER_ID.headerKey, (String) dapperHeader);
     }
 
@@ -311,19 +749,120 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
     Object traceHeader = environment.getAttributes()
         .get(VmApiProxyEnvironment.AttributeMapping.CLOUD_TRACE_CONTEXT.attributeKey);
     if (traceHeader instanceof String) {
-      request.setHeader(
+      request.addHeader(
           VmApiProxyEnvironment.AttributeMapping.CLOUD_TRACE_CONTEXT.headerKey,
           (String) traceHeader);
     }
 
-    ByteArrayEntity postPayload = new ByteArrayEntity(remoteRequest.toByteArray(),
-        ContentType.APPLICATION_OCTET_STREAM);
-    postPayload.setChunked(false);
-    request.setEntity(postPayload);
+    // Wrap the payload in a RemoteApi Request, written to the connection without copies.
+    request.setEntity(RemoteApiCodec.encodeRequest(
+        packageName, methodName, environment.getTicket(), requestData));
 
     return request;
   }
 
+  /**
+   * Returns the value of the deadline header for an API call.
+   */
+  static String getDeadlineHeader(VmApiProxyEnvironment environment, int timeoutMs) {
+    // The request deadline can be overwritten by the environment, read deadline if available.
+    Double deadline = (Double) (environment.getAttributes().get(API_DEADLINE_KEY));
+    if (deadline == null) {
+      return RequestTemplates.getDeadlineHeader(
+          TimeUnit.SECONDS.convert(timeoutMs, TimeUnit.MILLISECONDS));
+    }
+    return RequestTemplates.getDeadlineHeader(deadline);
+  }
+
+  /**
+   * The parts of the API requests shared between calls.
+   */
+  static final class RequestTemplates {
+    static final Header STUB_ID_HEADER = new BasicHeader(RPC_STUB_ID_HEADER, REQUEST_STUB_ID);
+    static final Header STUB_METHOD_HEADER =
+        new BasicHeader(RPC_METHOD_HEADER, REQUEST_STUB_METHOD);
+
+    // Bounds the caches below: API calls use a handful of servers and timeouts, past this
+    // anything goes and values are no longer cached.
+    private static final int MAX_CACHED_VALUES = 256;
+
+    // Deadline headers of the timeouts in seconds up to MAX_CACHED_VALUES, filled on first use.
+    // Racing threads store equal strings.
+    private static final String[] DEADLINE_HEADERS = new String[MAX_CACHED_VALUES];
+
+    private static final ConcurrentMap<String, URI> requestUris = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Integer, HttpParams> params = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Double, String> deadlineHeaders =
+        new ConcurrentHashMap<>();
+
+    private RequestTemplates() {
+    }
+
+    static URI getRequestUri(String server) {
+      URI uri = server != null ? requestUris.get(server) : null;
+      if (uri == null) {
+        uri = URI.create("http://" + server + REQUEST_ENDPOINT);
+        if (server != null && requestUris.size() < MAX_CACHED_VALUES) {
+          requestUris.putIfAbsent(server, uri);
+        }
+      }
+      return uri;
+    }
+
+    /**
+     * Returns the connection params of a call. They are shared by the requests, and must not be
+     * modified.
+     */
+    static HttpParams getParams(int timeoutMs) {
+      HttpParams timeoutParams = params.get(timeoutMs);
+      if (timeoutParams == null) {
+        timeoutParams = createParams(timeoutMs);
+        if (params.size() < MAX_CACHED_VALUES) {
+          params.putIfAbsent(timeoutMs, timeoutParams);
+        }
+      }
+      return timeoutParams;
+    }
+
+    private static HttpParams createParams(int timeoutMs) {
+      HttpParams params = new BasicHttpParams();
+      params.setLongParameter(ConnManagerPNames.TIMEOUT,
+          timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+      params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,
+          timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+      params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT,
+          timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+
+      // Performance tweaks.
+      params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, Boolean.TRUE);
+      params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, Boolean.FALSE);
+      return params;
+    }
+
+    static String getDeadlineHeader(long timeoutSeconds) {
+      if (timeoutSeconds < 0 || timeoutSeconds >= MAX_CACHED_VALUES) {
+        return Double.toString(timeoutSeconds);
+      }
+      String header = DEADLINE_HEADERS[(int) timeoutSeconds];
+      if (header == null) {
+        header = Double.toString(timeoutSeconds);
+        DEADLINE_HEADERS[(int) timeoutSeconds] = header;
+      }
+      return header;
+    }
+
+    static String getDeadlineHeader(Double deadline) {
+      String header = deadlineHeaders.get(deadline);
+      if (header == null) {
+        header = Double.toString(deadline);
+        if (deadlineHeaders.size() < MAX_CACHED_VALUES) {
+          deadlineHeaders.putIfAbsent(deadline, header);
+        }
+      }
+      return header;
+    }
+  }
+
   /**
    * Convert RemoteApiPb.Response errors to the appropriate exception.
    *
@@ -371,6 +910,7 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
     }
     RemoteApiPb.RpcError.ErrorCode errorCode = RemoteApiPb.RpcError.ErrorCode.values()[
         rpcError.getCode()];
+    metrics.recordRpcError(packageName, methodName, rpcCode);
     logger.warning("RPC failed, API=" + packageName + "." + methodName + " : "
                    + errorCode + " : " + errorDetail);
 
@@ -452,8 +992,119 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
       timeoutMs = (int) (apiConfig.getDeadlineInSeconds() * 1000);
     }
     environment.aSyncApiCallAdded(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS);
-    return executor.submit(new MakeSyncCall(this, environment, packageName,
-        methodName, request, timeoutMs));
+    if (asyncClient != null
+        || (coalescer != null && coalescer.isCoalesced(packageName, methodName))) {
+      return makeNonBlockingCall(environment, packageName, methodName, request, timeoutMs);
+    }
+    try {
+      return executor.submit(LogContext.wrap(new MakeSyncCall(this, environment, packageName,
+          methodName, request, timeoutMs)));
+    } catch (RejectedExecutionException e) {
+      environment.aSyncApiCallRejected();
+      throw new ApiProxyException(e.getMessage());
+    }
+  }
+
+  /**
+   * Starts an async API call on the non-blocking client, or through the coalescer. The pending
+   * call is turned into a running one on the calling thread, which therefore blocks while the
+   * request already has {@code MAX_CONCURRENT_API_CALLS} calls in flight, or the instance-wide
+   * limit of the concurrency governor is reached. No thread is held once the call is sent with
+   * the non-blocking client.
+   */
+  private Future<byte[]> makeNonBlockingCall(final VmApiProxyEnvironment environment,
+      final String packageName, final String methodName, final byte[] request, int timeoutMs) {
+    final VmApiCircuitBreaker circuitBreaker = getCircuitBreaker(packageName);
+    final int permit = circuitBreaker != null ? circuitBreaker.tryAcquire() : 0;
+    if (permit == VmApiCircuitBreaker.REJECTED) {
+      environment.aSyncApiCallRejected();
+      CompletableFuture<byte[]> failed = new CompletableFuture<>();
+      failed.completeExceptionally(constructApiException(packageName, methodName));
+      return failed;
+    }
+    final long start;
+    try {
+      start = startCall(environment, true);
+    } catch (ApiProxyException e) {
+      if (circuitBreaker != null) {
+        circuitBreaker.release(permit);
+      }
+      CompletableFuture<byte[]> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    return sendStartedCall(
+        environment, packageName, methodName, request, timeoutMs, circuitBreaker, permit, start);
+  }
+
+  /**
+   * Starts an async API call only if it can run right away under the per-request and the
+   * instance-wide limits on running calls, and its circuit breaker is closed. Never blocks, for
+   * the background threads flushing the logs of all the requests, which must not wait for the
+   * calls of one of them.
+   *
+   * @param request supplies the request data, only called once the call is started
+   * @return a future completed like the one of {@link #sendNonBlockingCall}, or null if the call
+   *         could not start right away
+   */
+  CompletableFuture<byte[]> tryMakeAsyncCall(VmApiProxyEnvironment environment,
+      String packageName, String methodName, Supplier<byte[]> request, ApiConfig apiConfig) {
+    int timeoutMs = defaultTimeoutMs;
+    if (apiConfig != null && apiConfig.getDeadlineInSeconds() != null) {
+      timeoutMs = (int) (apiConfig.getDeadlineInSeconds() * 1000);
+    }
+    VmApiCircuitBreaker circuitBreaker = getCircuitBreaker(packageName);
+    int permit = circuitBreaker != null ? circuitBreaker.tryAcquire() : 0;
+    if (permit == VmApiCircuitBreaker.REJECTED) {
+      return null;
+    }
+    if (!environment.tryApiCallStarted()) {
+      if (circuitBreaker != null) {
+        circuitBreaker.release(permit);
+      }
+      return null;
+    }
+    if (governor != null && !governor.tryAcquire()) {
+      environment.apiCallCompleted();
+      if (circuitBreaker != null) {
+        circuitBreaker.release(permit);
+      }
+      return null;
+    }
+    return sendStartedCall(environment, packageName, methodName, request.get(), timeoutMs,
+        circuitBreaker, permit, System.nanoTime());
+  }
+
+  /**
+   * Sends an async API call holding the limits taken by {@link #startCall}, and releases them
+   * once it completes.
+   */
+  private CompletableFuture<byte[]> sendStartedCall(final VmApiProxyEnvironment environment,
+      final String packageName, final String methodName, final byte[] request, int timeoutMs,
+      final VmApiCircuitBreaker circuitBreaker, final int permit, final long start) {
+    CompletableFuture<byte[]> call;
+    try {
+      call = coalescer != null && coalescer.isCoalesced(packageName, methodName)
+          ? coalescer.call(environment, packageName, methodName, request, timeoutMs)
+          : sendCall(environment, packageName, methodName, request, timeoutMs);
+    } catch (RuntimeException e) {
+      long latencyNanos = System.nanoTime() - start;
+      boolean failed = isServiceFailure(e);
+      if (circuitBreaker != null) {
+        circuitBreaker.onCompletion(permit, failed, latencyNanos);
+      }
+      completeCall(environment, packageName, methodName, start, latencyNanos, failed);
+      throw e;
+    }
+    return call.whenComplete((response, failure) -> {
+      long latencyNanos = System.nanoTime() - start;
+      boolean failed = failure != null && isServiceFailure(failure);
+      metrics.recordCall(packageName, methodName, request, response, latencyNanos);
+      if (circuitBreaker != null) {
+        circuitBreaker.onCompletion(permit, failed, latencyNanos);
+      }
+      completeCall(environment, packageName, methodName, start, latencyNanos, failed);
+    });
   }
 
   @Override
@@ -483,27 +1134,29 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
 
   /**
    * Simple connection watchdog verifying that our connections are alive. Any stale connections are
-   * cleared as well.
+   * cleared as well, and idle ones after a timeout adapted to the call rate.
    */
   class IdleConnectionMonitorThread extends Thread {
+    private static final long INTERVAL_MS = 5000;
 
-    private final ClientConnectionManager connectionManager;
+    private final VmApiConnectionPool connectionPool;
 
-    public IdleConnectionMonitorThread(ClientConnectionManager connectionManager) {
+    public IdleConnectionMonitorThread(VmApiConnectionPool connectionPool) {
       super("IdleApiConnectionMontorThread");
-      this.connectionManager = connectionManager;
+      this.connectionPool = connectionPool;
       this.setDaemon(false);
     }
 
     @Override
     public void run() {
       try {
+        long last = System.nanoTime();
         while (true) {
-          // Close expired connections.
-          connectionManager.closeExpiredConnections();
-          // Close connections that have been idle longer than 60 sec.
-          connectionManager.closeIdleConnections(60, TimeUnit.SECONDS);
-          Thread.sleep(5000);
+          long now = System.nanoTime();
+          connectionPool.updateCallRate(TimeUnit.NANOSECONDS.toMillis(now - last));
+          last = now;
+          connectionPool.closeIdleConnections();
+          Thread.sleep(INTERVAL_MS);
         }
       } catch (InterruptedException ex) {
         // terminate
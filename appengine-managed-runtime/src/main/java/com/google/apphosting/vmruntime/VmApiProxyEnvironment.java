@@ -23,12 +23,14 @@ import com.google.apphosting.api.ApiProxy.LogRecord;
 import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
 import com.google.apphosting.runtime.timer.Timer;
 import com.google.apphosting.utils.http.HttpRequest;
+import com.google.apphosting.utils.servlet.HttpServletRequestAdapter;
 
 
-import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -125,6 +127,12 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
   private static final int MAX_LOG_FLUSH_SECONDS = 60;
   // Keep in sync with flag in: apphosting/base/app_logs_util.cc
   private static final int DEFAULT_MAX_LOG_LINE_SIZE = 8 * 1024;
+  private static final boolean PIPELINED_APP_LOGS =
+      Boolean.getBoolean(VmAppLogsWriter.PIPELINED_PROPERTY);
+  private static final boolean ENCODED_APP_LOGS =
+      Boolean.getBoolean(VmAppLogsWriter.ENCODED_BUFFER_PROPERTY);
+  private static final boolean BACKGROUND_FLUSH_APP_LOGS =
+      Boolean.getBoolean(VmAppLogsWriter.BACKGROUND_FLUSH_PROPERTY);
 
   // Control the maximum number of concurrent API calls.
   // https://developers.google.com/appengine/docs/python/backends/#Python_Billing_quotas_and_limits
@@ -233,6 +241,180 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     }
   }
 
+  private static final AttributeMapping[] ATTRIBUTE_MAPPINGS = AttributeMapping.values();
+
+  // Indexes of the headers read by createFromHeaders() which are not part of the
+  // AttributeMapping, following the AttributeMapping ordinals.
+  private static final int TICKET_HEADER_INDEX = ATTRIBUTE_MAPPINGS.length;
+  private static final int EMAIL_HEADER_INDEX = TICKET_HEADER_INDEX + 1;
+  private static final int IS_ADMIN_HEADER_INDEX = TICKET_HEADER_INDEX + 2;
+  private static final int AUTH_DOMAIN_HEADER_INDEX = TICKET_HEADER_INDEX + 3;
+  private static final int IS_TRUSTED_IP_HEADER_INDEX = TICKET_HEADER_INDEX + 4;
+  private static final String[] REQUEST_HEADERS = new String[TICKET_HEADER_INDEX + 5];
+
+  // Maps the (case insensitive) request header names to their index in REQUEST_HEADERS.
+  private static final Map<String, Integer> REQUEST_HEADER_INDEXES =
+      new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+  // Expected number of attributes of a request environment, used to size the attribute map.
+  private static final int REQUEST_ATTRIBUTES_CAPACITY = 16;
+
+  static {
+    for (AttributeMapping mapping : ATTRIBUTE_MAPPINGS) {
+      REQUEST_HEADERS[mapping.ordinal()] = mapping.headerKey;
+    }
+    REQUEST_HEADERS[TICKET_HEADER_INDEX] = TICKET_HEADER;
+    REQUEST_HEADERS[EMAIL_HEADER_INDEX] = EMAIL_HEADER;
+    REQUEST_HEADERS[IS_ADMIN_HEADER_INDEX] = IS_ADMIN_HEADER;
+    REQUEST_HEADERS[AUTH_DOMAIN_HEADER_INDEX] = AUTH_DOMAIN_HEADER;
+    REQUEST_HEADERS[IS_TRUSTED_IP_HEADER_INDEX] = IS_TRUSTED_IP_HEADER;
+    for (int i = 0; i < REQUEST_HEADERS.length; i++) {
+      REQUEST_HEADER_INDEXES.put(REQUEST_HEADERS[i], i);
+    }
+  }
+
+  /**
+   * The values of the headers in REQUEST_HEADERS of an incoming request.
+   *
+   * <p>Servlet requests are scanned once, only fetching the value of the headers that are
+   * present, instead of looking up each of the known headers in turn.
+   */
+  private static final class RequestHeaders {
+    private final String[] values = new String[REQUEST_HEADERS.length];
+
+    RequestHeaders(HttpRequest request) {
+      if (request instanceof HttpServletRequestAdapter) {
+        Enumeration<String> names = ((HttpServletRequestAdapter) request).getHeaderNames();
+        if (names != null) {
+          while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            Integer index = REQUEST_HEADER_INDEXES.get(name);
+            if (index != null && values[index] == null) {
+              values[index] = request.getHeader(name);
+            }
+          }
+          return;
+        }
+      }
+      for (int i = 0; i < values.length; i++) {
+        values[i] = request.getHeader(REQUEST_HEADERS[i]);
+      }
+    }
+
+    String get(int index) {
+      return values[index];
+    }
+  }
+
+  /**
+   * The parts of an environment that only depend on the instance: the VM attributes resolved from
+   * the environment variables and the meta-data server, and the values derived from them.
+   *
+   * <p>Request environments share the template of the default environment rather than resolving
+   * and formatting these values again for every request.
+   */
+  private static final class Template {
+    private final Map<String, String> envMap;
+    private final VmMetadataCache cache;
+    private final int cacheGeneration;
+    // False if some of the VM attributes could not be retrieved and should be retried.
+    private boolean resolved = true;
+
+    private final String longAppId;
+    private final String partition;
+    private final String rawModule;
+    private final String instance;
+    private final String affinity;
+    private final String appId;
+    private final String module;
+    private final String majorVersion;
+    private final String minorVersion;
+    private final String versionId;
+    private final String appengineHostname;
+    private final String l7UnsafeRedirectUrl;
+    private final boolean useMvmAgent;
+    private final int serverPort;
+    private final String defaultTicket;  // null if the VM attributes required are missing.
+
+    /**
+     * Resolves the VM attributes of the instance.
+     *
+     * @param envMap a map containing environment variables (from System.getenv()).
+     * @param cache the VM meta-data cache used to retrieve VM attributes.
+     * @param majorVersion the major application version.
+     * @param minorVersion the minor application version.
+     * @param appengineHostname the app's appengine hostname.
+     * @param useMvmAgent if true, the mvm agent is in use.
+     */
+    Template(Map<String, String> envMap, VmMetadataCache cache, String majorVersion,
+        String minorVersion, String appengineHostname, boolean useMvmAgent) {
+      this.envMap = envMap;
+      this.cache = cache;
+      this.cacheGeneration = cache.getGeneration();
+      this.longAppId = resolve(LONG_APP_ID_KEY, PROJECT_ATTRIBUTE);
+      this.partition = resolve(PARTITION_KEY, PARTITION_ATTRIBUTE);
+      this.rawModule = resolve(MODULE_NAME_KEY, BACKEND_ATTRIBUTE);
+      this.instance = resolve(INSTANCE_KEY, INSTANCE_ATTRIBUTE);
+      this.affinity = resolve(AFFINITY_ENV_KEY, AFFINITY_ATTRIBUTE);
+
+      if ((longAppId == null || longAppId.isEmpty())
+          || (rawModule == null || rawModule.isEmpty())
+          || (majorVersion == null || majorVersion.isEmpty())
+          || (instance == null || instance.isEmpty())) {
+        this.defaultTicket = null;
+      } else {
+        String escapedAppId = longAppId.replace(':', '_').replace('.', '_');
+        this.defaultTicket =
+            escapedAppId + '/' + rawModule + '.' + majorVersion + "." + instance;
+      }
+      String port = System.getenv(GAE_SERVER_PORT) == null ?
+          System.getProperty("GAE_SERVER_PORT", "80") : System.getenv(GAE_SERVER_PORT);
+      this.serverPort = Integer.decode(port);
+      if (longAppId == null) {
+        this.appId = "";
+      } else {
+        this.appId = partition + "~" + longAppId;
+      }
+      this.module = rawModule == null ? "default" : rawModule;
+      this.majorVersion = majorVersion == null ? "" : majorVersion;
+      this.minorVersion = minorVersion == null ? "" : minorVersion;
+      this.versionId = this.majorVersion + "." + this.minorVersion;
+      this.appengineHostname = appengineHostname;
+      this.l7UnsafeRedirectUrl = "https://" + this.majorVersion + "-dot-" + this.module
+          + "-dot-" + this.appengineHostname;
+      this.useMvmAgent = useMvmAgent;
+    }
+
+    private String resolve(String envKey, String metadataPath) {
+      String value = getEnvOrMetadata(envMap, cache, envKey, metadataPath);
+      if (value == null && !cache.isCached(metadataPath)) {
+        resolved = false;
+      }
+      return value;
+    }
+
+    /**
+     * Returns true if this template can be used for requests with the given environment
+     * variables and meta-data cache.
+     */
+    boolean isValidFor(Map<String, String> envMap, VmMetadataCache cache) {
+      return resolved && this.envMap == envMap && this.cache == cache
+          && cacheGeneration == cache.getGeneration();
+    }
+
+    String getTicket(String ticket) {
+      if (ticket != null && !ticket.isEmpty()) {
+        return ticket;
+      }
+      if (defaultTicket == null) {
+        throw new IllegalArgumentException(
+            "When ticket == null, the following must be specified: appId=" + longAppId
+            + ", module=" + rawModule + ", version=" + majorVersion + ", instance=" + instance);
+      }
+      return defaultTicket;
+    }
+  }
+
   /**
    * Helper method to use during the transition from metadata to environment variables.
    *
@@ -265,26 +447,23 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
       Timer wallTimer,
       Long millisUntilSoftDeadline,
       String appDir) {
-    final String longAppId = getEnvOrMetadata(envMap, cache, LONG_APP_ID_KEY, PROJECT_ATTRIBUTE);
-    final String partition = getEnvOrMetadata(envMap, cache, PARTITION_KEY, PARTITION_ATTRIBUTE);
-    final String module = getEnvOrMetadata(envMap, cache, MODULE_NAME_KEY, BACKEND_ATTRIBUTE);
     final String majorVersion = getEnvOrMetadata(envMap, cache, VERSION_KEY, VERSION_ATTRIBUTE);
     String minorVersion = envMap.get(MINOR_VERSION_KEY);
     if (minorVersion == null) {
       minorVersion = VmRuntimeUtils.getMinorVersionFromPath(majorVersion, appDir);
     }
-    final String instance = getEnvOrMetadata(envMap, cache, INSTANCE_KEY, INSTANCE_ATTRIBUTE);
-    final String affinity = getEnvOrMetadata(envMap, cache, AFFINITY_ENV_KEY, AFFINITY_ATTRIBUTE);
     final String appengineHostname = getEnvOrMetadata(
         envMap, cache, APPENGINE_HOSTNAME_KEY, APPENGINE_HOSTNAME_ATTRIBUTE);
+    final boolean useMvmAgent = Boolean.parseBoolean(getEnvOrMetadata(
+        envMap, cache, USE_MVM_AGENT_KEY, USE_MVM_AGENT_ATTRIBUTE));
+    final Template template = new Template(
+        envMap, cache, majorVersion, minorVersion, appengineHostname, useMvmAgent);
     final String ticket = null;
     final String email = null;
     final boolean admin = false;
     final String authDomain = null;
-    final boolean useMvmAgent = Boolean.parseBoolean(getEnvOrMetadata(
-        envMap, cache, USE_MVM_AGENT_KEY, USE_MVM_AGENT_ATTRIBUTE));
 
-    Map<String, Object> attributes = new HashMap<>();
+    VmRequestAttributes attributes = new VmRequestAttributes(REQUEST_ATTRIBUTES_CAPACITY);
     // Fill in default attributes values.
     for (AttributeMapping mapping : AttributeMapping.values()) {
       if (mapping.trustedAppOnly) {
@@ -296,12 +475,11 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
       attributes.put(mapping.attributeKey, mapping.defaultValue);
     }
     attributes.put(IS_FEDERATED_USER_KEY, Boolean.FALSE);
-    attributes.put(BACKEND_ID_KEY, module);
-    attributes.put(INSTANCE_ID_KEY, instance);
-    attributes.put(AFFINITY_KEY, affinity);
-    VmApiProxyEnvironment defaultEnvironment = new VmApiProxyEnvironment(server, ticket, longAppId,
-        partition, module, majorVersion, minorVersion, instance, appengineHostname, email, admin,
-        authDomain, useMvmAgent, wallTimer, millisUntilSoftDeadline, attributes);
+    attributes.put(BACKEND_ID_KEY, template.rawModule);
+    attributes.put(INSTANCE_ID_KEY, template.instance);
+    attributes.put(AFFINITY_KEY, template.affinity);
+    VmApiProxyEnvironment defaultEnvironment = new VmApiProxyEnvironment(server, ticket, template,
+        email, admin, authDomain, wallTimer, millisUntilSoftDeadline, attributes);
     // Add the thread factories required by the threading API.
     attributes.put(REQUEST_THREAD_FACTORY_ATTR, new VmRequestThreadFactory(null));
     // Since we register VmEnvironmentFactory with ApiProxy in VmRuntimeWebAppContext,
@@ -328,19 +506,12 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
       Timer wallTimer,
       Long millisUntilSoftDeadline,
       VmApiProxyEnvironment defaultEnvironment) {
-    final String longAppId = getEnvOrMetadata(envMap, cache, LONG_APP_ID_KEY, PROJECT_ATTRIBUTE);
-    final String partition = getEnvOrMetadata(envMap, cache, PARTITION_KEY, PARTITION_ATTRIBUTE);
-    final String module = getEnvOrMetadata(envMap, cache, MODULE_NAME_KEY, BACKEND_ATTRIBUTE);
-    final String majorVersion = defaultEnvironment.getMajorVersion();
-    final String minorVersion = defaultEnvironment.getMinorVersion();
-    final String appengineHostname = defaultEnvironment.getAppengineHostname();
-    final boolean useMvmAgent = defaultEnvironment.getUseMvmAgent();
-    final String instance = getEnvOrMetadata(envMap, cache, INSTANCE_KEY, INSTANCE_ATTRIBUTE);
-    final String affinity = getEnvOrMetadata(envMap, cache, AFFINITY_ENV_KEY, AFFINITY_ATTRIBUTE);
-    final String ticket = request.getHeader(TICKET_HEADER);
-    final String email = request.getHeader(EMAIL_HEADER);
+    final Template template = defaultEnvironment.getRequestTemplate(envMap, cache);
+    final RequestHeaders headers = new RequestHeaders(request);
+    final String ticket = headers.get(TICKET_HEADER_INDEX);
+    final String email = headers.get(EMAIL_HEADER_INDEX);
     boolean admin = false;
-    String value = request.getHeader(IS_ADMIN_HEADER);
+    String value = headers.get(IS_ADMIN_HEADER_INDEX);
     if (value != null && !value.trim().isEmpty()) {
       try {
         admin = Integer.parseInt(value.trim()) != 0;
@@ -348,17 +519,18 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
         throw new IllegalArgumentException(e.getMessage(), e);
       }
     }
-    final String authDomain = request.getHeader(AUTH_DOMAIN_HEADER);
-    boolean trustedApp = request.getHeader(IS_TRUSTED_IP_HEADER) != null;
+    final String authDomain = headers.get(AUTH_DOMAIN_HEADER_INDEX);
+    final String trustedIpHeader = headers.get(IS_TRUSTED_IP_HEADER_INDEX);
+    boolean trustedApp = trustedIpHeader != null;
 
-    Map<String, Object> attributes = new HashMap<>();
+    VmRequestAttributes attributes = new VmRequestAttributes(REQUEST_ATTRIBUTES_CAPACITY);
     // Fill in the attributes from the AttributeMapping.
-    for (AttributeMapping mapping : AttributeMapping.values()) {
+    for (AttributeMapping mapping : ATTRIBUTE_MAPPINGS) {
       if (mapping.trustedAppOnly && !trustedApp) {
         // Do not fill in any trusted app attributes unless the app is trusted.
         continue;
       }
-      String headerValue = request.getHeader(mapping.headerKey);
+      String headerValue = headers.get(mapping.ordinal());
       if (headerValue != null) {
         attributes.put(mapping.attributeKey, headerValue);
       } else if (mapping.defaultValue != null) {
@@ -367,24 +539,24 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     }
 
     // Fill in the special attributes that do not fit the simple mapping model.
-    boolean federatedId = request.getHeader(AttributeMapping.FEDERATED_IDENTITY.headerKey) != null;
+    boolean federatedId = headers.get(AttributeMapping.FEDERATED_IDENTITY.ordinal()) != null;
     attributes.put(IS_FEDERATED_USER_KEY, federatedId);
 
-    attributes.put(BACKEND_ID_KEY, module);
-    attributes.put(INSTANCE_ID_KEY, instance);
-    attributes.put(AFFINITY_KEY, affinity);
+    attributes.put(BACKEND_ID_KEY, template.rawModule);
+    attributes.put(INSTANCE_ID_KEY, template.instance);
+    attributes.put(AFFINITY_KEY, template.affinity);
 
     if (trustedApp) {
       // The trusted IP attribute is a boolean.
-      boolean trustedIp = "1".equals(request.getHeader(IS_TRUSTED_IP_HEADER));
+      boolean trustedIp = "1".equals(trustedIpHeader);
       attributes.put(IS_TRUSTED_IP_KEY, trustedIp);
     }
 
-    VmApiProxyEnvironment requestEnvironment = new VmApiProxyEnvironment(server, ticket, longAppId,
-        partition, module, majorVersion, minorVersion, instance, appengineHostname, email, admin,
-        authDomain, useMvmAgent, wallTimer, millisUntilSoftDeadline, attributes);
+    VmApiProxyEnvironment requestEnvironment = new VmApiProxyEnvironment(server, ticket, template,
+        email, admin, authDomain, wallTimer, millisUntilSoftDeadline, attributes);
     // Add the thread factories required by the threading API.
-    attributes.put(REQUEST_THREAD_FACTORY_ATTR, new VmRequestThreadFactory(requestEnvironment));
+    attributes.put(REQUEST_THREAD_FACTORY_ATTR,
+        new VmRequestThreadFactory(requestEnvironment, VmVirtualThreads.getRequestThreadFactory()));
     // Since we register VmEnvironmentFactory with ApiProxy in VmRuntimeWebAppContext,
     // we can use the default thread factory here and don't require any special logic.
     attributes.put(BACKGROUND_THREAD_FACTORY_ATTR, Executors.defaultThreadFactory());
@@ -394,24 +566,18 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
 
   private final String server;
   private final String ticket;
-  private final int serverPort;
-  private final String partition;
-  private final String appId;
-  private final String module;
-  private final String majorVersion;
-  private final String minorVersion;
-  private final String versionId;
-  private final String appengineHostname;
-  private final String l7UnsafeRedirectUrl;
+  private final Template template;
   private final String email;
   private final boolean admin;
   private final String authDomain;
-  private final boolean useMvmAgent;
   private final Map<String, Object> attributes;
   private ThreadLocal<Map<String, Object>> threadLocalAttributes;
   private final Timer wallTimer;  // may be null if millisUntilSoftDeadline is null.
   private final Long millisUntilSoftDeadline;  // may be null (no deadline).
-  private final VmAppLogsWriter appLogsWriter;
+  // Created by the first log record, most requests do not log anything.
+  private volatile VmAppLogsWriter appLogsWriter;
+  // Template of the request environments, only set on the default environment.
+  private volatile Template requestTemplate;
   
   final Semaphore pendingApiCallSemaphore;
   
@@ -422,105 +588,108 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
    *
    * @param server the host:port address of the VM's HTTP proxy server.
    * @param ticket the request ticket (if null the default one will be computed).
-   * @param appId the application ID (required if ticket is null).
-   * @param partition the partition name.
-   * @param module the module name (required if ticket is null).
-   * @param majorVersion the major application version (required if ticket is null).
-   * @param minorVersion the minor application version.
-   * @param instance the VM instance ID (required if ticket is null).
-   * @param appengineHostname the app's appengine hostname.
+   * @param template the VM attributes of the instance (required to compute the ticket if null).
    * @param email the user's e-mail address (may be null).
    * @param admin true if the user is an administrator.
    * @param authDomain the user's authentication domain (may be null).
-   * @param useMvmAgent if true, the mvm agent is in use.
    * @param wallTimer optional wall clock timer for the current request (required for deadline).
    * @param millisUntilSoftDeadline optional soft deadline in milliseconds relative to 'wallTimer'.
    * @param attributes map containing any attributes set on this environment.
    */
   private VmApiProxyEnvironment(
-      String server, String ticket, String appId, String partition, String module,
-      String majorVersion, String minorVersion, String instance, String appengineHostname,
-      String email, boolean admin, String authDomain, boolean useMvmAgent, Timer wallTimer,
-      Long millisUntilSoftDeadline, Map<String, Object> attributes) {
+      String server, String ticket, Template template, String email, boolean admin,
+      String authDomain, Timer wallTimer, Long millisUntilSoftDeadline,
+      VmRequestAttributes attributes) {
     if (server == null || server.isEmpty()) {
       throw new IllegalArgumentException("proxy server host:port must be specified");
     }
     if (millisUntilSoftDeadline != null && wallTimer == null) {
       throw new IllegalArgumentException("wallTimer required when setting millisUntilSoftDeadline");
     }
-    if (ticket == null || ticket.isEmpty()) {
-      if ((appId == null || appId.isEmpty()) ||
-          (module == null || module.isEmpty()) ||
-          (majorVersion == null || majorVersion.isEmpty()) ||
-          (instance == null || instance.isEmpty())) {
-        throw new IllegalArgumentException(
-            "When ticket == null, the following must be specified: appId=" + appId
-            + ", module=" + module + ", version=" + majorVersion + ", instance=" + instance);
-      }
-      String escapedAppId = appId.replace(':', '_').replace('.', '_');
-      this.ticket = escapedAppId + '/' + module + '.' + majorVersion + "." + instance;
-    } else {
-      this.ticket = ticket;
-    }
+    this.ticket = template.getTicket(ticket);
     this.server = server;
-    this.partition = partition;
-    String port = System.getenv(GAE_SERVER_PORT) == null ? 
-            System.getProperty("GAE_SERVER_PORT", "80"): System.getenv(GAE_SERVER_PORT);
-    this.serverPort = Integer.decode(port);
-    if (appId == null) {
-      this.appId = "";
-    } else {
-      this.appId = partition + "~" + appId;
-    }
-    this.module = module == null ? "default" : module;
-    this.majorVersion = majorVersion == null ? "" : majorVersion;
-    this.minorVersion = minorVersion == null ? "" : minorVersion;
-    this.versionId = String.format("%s.%s", this.majorVersion, this.minorVersion);
-    this.appengineHostname = appengineHostname;
-    this.l7UnsafeRedirectUrl = String.format("https://%s-dot-%s-dot-%s",
-        this.majorVersion, this.module, this.appengineHostname);
+    this.template = template;
     this.email = email == null ? "" : email;
     this.admin = admin;
     this.authDomain = authDomain == null ? "" : authDomain;
-    this.useMvmAgent = useMvmAgent;
     this.wallTimer = wallTimer;
     this.millisUntilSoftDeadline = millisUntilSoftDeadline;
-    // Environments are associated with requests, and can be
-    // shared across more than one thread. We'll synchronize all
-    // individual calls which should be sufficient.
-    this.attributes = Collections.synchronizedMap(attributes);
-
-    // TODO(user): forward app_log_line_size, app_log_group_size, max_log_flush_seconds
-    // from clone_settings so these can be overridden per app.
-    this.appLogsWriter = new VmAppLogsWriter(
-        new LinkedList<UserAppLogLine>(), DEFAULT_FLUSH_APP_LOGS_EVERY_BYTE_COUNT,
-        DEFAULT_MAX_LOG_LINE_SIZE, MAX_LOG_FLUSH_SECONDS);
+    // Environments are associated with requests, and can be shared across more than one thread:
+    // the attributes are a concurrent map.
+    this.attributes = attributes;
     this.pendingApiCallSemaphore = new Semaphore(MAX_PENDING_API_CALLS);
     this.runningApiCallSemaphore = new Semaphore(MAX_CONCURRENT_API_CALLS);
   }
 
+  /**
+   * Returns the template of the request environments, resolving the VM attributes again if the
+   * environment variables or the meta-data changed, or some attributes could not be retrieved.
+   */
+  private Template getRequestTemplate(Map<String, String> envMap, VmMetadataCache cache) {
+    Template result = requestTemplate;
+    if (result == null || !result.isValidFor(envMap, cache)) {
+      result = new Template(envMap, cache, getMajorVersion(), getMinorVersion(),
+          getAppengineHostname(), getUseMvmAgent());
+      requestTemplate = result;
+    }
+    return result;
+  }
+
+  private VmAppLogsWriter getAppLogsWriter() {
+    VmAppLogsWriter result = appLogsWriter;
+    if (result == null) {
+      synchronized (this) {
+        result = appLogsWriter;
+        if (result == null) {
+          // TODO(user): forward app_log_line_size, app_log_group_size, max_log_flush_seconds
+          // from clone_settings so these can be overridden per app.
+          if (PIPELINED_APP_LOGS) {
+            result = new VmAppLogsWriter(
+                new LinkedList<UserAppLogLine>(), DEFAULT_FLUSH_APP_LOGS_EVERY_BYTE_COUNT,
+                DEFAULT_MAX_LOG_LINE_SIZE, MAX_LOG_FLUSH_SECONDS,
+                VmAppLogsShipper.getInstance().newRequestLogs(this));
+          } else if (ENCODED_APP_LOGS) {
+            result = new VmAppLogsWriter(new AppLogLineBuffer(),
+                DEFAULT_FLUSH_APP_LOGS_EVERY_BYTE_COUNT, DEFAULT_MAX_LOG_LINE_SIZE,
+                MAX_LOG_FLUSH_SECONDS);
+          } else {
+            result = new VmAppLogsWriter(
+                new LinkedList<UserAppLogLine>(), DEFAULT_FLUSH_APP_LOGS_EVERY_BYTE_COUNT,
+                DEFAULT_MAX_LOG_LINE_SIZE, MAX_LOG_FLUSH_SECONDS);
+          }
+          if (BACKGROUND_FLUSH_APP_LOGS) {
+            result.setFlusher(VmAppLogsFlusher.getInstance(), this);
+          }
+          appLogsWriter = result;
+        }
+      }
+    }
+    return result;
+  }
+
   public void addLogRecord(LogRecord record) {
-    appLogsWriter.addLogRecordAndMaybeFlush(record);
+    getAppLogsWriter().addLogRecordAndMaybeFlush(record);
   }
 
   public int flushLogs() {
-    return appLogsWriter.flushAndWait();
+    VmAppLogsWriter writer = appLogsWriter;
+    return writer == null ? 0 : writer.flushAndWait();
   }
 
   public String getMajorVersion() {
-    return majorVersion;
+    return template.majorVersion;
   }
 
   public String getMinorVersion() {
-    return minorVersion;
+    return template.minorVersion;
   }
 
   public String getAppengineHostname() {
-    return appengineHostname;
+    return template.appengineHostname;
   }
 
   public String getL7UnsafeRedirectUrl() {
-    return l7UnsafeRedirectUrl;
+    return template.l7UnsafeRedirectUrl;
   }
 
   public String getServer() {
@@ -532,26 +701,26 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
   }
 
   public String getPartition() {
-    return partition;
+    return template.partition;
   }
 
   public int getServerPort() {
-    return serverPort;
+    return template.serverPort;
   }
 
   @Override
   public String getAppId() {
-    return appId;
+    return template.appId;
   }
 
   @Override
   public String getModuleId() {
-    return module;
+    return template.module;
   }
 
   @Override
   public String getVersionId() {
-    return versionId;
+    return template.versionId;
   }
 
   @Override
@@ -575,7 +744,7 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
   }
 
   public boolean getUseMvmAgent() {
-    return useMvmAgent;
+    return template.useMvmAgent;
   }
 
   @Deprecated
@@ -638,6 +807,13 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     }
   }
 
+  /**
+   * Notifies the environment that an API call queued up could not be started.
+   */
+  void aSyncApiCallRejected() {
+    pendingApiCallSemaphore.release();
+  }
+
   /**
    * Notifies the environment that an API call was started.
    *
@@ -661,6 +837,16 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     }
   }
 
+  /**
+   * Notifies the environment that an API call was started, if fewer than
+   * {@code MAX_CONCURRENT_API_CALLS} calls are running. Never blocks.
+   *
+   * @return whether the call may run
+   */
+  boolean tryApiCallStarted() {
+    return runningApiCallSemaphore.tryAcquire();
+  }
+
   /**
    * Notifies the environment that an API call completed.
    */
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.RPCFailedException;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@link VmApiProxyAsyncClient} sending each API call as an HTTP/1.1 request with the Jetty
+ * {@link HttpClient}, using up to {@link VmApiProxyEnvironment#MAX_CONCURRENT_API_CALLS}
+ * connections to the API server.
+ *
+ */
+class VmApiProxyHttp1Client extends VmApiProxyAsyncClient {
+  private static final Logger logger = Logger.getLogger(VmApiProxyHttp1Client.class.getName());
+
+  // Calls waiting for one of the MAX_CONCURRENT_API_CALLS connections, across all requests.
+  // Jetty preallocates the queue, so keep this bounded.
+  private static final int MAX_QUEUED_CALLS = 16 * 1024;
+
+  private final HttpClient httpClient;
+
+  VmApiProxyHttp1Client(HttpClient httpClient) {
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * Configures and starts the provided (unstarted) Jetty client.
+   */
+  static VmApiProxyHttp1Client start(HttpClient httpClient) {
+    httpClient.setExecutor(createExecutor());
+    httpClient.setScheduler(new ScheduledExecutorScheduler("ApiProxyClient-scheduler", true));
+    httpClient.setMaxConnectionsPerDestination(VmApiProxyEnvironment.MAX_CONCURRENT_API_CALLS);
+    httpClient.setMaxRequestsQueuedPerDestination(MAX_QUEUED_CALLS);
+    httpClient.setTCPNoDelay(true);
+    httpClient.setFollowRedirects(false);
+    // The API server never compresses its responses.
+    httpClient.getContentDecoderFactories().clear();
+    try {
+      httpClient.start();
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to start the API proxy client", e);
+    }
+    return new VmApiProxyHttp1Client(httpClient);
+  }
+
+  @Override
+  CompletableFuture<byte[]> send(VmApiProxyEnvironment environment, final String packageName,
+      final String methodName, byte[] requestData, int timeoutMs) {
+    Request request = httpClient.newRequest(
+        "http://" + environment.getServer() + VmApiProxyDelegate.REQUEST_ENDPOINT)
+        .method(HttpMethod.POST)
+        .timeout(timeoutMs + VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS,
+            TimeUnit.MILLISECONDS);
+    addCallHeaders(environment, timeoutMs, request::header);
+
+    request.content(new BytesContentProvider(CONTENT_TYPE, RemoteApiCodec.encodeRequest(
+        packageName, methodName, environment.getTicket(), requestData).toByteArrays()));
+
+    final CompletableFuture<byte[]> future = new CompletableFuture<>();
+    request.send(new Response.Listener.Adapter() {
+      private RemoteApiCodec.ResponseBuffer body;
+
+      @Override
+      public void onHeaders(Response response) {
+        body = new RemoteApiCodec.ResponseBuffer(
+            response.getHeaders().getLongField(HttpHeader.CONTENT_LENGTH.asString()));
+      }
+
+      @Override
+      public void onContent(Response response, ByteBuffer content) {
+        try {
+          body.append(content);
+        } catch (IOException e) {
+          response.abort(e);
+        }
+      }
+
+      @Override
+      public void onComplete(Result result) {
+        try {
+          if (result.isFailed()) {
+            future.completeExceptionally(result.getFailure());
+          } else if (result.getResponse().getStatus() != HttpStatus.OK_200) {
+            logger.info("Error body: " + body);
+            future.completeExceptionally(new RPCFailedException(packageName, methodName));
+          } else {
+            future.complete(body.decodeResponse(packageName, methodName));
+          }
+        } catch (ApiProxyException e) {
+          future.completeExceptionally(e);
+        } finally {
+          if (body != null) {
+            body.release();
+          }
+        }
+      }
+    });
+    future.whenComplete((response, failure) -> {
+      if (failure instanceof CancellationException) {
+        request.abort(failure);
+      }
+    });
+    return future;
+  }
+
+  @Override
+  void stop() throws Exception {
+    httpClient.stop();
+  }
+}
@@ -0,0 +1,585 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.RPCFailedException;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.HTTP2ClientConnectionFactory;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.GoAwayFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.http2.frames.SettingsFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.Promise;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * {@link VmApiProxyAsyncClient} multiplexing API calls as HTTP/2 streams over a small number of
+ * cleartext (h2c, prior knowledge) connections to the API server.
+ *
+ * <p>Each connection carries at most {@code maxConcurrentStreams} calls, or less if the API server
+ * advertises a lower SETTINGS_MAX_CONCURRENT_STREAMS. Calls exceeding the limit on all connections
+ * are queued and started as streams complete. Responses are consumed as they arrive, so the
+ * per-stream receive window only limits how far the API server can run ahead of the client.
+ *
+ */
+class VmApiProxyHttp2Client extends VmApiProxyAsyncClient {
+  private static final Logger logger = Logger.getLogger(VmApiProxyHttp2Client.class.getName());
+
+  // Number of connections opened to each API server.
+  public static final String CONNECTIONS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyHttp2Client.connections";
+  static final int DEFAULT_CONNECTIONS = 2;
+
+  // Maximum number of calls in flight on each connection.
+  public static final String MAX_CONCURRENT_STREAMS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyHttp2Client.maxConcurrentStreams";
+  static final int DEFAULT_MAX_CONCURRENT_STREAMS = VmApiProxyEnvironment.MAX_CONCURRENT_API_CALLS;
+
+  // Initial receive window of each stream, in bytes.
+  public static final String STREAM_WINDOW_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyHttp2Client.streamWindow";
+  static final int DEFAULT_STREAM_WINDOW = 1024 * 1024;
+
+  private static final long CONNECT_TIMEOUT_MS = 5000;
+
+  private final HTTP2Client client;
+  private final int connectionsPerServer;
+  private final int maxConcurrentStreams;
+  private final int streamWindow;
+  private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<>();
+
+  VmApiProxyHttp2Client(HTTP2Client client, int connectionsPerServer, int maxConcurrentStreams,
+      int streamWindow) {
+    this.client = client;
+    this.connectionsPerServer = connectionsPerServer;
+    this.maxConcurrentStreams = maxConcurrentStreams;
+    this.streamWindow = streamWindow;
+  }
+
+  /**
+   * Configures and starts the provided (unstarted) HTTP/2 client, using the limits set by the
+   * system properties.
+   */
+  static VmApiProxyHttp2Client start(HTTP2Client client) {
+    return start(client,
+        Integer.getInteger(CONNECTIONS_PROPERTY, DEFAULT_CONNECTIONS),
+        Integer.getInteger(MAX_CONCURRENT_STREAMS_PROPERTY, DEFAULT_MAX_CONCURRENT_STREAMS),
+        Integer.getInteger(STREAM_WINDOW_PROPERTY, DEFAULT_STREAM_WINDOW));
+  }
+
+  static VmApiProxyHttp2Client start(HTTP2Client client, int connectionsPerServer,
+      int maxConcurrentStreams, int streamWindow) {
+    if (connectionsPerServer < 1 || maxConcurrentStreams < 1 || streamWindow < 1) {
+      throw new IllegalArgumentException("Invalid HTTP/2 API client limits: connections="
+          + connectionsPerServer + ", maxConcurrentStreams=" + maxConcurrentStreams
+          + ", streamWindow=" + streamWindow);
+    }
+    client.setExecutor(createExecutor());
+    client.setScheduler(new ScheduledExecutorScheduler("ApiProxyClient-scheduler", true));
+    client.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    // Let every stream use its whole window without stalling the connection.
+    HTTP2ClientConnectionFactory connectionFactory = new HTTP2ClientConnectionFactory();
+    connectionFactory.setInitialSessionRecvWindow(
+        (int) Math.min((long) streamWindow * maxConcurrentStreams, Integer.MAX_VALUE));
+    client.setClientConnectionFactory(connectionFactory);
+    try {
+      client.start();
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to start the HTTP/2 API proxy client", e);
+    }
+    return new VmApiProxyHttp2Client(
+        client, connectionsPerServer, maxConcurrentStreams, streamWindow);
+  }
+
+  @Override
+  CompletableFuture<byte[]> send(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, int timeoutMs) {
+    String server = environment.getServer();
+    RemoteApiCodec.RequestEntity content = RemoteApiCodec.encodeRequest(
+        packageName, methodName, environment.getTicket(), requestData);
+
+    HttpFields fields = new HttpFields();
+    addCallHeaders(environment, timeoutMs, fields::put);
+    fields.put(HttpHeader.CONTENT_TYPE, CONTENT_TYPE);
+    fields.put(HttpHeader.CONTENT_LENGTH, Long.toString(content.getContentLength()));
+    MetaData.Request request = new MetaData.Request(HttpMethod.POST.asString(),
+        new HttpURI("http://" + server + VmApiProxyDelegate.REQUEST_ENDPOINT),
+        HttpVersion.HTTP_2, fields);
+
+    Call call = new Call(packageName, methodName, request, content.toByteBuffers());
+    call.timeoutTask = client.getScheduler().schedule(call::timeout,
+        timeoutMs + VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS, TimeUnit.MILLISECONDS);
+    call.future.whenComplete((response, failure) -> {
+      if (failure instanceof CancellationException) {
+        // Resets the stream of the call, or skips it if it is still pending.
+        call.fail(failure);
+      }
+    });
+    Destination destination = destinations.get(server);
+    if (destination == null) {
+      destination = destinations.computeIfAbsent(server, Destination::new);
+    }
+    destination.dispatch(call);
+    return call.future;
+  }
+
+  @Override
+  void stop() throws Exception {
+    IOException stopped = new IOException("The API proxy client was stopped");
+    for (Destination destination : destinations.values()) {
+      destination.failAll(stopped);
+    }
+    client.stop();
+  }
+
+  /**
+   * The connections to one API server, and the calls waiting for a stream on them.
+   */
+  private final class Destination {
+    private final String host;
+    private final int port;
+    private final Connection[] connections;
+    private final Queue<Call> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    // Number of drain() requests, the caller moving it from 0 drains on behalf of the others.
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    Destination(String server) {
+      int colon = server.lastIndexOf(':');
+      this.host = colon < 0 ? server : server.substring(0, colon);
+      this.port = colon < 0 ? 80 : Integer.parseInt(server.substring(colon + 1));
+      this.connections = new Connection[connectionsPerServer];
+      for (int i = 0; i < connections.length; i++) {
+        connections[i] = new Connection(this);
+      }
+    }
+
+    void dispatch(Call call) {
+      Connection connection = acquireStream();
+      if (connection != null) {
+        call.start(connection);
+      } else {
+        pending.offer(call);
+        drain();
+      }
+    }
+
+    /**
+     * Starts pending calls while streams are available.
+     */
+    void drain() {
+      if (drainRequests.getAndIncrement() != 0) {
+        return;
+      }
+      int requests = 1;
+      do {
+        while (!pending.isEmpty()) {
+          Connection connection = acquireStream();
+          if (connection == null) {
+            break;
+          }
+          Call call = pending.poll();
+          if (call == null) {
+            connection.releaseStream();
+            break;
+          }
+          call.start(connection);
+        }
+        requests = drainRequests.addAndGet(-requests);
+      } while (requests != 0);
+    }
+
+    private Connection acquireStream() {
+      int first = nextConnection.getAndIncrement();
+      for (int i = 0; i < connections.length; i++) {
+        Connection connection = connections[Math.floorMod(first + i, connections.length)];
+        if (connection.tryAcquireStream()) {
+          return connection;
+        }
+      }
+      return null;
+    }
+
+    void failAll(Throwable failure) {
+      for (Call call; (call = pending.poll()) != null; ) {
+        call.fail(failure);
+      }
+      for (Connection connection : connections) {
+        for (Call call : connection.calls) {
+          call.fail(failure);
+        }
+      }
+    }
+  }
+
+  /**
+   * One HTTP/2 connection to the API server, reopened when it is closed.
+   */
+  private final class Connection extends Session.Listener.Adapter {
+    private final Destination destination;
+    private final AtomicInteger streams = new AtomicInteger();
+    private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+    private volatile int maxStreams = maxConcurrentStreams;
+    private CompletableFuture<Session> session;  // Guarded by this.
+
+    Connection(Destination destination) {
+      this.destination = destination;
+    }
+
+    boolean tryAcquireStream() {
+      while (true) {
+        int current = streams.get();
+        if (current >= maxStreams) {
+          return false;
+        }
+        if (streams.compareAndSet(current, current + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void releaseStream() {
+      streams.decrementAndGet();
+    }
+
+    synchronized CompletableFuture<Session> getSession() {
+      if (session == null || session.isCompletedExceptionally()
+          || (session.isDone() && session.join().isClosed())) {
+        final CompletableFuture<Session> connecting = new CompletableFuture<>();
+        session = connecting;
+        client.connect(new InetSocketAddress(destination.host, destination.port), this,
+            new Promise<Session>() {
+              @Override
+              public void succeeded(Session result) {
+                connecting.complete(result);
+              }
+
+              @Override
+              public void failed(Throwable failure) {
+                connecting.completeExceptionally(failure);
+              }
+            });
+      }
+      return session;
+    }
+
+    @Override
+    public Map<Integer, Integer> onPreface(Session session) {
+      Map<Integer, Integer> settings = new HashMap<>();
+      settings.put(SettingsFrame.ENABLE_PUSH, 0);
+      settings.put(SettingsFrame.INITIAL_WINDOW_SIZE, streamWindow);
+      return settings;
+    }
+
+    @Override
+    public void onSettings(Session session, SettingsFrame frame) {
+      Integer serverLimit = frame.getSettings().get(SettingsFrame.MAX_CONCURRENT_STREAMS);
+      if (serverLimit != null) {
+        maxStreams = Math.min(maxConcurrentStreams, serverLimit);
+        destination.drain();
+      }
+    }
+
+    /**
+     * The API server stops accepting streams on the session. The streams it already accepted, up
+     * to the last stream id of the GOAWAY, still complete, only the later ones are failed. The
+     * session is not used for new calls.
+     */
+    @Override
+    public void onClose(Session session, GoAwayFrame frame) {
+      detach(session);
+      IOException failure = new IOException("API server connection closed: " + frame);
+      for (Call call : calls) {
+        if (call.session == session && call.streamId() > frame.getLastStreamId()) {
+          call.fail(failure);
+        }
+      }
+    }
+
+    @Override
+    public void onFailure(Session session, Throwable failure) {
+      detach(session);
+      for (Call call : calls) {
+        if (call.session == session) {
+          call.fail(failure);
+        }
+      }
+    }
+
+    private synchronized void detach(Session closed) {
+      if (session != null && session.getNow(null) == closed) {
+        session = null;
+      }
+    }
+  }
+
+  /**
+   * A single API call, sent on its own stream.
+   */
+  private final class Call extends Stream.Listener.Adapter implements Promise<Stream> {
+    final CompletableFuture<byte[]> future = new CompletableFuture<>();
+    private final String packageName;
+    private final String methodName;
+    private final MetaData.Request request;
+    private final ByteBuffer[] content;
+    private RemoteApiCodec.ResponseBuffer body;  // Guarded by this.
+    volatile Scheduler.Task timeoutTask;
+    volatile Session session;
+    private int status;
+    private boolean done;  // Guarded by this.
+    private Connection connection;  // Guarded by this.
+    private Stream stream;  // Guarded by this.
+
+    Call(String packageName, String methodName, MetaData.Request request, ByteBuffer[] content) {
+      this.packageName = packageName;
+      this.methodName = methodName;
+      this.request = request;
+      this.content = content;
+    }
+
+    /**
+     * Sends the call on a stream acquired from {@code connection}.
+     */
+    void start(Connection connection) {
+      boolean cancelled;
+      synchronized (this) {
+        cancelled = done;
+        if (!cancelled) {
+          this.connection = connection;
+        }
+      }
+      if (cancelled) {
+        // Timed out while pending.
+        connection.releaseStream();
+        connection.destination.drain();
+        return;
+      }
+      connection.calls.add(this);
+      connection.getSession().whenComplete((session, failure) -> {
+        if (failure != null) {
+          fail(failure);
+        } else {
+          this.session = session;
+          session.newStream(new HeadersFrame(request, null, false), this, this);
+        }
+      });
+    }
+
+    /**
+     * Returns the id of the stream of the call, or {@code Integer.MAX_VALUE} if it has none yet.
+     */
+    synchronized int streamId() {
+      return stream == null ? Integer.MAX_VALUE : stream.getId();
+    }
+
+    // Stream created: send the request body.
+    @Override
+    public void succeeded(Stream result) {
+      boolean cancelled;
+      synchronized (this) {
+        stream = result;
+        cancelled = done;
+      }
+      if (cancelled) {
+        reset(result);
+        return;
+      }
+      sendContent(result, 0);
+    }
+
+    /**
+     * Sends the request content from {@code content[index]}, one frame per buffer.
+     */
+    private void sendContent(final Stream stream, final int index) {
+      final boolean last = index == content.length - 1;
+      stream.data(new DataFrame(stream.getId(), content[index], last), new Callback() {
+        @Override
+        public void succeeded() {
+          if (!last) {
+            sendContent(stream, index + 1);
+          }
+        }
+
+        @Override
+        public void failed(Throwable failure) {
+          fail(failure);
+        }
+      });
+    }
+
+    @Override
+    public void failed(Throwable failure) {
+      fail(failure);
+    }
+
+    @Override
+    public void onHeaders(Stream stream, HeadersFrame frame) {
+      MetaData metaData = frame.getMetaData();
+      if (metaData.isResponse()) {
+        status = ((MetaData.Response) metaData).getStatus();
+        synchronized (this) {
+          if (!done) {
+            body = new RemoteApiCodec.ResponseBuffer(
+                metaData.getFields().getLongField(HttpHeader.CONTENT_LENGTH.asString()));
+          }
+        }
+      }
+      if (frame.isEndStream()) {
+        complete();
+      }
+    }
+
+    @Override
+    public void onData(Stream stream, DataFrame frame, Callback callback) {
+      try {
+        synchronized (this) {
+          if (body != null) {
+            body.append(frame.getData());
+          }
+        }
+      } catch (IOException e) {
+        fail(e);
+      }
+      // Consumed, let the flow control window be reopened.
+      callback.succeeded();
+      if (frame.isEndStream()) {
+        complete();
+      }
+    }
+
+    @Override
+    public void onReset(Stream stream, ResetFrame frame) {
+      fail(new IOException(
+          "API call reset by the API server: " + ErrorCode.from(frame.getError())));
+    }
+
+    @Override
+    public void onTimeout(Stream stream, Throwable failure) {
+      fail(failure);
+    }
+
+    void timeout() {
+      fail(new TimeoutException("API call " + packageName + "." + methodName + " timed out"));
+    }
+
+    private void complete() {
+      RemoteApiCodec.ResponseBuffer response;
+      synchronized (this) {
+        response = body;
+        body = null;
+      }
+      if (response == null) {
+        fail(new IOException("API call completed without a response"));
+        return;
+      }
+      try {
+        if (status != HttpStatus.OK_200) {
+          logger.info("Error body: " + response);
+          fail(new RPCFailedException(packageName, methodName));
+        } else if (finish()) {
+          try {
+            future.complete(response.decodeResponse(packageName, methodName));
+          } catch (ApiProxyException e) {
+            future.completeExceptionally(e);
+          }
+        }
+      } finally {
+        response.release();
+      }
+    }
+
+    void fail(Throwable failure) {
+      if (finish()) {
+        Stream current;
+        synchronized (this) {
+          current = stream;
+        }
+        if (current != null) {
+          reset(current);
+        }
+        future.completeExceptionally(failure);
+      }
+    }
+
+    private void reset(Stream stream) {
+      if (!stream.isClosed() && !stream.isReset()) {
+        stream.reset(new ResetFrame(stream.getId(), ErrorCode.CANCEL_STREAM_ERROR.code),
+            Callback.NOOP);
+      }
+    }
+
+    /**
+     * Marks the call as done and frees its stream, returns false if it was already done.
+     */
+    private boolean finish() {
+      Connection current;
+      synchronized (this) {
+        if (done) {
+          return false;
+        }
+        done = true;
+        current = connection;
+        if (body != null) {
+          body.release();
+          body = null;
+        }
+      }
+      Scheduler.Task task = timeoutTask;
+      if (task != null) {
+        task.cancel();
+      }
+      if (current != null) {
+        current.calls.remove(this);
+        current.releaseStream();
+        current.destination.drain();
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Flushes the app logs which have been buffered for longer than the flush interval of their
+ * {@link VmAppLogsWriter}, even if the request stopped logging.
+ *
+ * <p>The writers with buffered lines are kept in a timer wheel shared by all the requests: a ring
+ * of {@value #WHEEL_SIZE} buckets, one per tick of {@value #TICK_MILLIS} ms. A writer is added
+ * to the bucket of the tick its oldest line is due, once, when its buffer stops being empty, so
+ * the request threads only pay for a lock-free queue insertion per flush interval. A single
+ * background thread visits one bucket per tick, flushes the writers that are due, and moves the
+ * others to the bucket of their next deadline. Writers without buffered lines leave the wheel, so
+ * it only references the requests which have logs waiting.
+ *
+ */
+final class VmAppLogsFlusher {
+  private static final Logger logger = Logger.getLogger(VmAppLogsFlusher.class.getName());
+
+  static final long TICK_MILLIS = 1000;
+  static final int WHEEL_SIZE = 64;
+
+  private static class Holder {
+    static final VmAppLogsFlusher INSTANCE = start();
+  }
+
+  private final long tickNanos;
+  private final long startNanos;
+  private final List<Queue<Entry>> wheel;
+  // The last tick visited by tick(), writers are never added to its bucket or an earlier one.
+  private volatile long lastTick;
+
+  /** A writer waiting in the wheel, with the tick it is due. */
+  private static final class Entry {
+    final VmAppLogsWriter writer;
+    final long tick;
+
+    Entry(VmAppLogsWriter writer, long tick) {
+      this.writer = writer;
+      this.tick = tick;
+    }
+  }
+
+  VmAppLogsFlusher(long tickMillis, long startNanos) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.startNanos = startNanos;
+    this.wheel = new ArrayList<>(WHEEL_SIZE);
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      wheel.add(new ConcurrentLinkedQueue<Entry>());
+    }
+  }
+
+  /**
+   * Returns the flusher shared by all the requests, starting its thread on first use.
+   */
+  static VmAppLogsFlusher getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  private static VmAppLogsFlusher start() {
+    final VmAppLogsFlusher flusher = new VmAppLogsFlusher(TICK_MILLIS, System.nanoTime());
+    ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "AppLogsFlusher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleAtFixedRate(() -> {
+      try {
+        flusher.tick(System.nanoTime());
+      } catch (RuntimeException e) {
+        // Keep the flusher running, the writers will be visited again on the next ticks.
+        logger.log(Level.WARNING, "Time based log flush failed.", e);
+      }
+    }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    return flusher;
+  }
+
+  /**
+   * Adds a writer to the wheel, to be visited at the first tick after {@code dueNanos}. Never
+   * blocks.
+   *
+   * @param dueNanos The {@link System#nanoTime()} at which the oldest line of the writer must be
+   *   flushed.
+   */
+  void schedule(VmAppLogsWriter writer, long dueNanos) {
+    long delta = dueNanos - startNanos;
+    long tick = delta <= 0 ? 0 : (delta + tickNanos - 1) / tickNanos;
+    // Leave one tick of slack so the writer is not added to a bucket tick() is already visiting.
+    tick = Math.max(tick, lastTick + 2);
+    wheel.get((int) (tick % WHEEL_SIZE)).add(new Entry(writer, tick));
+  }
+
+  /**
+   * Visits the buckets of the ticks elapsed at {@code nowNanos}, flushing the writers that are
+   * due.
+   */
+  void tick(long nowNanos) {
+    long currentTick = (nowNanos - startNanos) / tickNanos;
+    // After a long pause there is no need to visit the same bucket twice.
+    for (long tick = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1); tick <= currentTick;
+        tick++) {
+      lastTick = tick;
+      visit(wheel.get((int) (tick % WHEEL_SIZE)), tick, nowNanos);
+    }
+  }
+
+  private void visit(Queue<Entry> bucket, long tick, long nowNanos) {
+    List<Entry> later = null;
+    Entry entry;
+    while ((entry = bucket.poll()) != null) {
+      if (entry.tick > tick) {
+        // Due on a later turn of the wheel.
+        if (later == null) {
+          later = new ArrayList<>();
+        }
+        later.add(entry);
+        continue;
+      }
+      long dueNanos = entry.writer.flushIfDue(nowNanos);
+      if (dueNanos != 0) {
+        schedule(entry.writer, dueNanos);
+      }
+    }
+    if (later != null) {
+      bucket.addAll(later);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.logservice.LogServicePb.FlushRequest;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogGroup;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the app logs of the requests in the pipelined mode of {@link VmAppLogsWriter}.
+ *
+ * <p>Request threads hand the batches of log lines over to the shipper without blocking. A single
+ * background thread serves the batches of all the requests: it encodes them and sends them with
+ * logservice.Flush calls, without waiting for the responses. The batches of one request are
+ * sent in order, each once the flush of the previous one completed, so that the appserver never
+ * processes the logs of a request out of order. The thread never blocks either: while a request
+ * has too many API calls running for its flush to start, the flush is tried again later, and the
+ * other requests are served in the meantime.
+ *
+ */
+final class VmAppLogsShipper {
+  private static final Logger logger = Logger.getLogger(VmAppLogsShipper.class.getName());
+
+  // How often a flush which could not start is tried again, until the API call wait limit.
+  private static final long SEND_RETRY_MILLIS = 10;
+
+  // How long a flush may block the next flushes of its request, as VmAppLogsWriter waits.
+  static final long FLUSH_WAIT_MILLIS =
+      VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS + VmAppLogsWriter.LOG_FLUSH_TIMEOUT_MS;
+
+  private static class Holder {
+    static final VmAppLogsShipper INSTANCE = new VmAppLogsShipper(createScheduler());
+  }
+
+  private final ScheduledExecutorService scheduler;
+
+  VmAppLogsShipper(ScheduledExecutorService scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Returns the shipper shared by all the requests, starting its thread on first use.
+   */
+  static VmAppLogsShipper getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  private static ScheduledExecutorService createScheduler() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "AppLogsShipper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  /**
+   * Returns the queue of batches of a request.
+   *
+   * @param environment the environment of the request, used to send its flushes.
+   */
+  RequestLogs newRequestLogs(VmApiProxyEnvironment environment) {
+    return new RequestLogs(environment);
+  }
+
+  /**
+   * The batches of log lines of one request waiting to be sent.
+   */
+  final class RequestLogs {
+    private final VmApiProxyEnvironment environment;
+    private final Queue<UserAppLogGroup> batches = new ConcurrentLinkedQueue<>();
+    // True while a batch of the request is scheduled or in flight.
+    private final AtomicBoolean shipping = new AtomicBoolean();
+    // When the first try to send the head batch failed to start, 0 if it was not tried yet.
+    // Only accessed by the shipper thread.
+    private long blockedSinceNanos;
+
+    private RequestLogs(VmApiProxyEnvironment environment) {
+      this.environment = environment;
+    }
+
+    /**
+     * Queues a batch of log lines to be sent after the batches added before. Never blocks.
+     */
+    void add(UserAppLogGroup batch) {
+      batches.add(batch);
+      scheduleNext();
+    }
+
+    private void scheduleNext() {
+      if (!batches.isEmpty() && shipping.compareAndSet(false, true)) {
+        scheduler.execute(this::shipNext);
+      }
+    }
+
+    private void shipNext() {
+      // The batch stays queued until its flush is started.
+      UserAppLogGroup batch = batches.peek();
+      if (batch == null) {
+        shipping.set(false);
+        // A batch added since the peek() did not schedule itself as shipping was still set.
+        scheduleNext();
+        return;
+      }
+      CompletableFuture<byte[]> flush;
+      try {
+        flush = send(batch);
+      } catch (RuntimeException e) {
+        batches.poll();
+        blockedSinceNanos = 0;
+        logger.log(Level.WARNING, "A log flush request failed.  Log messages may have been lost!",
+            e);
+        scheduler.execute(this::shipNext);
+        return;
+      }
+      if (flush == null) {
+        retryLater();
+        return;
+      }
+      batches.poll();
+      blockedSinceNanos = 0;
+      final AtomicBoolean completed = new AtomicBoolean();
+      final Future<?> timeout = scheduler.schedule(
+          () -> onFlushCompleted(flush, completed), FLUSH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      flush.whenComplete((response, failure) -> {
+        timeout.cancel(false);
+        onFlushCompleted(flush, completed);
+      });
+    }
+
+    /**
+     * Tries the head batch again later, or drops it once it waited as long as an API call may.
+     */
+    private void retryLater() {
+      long now = System.nanoTime();
+      if (blockedSinceNanos == 0) {
+        blockedSinceNanos = now;
+      } else if (now - blockedSinceNanos
+          >= TimeUnit.MILLISECONDS.toNanos(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS)) {
+        batches.poll();
+        blockedSinceNanos = 0;
+        logger.warning("Timed out while waiting to send a log flush.  "
+            + "Log messages may have been lost!");
+        scheduler.execute(this::shipNext);
+        return;
+      }
+      scheduler.schedule(this::shipNext, SEND_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reports the outcome of a flush and starts the next one, once per flush.
+     */
+    private void onFlushCompleted(Future<byte[]> flush, AtomicBoolean completed) {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      if (!flush.isDone()) {
+        logger.warning("Timeout waiting for log flush to complete. "
+            + "Log messages may have been lost/reordered!");
+      } else {
+        try {
+          flush.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          logger.log(Level.WARNING,
+              "A log flush request failed.  Log messages may have been lost!", e.getCause());
+        } catch (RuntimeException e) {
+          // Cancelled.
+          logger.log(Level.WARNING,
+              "A log flush request failed.  Log messages may have been lost!", e);
+        }
+      }
+      scheduler.execute(this::shipNext);
+    }
+
+    /**
+     * Starts the flush of a batch without blocking.
+     *
+     * @return the future of the flush, or null if the request has too many API calls running for
+     *   it to start
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<byte[]> send(final UserAppLogGroup batch) {
+      Supplier<byte[]> request = () -> {
+        FlushRequest flushRequest = new FlushRequest();
+        flushRequest.setLogsAsBytes(batch.toByteArray());
+        return flushRequest.toByteArray();
+      };
+      ApiConfig apiConfig = new ApiConfig();
+      apiConfig.setDeadlineInSeconds(VmAppLogsWriter.LOG_FLUSH_TIMEOUT_MS / 1000.0);
+      ApiProxy.Delegate<?> delegate = ApiProxy.getDelegate();
+      if (delegate instanceof VmApiProxyDelegate) {
+        return ((VmApiProxyDelegate) delegate).tryMakeAsyncCall(
+            environment, "logservice", "Flush", request, apiConfig);
+      }
+      // Other delegates, as in tests, are called as is.
+      Future<byte[]> flush = ((ApiProxy.Delegate<ApiProxy.Environment>) delegate).makeAsyncCall(
+          environment, "logservice", "Flush", request.get(), apiConfig);
+      if (flush instanceof CompletableFuture) {
+        return (CompletableFuture<byte[]>) flush;
+      }
+      // Without a completion callback, the next flush does not wait for this one.
+      return CompletableFuture.completedFuture(null);
+    }
+  }
+}
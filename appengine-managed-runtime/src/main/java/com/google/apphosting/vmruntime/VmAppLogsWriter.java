@@ -28,10 +28,16 @@ import com.google.appengine.repackaged.com.google.common.base.Stopwatch;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,10 +69,29 @@ import java.util.logging.Logger;
  * mechanism described above but is necessary to prevent the AppServer
  * from truncating individual log entries.
  *
- * <p>This class is thread safe and all methods accessing local state are
- * synchronized. Since each request have their own instance of this class the
+ * <p>This class is thread safe and all methods accessing local state hold
+ * its lock. Since each request have their own instance of this class the
  * only contention possible is between the original request thread and and any
- * child RequestThreads created by the request through the threading API.
+ * child RequestThreads created by the request through the threading API, and
+ * the flusher thread, which only tries the lock.
+ *
+ * <p>In the pipelined mode, enabled with the {@value #PIPELINED_PROPERTY} system property, the
+ * request threads never wait for a flush:
+ * <ul>
+ * <li>Log lines are appended to a lock-free queue.</li>
+ *
+ * <li>When the size or age limit is reached, and at the end of the request, the queued lines are
+ * cut into batches of at most {@code byteCountBeforeFlush} bytes, which are handed over to the
+ * {@link VmAppLogsShipper}. It sends the flushes of all the requests from a background thread,
+ * in order for each request.</li>
+ *
+ * <li>The flush count reported at the end of the request is the number of batches handed over,
+ * so the appserver still waits for all of them.</li>
+ * </ul>
+ *
+ * <p>With the {@value #BACKGROUND_FLUSH_PROPERTY} system property, the time based flushes are
+ * also started by the {@link VmAppLogsFlusher}, so the logs of a request which stopped logging
+ * do not wait for its next log line or its end.
  *
  */
 class VmAppLogsWriter {
@@ -82,10 +107,25 @@ class VmAppLogsWriter {
   // Log flushes generally complete fast (6 ms at the median, 46ms at the 99th percentile).
   static final int LOG_FLUSH_TIMEOUT_MS = 2000;
 
+  // Ship the logs from a background thread, without blocking the request threads.
+  static final String PIPELINED_PROPERTY =
+      "com.google.apphosting.vmruntime.VmAppLogsWriter.pipelined";
+
+  // Encode the log lines into an AppLogLineBuffer when they are added, rather than keeping
+  // UserAppLogLine messages until the flush. Does not apply to the pipelined mode.
+  static final String ENCODED_BUFFER_PROPERTY =
+      "com.google.apphosting.vmruntime.VmAppLogsWriter.encodedBuffer";
+
+  // Flush the lines older than maxSecondsBetweenFlush from the VmAppLogsFlusher thread.
+  static final String BACKGROUND_FLUSH_PROPERTY =
+      "com.google.apphosting.vmruntime.VmAppLogsWriter.backgroundFlush";
+
   private final int maxLogMessageLength;
   private final int logCutLength;
   private final int logCutLengthDiv10;
   private final List<UserAppLogLine> buffer;
+  // The buffer of encoded lines used instead of "buffer", may be null.
+  private final AppLogLineBuffer encodedBuffer;
   private final long maxBytesToFlush;
   private long currentByteCount;
   private final int maxSecondsBetweenFlush;
@@ -93,6 +133,23 @@ class VmAppLogsWriter {
   private Future<byte[]> currentFlush;
   private Stopwatch stopwatch;
 
+  // The queue of batches of the request in the pipelined mode, null otherwise.
+  private final VmAppLogsShipper.RequestLogs shippedLogs;
+  // Log lines appended in the pipelined mode, not yet handed over.
+  private final Queue<UserAppLogLine> pendingLines;
+  private final AtomicLong pendingByteCount;
+  // System.nanoTime() of the oldest pending line, 0 if there are none.
+  private final AtomicLong oldestPendingLineNanos;
+
+  // The flusher starting the time based flushes from the background, may be null.
+  private VmAppLogsFlusher flusher;
+  // The environment of the request, used to send the flushes started by the flusher.
+  private ApiProxy.Environment flushEnvironment;
+  // Whether this AppLogsWriter is in the wheel of the flusher.
+  private final AtomicBoolean timedFlushScheduled = new AtomicBoolean();
+  // Guards the local state. Held while waiting for a flush, so the flusher only tries it.
+  private final ReentrantLock lock = new ReentrantLock();
+
   /**
    * Construct an AppLogsWriter instance.
    *
@@ -113,11 +170,50 @@ class VmAppLogsWriter {
    *   Consider this example (assume maxFlushSeconds=60): the app logs a message
    *   when the handler starts but then does not log another message for 10
    *   minutes. The initial log will stay cached until the second message
-   *   is logged.
+   *   is logged, unless {@link #setFlusher} is used.
    */
   public VmAppLogsWriter(List<UserAppLogLine> buffer, long maxBytesToFlush, int maxLogMessageLength,
       int maxFlushSeconds) {
+    this(buffer, maxBytesToFlush, maxLogMessageLength, maxFlushSeconds, null);
+  }
+
+  /**
+   * Construct an AppLogsWriter instance, in the pipelined mode if {@code shippedLogs} is set.
+   *
+   * @param shippedLogs The queue to hand the batches of log lines over to, or null to send the
+   *   flushes from the request threads.
+   */
+  VmAppLogsWriter(List<UserAppLogLine> buffer, long maxBytesToFlush, int maxLogMessageLength,
+      int maxFlushSeconds, VmAppLogsShipper.RequestLogs shippedLogs) {
+    this(buffer, null, maxBytesToFlush, maxLogMessageLength, maxFlushSeconds, shippedLogs);
+  }
+
+  /**
+   * Construct an AppLogsWriter instance encoding the lines into {@code encodedBuffer} when they
+   * are added.
+   *
+   * @param encodedBuffer Buffer holding the encoded lines between flushes.
+   */
+  VmAppLogsWriter(AppLogLineBuffer encodedBuffer, long maxBytesToFlush, int maxLogMessageLength,
+      int maxFlushSeconds) {
+    this(null, encodedBuffer, maxBytesToFlush, maxLogMessageLength, maxFlushSeconds, null);
+  }
+
+  private VmAppLogsWriter(List<UserAppLogLine> buffer, AppLogLineBuffer encodedBuffer,
+      long maxBytesToFlush, int maxLogMessageLength, int maxFlushSeconds,
+      VmAppLogsShipper.RequestLogs shippedLogs) {
     this.buffer = buffer;
+    this.encodedBuffer = encodedBuffer;
+    this.shippedLogs = shippedLogs;
+    if (shippedLogs != null) {
+      this.pendingLines = new ConcurrentLinkedQueue<>();
+      this.pendingByteCount = new AtomicLong();
+      this.oldestPendingLineNanos = new AtomicLong();
+    } else {
+      this.pendingLines = null;
+      this.pendingByteCount = null;
+      this.oldestPendingLineNanos = null;
+    }
     this.maxSecondsBetweenFlush = maxFlushSeconds;
 
     if (maxLogMessageLength < MIN_MAX_LOG_MESSAGE_LENGTH) {
@@ -148,41 +244,236 @@ class VmAppLogsWriter {
     stopwatch = Stopwatch.createUnstarted();
   }
 
+  /**
+   * Lets {@code flusher} start the time based flushes, so that lines do not stay cached when
+   * the request stops logging. Must be called before the first log record is added.
+   *
+   * @param environment The environment of the request, used to send the flushes from the
+   *   flusher thread.
+   */
+  void setFlusher(VmAppLogsFlusher flusher, ApiProxy.Environment environment) {
+    this.flusher = flusher;
+    this.flushEnvironment = environment;
+  }
+
   /**
    * Add the specified {@link LogRecord} for the current request.  If
    * enough space (or in the future, time) has accumulated, an
    * asynchronous flush may be started.  If flushes are backed up,
-   * this method may block.
+   * this method may block, except in the pipelined mode.
    */
-  synchronized void addLogRecordAndMaybeFlush(LogRecord fullRecord) {
-    for (LogRecord record : split(fullRecord)){
-      UserAppLogLine logLine = new UserAppLogLine();
-      logLine.setLevel(record.getLevel().ordinal());
-      logLine.setTimestampUsec(record.getTimestamp());
-      logLine.setMessage(record.getMessage());
+  void addLogRecordAndMaybeFlush(LogRecord fullRecord) {
+    if (shippedLogs != null) {
+      addLogRecordAndMaybeHandOver(fullRecord);
+    } else {
+      addLogRecordAndMaybeStartFlush(fullRecord);
+    }
+  }
+
+  private void addLogRecordAndMaybeStartFlush(LogRecord fullRecord) {
+    lock.lock();
+    try {
+      String message = fullRecord.getMessage();
+      if (message == null || message.length() <= maxLogMessageLength) {
+        bufferLogLine(fullRecord, message);
+      } else {
+        splitMessage(message, chunk -> bufferLogLine(fullRecord, chunk));
+      }
+
+      if (maxSecondsBetweenFlush > 0 &&
+          stopwatch.elapsed(TimeUnit.SECONDS) >= maxSecondsBetweenFlush) {
+        waitForCurrentFlushAndStartNewFlush();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static UserAppLogLine createLogLine(LogRecord record, String message) {
+    UserAppLogLine logLine = new UserAppLogLine();
+    logLine.setLevel(record.getLevel().ordinal());
+    logLine.setTimestampUsec(record.getTimestamp());
+    logLine.setMessage(message);
+    return logLine;
+  }
+
+  private void bufferLogLine(LogRecord record, String message) {
+    UserAppLogLine logLine = null;
+    int messageLength = 0;
+    int maxEncodingSize;
+    if (encodedBuffer != null) {
+      // The exact size of the encoded line.
+      messageLength = AppLogLineBuffer.encodedLength(message);
+      maxEncodingSize = AppLogLineBuffer.lineSize(
+          record.getTimestamp(), record.getLevel().ordinal(), messageLength);
+    } else {
+      logLine = createLogLine(record, message);
       // Use maxEncodingSize() here because it's faster and accurate
       // enough for us.  It uses the maximum possible size for varint
       // values, but the real size of strings.
-      int maxEncodingSize = logLine.maxEncodingSize();
-      if (maxBytesToFlush > 0 &&
-          (currentByteCount + maxEncodingSize) > maxBytesToFlush) {
-        logger.info(currentByteCount + " bytes of app logs pending, starting flush...");
-        waitForCurrentFlushAndStartNewFlush();
+      maxEncodingSize = logLine.maxEncodingSize();
+    }
+    if (maxBytesToFlush > 0 &&
+        (currentByteCount + maxEncodingSize) > maxBytesToFlush) {
+      logger.info(currentByteCount + " bytes of app logs pending, starting flush...");
+      waitForCurrentFlushAndStartNewFlush();
+    }
+    if (!hasBufferedLines()) {
+      // We only want to flush once a log message has been around for
+      // longer than maxSecondsBetweenFlush. So, we only start the timer
+      // when we add the first message so we don't include time when
+      // the queue is empty.
+      stopwatch.start();
+      scheduleTimedFlush();
+    }
+    if (logLine != null) {
+      buffer.add(logLine);
+    } else {
+      encodedBuffer.append(
+          record.getTimestamp(), record.getLevel().ordinal(), message, messageLength);
+    }
+    currentByteCount += maxEncodingSize;
+  }
+
+  private boolean hasBufferedLines() {
+    return encodedBuffer != null ? !encodedBuffer.isEmpty() : buffer.size() > 0;
+  }
+
+  /**
+   * Appends the lines of a record without taking a lock, and hands the pending lines over to the
+   * shipper if they reached the size or age limit.
+   */
+  private void addLogRecordAndMaybeHandOver(LogRecord fullRecord) {
+    String message = fullRecord.getMessage();
+    if (message == null || message.length() <= maxLogMessageLength) {
+      appendLogLine(createLogLine(fullRecord, message));
+    } else {
+      splitMessage(message, chunk -> appendLogLine(createLogLine(fullRecord, chunk)));
+    }
+    boolean handOver = maxBytesToFlush > 0 && pendingByteCount.get() >= maxBytesToFlush;
+    if (maxSecondsBetweenFlush > 0) {
+      long now = System.nanoTime();
+      long oldest = oldestPendingLineNanos.get();
+      if (oldest == 0) {
+        if (oldestPendingLineNanos.compareAndSet(0, now)) {
+          scheduleTimedFlush();
+        }
+      } else if (now - oldest >= TimeUnit.SECONDS.toNanos(maxSecondsBetweenFlush)) {
+        handOver = true;
       }
-      if (buffer.size() == 0) {
-        // We only want to flush once a log message has been around for
-        // longer than maxSecondsBetweenFlush. So, we only start the timer
-        // when we add the first message so we don't include time when
-        // the queue is empty.
-        stopwatch.start();
+    }
+    if (handOver) {
+      handOverPendingLines();
+    }
+  }
+
+  /**
+   * Adds this AppLogsWriter to the wheel of the flusher, unless it is already there.
+   */
+  private void scheduleTimedFlush() {
+    if (flusher != null && maxSecondsBetweenFlush > 0
+        && timedFlushScheduled.compareAndSet(false, true)) {
+      flusher.schedule(this, System.nanoTime()
+          + TimeUnit.SECONDS.toNanos(maxSecondsBetweenFlush));
+    }
+  }
+
+  /**
+   * Starts a flush, or hands the pending lines over in the pipelined mode, if the oldest line
+   * has been cached for maxSecondsBetweenFlush. Called by the flusher, never waits for a flush.
+   *
+   * @return The {@link System#nanoTime()} at which the cached lines will be due, or 0 if there
+   *   are none and this AppLogsWriter left the wheel of the flusher.
+   */
+  long flushIfDue(long nowNanos) {
+    long maxNanos = TimeUnit.SECONDS.toNanos(maxSecondsBetweenFlush);
+    if (shippedLogs != null) {
+      long oldest = oldestPendingLineNanos.get();
+      if (oldest != 0 && nowNanos - oldest < maxNanos) {
+        return oldest + maxNanos;
       }
-      buffer.add(logLine);
-      currentByteCount += maxEncodingSize;
+      if (oldest != 0) {
+        handOverPendingLines();
+      }
+      timedFlushScheduled.set(false);
+      // A line appended since then did not schedule itself as we were still in the wheel.
+      if (!pendingLines.isEmpty() && timedFlushScheduled.compareAndSet(false, true)) {
+        return nowNanos + maxNanos;
+      }
+      return 0;
     }
+    if (!lock.tryLock()) {
+      // A request thread holds the lock, possibly waiting for a flush, try again later rather
+      // than blocking the flusher thread.
+      return nowNanos;
+    }
+    try {
+      if (!hasBufferedLines()) {
+        timedFlushScheduled.set(false);
+        return 0;
+      }
+      long elapsedNanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+      if (elapsedNanos < maxNanos) {
+        return nowNanos + maxNanos - elapsedNanos;
+      }
+      if (currentFlush != null && !currentFlush.isDone()) {
+        // Try again later rather than blocking the flusher thread.
+        return nowNanos;
+      }
+      waitForCurrentFlush();
+      Future<byte[]> flush = tryFlush(flushEnvironment);
+      if (flush == null) {
+        // The request has too many API calls running, try again rather than blocking.
+        return nowNanos;
+      }
+      currentFlush = flush;
+      timedFlushScheduled.set(false);
+      return 0;
+    } finally {
+      lock.unlock();
+    }
+  }
 
-    if (maxSecondsBetweenFlush > 0 &&
-        stopwatch.elapsed(TimeUnit.SECONDS) >= maxSecondsBetweenFlush) {
-      waitForCurrentFlushAndStartNewFlush();
+  private void appendLogLine(UserAppLogLine logLine) {
+    pendingLines.add(logLine);
+    pendingByteCount.addAndGet(logLine.maxEncodingSize());
+  }
+
+  /**
+   * Cuts the pending lines into batches of at most maxBytesToFlush bytes, and hands them over to
+   * the shipper.
+   *
+   * @return The number of batches handed over by this AppLogsWriter.
+   */
+  private int handOverPendingLines() {
+    lock.lock();
+    try {
+      oldestPendingLineNanos.set(0);
+      UserAppLogGroup group = null;
+      long groupByteCount = 0;
+      UserAppLogLine logLine;
+      while ((logLine = pendingLines.poll()) != null) {
+        int maxEncodingSize = logLine.maxEncodingSize();
+        pendingByteCount.addAndGet(-maxEncodingSize);
+        if (group != null && groupByteCount + maxEncodingSize > maxBytesToFlush) {
+          shippedLogs.add(group);
+          flushCount++;
+          group = null;
+        }
+        if (group == null) {
+          group = new UserAppLogGroup();
+          groupByteCount = 0;
+        }
+        group.addLogLine(logLine);
+        groupByteCount += maxEncodingSize;
+      }
+      if (group != null) {
+        shippedLogs.add(group);
+        flushCount++;
+      }
+      return flushCount;
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -192,30 +483,47 @@ class VmAppLogsWriter {
    *
    * @return The number of times this AppLogsWriter has initiated a flush.
    */
-  synchronized int waitForCurrentFlushAndStartNewFlush() {
-    waitForCurrentFlush();
-    if (buffer.size() > 0) {
-      currentFlush = doFlush();
+  int waitForCurrentFlushAndStartNewFlush() {
+    lock.lock();
+    try {
+      if (shippedLogs != null) {
+        return handOverPendingLines();
+      }
+      waitForCurrentFlush();
+      if (hasBufferedLines()) {
+        currentFlush = doFlush(null);
+      }
+      return flushCount;
+    } finally {
+      lock.unlock();
     }
-    return flushCount;
   }
 
   /**
    * Initiates a synchronous flush.  This method will always block
-   * until any pending flushes and its own flush completes.
+   * until any pending flushes and its own flush completes, except in the
+   * pipelined mode where the pending lines are only handed over.
    */
-  synchronized int flushAndWait() {
-    waitForCurrentFlush();
-    if (buffer.size() > 0) {
-      currentFlush = doFlush();
+  int flushAndWait() {
+    lock.lock();
+    try {
+      if (shippedLogs != null) {
+        return handOverPendingLines();
+      }
       waitForCurrentFlush();
+      if (hasBufferedLines()) {
+        currentFlush = doFlush(null);
+        waitForCurrentFlush();
+      }
+      return flushCount;
+    } finally {
+      lock.unlock();
     }
-    return flushCount;
   }
 
   /**
    * This method blocks until any outstanding flush is completed. This method
-   * should be called prior to {@link #doFlush()} so that it is impossible for
+   * should be called prior to {@link #doFlush} so that it is impossible for
    * the appserver to process logs out of order.
    */
   private void waitForCurrentFlush() {
@@ -242,22 +550,68 @@ class VmAppLogsWriter {
     }
   }
 
-  private Future<byte[]> doFlush() {
-    UserAppLogGroup group = new UserAppLogGroup();
-    for (UserAppLogLine logLine : buffer) {
-      group.addLogLine(logLine);
+  /**
+   * Starts the flush of the buffered lines.
+   *
+   * @param environment The environment to send the flush with, or null to use the environment
+   *   of the current thread.
+   */
+  @SuppressWarnings("unchecked")
+  private Future<byte[]> doFlush(ApiProxy.Environment environment) {
+    byte[] request = takeFlushRequest();
+    // Unless the flusher passed the environment of the request, this
+    // assumes that we are always doing a flush from the request thread.
+    if (environment != null) {
+      ApiProxy.Delegate<ApiProxy.Environment> delegate = ApiProxy.getDelegate();
+      return delegate.makeAsyncCall(
+          environment, "logservice", "Flush", request, createFlushConfig());
+    }
+    return ApiProxy.makeAsyncCall("logservice", "Flush", request, createFlushConfig());
+  }
+
+  /**
+   * Starts the flush of the buffered lines for the flusher thread, only if the limits on the API
+   * calls of the request let it start right away.
+   *
+   * @return the future of the flush, or null if it could not start and the lines are still
+   *   buffered
+   */
+  private Future<byte[]> tryFlush(ApiProxy.Environment environment) {
+    ApiProxy.Delegate<?> delegate = ApiProxy.getDelegate();
+    if (delegate instanceof VmApiProxyDelegate && environment instanceof VmApiProxyEnvironment) {
+      return ((VmApiProxyDelegate) delegate).tryMakeAsyncCall((VmApiProxyEnvironment) environment,
+          "logservice", "Flush", this::takeFlushRequest, createFlushConfig());
+    }
+    return doFlush(environment);
+  }
+
+  private static ApiConfig createFlushConfig() {
+    ApiConfig apiConfig = new ApiConfig();
+    apiConfig.setDeadlineInSeconds(LOG_FLUSH_TIMEOUT_MS / 1000.0);
+    return apiConfig;
+  }
+
+  /**
+   * Returns a serialized FlushRequest of the buffered lines, and empties the buffer.
+   */
+  private byte[] takeFlushRequest() {
+    byte[] request;
+    if (encodedBuffer != null) {
+      request = encodedBuffer.toFlushRequest();
+    } else {
+      UserAppLogGroup group = new UserAppLogGroup();
+      for (UserAppLogLine logLine : buffer) {
+        group.addLogLine(logLine);
+      }
+      buffer.clear();
+      FlushRequest flushRequest = new FlushRequest();
+      flushRequest.setLogsAsBytes(group.toByteArray());
+      request = flushRequest.toByteArray();
     }
-    buffer.clear();
     currentByteCount = 0;
     flushCount++;
     stopwatch.reset();
-    FlushRequest request = new FlushRequest();
-    request.setLogsAsBytes(group.toByteArray());
-    // This assumes that we are always doing a flush from the request
-    // thread. See the TODO above.
-    ApiConfig apiConfig = new ApiConfig();
-    apiConfig.setDeadlineInSeconds(LOG_FLUSH_TIMEOUT_MS / 1000.0);
-    return ApiProxy.makeAsyncCall("logservice", "Flush", request.toByteArray(), apiConfig);
+    return request;
   }
 
   /**
@@ -277,42 +631,70 @@ class VmAppLogsWriter {
    * continuation of the previous log mesage.
    */
   
-  List<LogRecord> split(LogRecord aRecord){
+  List<LogRecord> split(final LogRecord aRecord){
     // This method is public so it is testable.
-    LinkedList<LogRecord> theList = new LinkedList<LogRecord>();
+    final LinkedList<LogRecord> theList = new LinkedList<LogRecord>();
     String message = aRecord.getMessage();
     if (null == message || message.length() <= maxLogMessageLength){
       theList.add(aRecord);
       return theList;
     }
-    String remaining = message;
-    while (remaining.length() > 0){
-      String nextMessage;
-      if (remaining.length() <= maxLogMessageLength){
-        nextMessage = remaining;
-        remaining = "";
-      } else {
-        int cutLength = logCutLength;
-        boolean cutAtNewline = false;
-        // Try to cut the string at a friendly point
-        int friendlyCutLength = remaining.lastIndexOf('\n', logCutLength);
-        // But only if that yields a message of reasonable length
-        if (friendlyCutLength > logCutLengthDiv10){
-          cutLength = friendlyCutLength;
-          cutAtNewline = true;
-        }
-        nextMessage = remaining.substring(0, cutLength) + LOG_CONTINUATION_SUFFIX;
-        remaining = remaining.substring(cutLength + (cutAtNewline ? 1 : 0));
-        // Only prepend the continuation prefix if doing so would not push
-        // the length of the next message over the limit.
-        if (remaining.length() > maxLogMessageLength ||
-            remaining.length() + LOG_CONTINUATION_PREFIX_LENGTH <= maxLogMessageLength){
-          remaining = LOG_CONTINUATION_PREFIX + remaining;
-        }
+    splitMessage(message, chunk -> theList.add(new LogRecord(aRecord, chunk)));
+    return theList;
+  }
+
+  /**
+   * Splits a message longer than maxLogMessageLength into the messages described in
+   * {@link #split}, passing them to {@code chunks} in order.
+   *
+   * <p>The remaining part of the message is tracked as an offset into {@code message} and
+   * whether it starts with the continuation prefix, so that each character is only copied into
+   * the message of its own chunk.
+   */
+  void splitMessage(String message, Consumer<String> chunks) {
+    int start = 0;
+    boolean prefixed = false;
+    int remainingLength = message.length();
+    while (remainingLength > 0) {
+      int prefixLength = prefixed ? LOG_CONTINUATION_PREFIX_LENGTH : 0;
+      if (remainingLength <= maxLogMessageLength) {
+        chunks.accept(prefixed
+            ? new StringBuilder(remainingLength).append(LOG_CONTINUATION_PREFIX)
+                .append(message, start, message.length()).toString()
+            : message.substring(start));
+        return;
+      }
+      int cutLength = logCutLength;
+      boolean cutAtNewline = false;
+      // Try to cut the string at a friendly point
+      int friendlyCutLength = message.lastIndexOf('\n', start + logCutLength - prefixLength);
+      friendlyCutLength = friendlyCutLength >= start
+          ? friendlyCutLength - start + prefixLength
+          : LOG_CONTINUATION_PREFIX.lastIndexOf('\n', prefixed ? logCutLength : -1);
+      // But only if that yields a message of reasonable length
+      if (friendlyCutLength > logCutLengthDiv10){
+        cutLength = friendlyCutLength;
+        cutAtNewline = true;
+      }
+      StringBuilder chunk = new StringBuilder(cutLength + LOG_CONTINUATION_SUFFIX_LENGTH);
+      if (prefixed) {
+        chunk.append(LOG_CONTINUATION_PREFIX, 0, Math.min(cutLength, prefixLength));
+      }
+      int end = start + cutLength - prefixLength;
+      if (end > start) {
+        chunk.append(message, start, end);
+      }
+      chunks.accept(chunk.append(LOG_CONTINUATION_SUFFIX).toString());
+      start = Math.max(end, start) + (cutAtNewline ? 1 : 0);
+      remainingLength = message.length() - start;
+      // Only prepend the continuation prefix if doing so would not push
+      // the length of the next message over the limit.
+      prefixed = remainingLength > maxLogMessageLength ||
+          remainingLength + LOG_CONTINUATION_PREFIX_LENGTH <= maxLogMessageLength;
+      if (prefixed) {
+        remainingLength += LOG_CONTINUATION_PREFIX_LENGTH;
       }
-      theList.add(new LogRecord(aRecord, nextMessage));
     }
-    return theList;
   }
 
   /**
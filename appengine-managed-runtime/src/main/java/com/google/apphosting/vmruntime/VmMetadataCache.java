@@ -41,6 +41,9 @@ public class VmMetadataCache {
   /** Maps paths to their cached values (null if a previous retrieval attempt failed). */
   private final Map<String, String> cache;
 
+  /** Number of calls to {@link #clear()}, guarded by "cache". */
+  private int generation;
+
   /** Timeout in milliseconds to retrieve data from the server. */
   private static final int TIMEOUT_MILLIS = 120 * 1000;
 
@@ -77,12 +80,32 @@ public class VmMetadataCache {
     return value;
   }
 
+  /**
+   * Returns true if the value of {@code path} is cached, including attributes missing from the
+   * server, so that {@link #getMetadata} returns the same value until the cache is cleared.
+   */
+  boolean isCached(String path) {
+    synchronized (cache) {
+      return cache.containsKey(path);
+    }
+  }
+
+  /**
+   * Returns the number of times the cache was cleared, to let callers detect stale values.
+   */
+  int getGeneration() {
+    synchronized (cache) {
+      return generation;
+    }
+  }
+
   /**
    * Clears all cached meta-data values.
    */
   public void clear() {
     synchronized (cache) {
       cache.clear();
+      generation++;
     }
   }
 
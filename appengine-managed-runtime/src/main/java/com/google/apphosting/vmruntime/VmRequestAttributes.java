@@ -0,0 +1,219 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Attributes of a {@link VmApiProxyEnvironment}, read and written concurrently by the request
+ * threads.
+ *
+ * <p>The attributes read by every API call have a dedicated slot, the other attributes are kept
+ * in a {@link ConcurrentHashMap}, so that reads never take a lock. Null keys and values are
+ * supported, like the {@link java.util.HashMap} the attributes used to be kept in. Iterators
+ * are weakly consistent and never throw {@link java.util.ConcurrentModificationException}.
+ *
+ */
+final class VmRequestAttributes extends AbstractMap<String, Object> {
+  // The attributes with a dedicated slot, in slot order.
+  private static final String[] SLOT_KEYS = {
+    VmApiProxyDelegate.API_DEADLINE_KEY,
+    VmApiProxyEnvironment.AttributeMapping.DAPPER_ID.attributeKey,
+    VmApiProxyEnvironment.AttributeMapping.CLOUD_TRACE_CONTEXT.attributeKey,
+    VmApiProxyEnvironment.REQUEST_THREAD_FACTORY_ATTR,
+  };
+
+  // Stands for null keys and values, which ConcurrentHashMap does not support. An empty slot
+  // holds null.
+  private static final Object NULL = new Object();
+
+  private final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(SLOT_KEYS.length);
+  private final ConcurrentHashMap<Object, Object> others;
+
+  /**
+   * Creates an empty attribute map.
+   *
+   * @param initialCapacity the number of attributes expected, besides the ones with a slot.
+   */
+  VmRequestAttributes(int initialCapacity) {
+    this.others = new ConcurrentHashMap<>(initialCapacity);
+  }
+
+  /**
+   * Returns the slot of {@code key}, or -1 if it is kept in the map.
+   */
+  private static int slot(Object key) {
+    for (int i = 0; i < SLOT_KEYS.length; i++) {
+      // The keys are compile-time constants, usually passed as is.
+      if (SLOT_KEYS[i] == key) {
+        return i;
+      }
+    }
+    if (key instanceof String) {
+      for (int i = 0; i < SLOT_KEYS.length; i++) {
+        if (SLOT_KEYS[i].equals(key)) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static Object mask(Object object) {
+    return object == null ? NULL : object;
+  }
+
+  private static Object unmask(Object object) {
+    return object == NULL ? null : object;
+  }
+
+  @Override
+  public Object get(Object key) {
+    int slot = slot(key);
+    return unmask(slot >= 0 ? slots.get(slot) : others.get(mask(key)));
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    int slot = slot(key);
+    return slot >= 0 ? slots.get(slot) != null : others.containsKey(mask(key));
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    int slot = slot(key);
+    return unmask(
+        slot >= 0 ? slots.getAndSet(slot, mask(value)) : others.put(mask(key), mask(value)));
+  }
+
+  @Override
+  public Object remove(Object key) {
+    int slot = slot(key);
+    return unmask(slot >= 0 ? slots.getAndSet(slot, null) : others.remove(mask(key)));
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < SLOT_KEYS.length; i++) {
+      slots.set(i, null);
+    }
+    others.clear();
+  }
+
+  @Override
+  public int size() {
+    int size = others.size();
+    for (int i = 0; i < SLOT_KEYS.length; i++) {
+      if (slots.get(i) != null) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return new AbstractSet<Entry<String, Object>>() {
+      @Override
+      public Iterator<Entry<String, Object>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return VmRequestAttributes.this.size();
+      }
+
+      @Override
+      public void clear() {
+        VmRequestAttributes.this.clear();
+      }
+    };
+  }
+
+  /**
+   * Iterates over the filled slots, then over the map. Entries write through to the attributes.
+   */
+  private final class EntryIterator implements Iterator<Entry<String, Object>> {
+    private final Iterator<Entry<Object, Object>> othersIterator = others.entrySet().iterator();
+    private int nextSlot;
+    private Entry<String, Object> next;
+    private Entry<String, Object> last;
+
+    @Override
+    public boolean hasNext() {
+      while (next == null) {
+        if (nextSlot < SLOT_KEYS.length) {
+          int slot = nextSlot++;
+          Object value = slots.get(slot);
+          if (value != null) {
+            next = new AttributeEntry(SLOT_KEYS[slot], unmask(value));
+          }
+        } else if (othersIterator.hasNext()) {
+          Entry<Object, Object> entry = othersIterator.next();
+          next = new AttributeEntry((String) unmask(entry.getKey()), unmask(entry.getValue()));
+        } else {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Entry<String, Object> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      next = null;
+      return last;
+    }
+
+    @Override
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      VmRequestAttributes.this.remove(last.getKey());
+      last = null;
+    }
+  }
+
+  private final class AttributeEntry extends SimpleEntry<String, Object> {
+    AttributeEntry(String key, Object value) {
+      super(key, value);
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      put(getKey(), value);
+      return super.setValue(value);
+    }
+  }
+}
@@ -21,6 +21,7 @@ import static com.google.appengine.repackaged.com.google.common.base.Preconditio
 
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.logging.LogContext;
 import com.google.appengine.repackaged.com.google.common.collect.ImmutableList;
 import com.google.appengine.repackaged.com.google.common.collect.Lists;
 
@@ -32,7 +33,8 @@ import java.util.logging.Logger;
 
 
 /**
- * Thread factory creating threads with a request specific thread local environment.
+ * Thread factory creating threads with a request specific thread local environment. The threads
+ * also run in the {@link LogContext} of the thread creating them.
  *
  */
 public class VmRequestThreadFactory implements ThreadFactory {
@@ -40,10 +42,13 @@ public class VmRequestThreadFactory implements ThreadFactory {
       Logger.getLogger(VmRequestThreadFactory.class.getCanonicalName());
 
   private final Environment requestEnvironment;
+  // Creates the underlying threads, null for platform threads.
+  private final ThreadFactory threadFactory;
 
-  // Accesses to createdThreads must be synchronized on "mutex".
+  // Accesses to createdThreads must be synchronized on "mutex". The list is created with the first
+  // thread, most requests do not start any.
   private final Object mutex;
-  private final List<Thread> createdThreads;
+  private List<Thread> createdThreads;
   private volatile boolean allowNewRequestThreadCreation;
 
   /**
@@ -52,9 +57,20 @@ public class VmRequestThreadFactory implements ThreadFactory {
    * @param requestEnvironment The request environment to install on each thread.
    */
   public VmRequestThreadFactory(Environment requestEnvironment) {
+    this(requestEnvironment, null);
+  }
+
+  /**
+   * Create a new VmRequestThreadFactory.
+   *
+   * @param requestEnvironment The request environment to install on each thread.
+   * @param threadFactory The factory creating the underlying threads, e.g. virtual threads, or
+   *        null to create platform threads.
+   */
+  VmRequestThreadFactory(Environment requestEnvironment, ThreadFactory threadFactory) {
     this.mutex = new Object();
     this.requestEnvironment = requestEnvironment;
-    this.createdThreads = Lists.newLinkedList();
+    this.threadFactory = threadFactory;
     this.allowNewRequestThreadCreation = true;
   }
 
@@ -72,7 +88,8 @@ public class VmRequestThreadFactory implements ThreadFactory {
   public Thread newThread(final Runnable runnable) {
     checkState(requestEnvironment != null,
         "Request threads can only be created within the context of a running request.");
-    Thread thread = new Thread(new Runnable() {
+    final LogContext logContext = LogContext.current();
+    Runnable requestRunnable = new Runnable() {
       @Override
       public void run() {
         if (runnable == null) {
@@ -81,12 +98,21 @@ public class VmRequestThreadFactory implements ThreadFactory {
         checkState(allowNewRequestThreadCreation,
             "Cannot start new threads after the request thread stops.");
         ApiProxy.setEnvironmentForCurrentThread(requestEnvironment);
-        runnable.run();
+        if (logContext != null) {
+          logContext.execute(runnable);
+        } else {
+          runnable.run();
+        }
       }
-    });
+    };
+    Thread thread = threadFactory == null
+        ? new Thread(requestRunnable) : threadFactory.newThread(requestRunnable);
     checkState(
         allowNewRequestThreadCreation, "Cannot create new threads after the request thread stops.");
     synchronized (mutex) {
+      if (createdThreads == null) {
+        createdThreads = Lists.newLinkedList();
+      }
       createdThreads.add(thread);
     }
     return thread;
@@ -97,7 +123,8 @@ public class VmRequestThreadFactory implements ThreadFactory {
    */
   public List<Thread> getRequestThreads() {
     synchronized (mutex) {
-      return ImmutableList.copyOf(createdThreads);
+      return createdThreads == null
+          ? ImmutableList.<Thread>of() : ImmutableList.copyOf(createdThreads);
     }
   }
 
@@ -107,6 +134,9 @@ public class VmRequestThreadFactory implements ThreadFactory {
   public void interruptRequestThreads() {
     allowNewRequestThreadCreation = false;
     synchronized (mutex) {
+      if (createdThreads == null) {
+        return;
+      }
       for (Thread thread : createdThreads) {
         if (thread.isAlive()) {
           logger.warning(String.format(
@@ -131,6 +161,9 @@ public class VmRequestThreadFactory implements ThreadFactory {
     long beDoneBy = System.currentTimeMillis() + millis;
     try {
       synchronized (mutex) {
+        if (createdThreads == null) {
+          return true;
+        }
         for (Thread thread : createdThreads) {
           long waitTimeLeft = System.currentTimeMillis() - beDoneBy;
           if (waitTimeLeft <= 0) {
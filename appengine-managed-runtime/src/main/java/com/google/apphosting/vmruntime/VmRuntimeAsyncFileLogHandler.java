@@ -0,0 +1,330 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.logging.StreamingJsonFormatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * An asynchronous replacement for the {@link java.util.logging.FileHandler} of
+ * {@link VmRuntimeFileLogHandler}.
+ *
+ * <p>Request threads format their records, so that the thread name and the {@code LogContext}
+ * are the ones of the caller, and queue the bytes in a bounded {@link MpscRingBuffer} without
+ * taking any lock. A single writer thread drains the ring in batches, which it writes to the
+ * log file with one gathering {@link FileChannel} write.
+ *
+ * <p>When the ring is full, the {@link OverflowPolicy} either blocks the caller until the writer
+ * catches up, or drops the record. Records are always dropped once the writer thread is gone.
+ *
+ * <p>The files are rotated like the ones of a {@code FileHandler} with the same pattern, limit and
+ * count: the current file has generation 0, and it is rotated once a record makes it reach the
+ * limit. Unlike {@code FileHandler}, no lock files are created.
+ *
+ */
+final class VmRuntimeAsyncFileLogHandler extends Handler {
+  // The maximum number of records written at once.
+  private static final int MAX_BATCH_RECORDS = 256;
+  // How long the writer sleeps when the ring is empty, if it is not woken up by a record.
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  // How long a blocked caller waits before checking the ring again.
+  private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  /**
+   * What to do with a record published while the ring is full.
+   */
+  enum OverflowPolicy {
+    /** Wait until the writer made room in the ring. */
+    BLOCK,
+    /** Drop the record, and count it in {@link #getDroppedCount}. */
+    DROP
+  }
+
+  private final String pattern;
+  private final long limit;
+  private final int count;
+  private final OverflowPolicy overflowPolicy;
+  private final MpscRingBuffer<byte[]> ring;
+  private final Thread writerThread;
+  // Set while the writer thread is about to park because the ring is empty.
+  private volatile boolean writerIdle;
+  private volatile boolean closed;
+  // Records queued, and records written or failed, for flush().
+  private final AtomicLong queuedCount = new AtomicLong();
+  private volatile long writtenCount;
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  // Only accessed by the writer thread.
+  private FileChannel channel;
+  private long size;
+  private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_RECORDS];
+
+  /**
+   * Creates a handler and starts its writer thread.
+   *
+   * @param pattern The pattern of the log file names, as for a {@code FileHandler}.
+   * @param limit The approximate maximum number of bytes written to one file, 0 for no limit.
+   * @param count The number of files to rotate through.
+   * @param capacity The maximum number of records queued for the writer thread.
+   * @param overflowPolicy What to do with the records published while the queue is full.
+   */
+  VmRuntimeAsyncFileLogHandler(String pattern, long limit, int count, int capacity,
+      OverflowPolicy overflowPolicy) throws IOException {
+    if (limit < 0 || count < 1) {
+      throw new IllegalArgumentException("Invalid limit or count: " + limit + ", " + count);
+    }
+    this.pattern = pattern;
+    this.limit = limit;
+    this.count = count;
+    this.overflowPolicy = overflowPolicy;
+    this.ring = new MpscRingBuffer<>(capacity);
+    setLevel(Level.FINEST);
+    setFormatter(new StreamingJsonFormatter());
+
+    // Continue the current file if it is not full, as a FileHandler in append mode does.
+    File current = generationFile(0);
+    if (limit == 0 || current.length() < limit) {
+      open(current, true);
+    } else {
+      rotate();
+    }
+    writerThread = new Thread(this::writeRecords, "AppLogFileWriter");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Returns the file of a generation, substituting the pattern like a {@code FileHandler} without
+   * unique numbers does.
+   */
+  File generationFile(int generation) {
+    StringBuilder name = new StringBuilder();
+    boolean sawGeneration = false;
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c == '%' && i + 1 < pattern.length()) {
+        char next = pattern.charAt(++i);
+        switch (next) {
+          case 't':
+            name.append(System.getProperty("java.io.tmpdir"));
+            continue;
+          case 'h':
+            name.append(System.getProperty("user.home"));
+            continue;
+          case 'g':
+            name.append(generation);
+            sawGeneration = true;
+            continue;
+          case 'u':
+            name.append(0);
+            continue;
+          case '%':
+            name.append('%');
+            continue;
+          default:
+            name.append('%');
+            break;
+        }
+        c = next;
+      }
+      name.append(c);
+    }
+    if (count > 1 && !sawGeneration) {
+      name.append('.').append(generation);
+    }
+    return new File(name.toString());
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) {
+      return;
+    }
+    byte[] bytes;
+    try {
+      Formatter formatter = getFormatter();
+      bytes = formatter instanceof StreamingJsonFormatter
+          ? ((StreamingJsonFormatter) formatter).formatBytes(record)
+          : formatter.format(record).getBytes(StandardCharsets.UTF_8);
+    } catch (Exception ex) {
+      reportError(null, ex, ErrorManager.FORMAT_FAILURE);
+      return;
+    }
+    while (!ring.offer(bytes)) {
+      // Nobody would make room once the writer is gone.
+      if (overflowPolicy == OverflowPolicy.DROP || closed || !writerThread.isAlive()) {
+        droppedCount.incrementAndGet();
+        return;
+      }
+      LockSupport.unpark(writerThread);
+      LockSupport.parkNanos(FULL_PARK_NANOS);
+    }
+    queuedCount.incrementAndGet();
+    if (writerIdle) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  /**
+   * Waits until the records published before the call are written to the file.
+   */
+  @Override
+  public void flush() {
+    long target = queuedCount.get();
+    while (writtenCount < target && writerThread.isAlive()) {
+      LockSupport.unpark(writerThread);
+      LockSupport.parkNanos(FULL_PARK_NANOS);
+    }
+  }
+
+  /**
+   * Writes the queued records, stops the writer thread and closes the file.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writerThread);
+    boolean interrupted = false;
+    while (writerThread.isAlive()) {
+      try {
+        writerThread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the number of records dropped because the queue was full.
+   */
+  long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  private void writeRecords() {
+    while (true) {
+      int records = 0;
+      long batchBytes = 0;
+      byte[] bytes;
+      while (records < MAX_BATCH_RECORDS && (bytes = ring.poll()) != null) {
+        batch[records++] = ByteBuffer.wrap(bytes);
+        batchBytes += bytes.length;
+        // Rotate after the record reaching the limit, as FileHandler does.
+        if (limit > 0 && size + batchBytes >= limit) {
+          break;
+        }
+      }
+      if (records > 0) {
+        write(records, batchBytes);
+        continue;
+      }
+      if (closed) {
+        // Closing after draining the ring, a publish() racing with close() may be lost.
+        closeChannel();
+        return;
+      }
+      writerIdle = true;
+      if (ring.isEmpty()) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+      writerIdle = false;
+    }
+  }
+
+  private void write(int records, long batchBytes) {
+    try {
+      if (channel == null) {
+        throw new IOException("No log file is open");
+      }
+      int offset = 0;
+      while (offset < records) {
+        channel.write(batch, offset, records - offset);
+        while (offset < records && !batch[offset].hasRemaining()) {
+          offset++;
+        }
+      }
+      size += batchBytes;
+      if (limit > 0 && size >= limit) {
+        rotate();
+      }
+    } catch (IOException | RuntimeException ex) {
+      // Keep the writer running, the next batches may still be written.
+      reportError(null, ex, ErrorManager.WRITE_FAILURE);
+    } finally {
+      for (int i = 0; i < records; i++) {
+        batch[i] = null;
+      }
+      writtenCount += records;
+    }
+  }
+
+  /**
+   * Renames generation i to i + 1, dropping the last one, and opens a new file of generation 0.
+   */
+  private void rotate() throws IOException {
+    closeChannel();
+    for (int i = count - 2; i >= 0; i--) {
+      File from = generationFile(i);
+      File to = generationFile(i + 1);
+      if (from.exists()) {
+        if (to.exists()) {
+          to.delete();
+        }
+        from.renameTo(to);
+      }
+    }
+    open(generationFile(0), false);
+  }
+
+  private void open(File file, boolean append) throws IOException {
+    channel = append
+        ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND)
+        : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    size = append ? channel.size() : 0;
+  }
+
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+      }
+      channel = null;
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.google.apphosting.vmruntime;
 
 import com.google.apphosting.logging.JsonFormatter;
+import com.google.apphosting.logging.StreamingJsonFormatter;
 
 import java.io.IOException;
 import java.util.logging.FileHandler;
@@ -38,16 +39,30 @@ public class VmRuntimeFileLogHandler extends FileHandler {
   private static final String DEFAULT_LOG_PATTERN = "/var/log/app_engine/app.%g.log.json";
   private static final String APP_ENGINE_LOG_CONFIG_PATTERN_ENV =
       "APP_ENGINE_LOG_CONFIG_PATTERN";
-  private static final int LOG_MAX_SIZE = 100 * 1024 * 1024;
-  private static final int LOG_MAX_FILES = 3;
+  static final int LOG_MAX_SIZE = 100 * 1024 * 1024;
+  static final int LOG_MAX_FILES = 3;
+  // Format the records with StreamingJsonFormatter, which does not use Gson nor a global lock.
+  static final String STREAMING_FORMATTER_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeFileLogHandler.streamingFormatter";
+  // Write the log file from a background thread, with VmRuntimeAsyncFileLogHandler.
+  static final String ASYNC_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeFileLogHandler.async";
+  // The number of records queued for the background thread.
+  static final String ASYNC_CAPACITY_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeFileLogHandler.asyncCapacity";
+  private static final int DEFAULT_ASYNC_CAPACITY = 8192;
+  // "block" to wait for the background thread when the queue is full, or "drop".
+  static final String ASYNC_OVERFLOW_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeFileLogHandler.asyncOverflow";
 
   private VmRuntimeFileLogHandler() throws IOException {
     super(fileLogPattern(), LOG_MAX_SIZE, LOG_MAX_FILES, true);
     setLevel(Level.FINEST);
-    setFormatter(new JsonFormatter());
+    setFormatter(Boolean.getBoolean(STREAMING_FORMATTER_PROPERTY)
+        ? new StreamingJsonFormatter() : new JsonFormatter());
   }
 
-  private static String fileLogPattern() {
+  static String fileLogPattern() {
     String pattern = System.getenv(APP_ENGINE_LOG_CONFIG_PATTERN_ENV);
     // For Cloud SDK usage only for local Jetty processes.
     if (pattern != null) {
@@ -61,15 +76,26 @@ public class VmRuntimeFileLogHandler extends FileHandler {
   }
 
   /**
-   * Initialize the {@code VmRuntimeFileLogHandler} by installing it on the root logger.
+   * Initialize the {@code VmRuntimeFileLogHandler} by installing it on the root logger, or a
+   * {@link VmRuntimeAsyncFileLogHandler} writing the same files if {@value #ASYNC_PROPERTY} is
+   * set.
    */
   public static void init() throws IOException {
     Logger rootLogger = Logger.getLogger("");
     for (Handler handler : rootLogger.getHandlers()) {
-      if (handler instanceof VmRuntimeFileLogHandler) {
+      if (handler instanceof VmRuntimeFileLogHandler
+          || handler instanceof VmRuntimeAsyncFileLogHandler) {
         return; // Already installed.
       }
     }
-    rootLogger.addHandler(new VmRuntimeFileLogHandler());
+    if (Boolean.getBoolean(ASYNC_PROPERTY)) {
+      rootLogger.addHandler(new VmRuntimeAsyncFileLogHandler(fileLogPattern(), LOG_MAX_SIZE,
+          LOG_MAX_FILES, Integer.getInteger(ASYNC_CAPACITY_PROPERTY, DEFAULT_ASYNC_CAPACITY),
+          "drop".equalsIgnoreCase(System.getProperty(ASYNC_OVERFLOW_PROPERTY))
+              ? VmRuntimeAsyncFileLogHandler.OverflowPolicy.DROP
+              : VmRuntimeAsyncFileLogHandler.OverflowPolicy.BLOCK));
+    } else {
+      rootLogger.addHandler(new VmRuntimeFileLogHandler());
+    }
   }
 }
@@ -22,7 +22,10 @@ import com.google.apphosting.api.ApiProxy.Environment;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.Writer;
+import java.text.MessageFormat;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
 import java.util.logging.ErrorManager;
 import java.util.logging.Filter;
 import java.util.logging.Formatter;
@@ -42,9 +45,33 @@ public class VmRuntimeLogHandler extends Handler {
   
   public static final String JAVA_UTIL_LOGGING_CONFIG_PROPERTY = "java.util.logging.config.file";
 
+  // Minimum levels of the records forwarded to the logging API per logger name prefix, such as
+  // "org.eclipse.jetty=INFO,com.google.apphosting=WARNING". Read from the system properties, which
+  // may be set in appengine-web.xml, or from logging.properties.
+  static final String LEVELS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeLogHandler.levels";
+
+  // Records per second logged from each call site, per level, such as "INFO=100,FINE=10". See
+  // LogRateLimiter, read like the levels.
+  static final String RATE_LIMITS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeLogHandler.rateLimits";
+
   private static final Logger ROOT_LOGGER = Logger.getLogger("");
 
-  private VmRuntimeLogHandler() {
+  private final LoggerLevelTable levels;
+  private final LogRateLimiter rateLimiter;
+
+  VmRuntimeLogHandler() {
+    this(LoggerLevelTable.EMPTY, LogRateLimiter.UNLIMITED);
+  }
+
+  VmRuntimeLogHandler(LoggerLevelTable levels) {
+    this(levels, LogRateLimiter.UNLIMITED);
+  }
+
+  VmRuntimeLogHandler(LoggerLevelTable levels, LogRateLimiter rateLimiter) {
+    this.levels = levels;
+    this.rateLimiter = rateLimiter;
     setLevel(Level.FINEST);
     setFilter(new ApiProxyLogFilter());
     setFormatter(new CustomFormatter());
@@ -65,6 +92,47 @@ public class VmRuntimeLogHandler extends Handler {
     }
   }
 
+  /**
+   * Reads the level table from the {@value #LEVELS_PROPERTY} system property, or from the
+   * logging properties.
+   */
+  private static LoggerLevelTable readLevels(LogManager logManager) {
+    String spec = readProperty(logManager, LEVELS_PROPERTY);
+    if (spec == null) {
+      return LoggerLevelTable.EMPTY;
+    }
+    try {
+      return LoggerLevelTable.parse(spec);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Warning: ignoring invalid " + LEVELS_PROPERTY + ".");
+      System.err.println(e.getClass().getName() + ": " + e.getMessage());
+      return LoggerLevelTable.EMPTY;
+    }
+  }
+
+  /**
+   * Reads the rate limits from the {@value #RATE_LIMITS_PROPERTY} system property, or from the
+   * logging properties.
+   */
+  private static LogRateLimiter readRateLimits(LogManager logManager) {
+    String spec = readProperty(logManager, RATE_LIMITS_PROPERTY);
+    if (spec == null) {
+      return LogRateLimiter.UNLIMITED;
+    }
+    try {
+      return LogRateLimiter.parse(spec);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Warning: ignoring invalid " + RATE_LIMITS_PROPERTY + ".");
+      System.err.println(e.getClass().getName() + ": " + e.getMessage());
+      return LogRateLimiter.UNLIMITED;
+    }
+  }
+
+  private static String readProperty(LogManager logManager, String name) {
+    String value = System.getProperty(name);
+    return value != null ? value : logManager.getProperty(name);
+  }
+
   /**
    * Test-only init method to allow unit test to use a custom logManager.
    *
@@ -78,7 +146,8 @@ public class VmRuntimeLogHandler extends Handler {
         return; // Already installed.
       }
     }
-    ROOT_LOGGER.addHandler(new VmRuntimeLogHandler());
+    ROOT_LOGGER.addHandler(
+        new VmRuntimeLogHandler(readLevels(logManager), readRateLimits(logManager)));
   }
 
   /**
@@ -92,27 +161,76 @@ public class VmRuntimeLogHandler extends Handler {
 
   @Override
   public void publish(LogRecord record) {
-    if (!isLoggable(record)) {
+    // Reject the records below the level of their logger first, it is the cheapest check.
+    if (!levels.isLoggable(record.getLoggerName(), record.getLevel()) || !isLoggable(record)) {
+      return;
+    }
+    // Records logged outside of a request have nowhere to go, don't format them.
+    VmApiProxyEnvironment environment = getThreadLocalEnvironment();
+    if (environment == null) {
       return;
     }
+    // Suppress the storms of records from a call site before they cost formatting and flushes.
+    if (!rateLimiter.isEmpty()) {
+      long suppressed = rateLimiter.acquire(record, environment, System.nanoTime());
+      if (suppressed < 0) {
+        return;
+      }
+      if (suppressed > 0) {
+        environment.addLogRecord(createSuppressedSummary(LogRateLimiter.describeCallSite(
+            record.getLoggerName(), record.getSourceClassName(), record.getSourceMethodName()),
+            record.getLevel(), record.getMillis(), suppressed));
+      }
+    }
 
-    // The formatter isn't necessarily thread-safe, so we synchronize around it.
+    // The formatter isn't necessarily thread-safe, so we synchronize around it, unless it is
+    // our own thread-confined formatter. The only lock then is the one of the request's logs.
     String message;
-    synchronized (this) {
-      try {
-        message = getFormatter().format(record);
-      } catch (Exception ex) {
-        // We don't want to throw an exception here, but we
-        // report the exception to any registered ErrorManager.
-        reportError(null, ex, ErrorManager.FORMAT_FAILURE);
-        return;
+    Formatter formatter = getFormatter();
+    try {
+      if (formatter instanceof CustomFormatter) {
+        message = formatter.format(record);
+      } else {
+        synchronized (this) {
+          message = formatter.format(record);
+        }
       }
+    } catch (Exception ex) {
+      // We don't want to throw an exception here, but we
+      // report the exception to any registered ErrorManager.
+      reportError(null, ex, ErrorManager.FORMAT_FAILURE);
+      return;
     }
 
-    VmApiProxyEnvironment environment = getThreadLocalEnvironment();
-    if (environment != null) {
-      environment.addLogRecord(convertLogRecord(record, message));
+    environment.addLogRecord(convertLogRecord(record, message));
+  }
+
+  private ApiProxy.LogRecord createSuppressedSummary(
+      String callSite, Level level, long millis, long suppressed) {
+    return new ApiProxy.LogRecord(convertLogLevel(level), millis * 1000, "Suppressed "
+        + suppressed + " log records of " + callSite + " over the rate limit.\n");
+  }
+
+  /**
+   * Logs the summaries of the records suppressed by the rate limits that the request was the
+   * last to hit, before its logs are flushed for the last time.
+   */
+  public static void logSuppressedRecords(VmApiProxyEnvironment environment) {
+    for (Handler handler : ROOT_LOGGER.getHandlers()) {
+      if (handler instanceof VmRuntimeLogHandler) {
+        ((VmRuntimeLogHandler) handler).logSuppressedRecordsOf(environment);
+      }
+    }
+  }
+
+  void logSuppressedRecordsOf(VmApiProxyEnvironment environment) {
+    if (rateLimiter.isEmpty()) {
+      return;
     }
+    long millis = System.currentTimeMillis();
+    rateLimiter.drainSuppressed(environment, System.nanoTime(),
+        (callSite, level, suppressed) -> environment.addLogRecord(
+            createSuppressedSummary(callSite, level, millis, suppressed)));
   }
 
   private ApiProxy.LogRecord convertLogRecord(LogRecord record, String message) {
@@ -195,39 +313,122 @@ public class VmRuntimeLogHandler extends Handler {
 
   }
 
+  /**
+   * Formats the records of each thread into a builder reused by the thread, without locking.
+   */
   private static final class CustomFormatter extends Formatter {
+    // A builder grown by a huge record is not kept by the thread.
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilderWriter> threadBuilder =
+        ThreadLocal.withInitial(StringBuilderWriter::new);
+
     /**
      * Format the given LogRecord.
      * @param record the log record to be formatted.
      * @return a formatted log record
      */
     @Override
-    public synchronized String format(LogRecord record) {
-      StringBuffer sb = new StringBuffer();
-      if (record.getSourceClassName() != null) {
-        sb.append(record.getSourceClassName());
-      } else {
-        sb.append(record.getLoggerName());
+    public String format(LogRecord record) {
+      StringBuilderWriter writer = threadBuilder.get();
+      if (writer.inUse) {
+        // The message parameters log when they are converted to strings.
+        writer = new StringBuilderWriter();
       }
-      if (record.getSourceMethodName() != null) {
-        sb.append(" ");
-        sb.append(record.getSourceMethodName());
+      writer.inUse = true;
+      StringBuilder sb = writer.builder;
+      try {
+        if (record.getSourceClassName() != null) {
+          sb.append(record.getSourceClassName());
+        } else {
+          sb.append(record.getLoggerName());
+        }
+        if (record.getSourceMethodName() != null) {
+          sb.append(" ");
+          sb.append(record.getSourceMethodName());
+        }
+        sb.append(": ");
+        String message = formatMessage(record);
+        sb.append(message);
+        sb.append("\n");
+        if (record.getThrown() != null) {
+          int length = sb.length();
+          try {
+            record.getThrown().printStackTrace(writer.printWriter);
+          } catch (Exception ex) {
+            sb.setLength(length);
+          }
+        }
+        return sb.toString();
+      } finally {
+        writer.inUse = false;
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+          writer.builder = new StringBuilder();
+        } else {
+          sb.setLength(0);
+        }
       }
-      sb.append(": ");
-      String message = formatMessage(record);
-      sb.append(message);
-      sb.append("\n");
-      if (record.getThrown() != null) {
+    }
+
+    /**
+     * Localizes and formats the message like {@link Formatter#formatMessage}, without its lock.
+     */
+    @Override
+    public String formatMessage(LogRecord record) {
+      String format = record.getMessage();
+      ResourceBundle catalog = record.getResourceBundle();
+      if (catalog != null) {
         try {
-          StringWriter sw = new StringWriter();
-          PrintWriter pw = new PrintWriter(sw);
-          record.getThrown().printStackTrace(pw);
-          pw.close();
-          sb.append(sw.toString());
-        } catch (Exception ex) {
+          format = catalog.getString(format);
+        } catch (MissingResourceException ex) {
+          // Use the message itself.
+        }
+      }
+      try {
+        Object[] parameters = record.getParameters();
+        if (parameters == null || parameters.length == 0) {
+          return format;
+        }
+        if (format.indexOf("{0") >= 0 || format.indexOf("{1") >= 0
+            || format.indexOf("{2") >= 0 || format.indexOf("{3") >= 0) {
+          return MessageFormat.format(format, parameters);
         }
+        return format;
+      } catch (Exception ex) {
+        return format;
       }
-      return sb.toString();
+    }
+  }
+
+  /**
+   * A Writer appending to the builder of a thread, to print stack traces into it.
+   */
+  private static final class StringBuilderWriter extends Writer {
+    StringBuilder builder = new StringBuilder();
+    boolean inUse;
+    final PrintWriter printWriter = new PrintWriter(this);
+
+    @Override
+    public void write(int c) {
+      builder.append((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      builder.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      builder.append(str, off, off + len);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
     }
   }
 }
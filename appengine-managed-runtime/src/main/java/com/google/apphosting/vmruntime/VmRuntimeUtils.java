@@ -99,13 +99,15 @@ public class VmRuntimeUtils {
   /**
    * Initiates a synchronous log flush and inserts the flush count header into the response. The
    * header is added so that the appserver can know when all log API calls are completed and can
-   * delay the request accordingly.
+   * delay the request accordingly. The summaries of the records suppressed by the rate limits are
+   * logged first.
    *
    * @param response The response to add the flush count header to.
    * @param requestSpecificEnvironment The environment used by the request.
    */
   public static void flushLogsAndAddHeader(
       HttpResponse response, VmApiProxyEnvironment requestSpecificEnvironment) {
+    VmRuntimeLogHandler.logSuppressedRecords(requestSpecificEnvironment);
     int flushCount = requestSpecificEnvironment.flushLogs();
     response.setHeader(VmRuntimeUtils.LOG_FLUSH_COUNTER_HEADER, Integer.toString(flushCount));
   }
@@ -153,6 +155,7 @@ public class VmRuntimeUtils {
         System.setProperty(entry.getKey(), entry.getValue());
       }
     }
+    VmVirtualThreads.configure(appEngineWebXml);
   }
 
   /**
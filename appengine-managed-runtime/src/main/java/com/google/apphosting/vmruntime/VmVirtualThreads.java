@@ -0,0 +1,131 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.utils.config.AppEngineWebXml;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Virtual thread mode: request threads and async API calls run on virtual threads.
+ *
+ * <p>The mode is enabled by the {@value #PROPERTY} system property, or by the
+ * {@value #BETA_SETTING} beta setting of appengine-web.xml. Virtual threads are created through
+ * reflection, as the runtime is built for Java 8; the mode has no effect before Java 21.
+ *
+ */
+final class VmVirtualThreads {
+  private static final Logger logger = Logger.getLogger(VmVirtualThreads.class.getName());
+
+  static final String PROPERTY = "com.google.apphosting.vmruntime.virtualThreads";
+  static final String BETA_SETTING = "java_virtual_threads";
+
+  private static volatile boolean enabled = Boolean.getBoolean(PROPERTY);
+
+  private VmVirtualThreads() {
+  }
+
+  /**
+   * Enables the mode if it is selected by {@code appEngineWebXml} or by the system properties,
+   * which must be installed first.
+   */
+  static void configure(AppEngineWebXml appEngineWebXml) {
+    if (appEngineWebXml != null
+        && Boolean.parseBoolean(appEngineWebXml.getBetaSettings().get(BETA_SETTING))) {
+      System.setProperty(PROPERTY, "true");
+    }
+    enabled = Boolean.getBoolean(PROPERTY);
+    if (enabled && !Support.AVAILABLE) {
+      logger.warning("Virtual threads require Java 21 or later, using platform threads.");
+    }
+  }
+
+  static boolean isEnabled() {
+    return enabled && Support.AVAILABLE;
+  }
+
+  /**
+   * Returns the factory of the threads created by request code, or null to use platform threads.
+   */
+  static ThreadFactory getRequestThreadFactory() {
+    return isEnabled() ? Support.REQUEST_THREAD_FACTORY : null;
+  }
+
+  /**
+   * Returns an executor running each task on a new virtual thread, or null if virtual threads
+   * are not available.
+   */
+  static ExecutorService newApiCallExecutor() {
+    ThreadFactory factory = Support.newFactory("ApiCall-");
+    if (factory == null) {
+      return null;
+    }
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+          .invoke(null, factory);
+    } catch (ReflectiveOperationException e) {
+      logger.log(Level.WARNING, "Unable to create a virtual thread executor", e);
+      return null;
+    }
+  }
+
+  /**
+   * Looks up the virtual thread API when the mode is first used.
+   */
+  private static final class Support {
+    // Thread.ofVirtual(), Thread.Builder.name(String, long) and Thread.Builder.factory(), or
+    // null before Java 21.
+    private static final Method[] METHODS = lookUp();
+    static final ThreadFactory REQUEST_THREAD_FACTORY = newFactory("RequestThread-");
+    static final boolean AVAILABLE = REQUEST_THREAD_FACTORY != null;
+
+    private static Method[] lookUp() {
+      try {
+        Class<?> builder = Class.forName("java.lang.Thread$Builder");
+        return new Method[] {
+            Thread.class.getMethod("ofVirtual"),
+            builder.getMethod("name", String.class, long.class),
+            builder.getMethod("factory")};
+      } catch (ClassNotFoundException | NoSuchMethodException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Returns a factory of virtual threads named {@code prefix} followed by a counter, or null if
+     * virtual threads are not available.
+     */
+    static ThreadFactory newFactory(String prefix) {
+      if (METHODS == null) {
+        return null;
+      }
+      try {
+        Object builder = METHODS[1].invoke(METHODS[0].invoke(null), prefix, 0L);
+        return (ThreadFactory) METHODS[2].invoke(builder);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to create virtual threads", e);
+        return null;
+      }
+    }
+  }
+}
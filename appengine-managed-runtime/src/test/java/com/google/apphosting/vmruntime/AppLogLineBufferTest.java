@@ -0,0 +1,88 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.logservice.LogServicePb.FlushRequest;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogGroup;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests that {@link AppLogLineBuffer} encodes the same bytes as the protobuf messages.
+ *
+ */
+public class AppLogLineBufferTest extends TestCase {
+  private final AppLogLineBuffer buffer = new AppLogLineBuffer();
+  private final UserAppLogGroup group = new UserAppLogGroup();
+
+  private void append(long timestampUsec, LogRecord.Level level, String message) {
+    UserAppLogLine logLine = new UserAppLogLine();
+    logLine.setTimestampUsec(timestampUsec);
+    logLine.setLevel(level.ordinal());
+    logLine.setMessage(message);
+    group.addLogLine(logLine);
+
+    int byteCount = buffer.getByteCount();
+    int messageLength = AppLogLineBuffer.encodedLength(message);
+    buffer.append(timestampUsec, level.ordinal(), message, messageLength);
+    assertEquals(AppLogLineBuffer.lineSize(timestampUsec, level.ordinal(), messageLength),
+        buffer.getByteCount() - byteCount);
+    assertEquals(group.toByteArray().length, buffer.getByteCount());
+  }
+
+  private void assertFlushRequest() {
+    FlushRequest request = new FlushRequest();
+    request.setLogsAsBytes(group.toByteArray());
+    assertTrue(Arrays.equals(request.toByteArray(), buffer.toFlushRequest()));
+    assertTrue(buffer.isEmpty());
+    group.clear();
+  }
+
+  public void testAppend() {
+    assertTrue(buffer.isEmpty());
+    append(1000L, LogRecord.Level.info, "message");
+    append(0L, LogRecord.Level.debug, "");
+    append(-1L, LogRecord.Level.fatal, "negative timestamp");
+    append(System.currentTimeMillis() * 1000, LogRecord.Level.warn, "now");
+    assertFalse(buffer.isEmpty());
+    assertFlushRequest();
+  }
+
+  public void testAppend_Unicode() {
+    append(1L, LogRecord.Level.info, "caf\u00e9 \u20ac \ud83d\ude00 \u0800 \u07ff");
+    // Unpaired surrogates.
+    append(2L, LogRecord.Level.info, "\ud83d x \ude00 \ud83d");
+    assertFlushRequest();
+  }
+
+  public void testAppend_LongMessages() {
+    char[] message = new char[100000];
+    Arrays.fill(message, 'x');
+    for (int i = 0; i < 30; i++) {
+      append(i, LogRecord.Level.error, new String(message, 0, i * 3000));
+    }
+    assertFlushRequest();
+    // The buffer is reused after a flush.
+    append(1L, LogRecord.Level.info, "after flush");
+    assertFlushRequest();
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ByteArrayPool}.
+ *
+ */
+public class ByteArrayPoolTest extends TestCase {
+
+  public void testReusesReleasedArrays() {
+    ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+    byte[] buffer = pool.acquire(100);
+    assertEquals(ByteArrayPool.MIN_BUFFER_SIZE, buffer.length);
+    pool.release(buffer);
+    assertEquals(buffer.length, pool.getRetainedBytes());
+    assertSame(buffer, pool.acquire(ByteArrayPool.MIN_BUFFER_SIZE));
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  public void testTooSmallArrayIsKept() {
+    ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+    byte[] small = pool.acquire(100);
+    pool.release(small);
+    byte[] large = pool.acquire(3 * ByteArrayPool.MIN_BUFFER_SIZE);
+    assertEquals(3 * ByteArrayPool.MIN_BUFFER_SIZE, large.length);
+    assertEquals(small.length, pool.getRetainedBytes());
+    assertSame(small, pool.acquire(100));
+  }
+
+  public void testBoundedByRetainedBytes() {
+    ByteArrayPool pool = new ByteArrayPool(64 * 1024);
+    // Larger than a quarter of the budget.
+    pool.release(new byte[16 * 1024 + 1]);
+    assertEquals(0, pool.getRetainedBytes());
+    for (int i = 0; i < 10; i++) {
+      pool.release(new byte[16 * 1024]);
+    }
+    assertEquals(64 * 1024, pool.getRetainedBytes());
+  }
+}
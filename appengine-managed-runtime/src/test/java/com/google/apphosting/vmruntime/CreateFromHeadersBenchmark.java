@@ -0,0 +1,123 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.appengine.repackaged.com.google.common.collect.ImmutableMap;
+import com.google.apphosting.runtime.timer.Timer;
+import com.google.apphosting.utils.servlet.HttpServletRequestAdapter;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.server.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+
+/**
+ * Measures the per-request setup of {@code VmRuntimeWebAppContext.doScope}: creating the
+ * environment of a request from its headers. Build with
+ * {@code mvn clean test-compile -Dbenchmarks}, run {@link #main} and compare the throughput and
+ * {@code gc.alloc.rate.norm}, the bytes allocated per request.
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class CreateFromHeadersBenchmark {
+  private static final String SERVER = "appengine.googleapis.internal:10001";
+
+  /** Metadata server answering every path, as the metadata of a production VM. */
+  private static class FakeMetadataCache extends VmMetadataCache {
+    @Override
+    protected String getMetadataFromServer(String path) {
+      return "metadata-" + path.hashCode();
+    }
+  }
+
+  private Map<String, String> envMap;
+  private VmMetadataCache metadataCache;
+  private Timer wallTimer;
+  private VmApiProxyEnvironment defaultEnvironment;
+  private HttpServletRequestAdapter request;
+
+  @Setup
+  public void setUp() {
+    // GAE_MODULE_INSTANCE is not set in production, the instance is read from the metadata.
+    envMap = ImmutableMap.<String, String>builder()
+        .put(VmApiProxyEnvironment.LONG_APP_ID_KEY, "benchmark")
+        .put(VmApiProxyEnvironment.PARTITION_KEY, "s")
+        .put(VmApiProxyEnvironment.MODULE_NAME_KEY, "default")
+        .put(VmApiProxyEnvironment.VERSION_KEY, "v1")
+        .put(VmApiProxyEnvironment.MINOR_VERSION_KEY, "123456")
+        .put(VmApiProxyEnvironment.AFFINITY_ENV_KEY, "false")
+        .put(VmApiProxyEnvironment.APPENGINE_HOSTNAME_KEY, "benchmark.appspot.com")
+        .put(VmApiProxyEnvironment.USE_MVM_AGENT_KEY, "false")
+        .build();
+    metadataCache = new FakeMetadataCache();
+    wallTimer = new VmTimer();
+    defaultEnvironment = VmApiProxyEnvironment.createDefaultContext(
+        envMap, metadataCache, SERVER, wallTimer, 86400000L, null);
+
+    // The headers of a typical request forwarded by the App Engine front-end.
+    HttpFields fields = new HttpFields();
+    fields.add("Host", "benchmark.appspot.com");
+    fields.add("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36");
+    fields.add("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+    fields.add("Accept-Encoding", "gzip, deflate");
+    fields.add("Accept-Language", "en-US,en;q=0.5");
+    fields.add("X-Forwarded-For", "203.0.113.7");
+    fields.add("X-AppEngine-Country", "US");
+    fields.add("X-AppEngine-Api-Ticket", "s~benchmark/v1.123456/0/abcdef0123456789");
+    fields.add("X-AppEngine-Request-Log-Id", "5e7f0a8b00ff0123456789abcdef");
+    fields.add("X-AppEngine-Default-Version-Hostname", "benchmark.appspot.com");
+    fields.add("X-AppEngine-Datacenter", "us1");
+    fields.add("X-Cloud-Trace-Context", "105445aa7843bc8bf206b12000100000/1;o=1");
+    fields.add("X-AppEngine-Https", "on");
+    fields.add("X-AppEngine-User-IP", "203.0.113.7");
+    Request jettyRequest = new Request(null, null);
+    jettyRequest.setMetaData(new MetaData.Request(
+        "GET", new HttpURI("http://benchmark.appspot.com/"), HttpVersion.HTTP_1_1, fields));
+    request = new HttpServletRequestAdapter(jettyRequest);
+  }
+
+  @Benchmark
+  public VmApiProxyEnvironment createFromHeaders() {
+    return VmApiProxyEnvironment.createFromHeaders(envMap, metadataCache, request, SERVER,
+        wallTimer, 86400000L, defaultEnvironment);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(CreateFromHeadersBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.appengine.repackaged.com.google.common.collect.ImmutableMap;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerPNames;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the allocations of building the HTTP request of one API call, when everything is
+ * built per call and with {@link VmApiProxyDelegate#createRequest}. Build with
+ * {@code mvn clean test-compile -Dbenchmarks}, run {@link #main} and compare
+ * {@code gc.alloc.rate.norm}, the bytes allocated per call.
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class CreateRequestBenchmark {
+  private static final String PACKAGE = "datastore_v3";
+  private static final String METHOD = "Get";
+  private static final int TIMEOUT_MS = 5000;
+
+  private final byte[] requestData = new byte[128];
+  private VmApiProxyEnvironment environment;
+
+  @Setup
+  public void setUp() {
+    environment = VmApiProxyEnvironment.createDefaultContext(
+        ImmutableMap.<String, String>builder()
+            .put(VmApiProxyEnvironment.LONG_APP_ID_KEY, "s~benchmark")
+            .put(VmApiProxyEnvironment.PARTITION_KEY, "s")
+            .put(VmApiProxyEnvironment.MODULE_NAME_KEY, "default")
+            .put(VmApiProxyEnvironment.VERSION_KEY, "v1")
+            .put(VmApiProxyEnvironment.MINOR_VERSION_KEY, "1")
+            .put(VmApiProxyEnvironment.INSTANCE_KEY, "0")
+            .put(VmApiProxyEnvironment.AFFINITY_ENV_KEY, "false")
+            .put(VmApiProxyEnvironment.APPENGINE_HOSTNAME_KEY, "benchmark.appspot.com")
+            .put(VmApiProxyEnvironment.USE_MVM_AGENT_KEY, "false")
+            .build(),
+        null, "appengine.googleapis.internal:10001", null, null, null);
+  }
+
+  @Benchmark
+  public HttpPost perCall() {
+    HttpPost request = new HttpPost(
+        "http://" + environment.getServer() + VmApiProxyDelegate.REQUEST_ENDPOINT);
+    request.setHeader(
+        VmApiProxyDelegate.RPC_STUB_ID_HEADER, VmApiProxyDelegate.REQUEST_STUB_ID);
+    request.setHeader(
+        VmApiProxyDelegate.RPC_METHOD_HEADER, VmApiProxyDelegate.REQUEST_STUB_METHOD);
+
+    HttpParams params = new BasicHttpParams();
+    params.setLongParameter(ConnManagerPNames.TIMEOUT,
+        TIMEOUT_MS + VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+    params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,
+        TIMEOUT_MS + VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+    params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT,
+        TIMEOUT_MS + VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+    params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, Boolean.TRUE);
+    params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, Boolean.FALSE);
+    request.setParams(params);
+
+    request.setHeader(VmApiProxyDelegate.RPC_DEADLINE_HEADER,
+        Double.toString(TimeUnit.SECONDS.convert(TIMEOUT_MS, TimeUnit.MILLISECONDS)));
+    request.setEntity(RemoteApiCodec.encodeRequest(
+        PACKAGE, METHOD, environment.getTicket(), requestData));
+    return request;
+  }
+
+  @Benchmark
+  public HttpPost createRequest() {
+    return VmApiProxyDelegate.createRequest(
+        environment, PACKAGE, METHOD, requestData, TIMEOUT_MS);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(CreateRequestBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build())
+        .run();
+  }
+}
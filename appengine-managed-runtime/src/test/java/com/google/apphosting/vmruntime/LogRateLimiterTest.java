@@ -0,0 +1,151 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Tests for {@link LogRateLimiter}.
+ *
+ */
+public class LogRateLimiterTest extends TestCase {
+  private static final long START = 1000;
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private static LogRecord record(Level level, String sourceMethodName) {
+    LogRecord record = new LogRecord(level, "message");
+    record.setLoggerName("logger");
+    record.setSourceClassName("class");
+    record.setSourceMethodName(sourceMethodName);
+    return record;
+  }
+
+  private static int admitted(LogRateLimiter limiter, LogRecord record, int count, long now) {
+    int admitted = 0;
+    for (int i = 0; i < count; i++) {
+      if (limiter.acquire(record, null, now) >= 0) {
+        admitted++;
+      }
+    }
+    return admitted;
+  }
+
+  public void testBurstThenRate() {
+    LogRateLimiter limiter = LogRateLimiter.parse("INFO=10");
+    LogRecord record = record(Level.INFO, "method");
+    assertEquals(10, admitted(limiter, record, 100, START));
+    assertEquals(0, admitted(limiter, record, 100, START + SECOND / 20));
+    assertEquals(1, admitted(limiter, record, 100, START + SECOND / 10));
+    // An idle bucket refills up to its burst only.
+    assertEquals(10, admitted(limiter, record, 100, START + 60 * SECOND));
+  }
+
+  public void testCallSitesHaveTheirOwnBuckets() {
+    LogRateLimiter limiter = LogRateLimiter.parse("INFO=2");
+    assertEquals(2, admitted(limiter, record(Level.INFO, "first"), 10, START));
+    assertEquals(2, admitted(limiter, record(Level.INFO, "second"), 10, START));
+    LogRecord otherLogger = record(Level.INFO, "first");
+    otherLogger.setLoggerName("other");
+    assertEquals(2, admitted(limiter, otherLogger, 10, START));
+  }
+
+  public void testLimitsPerLevel() {
+    LogRateLimiter limiter = LogRateLimiter.parse("INFO=5, FINE=1");
+    assertFalse(limiter.isEmpty());
+    assertEquals(5, admitted(limiter, record(Level.INFO, "method"), 10, START));
+    // CONFIG falls under the INFO limit, and shares its bucket.
+    assertEquals(0, admitted(limiter, record(Level.CONFIG, "method"), 10, START));
+    assertEquals(5, admitted(limiter, record(Level.CONFIG, "other"), 10, START));
+    assertEquals(1, admitted(limiter, record(Level.FINE, "method"), 10, START));
+    assertEquals(1, admitted(limiter, record(Level.FINEST, "other"), 10, START));
+    assertEquals(10, admitted(limiter, record(Level.WARNING, "method"), 10, START));
+  }
+
+  public void testSuppressedSummary() {
+    LogRateLimiter limiter = LogRateLimiter.parse("INFO=1");
+    LogRecord record = record(Level.INFO, "method");
+    assertEquals(0, limiter.acquire(record, null, START));
+    assertEquals(-1, limiter.acquire(record, null, START));
+    assertEquals(-1, limiter.acquire(record, null, START));
+    // Not reported before the summary interval.
+    assertEquals(0, limiter.acquire(record, null, START + SECOND));
+    assertEquals(-1, limiter.acquire(record, null, START + SECOND));
+    long later = START + LogRateLimiter.SUMMARY_INTERVAL_NANOS;
+    assertEquals(3, limiter.acquire(record, null, later));
+    assertEquals(-1, limiter.acquire(record, null, later));
+    assertEquals(0, limiter.acquire(record, null, later + SECOND));
+  }
+
+  public void testSuppressedDrainedByLastRequest() {
+    LogRateLimiter limiter = LogRateLimiter.parse("INFO=1");
+    LogRecord record = record(Level.FINE, "method");
+    Object request1 = new Object();
+    Object request2 = new Object();
+    assertEquals(0, limiter.acquire(record, request1, START));
+    assertEquals(-1, limiter.acquire(record, request1, START));
+    assertEquals(-1, limiter.acquire(record, request2, START));
+    final List<String> summaries = new ArrayList<>();
+    LogRateLimiter.SuppressedConsumer consumer =
+        (callSite, level, suppressed) -> summaries.add(callSite + " " + level + " " + suppressed);
+    // Reported by the last request to have a record suppressed.
+    limiter.drainSuppressed(request1, START, consumer);
+    assertTrue(summaries.isEmpty());
+    limiter.drainSuppressed(request2, START, consumer);
+    assertEquals(Arrays.asList("class method FINE 2"), summaries);
+    limiter.drainSuppressed(request2, START, consumer);
+    assertEquals(1, summaries.size());
+    // Nothing is left to report with the next admitted record.
+    long later = START + LogRateLimiter.SUMMARY_INTERVAL_NANOS;
+    assertEquals(0, limiter.acquire(record, request1, later));
+  }
+
+  public void testEvictsIdleCallSites() {
+    LogRateLimiter limiter = LogRateLimiter.parse("INFO=1", 2);
+    assertEquals(0, limiter.acquire(record(Level.INFO, "first"), null, START));
+    assertEquals(0, limiter.acquire(record(Level.INFO, "second"), null, START));
+    assertEquals(-1, limiter.acquire(record(Level.INFO, "second"), null, START));
+    // No bucket refilled yet, the call site is added past the maximum.
+    assertEquals(0, limiter.acquire(record(Level.INFO, "third"), null, START));
+    assertEquals(3, limiter.callSiteCount());
+    // The refilled buckets are evicted, but not the one with a suppressed record to report.
+    long later = START + LogRateLimiter.SUMMARY_INTERVAL_NANOS;
+    assertEquals(0, limiter.acquire(record(Level.INFO, "fourth"), null, later));
+    assertEquals(2, limiter.callSiteCount());
+    assertEquals(1, limiter.acquire(record(Level.INFO, "second"), null, later));
+  }
+
+  public void testParse() {
+    assertSame(LogRateLimiter.UNLIMITED, LogRateLimiter.parse(" , "));
+    assertTrue(LogRateLimiter.UNLIMITED.isEmpty());
+    assertEquals(0, LogRateLimiter.UNLIMITED.acquire(record(Level.SEVERE, "method"), null, START));
+    for (String spec : new String[] {"INFO", "=10", "LOUD=10", "INFO=0", "INFO=many"}) {
+      try {
+        LogRateLimiter.parse(spec);
+        fail(spec);
+      } catch (IllegalArgumentException expected) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedList;
+
+/**
+ * Measures the splitting of log messages longer than the maximum log line size, for a short
+ * message, a message as long as a log line and a 1 MB stack trace dump. Build with
+ * {@code mvn clean test-compile -Dbenchmarks}, run {@link #main} and check that the time and
+ * {@code gc.alloc.rate.norm}, the bytes allocated per message, grow linearly with its length.
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class LogSplitBenchmark {
+  @Param({"100", "8192", "65536", "1048576"})
+  public int messageLength;
+
+  private VmAppLogsWriter writer;
+  private LogRecord record;
+
+  @Setup
+  public void setUp() {
+    writer = new VmAppLogsWriter(new LinkedList<UserAppLogLine>(), 1024 * 1024L, 8 * 1024, 60);
+    // Lines of a stack trace.
+    StringBuilder message = new StringBuilder(messageLength);
+    while (message.length() < messageLength) {
+      message.append("\tat com.google.apphosting.vmruntime.VmAppLogsWriter.split(")
+          .append("VmAppLogsWriter.java:").append(message.length() % 1000).append(")\n");
+    }
+    message.setLength(messageLength);
+    record = new LogRecord(LogRecord.Level.info, 1000L, message.toString());
+  }
+
+  @Benchmark
+  public void split(Blackhole blackhole) {
+    blackhole.consume(writer.split(record));
+  }
+
+  /**
+   * The splitting done when logging a message: the chunks are passed on as they are cut.
+   */
+  @Benchmark
+  public void splitMessage(Blackhole blackhole) {
+    String message = record.getMessage();
+    if (message.length() <= writer.getMaxLogMessageLength()) {
+      blackhole.consume(message);
+    } else {
+      writer.splitMessage(message, blackhole::consume);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(LogSplitBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build())
+        .run();
+  }
+}
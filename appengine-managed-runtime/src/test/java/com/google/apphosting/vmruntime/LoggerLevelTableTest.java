@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import junit.framework.TestCase;
+
+import java.util.logging.Level;
+
+/**
+ * Tests for {@link LoggerLevelTable}.
+ *
+ */
+public class LoggerLevelTableTest extends TestCase {
+
+  public void testLongestPrefixWins() {
+    LoggerLevelTable table = LoggerLevelTable.parse(
+        " org.eclipse.jetty = WARNING, org.eclipse.jetty.server=FINE,com.google.apphosting=800");
+    assertFalse(table.isEmpty());
+    assertFalse(table.isLoggable("org.eclipse.jetty", Level.INFO));
+    assertTrue(table.isLoggable("org.eclipse.jetty", Level.WARNING));
+    assertFalse(table.isLoggable("org.eclipse.jetty.util.log", Level.INFO));
+    assertTrue(table.isLoggable("org.eclipse.jetty.server.Server", Level.FINE));
+    assertFalse(table.isLoggable("org.eclipse.jetty.server.Server", Level.FINER));
+    assertTrue(table.isLoggable("com.google.apphosting.vmruntime.VmAppLogsWriter", Level.INFO));
+    assertFalse(table.isLoggable("com.google.apphosting.vmruntime.VmAppLogsWriter", Level.FINE));
+    // Cached the second time.
+    assertFalse(table.isLoggable("org.eclipse.jetty.util.log", Level.INFO));
+  }
+
+  public void testPrefixMatchesWholeNames() {
+    LoggerLevelTable table = LoggerLevelTable.parse("org.eclipse.jetty=OFF");
+    assertTrue(table.isLoggable("org.eclipse.jettyx", Level.FINEST));
+    assertTrue(table.isLoggable("org.eclipse", Level.FINEST));
+    assertTrue(table.isLoggable("", Level.FINEST));
+    assertTrue(table.isLoggable(null, Level.FINEST));
+    assertFalse(table.isLoggable("org.eclipse.jetty.a.b.c", Level.SEVERE));
+  }
+
+  public void testEmpty() {
+    assertSame(LoggerLevelTable.EMPTY, LoggerLevelTable.parse(" , "));
+    assertTrue(LoggerLevelTable.EMPTY.isEmpty());
+    assertTrue(LoggerLevelTable.EMPTY.isLoggable("any", Level.FINEST));
+  }
+
+  public void testInvalid() {
+    for (String spec : new String[] {"org.eclipse.jetty", "=INFO", "org.eclipse.jetty=LOUD"}) {
+      try {
+        LoggerLevelTable.parse(spec);
+        fail(spec);
+      } catch (IllegalArgumentException expected) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link MpscRingBuffer}.
+ *
+ */
+public class MpscRingBufferTest extends TestCase {
+
+  public void testCapacityIsRoundedUp() {
+    assertEquals(1, new MpscRingBuffer<String>(1).capacity());
+    assertEquals(8, new MpscRingBuffer<String>(5).capacity());
+    assertEquals(8, new MpscRingBuffer<String>(8).capacity());
+  }
+
+  public void testOfferUntilFull() {
+    MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(4);
+    assertTrue(ring.isEmpty());
+    assertNull(ring.poll());
+    for (int turn = 0; turn < 3; turn++) {
+      for (int i = 0; i < 4; i++) {
+        assertTrue(ring.offer(i));
+      }
+      assertFalse(ring.offer(4));
+      assertEquals(Integer.valueOf(0), ring.poll());
+      assertTrue(ring.offer(4));
+      for (int i = 1; i <= 4; i++) {
+        assertEquals(Integer.valueOf(i), ring.poll());
+      }
+      assertTrue(ring.isEmpty());
+    }
+  }
+
+  public void testConcurrentProducers() throws Exception {
+    final int producers = 4;
+    final int elementsPerProducer = 20000;
+    final MpscRingBuffer<int[]> ring = new MpscRingBuffer<>(64);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < elementsPerProducer; i++) {
+          int[] element = {producer, i};
+          while (!ring.offer(element)) {
+            Thread.yield();
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    int[] next = new int[producers];
+    for (int received = 0; received < producers * elementsPerProducer; ) {
+      int[] element = ring.poll();
+      if (element == null) {
+        Thread.yield();
+        continue;
+      }
+      // Each producer's elements are received once, in order.
+      assertEquals(next[element[0]]++, element[1]);
+      received++;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(ring.isEmpty());
+  }
+}
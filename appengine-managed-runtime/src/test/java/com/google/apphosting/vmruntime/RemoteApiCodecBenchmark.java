@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compares the allocations of the RemoteApi envelope handling of one API call, before and after
+ * {@link RemoteApiCodec}. Build with {@code mvn clean test-compile -Dbenchmarks}, run
+ * {@link #main} and compare {@code gc.alloc.rate.norm}, the bytes allocated per call.
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class RemoteApiCodecBenchmark {
+  private static final String PACKAGE = "datastore_v3";
+  private static final String METHOD = "Put";
+  private static final String TICKET = "benchmark-ticket";
+
+  /** Discards everything written to it, standing for the socket. */
+  private static final OutputStream SOCKET = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+  @Param({"1024", "1048576"})
+  public int payloadSize;
+
+  private byte[] requestData;
+  private byte[] responseBody;
+
+  @Setup
+  public void setUp() {
+    requestData = new byte[payloadSize];
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    response.setResponseAsBytes(new byte[payloadSize]);
+    responseBody = response.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] protocolMessage() throws IOException {
+    RemoteApiPb.Request remoteRequest = new RemoteApiPb.Request();
+    remoteRequest.setServiceName(PACKAGE);
+    remoteRequest.setMethod(METHOD);
+    remoteRequest.setRequestId(TICKET);
+    remoteRequest.setRequestAsBytes(requestData);
+    new ByteArrayEntity(remoteRequest.toByteArray(), ContentType.APPLICATION_OCTET_STREAM)
+        .writeTo(SOCKET);
+
+    RemoteApiPb.Response remoteResponse = new RemoteApiPb.Response();
+    remoteResponse.parseFrom(new BufferedInputStream(new ByteArrayInputStream(responseBody)));
+    return remoteResponse.getResponseAsBytes();
+  }
+
+  @Benchmark
+  public byte[] remoteApiCodec() throws IOException {
+    RemoteApiCodec.encodeRequest(PACKAGE, METHOD, TICKET, requestData).writeTo(SOCKET);
+
+    RemoteApiCodec.ResponseBuffer body = new RemoteApiCodec.ResponseBuffer(responseBody.length);
+    try {
+      body.readFrom(new ByteArrayInputStream(responseBody));
+      return body.decodeResponse(PACKAGE, METHOD);
+    } finally {
+      body.release();
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(RemoteApiCodecBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests that {@link RemoteApiCodec} reads and writes the same bytes as {@link RemoteApiPb}.
+ *
+ */
+public class RemoteApiCodecTest extends TestCase {
+  private static final String PACKAGE = "datastore_v3";
+  private static final String METHOD = "Put";
+  private static final String TICKET = "test-ticket";
+
+  private static byte[] bytes(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) i;
+    }
+    return bytes;
+  }
+
+  public void testEncodeRequest() throws Exception {
+    for (int size : new int[] {0, 1, 127, 128, 16383, 16384, 1024 * 1024}) {
+      byte[] requestData = bytes(size);
+      RemoteApiPb.Request expected = new RemoteApiPb.Request();
+      expected.setServiceName(PACKAGE);
+      expected.setMethod(METHOD);
+      expected.setRequestId(TICKET);
+      expected.setRequestAsBytes(requestData);
+
+      RemoteApiCodec.RequestEntity entity =
+          RemoteApiCodec.encodeRequest(PACKAGE, METHOD, TICKET, requestData);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      entity.writeTo(out);
+      assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+      assertEquals(out.size(), entity.getContentLength());
+
+      ByteArrayOutputStream buffers = new ByteArrayOutputStream();
+      for (ByteBuffer buffer : entity.toByteBuffers()) {
+        buffers.write(buffer.array(), buffer.position(), buffer.remaining());
+      }
+      assertTrue(Arrays.equals(out.toByteArray(), buffers.toByteArray()));
+    }
+  }
+
+  public void testEncodeRequest_PayloadNotCopied() {
+    byte[] requestData = bytes(10);
+    RemoteApiCodec.RequestEntity entity =
+        RemoteApiCodec.encodeRequest(PACKAGE, METHOD, TICKET, requestData);
+    assertSame(requestData, entity.toByteArrays()[1]);
+  }
+
+  public void testDecodeResponse() throws Exception {
+    for (int size : new int[] {0, 1, 128, 64 * 1024, 1024 * 1024}) {
+      byte[] responseData = bytes(size);
+      RemoteApiPb.Response response = new RemoteApiPb.Response();
+      response.setResponseAsBytes(responseData);
+
+      RemoteApiCodec.ResponseBuffer body = new RemoteApiCodec.ResponseBuffer(-1);
+      body.readFrom(new ByteArrayInputStream(response.toByteArray()));
+      assertTrue(Arrays.equals(responseData, body.decodeResponse(PACKAGE, METHOD)));
+      body.release();
+    }
+  }
+
+  public void testDecodeResponse_RpcError() throws Exception {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    response.setResponseAsBytes(bytes(10));
+    RemoteApiPb.RpcError rpcError = new RemoteApiPb.RpcError();
+    rpcError.setCode(RemoteApiPb.RpcError.ErrorCode.OVER_QUOTA.ordinal());
+    response.setRpcError(rpcError);
+    byte[] body = response.toByteArray();
+    try {
+      RemoteApiCodec.decodeResponse(body, 0, body.length, PACKAGE, METHOD);
+      fail();
+    } catch (ApiProxy.OverQuotaException expected) {
+      // Expected.
+    }
+  }
+
+  public void testDecodeResponse_Truncated() throws Exception {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    response.setResponseAsBytes(bytes(200));
+    byte[] body = response.toByteArray();
+    try {
+      RemoteApiCodec.decodeResponse(body, 0, body.length - 1, PACKAGE, METHOD);
+      fail();
+    } catch (ApiProxy.RPCFailedException expected) {
+      // Expected.
+    }
+  }
+}
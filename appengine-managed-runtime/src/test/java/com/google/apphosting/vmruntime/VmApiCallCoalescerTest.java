@@ -0,0 +1,265 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.repackaged.com.google.protobuf.ByteString;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.DatastorePb.GetRequest;
+import com.google.apphosting.api.DatastorePb.GetResponse;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests for {@link VmApiCallCoalescer}.
+ *
+ */
+public class VmApiCallCoalescerTest extends TestCase {
+  private final List<SentCall> sent = new ArrayList<>();
+  private final VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+
+  private static class SentCall {
+    final VmApiProxyEnvironment environment;
+    final String packageName;
+    final byte[] requestData;
+    final int timeoutMs;
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+    SentCall(VmApiProxyEnvironment environment, String packageName, byte[] requestData,
+        int timeoutMs) {
+      this.environment = environment;
+      this.packageName = packageName;
+      this.requestData = requestData;
+      this.timeoutMs = timeoutMs;
+    }
+  }
+
+  private synchronized CompletableFuture<byte[]> send(VmApiProxyEnvironment environment,
+      String packageName, String methodName, byte[] requestData, int timeoutMs) {
+    SentCall call = new SentCall(environment, packageName, requestData, timeoutMs);
+    sent.add(call);
+    return call.result;
+  }
+
+  private synchronized int sentCount() {
+    return sent.size();
+  }
+
+  private void waitForSentCalls(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sentCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(count, sentCount());
+  }
+
+  private static byte[] memcacheGet(String... keys) {
+    MemcacheGetRequest.Builder request = MemcacheGetRequest.newBuilder().setNameSpace("ns");
+    for (String key : keys) {
+      request.addKey(ByteString.copyFromUtf8(key));
+    }
+    return request.build().toByteArray();
+  }
+
+  private static MemcacheGetResponse.Item item(String key) {
+    return MemcacheGetResponse.Item.newBuilder()
+        .setKey(ByteString.copyFromUtf8(key))
+        .setValue(ByteString.copyFromUtf8("value of " + key))
+        .build();
+  }
+
+  private static Reference datastoreKey(long id) {
+    Reference key = new Reference().setApp("app");
+    key.getMutablePath().addElement().setType("Kind").setId(id);
+    return key;
+  }
+
+  private static GetRequest datastoreGet(long... ids) {
+    GetRequest request = new GetRequest();
+    for (long id : ids) {
+      request.addKey(datastoreKey(id));
+    }
+    return request;
+  }
+
+  public void testIsCoalesced() {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send);
+    assertTrue(coalescer.isCoalesced("memcache", "Get"));
+    assertTrue(coalescer.isCoalesced("datastore_v3", "Get"));
+    assertFalse(coalescer.isCoalesced("memcache", "Set"));
+    assertFalse(coalescer.isCoalesced("datastore_v3", "RunQuery"));
+  }
+
+  public void testMergesMemcacheGets() throws Exception {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send, 1000000, 3);
+    CompletableFuture<byte[]> first =
+        coalescer.call(environment, "memcache", "Get", memcacheGet("a", "b"), 1000);
+    CompletableFuture<byte[]> second =
+        coalescer.call(environment, "memcache", "Get", memcacheGet("b", "c"), 2000);
+    assertEquals(0, sentCount());
+    CompletableFuture<byte[]> third =
+        coalescer.call(environment, "memcache", "Get", memcacheGet("d"), 3000);
+
+    // The batch is full, and sent right away.
+    assertEquals(1, sentCount());
+    SentCall batch = sent.get(0);
+    assertSame(environment, batch.environment);
+    assertEquals(1000, batch.timeoutMs);
+    MemcacheGetRequest merged = MemcacheGetRequest.parseFrom(batch.requestData);
+    assertEquals("ns", merged.getNameSpace());
+    assertEquals(4, merged.getKeyCount());
+
+    batch.result.complete(
+        MemcacheGetResponse.newBuilder().addItem(item("c")).addItem(item("a")).build()
+            .toByteArray());
+    assertEquals(
+        Arrays.asList(item("a")), MemcacheGetResponse.parseFrom(first.get()).getItemList());
+    assertEquals(
+        Arrays.asList(item("c")), MemcacheGetResponse.parseFrom(second.get()).getItemList());
+    assertEquals(0, MemcacheGetResponse.parseFrom(third.get()).getItemCount());
+  }
+
+  public void testFlushesAfterDelay() throws Exception {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send, 1000, 100);
+    byte[] request = memcacheGet("a");
+    CompletableFuture<byte[]> call = coalescer.call(environment, "memcache", "Get", request, 1000);
+    waitForSentCalls(1);
+
+    // A batch of one call is sent unchanged.
+    assertTrue(Arrays.equals(request, sent.get(0).requestData));
+    byte[] response = MemcacheGetResponse.newBuilder().addItem(item("a")).build().toByteArray();
+    sent.get(0).result.complete(response);
+    assertTrue(Arrays.equals(response, call.get()));
+  }
+
+  public void testDoesNotMergeDifferentRequests() throws Exception {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send, 1000000, 2);
+    coalescer.call(environment, "memcache", "Get", memcacheGet("a"), 1000);
+    coalescer.call(mock(VmApiProxyEnvironment.class), "memcache", "Get", memcacheGet("b"), 1000);
+    coalescer.call(environment, "memcache", "Get",
+        MemcacheGetRequest.newBuilder().addKey(ByteString.copyFromUtf8("c")).setForCas(true)
+            .build().toByteArray(), 1000);
+    assertEquals(0, sentCount());
+  }
+
+  public void testMergesDatastoreGets() throws Exception {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send, 1000000, 2);
+    CompletableFuture<byte[]> first = coalescer.call(
+        environment, "datastore_v3", "Get", datastoreGet(1, 2).toByteArray(), 1000);
+    CompletableFuture<byte[]> second = coalescer.call(
+        environment, "datastore_v3", "Get", datastoreGet(3).toByteArray(), 1000);
+    assertEquals(1, sentCount());
+    GetRequest merged = new GetRequest();
+    assertTrue(merged.parseFrom(sent.get(0).requestData));
+    assertEquals(datastoreGet(1, 2, 3), merged);
+
+    GetResponse response = new GetResponse().setInOrder(true);
+    response.addEntity().setKey(datastoreKey(1));
+    response.addEntity().setKey(datastoreKey(2));
+    response.addEntity().setKey(datastoreKey(3));
+    sent.get(0).result.complete(response.toByteArray());
+
+    GetResponse firstResponse = new GetResponse();
+    assertTrue(firstResponse.parseFrom(first.get()));
+    assertEquals(2, firstResponse.entitySize());
+    assertEquals(datastoreKey(2), firstResponse.getEntity(1).getKey());
+    GetResponse secondResponse = new GetResponse();
+    assertTrue(secondResponse.parseFrom(second.get()));
+    assertEquals(1, secondResponse.entitySize());
+    assertEquals(datastoreKey(3), secondResponse.getEntity(0).getKey());
+  }
+
+  public void testDoesNotMergeDeferredDatastoreGets() throws Exception {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send, 1000000, 2);
+    byte[] request = datastoreGet(1).setAllowDeferred(true).toByteArray();
+    coalescer.call(environment, "datastore_v3", "Get", request, 1000);
+    assertEquals(1, sentCount());
+    assertTrue(Arrays.equals(request, sent.get(0).requestData));
+  }
+
+  public void testSendsOneByOneIfResponseCannotBeSplit() throws Exception {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send, 1000000, 2);
+    coalescer.call(environment, "datastore_v3", "Get", datastoreGet(1).toByteArray(), 1000);
+    coalescer.call(environment, "datastore_v3", "Get", datastoreGet(2).toByteArray(), 1000);
+    GetResponse response = new GetResponse();
+    response.addDeferred(datastoreKey(1));
+    response.addEntity().setKey(datastoreKey(2));
+    sent.get(0).result.complete(response.toByteArray());
+    assertEquals(3, sentCount());
+  }
+
+  public void testFailsAllCalls() throws Exception {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send, 1000000, 2);
+    CompletableFuture<byte[]> first =
+        coalescer.call(environment, "memcache", "Get", memcacheGet("a"), 1000);
+    CompletableFuture<byte[]> second =
+        coalescer.call(environment, "memcache", "Get", memcacheGet("b"), 1000);
+    sent.get(0).result.completeExceptionally(new ApiProxy.OverQuotaException("memcache", "Get"));
+    for (CompletableFuture<byte[]> call : Arrays.asList(first, second)) {
+      try {
+        call.get();
+        fail();
+      } catch (ExecutionException e) {
+        assertEquals(ApiProxy.OverQuotaException.class, e.getCause().getClass());
+      }
+    }
+  }
+
+  public void testSendsOneByOneIfOneCallFails() throws Exception {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send, 1000000, 2);
+    CompletableFuture<byte[]> first =
+        coalescer.call(environment, "memcache", "Get", memcacheGet("a"), 1000);
+    CompletableFuture<byte[]> second =
+        coalescer.call(environment, "memcache", "Get", memcacheGet("b"), 1000);
+    sent.get(0).result.completeExceptionally(new ApiProxy.ApplicationException(1, "bad key"));
+    assertEquals(3, sentCount());
+    assertTrue(Arrays.equals(memcacheGet("a"), sent.get(1).requestData));
+    assertTrue(Arrays.equals(memcacheGet("b"), sent.get(2).requestData));
+    sent.get(1).result.completeExceptionally(new ApiProxy.ApplicationException(1, "bad key"));
+    byte[] response = MemcacheGetResponse.newBuilder().addItem(item("b")).build().toByteArray();
+    sent.get(2).result.complete(response);
+    assertTrue(first.isCompletedExceptionally());
+    assertTrue(Arrays.equals(response, second.get()));
+  }
+
+  public void testLimitsBatchKeys() throws Exception {
+    VmApiCallCoalescer coalescer = new VmApiCallCoalescer(this::send, 1000000, 100, 3);
+    coalescer.call(environment, "memcache", "Get", memcacheGet("a", "b"), 1000);
+    assertEquals(0, sentCount());
+    // Does not fit in the batch, which is sent.
+    coalescer.call(environment, "memcache", "Get", memcacheGet("c", "d"), 1000);
+    assertEquals(1, sentCount());
+    assertTrue(Arrays.equals(memcacheGet("a", "b"), sent.get(0).requestData));
+    // Fills the next batch.
+    coalescer.call(environment, "memcache", "Get", memcacheGet("e"), 1000);
+    assertEquals(2, sentCount());
+    assertTrue(Arrays.equals(memcacheGet("c", "d", "e"), sent.get(1).requestData));
+    // Too many keys to be merged.
+    coalescer.call(environment, "memcache", "Get", memcacheGet("f", "g", "h", "i"), 1000);
+    assertEquals(3, sentCount());
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.apphosting.api.ApiProxy;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link VmApiCallExecutor}.
+ *
+ */
+public class VmApiCallExecutorTest extends TestCase {
+  private VmApiCallExecutor executor;
+
+  @Override
+  protected void tearDown() throws Exception {
+    ApiProxy.clearEnvironmentForCurrentThread();
+    if (executor != null) {
+      executor.shutdownNow();
+      assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+    super.tearDown();
+  }
+
+  private void submitAs(ApiProxy.Environment environment, Runnable task) {
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    try {
+      executor.execute(task);
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+  }
+
+  public void testRunsTasks() throws Exception {
+    executor = new VmApiCallExecutor(4, 100, 100);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      final int value = i;
+      results.add(executor.submit(() -> value));
+    }
+    for (int i = 0; i < 50; i++) {
+      assertEquals(i, (int) results.get(i).get());
+    }
+    assertTrue(executor.getThreadCount() <= 4);
+    // A task is counted as completed after its result is set.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (executor.getCompletedTaskCount() < 50 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(50, executor.getCompletedTaskCount());
+  }
+
+  public void testRejectsTasksOverLimits() throws Exception {
+    executor = new VmApiCallExecutor(1, 2, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    executor.execute(() -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertEquals(1, executor.getActiveThreadCount());
+
+    ApiProxy.Environment first = mock(ApiProxy.Environment.class);
+    ApiProxy.Environment second = mock(ApiProxy.Environment.class);
+    submitAs(first, () -> { });
+    try {
+      submitAs(first, () -> { });
+      fail();
+    } catch (RejectedExecutionException expected) {
+      // The first request has used its share of the queue.
+    }
+    submitAs(second, () -> { });
+    try {
+      submitAs(mock(ApiProxy.Environment.class), () -> { });
+      fail();
+    } catch (RejectedExecutionException expected) {
+      // The queue is full.
+    }
+    assertEquals(2, executor.getQueuedTaskCount());
+    assertEquals(2, executor.getRejectedTaskCount());
+    release.countDown();
+  }
+
+  public void testRequestsTakeTurns() throws Exception {
+    executor = new VmApiCallExecutor(1, 100, 100);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(() -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    ApiProxy.Environment busy = mock(ApiProxy.Environment.class);
+    for (int i = 0; i < 3; i++) {
+      submitAs(busy, () -> order.add("busy"));
+    }
+    submitAs(mock(ApiProxy.Environment.class), () -> order.add("other"));
+    release.countDown();
+
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("busy", "other", "busy", "busy"), order);
+    assertTrue(executor.getQueueWaitMicrosMax() > 0);
+  }
+
+  public void testShutdown() throws Exception {
+    executor = new VmApiCallExecutor(2, 10, 10);
+    executor.submit(() -> { }).get();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertTrue(executor.isTerminated());
+    try {
+      executor.execute(() -> { });
+      fail();
+    } catch (RejectedExecutionException expected) {
+      // Expected.
+    }
+  }
+}
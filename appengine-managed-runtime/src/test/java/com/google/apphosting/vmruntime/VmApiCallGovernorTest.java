@@ -0,0 +1,136 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the limit and the fairness of {@link VmApiCallGovernor}.
+ *
+ */
+public class VmApiCallGovernorTest extends TestCase {
+  private static final long TIMEOUT_MS = 10000;
+
+  private final ApiCallStats stats = new ApiCallStats("memcache", "Get");
+
+  /** Acquires a permit for {@code request} on a new thread, and records the requests served. */
+  private Thread acquireAsync(final VmApiCallGovernor governor, final Object request,
+      final List<Object> served) throws InterruptedException {
+    Thread thread = new Thread(() -> {
+      governor.acquire(request, TIMEOUT_MS);
+      served.add(request);
+    });
+    // Read the count before starting the thread, it may start waiting right away.
+    int waiting = governor.getWaitingCallCount();
+    thread.start();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (thread.isAlive() && governor.getWaitingCallCount() == waiting
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    return thread;
+  }
+
+  private void release(VmApiCallGovernor governor, boolean failed) {
+    governor.release(System.nanoTime(), stats, TimeUnit.MILLISECONDS.toNanos(1), failed);
+  }
+
+  public void testAcquireUnderLimit() {
+    VmApiCallGovernor governor = new VmApiCallGovernor(2, 1, 10, 3, 50);
+    governor.acquire("a", 0);
+    governor.acquire("a", 0);
+    assertEquals(2, governor.getInFlightCallCount());
+    try {
+      governor.acquire("a", 0);
+      fail();
+    } catch (ApiProxyException expected) {
+      assertEquals(1, governor.getTimedOutCallCount());
+    }
+    assertEquals(0, governor.getWaitingCallCount());
+  }
+
+  public void testRequestsTakeTurns() throws Exception {
+    VmApiCallGovernor governor = new VmApiCallGovernor(1, 1, 1, 3, 50);
+    governor.acquire("a", 0);
+    List<Object> served = new CopyOnWriteArrayList<>();
+    Thread a1 = acquireAsync(governor, "a", served);
+    Thread a2 = acquireAsync(governor, "a", served);
+    Thread b1 = acquireAsync(governor, "b", served);
+    assertEquals(3, governor.getWaitingCallCount());
+
+    for (Thread thread : new Thread[] {a1, b1, a2}) {
+      release(governor, false);
+      thread.join(TIMEOUT_MS);
+      assertFalse(thread.isAlive());
+    }
+    // The call of request b did not wait for all the calls of request a.
+    assertEquals("a", served.get(0));
+    assertEquals("b", served.get(1));
+    assertEquals("a", served.get(2));
+  }
+
+  public void testLimitDecreasesOnFailure() {
+    VmApiCallGovernor governor = new VmApiCallGovernor(10, 2, 10, 3, 50);
+    long start = System.nanoTime();
+    for (int i = 0; i < 3; i++) {
+      governor.acquire("a", 0);
+    }
+    release(governor, true);
+    assertEquals(5, governor.getLimit());
+    // Calls started before the decrease do not lower the limit again.
+    governor.release(start, stats, 0, true);
+    assertEquals(5, governor.getLimit());
+    release(governor, true);
+    assertEquals(2, governor.getLimit());
+    assertEquals(2, governor.getLimitDecreaseCount());
+  }
+
+  public void testLimitDecreasesOnSlowCall() {
+    VmApiCallGovernor governor = new VmApiCallGovernor(10, 2, 10, 3, 50);
+    for (int i = 0; i < VmApiCallGovernor.MIN_SAMPLES; i++) {
+      stats.recordCall(0, new byte[0], TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    governor.acquire("a", 0);
+    governor.release(System.nanoTime(), stats, TimeUnit.MILLISECONDS.toNanos(100), false);
+    assertEquals(5, governor.getLimit());
+  }
+
+  public void testLimitGrowsWhileInUse() {
+    VmApiCallGovernor governor = new VmApiCallGovernor(4, 1, 5, 3, 50);
+    // The limit is not in use: it does not grow.
+    for (int i = 0; i < 100; i++) {
+      governor.acquire("a", 0);
+      release(governor, false);
+    }
+    assertEquals(4, governor.getLimit());
+
+    for (int i = 0; i < 4; i++) {
+      governor.acquire("a", 0);
+    }
+    for (int i = 0; i < 100; i++) {
+      release(governor, false);
+      governor.acquire("a", 0);
+    }
+    assertEquals(5, governor.getLimit());
+  }
+}
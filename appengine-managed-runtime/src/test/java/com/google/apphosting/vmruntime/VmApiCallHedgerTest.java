@@ -0,0 +1,199 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link VmApiCallHedger}.
+ *
+ */
+public class VmApiCallHedgerTest extends TestCase {
+  private static final byte[] RESPONSE = new byte[] {1, 2, 3};
+
+  private VmApiCallMetrics metrics;
+  private VmApiCallHedger hedger;
+  private final List<CompletableFuture<byte[]>> attempts = new ArrayList<>();
+  private final List<Integer> attemptTimeouts = new ArrayList<>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    metrics = new VmApiCallMetrics(false);
+    hedger = new VmApiCallHedger(" memcache.Get, datastore_v3.Get,invalid,", metrics);
+  }
+
+  private synchronized CompletableFuture<byte[]> attempt(int timeoutMs) {
+    CompletableFuture<byte[]> attempt = new CompletableFuture<>();
+    attempts.add(attempt);
+    attemptTimeouts.add(timeoutMs);
+    return attempt;
+  }
+
+  private synchronized int attemptCount() {
+    return attempts.size();
+  }
+
+  private void recordLatencies(long millis) {
+    for (int i = 0; i < VmApiCallHedger.MIN_SAMPLES; i++) {
+      metrics.getStats("memcache", "Get").recordFirstAttempt(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+  }
+
+  public void testIsHedged() {
+    assertTrue(hedger.isHedged("memcache", "Get"));
+    assertTrue(hedger.isHedged("datastore_v3", "Get"));
+    assertFalse(hedger.isHedged("memcache", "Set"));
+    assertFalse(hedger.isHedged("invalid", ""));
+    assertFalse(new VmApiCallHedger("", metrics).isHedged("memcache", "Get"));
+  }
+
+  public void testFirstResponseWins() throws Exception {
+    CompletableFuture<byte[]> call =
+        hedger.call("memcache", "Get", 1000, Long.MAX_VALUE, this::attempt);
+    assertEquals(1, attemptCount());
+    assertEquals(1000, (int) attemptTimeouts.get(0));
+    attempts.get(0).complete(RESPONSE);
+    assertTrue(Arrays.equals(RESPONSE, call.get()));
+  }
+
+  private void awaitAttempts(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (attemptCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+  }
+
+  public void testHedgesSlowCall() throws Exception {
+    recordLatencies(1);
+    CompletableFuture<byte[]> call =
+        hedger.call("memcache", "Get", 10000, Long.MAX_VALUE, this::attempt);
+    awaitAttempts(2);
+    assertEquals(2, attemptCount());
+    assertTrue(attemptTimeouts.get(1) <= 10000);
+    attempts.get(1).complete(RESPONSE);
+    assertTrue(Arrays.equals(RESPONSE, call.get()));
+    attempts.get(0).completeExceptionally(new IOException());
+    assertEquals(1, metrics.getStats("memcache", "Get").getHedgedAttemptCount());
+    assertEquals(2, attemptCount());
+  }
+
+  public void testCancelsLosingAttempt() throws Exception {
+    recordLatencies(1);
+    CompletableFuture<byte[]> call =
+        hedger.call("memcache", "Get", 10000, Long.MAX_VALUE, this::attempt);
+    awaitAttempts(2);
+    attempts.get(1).complete(RESPONSE);
+    assertTrue(Arrays.equals(RESPONSE, call.get()));
+    assertTrue(attempts.get(0).isCancelled());
+  }
+
+  public void testCancellingCallCancelsAttempts() throws Exception {
+    CompletableFuture<byte[]> call =
+        hedger.call("memcache", "Get", 10000, Long.MAX_VALUE, this::attempt);
+    call.cancel(true);
+    assertTrue(attempts.get(0).isCancelled());
+    assertEquals(1, attemptCount());
+  }
+
+  public void testDoesNotHedgeCompletedCall() throws Exception {
+    recordLatencies(10);
+    CompletableFuture<byte[]> call = hedger.call("memcache", "Get", 10000, Long.MAX_VALUE,
+        timeoutMs -> CompletableFuture.completedFuture(RESPONSE));
+    assertTrue(Arrays.equals(RESPONSE, call.get()));
+    Thread.sleep(50);
+    assertEquals(0, metrics.getStats("memcache", "Get").getHedgedAttemptCount());
+  }
+
+  public void testHedgeDelayIgnoresCallLatency() throws Exception {
+    // Completed hedged calls do not count, only their first attempts do.
+    for (int i = 0; i < VmApiCallHedger.MIN_SAMPLES; i++) {
+      metrics.recordCall("memcache", "Get", RESPONSE, RESPONSE, TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    CompletableFuture<byte[]> call =
+        hedger.call("memcache", "Get", 10000, Long.MAX_VALUE, this::attempt);
+    Thread.sleep(20);
+    assertEquals(1, attemptCount());
+    attempts.get(0).complete(RESPONSE);
+    call.get();
+    assertEquals(1, metrics.getStats("memcache", "Get").firstAttemptLatency.getCount());
+  }
+
+  public void testDoesNotHedgeWithoutLatencies() throws Exception {
+    CompletableFuture<byte[]> call =
+        hedger.call("memcache", "Get", 10000, Long.MAX_VALUE, this::attempt);
+    Thread.sleep(20);
+    assertEquals(1, attemptCount());
+    attempts.get(0).complete(RESPONSE);
+    call.get();
+  }
+
+  public void testRetriesIoError() throws Exception {
+    CompletableFuture<byte[]> call =
+        hedger.call("memcache", "Get", 10000, Long.MAX_VALUE, this::attempt);
+    attempts.get(0).completeExceptionally(new IOException());
+    assertEquals(2, attemptCount());
+    attempts.get(1).complete(RESPONSE);
+    assertTrue(Arrays.equals(RESPONSE, call.get()));
+    assertEquals(1, metrics.getStats("memcache", "Get").getRetriedAttemptCount());
+  }
+
+  public void testGivesUpAfterMaxAttempts() throws Exception {
+    CompletableFuture<byte[]> call =
+        hedger.call("memcache", "Get", 10000, Long.MAX_VALUE, this::attempt);
+    for (int i = 0; i < VmApiCallHedger.MAX_ATTEMPTS; i++) {
+      attempts.get(i).completeExceptionally(new IOException("attempt " + i));
+    }
+    assertEquals(VmApiCallHedger.MAX_ATTEMPTS, attemptCount());
+    try {
+      call.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertEquals("attempt 2", e.getCause().getMessage());
+    }
+  }
+
+  public void testDoesNotRetryApiError() throws Exception {
+    CompletableFuture<byte[]> call =
+        hedger.call("memcache", "Get", 10000, Long.MAX_VALUE, this::attempt);
+    attempts.get(0).completeExceptionally(new ApiProxy.OverQuotaException("memcache", "Get"));
+    assertEquals(1, attemptCount());
+    try {
+      call.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertEquals(ApiProxy.OverQuotaException.class, e.getCause().getClass());
+    }
+  }
+
+  public void testDoesNotRetryPastDeadline() throws Exception {
+    CompletableFuture<byte[]> call = hedger.call("memcache", "Get", 10000, 0, this::attempt);
+    attempts.get(0).completeExceptionally(new IOException());
+    assertEquals(1, attemptCount());
+    assertTrue(call.isCompletedExceptionally());
+  }
+}
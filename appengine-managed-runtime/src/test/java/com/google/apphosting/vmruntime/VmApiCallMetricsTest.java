@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link VmApiCallMetrics} and {@link LatencyHistogram}.
+ *
+ */
+public class VmApiCallMetricsTest extends TestCase {
+
+  public void testHistogramBuckets() {
+    int previous = -1;
+    for (long value = 0; value < 1 << 20; value++) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(index == previous || index == previous + 1);
+      assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+      // Buckets are at most 1/8th of their values wide.
+      assertTrue(LatencyHistogram.bucketUpperBound(index) - value <= Math.max(value / 8, 1));
+      previous = index;
+    }
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+  }
+
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(50));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(500.5, histogram.getMean());
+    assertEquals(500, histogram.getPercentile(50), 500 / 8);
+    assertEquals(950, histogram.getPercentile(95), 950 / 8);
+    assertEquals(1000, histogram.getPercentile(100));
+  }
+
+  public void testRecordCall() {
+    VmApiCallMetrics metrics = new VmApiCallMetrics(false);
+    metrics.recordCall("memcache", "Get", new byte[10], new byte[100],
+        TimeUnit.MILLISECONDS.toNanos(2));
+    metrics.recordCall("memcache", "Get", new byte[10], null, TimeUnit.MILLISECONDS.toNanos(4));
+    metrics.recordRpcError("memcache", "Get", RemoteApiPb.RpcError.ErrorCode.OVER_QUOTA.ordinal());
+
+    ApiCallStats stats = metrics.getStats("memcache", "Get");
+    assertSame(stats, metrics.getAllStats().get(0));
+    assertEquals(2, stats.getCallCount());
+    assertEquals(1, stats.getErrorCount());
+    assertEquals(20, stats.getRequestBytes());
+    assertEquals(100, stats.getResponseBytes());
+    assertEquals(4000, stats.getLatencyMicrosMax());
+    assertEquals(Collections.singletonMap("OVER_QUOTA", 1L), stats.getRpcErrorCounts());
+  }
+
+  public void testWriteText() {
+    VmApiCallMetrics metrics = new VmApiCallMetrics(false);
+    metrics.recordCall("datastore_v3", "Get", new byte[1], new byte[2], 1000);
+    metrics.recordRpcError("datastore_v3", "Get",
+        RemoteApiPb.RpcError.ErrorCode.CANCELLED.ordinal());
+    StringWriter text = new StringWriter();
+    metrics.writeText(new PrintWriter(text));
+    String output = text.toString();
+    assertTrue(output.startsWith("# TYPE appengine_api_calls_total counter\n"));
+    assertTrue(output.contains(
+        "appengine_api_calls_total{service=\"datastore_v3\",method=\"Get\"} 1\n"));
+    assertTrue(output.contains(
+        "appengine_api_rpc_errors_total{service=\"datastore_v3\",method=\"Get\",code=\"CANCELLED\"} 1\n"));
+    assertTrue(output.contains(
+        "appengine_api_latency_microseconds{service=\"datastore_v3\",method=\"Get\",quantile=\"0.5\"} 1\n"));
+  }
+
+  public void testWriteText_CircuitBreakers() {
+    VmApiCallMetrics metrics = new VmApiCallMetrics(false);
+    VmApiCircuitBreaker breaker =
+        new VmApiCircuitBreaker("memcache", 1, 1, 50, 1000, 80, 5000, 1, System::nanoTime);
+    metrics.registerCircuitBreaker(breaker);
+    breaker.onCompletion(breaker.tryAcquire(), true, 0);
+    breaker.tryAcquire();
+    StringWriter text = new StringWriter();
+    metrics.writeText(new PrintWriter(text));
+    String output = text.toString();
+    assertTrue(output.contains("appengine_api_circuit_breaker_state{service=\"memcache\"} 1\n"));
+    assertTrue(output.contains(
+        "appengine_api_circuit_breaker_opened_total{service=\"memcache\"} 1\n"));
+    assertTrue(output.contains(
+        "appengine_api_circuit_breaker_rejected_calls_total{service=\"memcache\"} 1\n"));
+  }
+}
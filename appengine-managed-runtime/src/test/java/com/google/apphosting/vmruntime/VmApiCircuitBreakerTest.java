@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the state machine of {@link VmApiCircuitBreaker}.
+ *
+ */
+public class VmApiCircuitBreakerTest extends TestCase {
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.SECONDS.toNanos(2);
+
+  private long now;
+  private VmApiCircuitBreaker breaker;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // Window of 10 calls, opening at 50% failures or 80% slow calls of at least 1 s, for 5 s,
+    // then closing after 2 probes.
+    breaker = new VmApiCircuitBreaker("memcache", 10, 4, 50, 1000, 80, 5000, 2, () -> now);
+  }
+
+  private void complete(boolean failed, long latencyNanos) {
+    int permit = breaker.tryAcquire();
+    assertTrue(permit != VmApiCircuitBreaker.REJECTED);
+    breaker.onCompletion(permit, failed, latencyNanos);
+  }
+
+  private void open() {
+    for (int i = 0; i < 4; i++) {
+      complete(true, FAST);
+    }
+    assertEquals(VmApiCircuitBreaker.State.OPEN, breaker.state());
+  }
+
+  public void testStaysClosedBelowThresholds() {
+    for (int i = 0; i < 100; i++) {
+      complete(i % 3 == 2, FAST);
+    }
+    assertEquals(VmApiCircuitBreaker.State.CLOSED, breaker.state());
+    assertEquals(30, breaker.getFailureRatePercent());
+  }
+
+  public void testNeedsMinCalls() {
+    for (int i = 0; i < 3; i++) {
+      complete(true, FAST);
+    }
+    assertEquals(VmApiCircuitBreaker.State.CLOSED, breaker.state());
+  }
+
+  public void testOpensOnFailureRate() {
+    for (int i = 0; i < 10; i++) {
+      complete(false, FAST);
+    }
+    for (int i = 0; i < 4; i++) {
+      complete(true, FAST);
+    }
+    assertEquals(VmApiCircuitBreaker.State.CLOSED, breaker.state());
+    complete(true, FAST);
+    assertEquals(VmApiCircuitBreaker.State.OPEN, breaker.state());
+    assertEquals(1, breaker.getOpenedCount());
+  }
+
+  public void testOpensOnSlowCalls() {
+    for (int i = 0; i < 4; i++) {
+      complete(false, SLOW);
+    }
+    assertEquals(VmApiCircuitBreaker.State.OPEN, breaker.state());
+  }
+
+  public void testRejectsWhileOpen() {
+    open();
+    now += TimeUnit.MILLISECONDS.toNanos(4999);
+    assertEquals(VmApiCircuitBreaker.REJECTED, breaker.tryAcquire());
+    assertEquals(1, breaker.getRejectedCallCount());
+  }
+
+  public void testClosesAfterProbes() {
+    open();
+    now += TimeUnit.SECONDS.toNanos(5);
+    int first = breaker.tryAcquire();
+    int second = breaker.tryAcquire();
+    assertEquals(VmApiCircuitBreaker.State.HALF_OPEN, breaker.state());
+    // Only the probes are let through.
+    assertEquals(VmApiCircuitBreaker.REJECTED, breaker.tryAcquire());
+    breaker.onCompletion(first, false, FAST);
+    assertEquals(VmApiCircuitBreaker.State.HALF_OPEN, breaker.state());
+    breaker.onCompletion(second, false, FAST);
+    assertEquals(VmApiCircuitBreaker.State.CLOSED, breaker.state());
+    assertEquals(0, breaker.getFailureRatePercent());
+  }
+
+  public void testReopensOnFailedProbe() {
+    open();
+    now += TimeUnit.SECONDS.toNanos(5);
+    breaker.onCompletion(breaker.tryAcquire(), false, SLOW);
+    assertEquals(VmApiCircuitBreaker.State.OPEN, breaker.state());
+    assertEquals(2, breaker.getOpenedCount());
+    assertEquals(VmApiCircuitBreaker.REJECTED, breaker.tryAcquire());
+  }
+
+  public void testReleasedProbeIsReplaced() {
+    open();
+    now += TimeUnit.SECONDS.toNanos(5);
+    int first = breaker.tryAcquire();
+    breaker.tryAcquire();
+    breaker.release(first);
+    assertTrue(breaker.tryAcquire() != VmApiCircuitBreaker.REJECTED);
+  }
+
+  public void testIgnoresCallsFromEarlierState() {
+    int permit = breaker.tryAcquire();
+    open();
+    now += TimeUnit.SECONDS.toNanos(5);
+    breaker.tryAcquire();
+    // A call started before the breaker opened does not count as a probe.
+    breaker.onCompletion(permit, true, FAST);
+    assertEquals(VmApiCircuitBreaker.State.HALF_OPEN, breaker.state());
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import junit.framework.TestCase;
+
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the warm-up and the idle timeout of {@link VmApiConnectionPool}.
+ *
+ */
+public class VmApiConnectionPoolTest extends TestCase {
+  private PoolingClientConnectionManager connectionManager;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    connectionManager = new PoolingClientConnectionManager();
+    connectionManager.setDefaultMaxPerRoute(10);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    connectionManager.shutdown();
+    super.tearDown();
+  }
+
+  public void testWarmUp() throws Exception {
+    Server server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    server.addConnector(connector);
+    server.start();
+    try {
+      VmApiConnectionPool pool = new VmApiConnectionPool(connectionManager, 4, 60, 180);
+      int opened = pool.warmUp("localhost:" + connector.getLocalPort()).get(10, TimeUnit.SECONDS);
+      assertEquals(4, opened);
+      assertEquals(4, connectionManager.getTotalStats().getAvailable());
+      assertEquals(0, connectionManager.getTotalStats().getLeased());
+    } finally {
+      server.stop();
+    }
+  }
+
+  public void testWarmUp_ServerDown() throws Exception {
+    Server server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    server.addConnector(connector);
+    server.start();
+    int port = connector.getLocalPort();
+    server.stop();
+
+    VmApiConnectionPool pool = new VmApiConnectionPool(connectionManager, 4, 60, 180);
+    assertEquals(0, pool.warmUp("localhost:" + port).get(10, TimeUnit.SECONDS).intValue());
+    assertEquals(0, connectionManager.getTotalStats().getAvailable());
+    assertEquals(0, connectionManager.getTotalStats().getLeased());
+  }
+
+  public void testWarmUp_Disabled() throws Exception {
+    VmApiConnectionPool pool = new VmApiConnectionPool(connectionManager, 0, 60, 180);
+    assertEquals(0, pool.warmUp("localhost:1").get().intValue());
+  }
+
+  public void testIdleTimeout_FollowsCallRate() {
+    VmApiConnectionPool pool = new VmApiConnectionPool(connectionManager, 0, 60, 180);
+    assertEquals(60000, pool.getIdleTimeoutMillis());
+
+    // A burst of calls keeps the idle connections for longer.
+    for (int i = 0; i < 100; i++) {
+      pool.recordCall();
+    }
+    pool.updateCallRate(5000);
+    long busyTimeout = pool.getIdleTimeoutMillis();
+    assertTrue(busyTimeout > 60000);
+    assertTrue(busyTimeout <= 180000);
+
+    // ... and the timeout shrinks back once the instance is quiet.
+    for (int i = 0; i < 100; i++) {
+      pool.updateCallRate(5000);
+    }
+    assertTrue(pool.getIdleTimeoutMillis() < busyTimeout);
+    for (int i = 0; i < 1000; i++) {
+      pool.updateCallRate(5000);
+    }
+    assertEquals(60000, pool.getIdleTimeoutMillis());
+  }
+
+  public void testIdleTimeout_SustainedLoad() {
+    VmApiConnectionPool pool = new VmApiConnectionPool(connectionManager, 0, 60, 180);
+    for (int i = 0; i < 1000; i++) {
+      for (int j = 0; j < 50; j++) {
+        pool.recordCall();
+      }
+      pool.updateCallRate(5000);
+    }
+    assertEquals(180000, pool.getIdleTimeoutMillis());
+  }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import junit.framework.TestCase;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests the non-blocking API transport against a local stub of the API server.
+ *
+ */
+public class VmApiProxyAsyncClientTest extends TestCase {
+  private static final String TICKET = "test-ticket";
+
+  protected Server server;
+  protected ServerConnector connector;
+  private VmApiProxyAsyncClient asyncClient;
+  protected VmApiProxyDelegate delegate;
+
+  /**
+   * Stub API server echoing the request payload back, or failing the call for some packages.
+   */
+  static class StubApiHandler extends AbstractHandler {
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request,
+        HttpServletResponse response) throws IOException {
+      baseRequest.setHandled(true);
+      RemoteApiPb.Request remoteRequest = new RemoteApiPb.Request();
+      if (!remoteRequest.parseFrom(request.getInputStream())
+          || !TICKET.equals(remoteRequest.getRequestId())) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+      RemoteApiPb.Response remoteResponse = new RemoteApiPb.Response();
+      switch (remoteRequest.getServiceName()) {
+        case "unavailable":
+          response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+          return;
+        case "rpcerror":
+          RemoteApiPb.RpcError rpcError = new RemoteApiPb.RpcError();
+          rpcError.setCode(RemoteApiPb.RpcError.ErrorCode.OVER_QUOTA.ordinal());
+          remoteResponse.setRpcError(rpcError);
+          break;
+        default:
+          remoteResponse.setResponseAsBytes(remoteRequest.getRequestAsBytes());
+      }
+      response.setContentType("application/octet-stream");
+      response.getOutputStream().write(remoteResponse.toByteArray());
+    }
+  }
+
+  protected Server createServer() {
+    server = new Server();
+    connector = new ServerConnector(server);
+    server.addConnector(connector);
+    return server;
+  }
+
+  protected VmApiProxyAsyncClient createAsyncClient() {
+    return VmApiProxyAsyncClient.create();
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    createServer().setHandler(new StubApiHandler());
+    server.start();
+    asyncClient = createAsyncClient();
+    delegate = new VmApiProxyDelegate(new DefaultHttpClient(), asyncClient);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delegate.monitorThread.interrupt();
+    asyncClient.stop();
+    server.stop();
+    super.tearDown();
+  }
+
+  private VmApiProxyEnvironment createMockEnvironment(String server) {
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    when(environment.getTicket()).thenReturn(TICKET);
+    when(environment.getServer()).thenReturn(server);
+    Map<String, Object> attributes = new HashMap<>();
+    when(environment.getAttributes()).thenReturn(attributes);
+    return environment;
+  }
+
+  protected VmApiProxyEnvironment createMockEnvironment() {
+    return createMockEnvironment("localhost:" + connector.getLocalPort());
+  }
+
+  public void testMakeSyncCall_Success() throws Exception {
+    byte[] requestData = new byte[] {0, 1, 2, 3, 4, 5};
+    byte[] result =
+        delegate.makeSyncCall(createMockEnvironment(), "test", "method", requestData);
+    assertTrue(Arrays.equals(requestData, result));
+  }
+
+  public void testMakeAsyncCall_ManyInFlight() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    List<Future<byte[]>> calls = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      calls.add(delegate.makeAsyncCall(
+          environment, "test", "method", new byte[] {(byte) i}, new ApiConfig()));
+    }
+    for (int i = 0; i < calls.size(); i++) {
+      assertTrue(Arrays.equals(new byte[] {(byte) i}, calls.get(i).get()));
+    }
+  }
+
+  public void testMakeAsyncCall_RpcError() throws Exception {
+    try {
+      delegate.makeAsyncCall(
+          createMockEnvironment(), "rpcerror", "method", new byte[0], new ApiConfig()).get();
+      fail();
+    } catch (ExecutionException e) {
+      assertEquals(ApiProxy.OverQuotaException.class, e.getCause().getClass());
+    }
+  }
+
+  public void testMakeAsyncCall_HttpError() throws Exception {
+    try {
+      delegate.makeAsyncCall(
+          createMockEnvironment(), "unavailable", "method", new byte[0], new ApiConfig()).get();
+      fail();
+    } catch (ExecutionException e) {
+      assertEquals(ApiProxy.RPCFailedException.class, e.getCause().getClass());
+    }
+  }
+
+  public void testMakeSyncCall_ConnectionError() throws Exception {
+    int port = connector.getLocalPort();
+    server.stop();
+    try {
+      delegate.makeSyncCall(
+          createMockEnvironment("localhost:" + port), "memcache", "Get", new byte[0]);
+      fail();
+    } catch (MemcacheServiceException expected) {
+      // Expected.
+    }
+  }
+}
@@ -17,14 +17,19 @@
 package com.google.apphosting.vmruntime;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.log.LogServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceException;
 import com.google.appengine.api.modules.ModulesException;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.ApiConfig;
 import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.logging.LogContext;
 import com.google.apphosting.utils.remoteapi.RemoteApiPb;
 import com.google.appengine.repackaged.com.google.common.collect.ImmutableMap;
 
@@ -37,16 +42,23 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.protocol.HttpContext;
 import org.mockito.Mockito;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Tests the delegate for making AppEngine API calls in a Google Compute Engine VM.
@@ -348,6 +360,210 @@ public class VmApiProxyDelegateTest extends TestCase {
     callDelegateWithSuccess(false);
   }
 
+  public void testMakeAsyncCall_PropagatesLogContext() throws Exception {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    response.setResponseAsBytes(new byte[] {1});
+    HttpClient mockClient = createMockHttpClient();
+    HttpResponse mockHttpResponse =
+        createMockHttpResponse(response.toByteArray(), HttpURLConnection.HTTP_OK);
+    final AtomicReference<LogContext> callContext = new AtomicReference<>();
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenAnswer(invocation -> {
+          callContext.set(LogContext.current());
+          return mockHttpResponse;
+        });
+    final VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    final VmApiProxyEnvironment environment = createMockEnvironment();
+
+    LogContext context = new LogContext(Collections.singletonMap("traceId", "abcdef"));
+    context.execute(() -> delegate.makeAsyncCall(environment, TEST_PACKAGE_NAME,
+        TEST_METHOD_NAME, new byte[0], new ApiConfig()).get());
+    assertSame(context, callContext.get());
+  }
+
+  public void testMakeSyncCall_NonBlockingCallTimesOut() throws Exception {
+    VmApiProxyAsyncClient neverCompletes = new VmApiProxyAsyncClient() {
+      @Override
+      CompletableFuture<byte[]> send(VmApiProxyEnvironment environment, String packageName,
+          String methodName, byte[] requestData, int timeoutMs) {
+        return new CompletableFuture<>();
+      }
+
+      @Override
+      void stop() {
+      }
+    };
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(createMockHttpClient(), neverCompletes);
+    try {
+      delegate.runSyncCall(
+          createMockEnvironment(), TEST_PACKAGE_NAME, TEST_METHOD_NAME, new byte[0], 100);
+      fail();
+    } catch (ApiProxy.ApiDeadlineExceededException expected) {
+      // Expected.
+    } finally {
+      delegate.monitorThread.interrupt();
+    }
+  }
+
+  public void testMakeSyncCall_HedgedRetriesConnectionError() throws Exception {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    byte[] pbData = new byte[] {0, 1, 2, 3, 4, 5};
+    response.setResponseAsBytes(pbData);
+
+    HttpClient mockClient = createMockHttpClient();
+    HttpResponse mockHttpResponse =
+        createMockHttpResponse(response.toByteArray(), HttpURLConnection.HTTP_OK);
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenThrow(new IOException("Connection reset"))
+        .thenReturn(mockHttpResponse);
+
+    System.setProperty(VmApiProxyDelegate.HEDGED_METHODS_PROPERTY, "memcache.Get");
+    VmApiProxyDelegate delegate;
+    try {
+      delegate = new VmApiProxyDelegate(mockClient);
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.HEDGED_METHODS_PROPERTY);
+    }
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+
+    byte[] result = delegate.makeSyncCall(environment, "memcache", "Get", pbData);
+    assertTrue(Arrays.equals(pbData, result));
+    verify(mockClient, times(2))
+        .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+  }
+
+  public void testMakeSyncCall_HedgedRunsFirstAttemptOnCallingThread() throws Exception {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    byte[] pbData = new byte[] {0, 1, 2, 3, 4, 5};
+    response.setResponseAsBytes(pbData);
+
+    HttpClient mockClient = createMockHttpClient();
+    HttpResponse mockHttpResponse =
+        createMockHttpResponse(response.toByteArray(), HttpURLConnection.HTTP_OK);
+    final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .then(invocation -> {
+          threads.add(Thread.currentThread());
+          if (threads.size() == 1) {
+            throw new IOException("Connection reset");
+          }
+          return mockHttpResponse;
+        });
+
+    System.setProperty(VmApiProxyDelegate.HEDGED_METHODS_PROPERTY, "memcache.Get");
+    VmApiProxyDelegate delegate;
+    try {
+      delegate = new VmApiProxyDelegate(mockClient);
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.HEDGED_METHODS_PROPERTY);
+    }
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+
+    byte[] result = delegate.makeSyncCall(environment, "memcache", "Get", pbData);
+    assertTrue(Arrays.equals(pbData, result));
+    assertEquals(2, threads.size());
+    // The retry must not be queued on the executor, which may be running the calling thread.
+    assertSame(Thread.currentThread(), threads.get(0));
+    assertEquals("ApiCallHedge", threads.get(1).getName());
+  }
+
+  public void testTryMakeAsyncCall_DoesNotWaitForRunningCalls() throws Exception {
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(createMockHttpClient());
+    try {
+      VmApiProxyEnvironment environment = createMockEnvironment();
+      when(environment.tryApiCallStarted()).thenReturn(false);
+      final AtomicBoolean requested = new AtomicBoolean();
+      assertNull(delegate.tryMakeAsyncCall(environment, "logservice", "Flush", () -> {
+        requested.set(true);
+        return new byte[0];
+      }, null));
+      assertFalse(requested.get());
+      verify(environment, never()).aSyncApiCallAdded(Mockito.anyLong());
+      verify(environment, never()).apiCallStarted(Mockito.anyLong(), Mockito.anyBoolean());
+    } finally {
+      delegate.monitorThread.interrupt();
+    }
+  }
+
+  public void testTryMakeAsyncCall_SendsCall() throws Exception {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    byte[] pbData = new byte[] {0, 1, 2, 3, 4, 5};
+    response.setResponseAsBytes(pbData);
+    HttpClient mockClient = createMockHttpClient();
+    HttpResponse mockHttpResponse =
+        createMockHttpResponse(response.toByteArray(), HttpURLConnection.HTTP_OK);
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenReturn(mockHttpResponse);
+
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    try {
+      VmApiProxyEnvironment environment = createMockEnvironment();
+      when(environment.tryApiCallStarted()).thenReturn(true);
+      CompletableFuture<byte[]> call = delegate.tryMakeAsyncCall(
+          environment, TEST_PACKAGE_NAME, TEST_METHOD_NAME, () -> pbData, null);
+      assertTrue(Arrays.equals(pbData, call.get()));
+      verify(environment, times(1)).apiCallCompleted();
+    } finally {
+      delegate.monitorThread.interrupt();
+    }
+  }
+
+  public void testMakeSyncCall_CircuitBreakerFailsFast() throws Exception {
+    HttpClient mockClient = createMockHttpClient();
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenThrow(new IOException("Connection refused"));
+
+    System.setProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY, "true");
+    System.setProperty(VmApiCircuitBreaker.WINDOW_SIZE_PROPERTY, "2");
+    System.setProperty(VmApiCircuitBreaker.MIN_CALLS_PROPERTY, "2");
+    try {
+      VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+      VmApiProxyEnvironment environment = createMockEnvironment();
+      for (int i = 0; i < 4; i++) {
+        try {
+          delegate.makeSyncCall(environment, "memcache", "Get", new byte[0]);
+          fail();
+        } catch (MemcacheServiceException expected) {
+          // Expected.
+        }
+      }
+      // The breaker opened after two failures, the other calls were not sent.
+      verify(mockClient, times(2))
+          .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY);
+      System.clearProperty(VmApiCircuitBreaker.WINDOW_SIZE_PROPERTY);
+      System.clearProperty(VmApiCircuitBreaker.MIN_CALLS_PROPERTY);
+    }
+  }
+
+  public void testMakeCall_ConcurrencyGovernor() throws Exception {
+    System.setProperty(VmApiProxyDelegate.CONCURRENCY_GOVERNOR_PROPERTY, "true");
+    try {
+      callDelegateWithSuccess(true);
+      callDelegateWithSuccess(false);
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.CONCURRENCY_GOVERNOR_PROPERTY);
+    }
+  }
+
+  public void testIsServiceFailure() {
+    assertTrue(VmApiProxyDelegate.isServiceFailure(null));
+    assertTrue(VmApiProxyDelegate.isServiceFailure(new DatastoreFailureException("failed")));
+    assertTrue(VmApiProxyDelegate.isServiceFailure(
+        new ApiProxy.RPCFailedException(TEST_PACKAGE_NAME, TEST_METHOD_NAME)));
+    assertTrue(VmApiProxyDelegate.isServiceFailure(
+        new ApiProxy.ApiDeadlineExceededException(TEST_PACKAGE_NAME, TEST_METHOD_NAME)));
+    assertFalse(VmApiProxyDelegate.isServiceFailure(
+        new ApiProxy.ApplicationException(TEST_APPLICATION_ERROR, TEST_ERROR_MESSAGE)));
+    assertFalse(VmApiProxyDelegate.isServiceFailure(
+        new ApiProxy.ArgumentException(TEST_PACKAGE_NAME, TEST_METHOD_NAME)));
+    assertFalse(VmApiProxyDelegate.isServiceFailure(
+        new ApiProxy.CancelledException(TEST_PACKAGE_NAME, TEST_METHOD_NAME)));
+  }
+
   public void testMakeSyncCall_HttpError() throws Exception {
     callDelegateWithHttpError(true,
         new ApiProxy.RPCFailedException(TEST_PACKAGE_NAME, TEST_METHOD_NAME));
@@ -462,6 +678,25 @@ public class VmApiProxyDelegateTest extends TestCase {
         Double.toString(deadline));
   }
 
+  public void testCreateRequest_SharesTemplates() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    when(environment.getServer()).thenReturn("localhost:10001");
+    HttpPost first = VmApiProxyDelegate.createRequest(environment, TEST_PACKAGE_NAME,
+        TEST_METHOD_NAME, new byte[0], 5000);
+    HttpPost second = VmApiProxyDelegate.createRequest(environment, TEST_PACKAGE_NAME,
+        TEST_METHOD_NAME, new byte[0], 5000);
+    HttpPost other = VmApiProxyDelegate.createRequest(environment, TEST_PACKAGE_NAME,
+        TEST_METHOD_NAME, new byte[0], 7000);
+
+    assertSame(first.getURI(), second.getURI());
+    assertSame(first.getParams(), second.getParams());
+    assertNotSame(first.getParams(), other.getParams());
+    assertEquals(8000, other.getParams().getIntParameter(CoreConnectionPNames.SO_TIMEOUT, 0));
+    assertSame(first.getFirstHeader(VmApiProxyDelegate.RPC_DEADLINE_HEADER).getValue(),
+        second.getFirstHeader(VmApiProxyDelegate.RPC_DEADLINE_HEADER).getValue());
+    assertEquals("7.0", other.getFirstHeader(VmApiProxyDelegate.RPC_DEADLINE_HEADER).getValue());
+  }
+
   public void testAPIExceptionWrapping() {
     VmApiProxyDelegate delegate = new VmApiProxyDelegate(createMockHttpClient());
     RuntimeException exception = delegate.constructApiException("logservice", "a");
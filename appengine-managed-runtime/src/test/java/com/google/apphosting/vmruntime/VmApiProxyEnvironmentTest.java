@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.repackaged.com.google.common.collect.ImmutableMap;
+import com.google.apphosting.utils.servlet.HttpServletRequestAdapter;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Tests the creation of request environments from the request headers.
+ *
+ */
+public class VmApiProxyEnvironmentTest extends TestCase {
+  private static final String SERVER = "localhost:10001";
+
+  /** Metadata cache counting the lookups sent to the server. */
+  private static class CountingMetadataCache extends VmMetadataCache {
+    int lookups;
+    int instanceLookups;
+
+    @Override
+    protected String getMetadataFromServer(String path) {
+      lookups++;
+      if (path.equals(VmApiProxyEnvironment.INSTANCE_ATTRIBUTE)) {
+        return "instance" + ++instanceLookups;
+      }
+      return null;
+    }
+  }
+
+  private final Map<String, String> envMap = ImmutableMap.of(
+      VmApiProxyEnvironment.LONG_APP_ID_KEY, "app",
+      VmApiProxyEnvironment.PARTITION_KEY, "s",
+      VmApiProxyEnvironment.MODULE_NAME_KEY, "module",
+      VmApiProxyEnvironment.VERSION_KEY, "v1",
+      VmApiProxyEnvironment.MINOR_VERSION_KEY, "123");
+
+  private CountingMetadataCache cache;
+  private VmApiProxyEnvironment defaultEnvironment;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    cache = new CountingMetadataCache();
+    defaultEnvironment =
+        VmApiProxyEnvironment.createDefaultContext(envMap, cache, SERVER, null, null, null);
+  }
+
+  private VmApiProxyEnvironment createFromHeaders(Map<String, String> headers) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getHeaderNames()).thenReturn(Collections.enumeration(headers.keySet()));
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      when(request.getHeader(header.getKey())).thenReturn(header.getValue());
+    }
+    return VmApiProxyEnvironment.createFromHeaders(envMap, cache,
+        new HttpServletRequestAdapter(request), SERVER, null, null, defaultEnvironment);
+  }
+
+  public void testCreateFromHeaders() {
+    VmApiProxyEnvironment environment = createFromHeaders(ImmutableMap.of(
+        "x-appengine-api-ticket", "ticket",
+        "X-AppEngine-User-Email", "user@example.com",
+        "X-APPENGINE-USER-IS-ADMIN", "1",
+        "X-AppEngine-Datacenter", "us1",
+        "X-Other", "other"));
+    assertEquals("ticket", environment.getTicket());
+    assertEquals("user@example.com", environment.getEmail());
+    assertTrue(environment.isAdmin());
+    assertEquals("", environment.getAuthDomain());
+    assertEquals("s~app", environment.getAppId());
+    assertEquals("module", environment.getModuleId());
+    assertEquals("v1.123", environment.getVersionId());
+    assertEquals("us1", environment.getAttributes()
+        .get(VmApiProxyEnvironment.AttributeMapping.DATACENTER.attributeKey));
+    assertEquals("", environment.getAttributes()
+        .get(VmApiProxyEnvironment.AttributeMapping.USER_ID.attributeKey));
+    assertEquals(Boolean.FALSE,
+        environment.getAttributes().get(VmApiProxyEnvironment.IS_FEDERATED_USER_KEY));
+    assertFalse(environment.getAttributes().containsKey(VmApiProxyEnvironment.IS_TRUSTED_IP_KEY));
+    assertFalse(environment.getAttributes().containsKey(
+        VmApiProxyEnvironment.AttributeMapping.GAIA_ID.attributeKey));
+  }
+
+  public void testCreateFromHeaders_TrustedApp() {
+    VmApiProxyEnvironment environment = createFromHeaders(ImmutableMap.of(
+        "X-AppEngine-Trusted-IP-Request", "1",
+        "X-AppEngine-Gaia-Id", "42"));
+    assertEquals(Boolean.TRUE,
+        environment.getAttributes().get(VmApiProxyEnvironment.IS_TRUSTED_IP_KEY));
+    assertEquals("42", environment.getAttributes()
+        .get(VmApiProxyEnvironment.AttributeMapping.GAIA_ID.attributeKey));
+  }
+
+  public void testCreateFromHeaders_DefaultTicket() {
+    VmApiProxyEnvironment environment =
+        createFromHeaders(Collections.<String, String>emptyMap());
+    assertEquals("app/module.v1.instance1", environment.getTicket());
+  }
+
+  public void testCreateFromHeaders_ReusesInstanceAttributes() {
+    createFromHeaders(Collections.<String, String>emptyMap());
+    int lookups = cache.lookups;
+    VmApiProxyEnvironment environment =
+        createFromHeaders(Collections.<String, String>emptyMap());
+    assertEquals(lookups, cache.lookups);
+    assertEquals("instance1",
+        environment.getAttributes().get(VmApiProxyEnvironment.INSTANCE_ID_KEY));
+
+    // Clearing the metadata cache resolves the attributes again.
+    cache.clear();
+    environment = createFromHeaders(Collections.<String, String>emptyMap());
+    assertTrue(cache.lookups > lookups);
+    assertEquals("app/module.v1.instance2", environment.getTicket());
+  }
+}
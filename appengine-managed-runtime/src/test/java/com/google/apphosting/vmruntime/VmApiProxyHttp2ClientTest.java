@@ -0,0 +1,78 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the non-blocking API transport tests over HTTP/2 against a local h2c stub of the API server.
+ *
+ */
+public class VmApiProxyHttp2ClientTest extends VmApiProxyAsyncClientTest {
+  private static final int CONNECTIONS = 1;
+  private static final int MAX_CONCURRENT_STREAMS = 8;
+
+  @Override
+  protected Server createServer() {
+    server = new Server();
+    connector = new ServerConnector(
+        server, new HTTP2CServerConnectionFactory(new HttpConfiguration()));
+    server.addConnector(connector);
+    return server;
+  }
+
+  @Override
+  protected VmApiProxyAsyncClient createAsyncClient() {
+    return VmApiProxyHttp2Client.start(new HTTP2Client(), CONNECTIONS, MAX_CONCURRENT_STREAMS,
+        VmApiProxyHttp2Client.DEFAULT_STREAM_WINDOW);
+  }
+
+  public void testMakeAsyncCall_MultiplexedOnOneConnection() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    List<Future<byte[]>> calls = new ArrayList<>();
+    for (int i = 0; i < 10 * MAX_CONCURRENT_STREAMS; i++) {
+      calls.add(delegate.makeAsyncCall(
+          environment, "test", "method", new byte[] {(byte) i}, new ApiConfig()));
+    }
+    for (int i = 0; i < calls.size(); i++) {
+      assertTrue(Arrays.equals(new byte[] {(byte) i}, calls.get(i).get()));
+    }
+    assertEquals(CONNECTIONS, connector.getConnectedEndPoints().size());
+  }
+
+  public void testMakeSyncCall_LargeResponse() throws Exception {
+    // Larger than the default 64 KB windows, the response has to be flow controlled.
+    byte[] requestData = new byte[3 * VmApiProxyHttp2Client.DEFAULT_STREAM_WINDOW];
+    for (int i = 0; i < requestData.length; i++) {
+      requestData[i] = (byte) i;
+    }
+    byte[] result =
+        delegate.makeSyncCall(createMockEnvironment(), "test", "method", requestData);
+    assertTrue(Arrays.equals(requestData, result));
+  }
+}
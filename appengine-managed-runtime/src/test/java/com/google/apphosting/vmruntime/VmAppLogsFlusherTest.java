@@ -0,0 +1,247 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
+
+import com.google.appengine.repackaged.com.google.common.base.Stopwatch;
+import com.google.appengine.repackaged.com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Tests the time based flushes started by {@link VmAppLogsFlusher}.
+ *
+ */
+public class VmAppLogsFlusherTest extends TestCase {
+  private static final int MAX_FLUSH_SECONDS = 60;
+
+  private ApiProxy.Delegate<?> savedDelegate;
+  private ApiProxy.Delegate<Environment> delegate;
+  private Environment environment;
+  private long startNanos;
+  private VmAppLogsFlusher flusher;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void setUp() throws Exception {
+    super.setUp();
+    savedDelegate = ApiProxy.getDelegate();
+    delegate = mock(ApiProxy.Delegate.class);
+    when(delegate.makeAsyncCall(any(Environment.class), anyString(), anyString(),
+        any(byte[].class), any(ApiConfig.class)))
+        .thenReturn(CompletableFuture.completedFuture(new byte[0]));
+    ApiProxy.setDelegate(delegate);
+    environment = mock(Environment.class);
+    startNanos = System.nanoTime();
+    flusher = new VmAppLogsFlusher(VmAppLogsFlusher.TICK_MILLIS, startNanos);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ApiProxy.setDelegate(savedDelegate);
+    super.tearDown();
+  }
+
+  private void tick(long seconds) {
+    flusher.tick(startNanos + TimeUnit.SECONDS.toNanos(seconds));
+  }
+
+  private void verifyFlushes(int count) {
+    verify(delegate, times(count)).makeAsyncCall(eq(environment), eq("logservice"), eq("Flush"),
+        any(byte[].class), any(ApiConfig.class));
+  }
+
+  private static LogRecord record(String message) {
+    return new LogRecord(LogRecord.Level.info, 1000L, message);
+  }
+
+  public void testIdleRequestIsFlushed() {
+    // The ticker of the stopwatch of the writer, advanced by the test. Mocked rather than
+    // subclassed, as the benchmark annotation processor cannot load the @Beta Ticker class.
+    Ticker ticker = mock(Ticker.class);
+    VmAppLogsWriter writer = new VmAppLogsWriter(
+        new LinkedList<UserAppLogLine>(), 1024 * 1024L, 8 * 1024, MAX_FLUSH_SECONDS);
+    writer.setStopwatch(Stopwatch.createUnstarted(ticker));
+    writer.setFlusher(flusher, environment);
+    writer.addLogRecordAndMaybeFlush(record("a"));
+
+    when(ticker.read()).thenReturn(TimeUnit.SECONDS.toNanos(30));
+    tick(30);
+    verifyFlushes(0);
+
+    // Sent with the environment of the request, from the flusher thread.
+    when(ticker.read()).thenReturn(TimeUnit.SECONDS.toNanos(MAX_FLUSH_SECONDS + 1));
+    tick(MAX_FLUSH_SECONDS + 1);
+    verifyFlushes(1);
+    assertEquals(1, writer.flushAndWait());
+
+    // The writer left the wheel, and is added again by its next line.
+    tick(2 * MAX_FLUSH_SECONDS);
+    writer.addLogRecordAndMaybeFlush(record("b"));
+    when(ticker.read()).thenReturn(TimeUnit.SECONDS.toNanos(2 * MAX_FLUSH_SECONDS + 2));
+    tick(4 * MAX_FLUSH_SECONDS);
+    verifyFlushes(2);
+    assertEquals(2, writer.flushAndWait());
+  }
+
+  public void testFlushedByRequestIsNotFlushedAgain() {
+    VmAppLogsWriter writer = new VmAppLogsWriter(
+        new LinkedList<UserAppLogLine>(), 1024 * 1024L, 8 * 1024, MAX_FLUSH_SECONDS);
+    writer.setFlusher(flusher, environment);
+    writer.addLogRecordAndMaybeFlush(record("a"));
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    try {
+      assertEquals(1, writer.flushAndWait());
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+    tick(2 * MAX_FLUSH_SECONDS);
+    verifyFlushes(1);
+    assertEquals(1, writer.flushAndWait());
+  }
+
+  public void testBusyRequestIsFlushedLater() {
+    final AtomicInteger tries = new AtomicInteger();
+    HttpClient httpClient = mock(HttpClient.class);
+    when(httpClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    // The first flush cannot start, the request has too many API calls running.
+    VmApiProxyDelegate busyDelegate = new VmApiProxyDelegate(httpClient) {
+      @Override
+      @SuppressWarnings("unchecked")
+      CompletableFuture<byte[]> tryMakeAsyncCall(VmApiProxyEnvironment environment,
+          String packageName, String methodName, Supplier<byte[]> request, ApiConfig apiConfig) {
+        if (tries.incrementAndGet() == 1) {
+          return null;
+        }
+        return (CompletableFuture<byte[]>) delegate.makeAsyncCall(
+            environment, packageName, methodName, request.get(), apiConfig);
+      }
+    };
+    ApiProxy.setDelegate(busyDelegate);
+    try {
+      VmApiProxyEnvironment requestEnvironment = mock(VmApiProxyEnvironment.class);
+      Ticker ticker = mock(Ticker.class);
+      VmAppLogsWriter writer = new VmAppLogsWriter(
+          new LinkedList<UserAppLogLine>(), 1024 * 1024L, 8 * 1024, MAX_FLUSH_SECONDS);
+      writer.setStopwatch(Stopwatch.createUnstarted(ticker));
+      writer.setFlusher(flusher, requestEnvironment);
+      writer.addLogRecordAndMaybeFlush(record("a"));
+
+      when(ticker.read()).thenReturn(TimeUnit.SECONDS.toNanos(MAX_FLUSH_SECONDS + 1));
+      tick(MAX_FLUSH_SECONDS + 1);
+      assertEquals(1, tries.get());
+      verify(delegate, never()).makeAsyncCall(any(Environment.class), anyString(), anyString(),
+          any(byte[].class), any(ApiConfig.class));
+
+      // Tried again on a later tick, with the lines still buffered.
+      tick(MAX_FLUSH_SECONDS + 4);
+      assertEquals(2, tries.get());
+      verify(delegate).makeAsyncCall(eq(requestEnvironment), eq("logservice"), eq("Flush"),
+          any(byte[].class), any(ApiConfig.class));
+      assertEquals(1, writer.flushAndWait());
+    } finally {
+      busyDelegate.monitorThread.interrupt();
+    }
+  }
+
+  public void testRequestWaitingForFlushDoesNotBlockFlusher() throws Exception {
+    // The flush of the first request does not complete, its thread waits for it.
+    CompletableFuture<byte[]> slowFlush = new CompletableFuture<>();
+    when(delegate.makeAsyncCall(eq(environment), anyString(), anyString(),
+        any(byte[].class), any(ApiConfig.class))).thenReturn(slowFlush);
+    final VmAppLogsWriter slowWriter = new VmAppLogsWriter(
+        new LinkedList<UserAppLogLine>(), 1024 * 1024L, 8 * 1024, MAX_FLUSH_SECONDS);
+    slowWriter.setFlusher(flusher, environment);
+    slowWriter.addLogRecordAndMaybeFlush(record("a"));
+    Thread requestThread = new Thread(() -> {
+      ApiProxy.setEnvironmentForCurrentThread(environment);
+      slowWriter.flushAndWait();
+    });
+    requestThread.start();
+
+    Environment otherEnvironment = mock(Environment.class);
+    Ticker ticker = mock(Ticker.class);
+    VmAppLogsWriter otherWriter = new VmAppLogsWriter(
+        new LinkedList<UserAppLogLine>(), 1024 * 1024L, 8 * 1024, MAX_FLUSH_SECONDS);
+    otherWriter.setStopwatch(Stopwatch.createUnstarted(ticker));
+    otherWriter.setFlusher(flusher, otherEnvironment);
+    otherWriter.addLogRecordAndMaybeFlush(record("b"));
+    try {
+      verify(delegate, timeout(5000)).makeAsyncCall(eq(environment), eq("logservice"),
+          eq("Flush"), any(byte[].class), any(ApiConfig.class));
+
+      // The flusher skips the writer locked by the request thread, and flushes the other one.
+      when(ticker.read()).thenReturn(TimeUnit.SECONDS.toNanos(MAX_FLUSH_SECONDS + 1));
+      tick(MAX_FLUSH_SECONDS + 1);
+      assertTrue(requestThread.isAlive());
+      verify(delegate).makeAsyncCall(eq(otherEnvironment), eq("logservice"), eq("Flush"),
+          any(byte[].class), any(ApiConfig.class));
+    } finally {
+      slowFlush.complete(new byte[0]);
+      requestThread.join();
+    }
+    assertEquals(1, slowWriter.flushAndWait());
+    assertEquals(1, otherWriter.flushAndWait());
+  }
+
+  public void testPipelinedRequestIsHandedOver() throws Exception {
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    try {
+      VmApiProxyEnvironment requestEnvironment = mock(VmApiProxyEnvironment.class);
+      VmAppLogsWriter writer = new VmAppLogsWriter(new LinkedList<UserAppLogLine>(),
+          1024 * 1024L, 8 * 1024, MAX_FLUSH_SECONDS,
+          new VmAppLogsShipper(scheduler).newRequestLogs(requestEnvironment));
+      writer.setFlusher(flusher, requestEnvironment);
+      writer.addLogRecordAndMaybeFlush(record("a"));
+      tick(30);
+      verify(delegate, never()).makeAsyncCall(any(Environment.class), anyString(), anyString(),
+          any(byte[].class), any(ApiConfig.class));
+
+      tick(MAX_FLUSH_SECONDS + 2);
+      verify(delegate, timeout(5000)).makeAsyncCall(eq(requestEnvironment),
+          eq("logservice"), eq("Flush"), any(byte[].class), any(ApiConfig.class));
+      assertEquals(1, writer.flushAndWait());
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.logservice.LogServicePb.FlushRequest;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogGroup;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Tests the pipelined mode of {@link VmAppLogsWriter} and {@link VmAppLogsShipper}.
+ *
+ */
+public class VmAppLogsShipperTest extends TestCase {
+  private static final long TIMEOUT_MS = 5000;
+  private static final int MAX_BYTES_TO_FLUSH = 1024;
+
+  /** A logservice.Flush call received by the delegate. */
+  private static class FlushCall {
+    final Environment environment;
+    final UserAppLogGroup group = new UserAppLogGroup();
+    final CompletableFuture<byte[]> response = new CompletableFuture<>();
+
+    FlushCall(Environment environment, byte[] request) {
+      this.environment = environment;
+      FlushRequest flushRequest = new FlushRequest();
+      assertTrue(flushRequest.parseFrom(request));
+      assertTrue(group.parseFrom(flushRequest.getLogsAsBytes()));
+    }
+  }
+
+  /** Delegate recording the flushes, which complete when the test completes them. */
+  private static class FlushRecorder implements ApiProxy.Delegate<Environment> {
+    final BlockingQueue<FlushCall> calls = new LinkedBlockingQueue<>();
+
+    @Override
+    public Future<byte[]> makeAsyncCall(Environment environment, String packageName,
+        String methodName, byte[] request, ApiConfig apiConfig) {
+      assertEquals("logservice", packageName);
+      assertEquals("Flush", methodName);
+      FlushCall call = new FlushCall(environment, request);
+      calls.add(call);
+      return call.response;
+    }
+
+    @Override
+    public byte[] makeSyncCall(Environment environment, String packageName, String methodName,
+        byte[] request) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void log(Environment environment, LogRecord record) {}
+
+    @Override
+    public void flushLogs(Environment environment) {}
+
+    @Override
+    public List<Thread> getRequestThreads(Environment environment) {
+      return null;
+    }
+  }
+
+  private ApiProxy.Delegate<?> savedDelegate;
+  private FlushRecorder delegate;
+  private ScheduledThreadPoolExecutor scheduler;
+  private VmAppLogsShipper shipper;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    savedDelegate = ApiProxy.getDelegate();
+    delegate = new FlushRecorder();
+    ApiProxy.setDelegate(delegate);
+    scheduler = new ScheduledThreadPoolExecutor(1);
+    shipper = new VmAppLogsShipper(scheduler);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    scheduler.shutdownNow();
+    ApiProxy.setDelegate(savedDelegate);
+    super.tearDown();
+  }
+
+  private VmAppLogsWriter createWriter(VmApiProxyEnvironment environment) {
+    return new VmAppLogsWriter(new LinkedList<UserAppLogLine>(), MAX_BYTES_TO_FLUSH, 1024, 0,
+        shipper.newRequestLogs(environment));
+  }
+
+  private static LogRecord record(String message) {
+    return new LogRecord(LogRecord.Level.info, 1000L, message);
+  }
+
+  private FlushCall nextCall() throws InterruptedException {
+    FlushCall call = delegate.calls.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertNotNull(call);
+    return call;
+  }
+
+  public void testFlushAndWait_HandsOver() throws Exception {
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    VmAppLogsWriter writer = createWriter(environment);
+    writer.addLogRecordAndMaybeFlush(record("a"));
+    writer.addLogRecordAndMaybeFlush(record("b"));
+    assertTrue(delegate.calls.isEmpty());
+
+    // The flush is not waited for.
+    assertEquals(1, writer.flushAndWait());
+    FlushCall call = nextCall();
+    assertSame(environment, call.environment);
+    assertEquals(2, call.group.logLineSize());
+    assertEquals("a", call.group.getLogLine(0).getMessage());
+    assertEquals("b", call.group.getLogLine(1).getMessage());
+
+    // Nothing is left to hand over.
+    assertEquals(1, writer.flushAndWait());
+  }
+
+  public void testFlushesOfRequestAreSentInOrder() throws Exception {
+    VmAppLogsWriter writer = createWriter(mock(VmApiProxyEnvironment.class));
+    writer.addLogRecordAndMaybeFlush(record("a"));
+    assertEquals(1, writer.waitForCurrentFlushAndStartNewFlush());
+    writer.addLogRecordAndMaybeFlush(record("b"));
+    assertEquals(2, writer.flushAndWait());
+
+    FlushCall first = nextCall();
+    assertEquals("a", first.group.getLogLine(0).getMessage());
+    // The second flush waits for the first one.
+    assertNull(delegate.calls.poll(50, TimeUnit.MILLISECONDS));
+    first.response.complete(new byte[0]);
+    assertEquals("b", nextCall().group.getLogLine(0).getMessage());
+  }
+
+  public void testFlushesOfRequestsAreConcurrent() throws Exception {
+    VmApiProxyEnvironment environment1 = mock(VmApiProxyEnvironment.class);
+    VmApiProxyEnvironment environment2 = mock(VmApiProxyEnvironment.class);
+    VmAppLogsWriter writer1 = createWriter(environment1);
+    VmAppLogsWriter writer2 = createWriter(environment2);
+    writer1.addLogRecordAndMaybeFlush(record("a"));
+    writer2.addLogRecordAndMaybeFlush(record("b"));
+    writer1.flushAndWait();
+    writer2.flushAndWait();
+    assertSame(environment1, nextCall().environment);
+    assertSame(environment2, nextCall().environment);
+  }
+
+  public void testFailedFlushDoesNotStopTheRequest() throws Exception {
+    VmAppLogsWriter writer = createWriter(mock(VmApiProxyEnvironment.class));
+    writer.addLogRecordAndMaybeFlush(record("a"));
+    writer.flushAndWait();
+    writer.addLogRecordAndMaybeFlush(record("b"));
+    writer.flushAndWait();
+    nextCall().response.completeExceptionally(
+        new ApiProxy.RPCFailedException("logservice", "Flush"));
+    assertEquals("b", nextCall().group.getLogLine(0).getMessage());
+  }
+
+  public void testSizeLimit_HandsOverBatches() throws Exception {
+    VmAppLogsWriter writer = createWriter(mock(VmApiProxyEnvironment.class));
+    StringBuilder message = new StringBuilder();
+    for (int i = 0; i < 400; i++) {
+      message.append('x');
+    }
+    for (int i = 0; i < 3; i++) {
+      writer.addLogRecordAndMaybeFlush(record(message.toString()));
+    }
+    // The third line reached the size limit, and does not fit in the batch of the first two.
+    FlushCall first = nextCall();
+    assertEquals(2, first.group.logLineSize());
+    first.response.complete(new byte[0]);
+    assertEquals(1, nextCall().group.logLineSize());
+    assertEquals(2, writer.flushAndWait());
+  }
+
+  public void testFlushIsRetriedWhileRequestCallsAreBusy() throws Exception {
+    final VmApiProxyEnvironment busyEnvironment = mock(VmApiProxyEnvironment.class);
+    final AtomicBoolean busy = new AtomicBoolean(true);
+    final AtomicInteger busyTries = new AtomicInteger();
+    HttpClient httpClient = mock(HttpClient.class);
+    when(httpClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    VmApiProxyDelegate busyDelegate = new VmApiProxyDelegate(httpClient) {
+      @Override
+      @SuppressWarnings("unchecked")
+      CompletableFuture<byte[]> tryMakeAsyncCall(VmApiProxyEnvironment environment,
+          String packageName, String methodName, Supplier<byte[]> request, ApiConfig apiConfig) {
+        if (environment == busyEnvironment && busy.get()) {
+          busyTries.incrementAndGet();
+          return null;
+        }
+        return (CompletableFuture<byte[]>) delegate.makeAsyncCall(
+            environment, packageName, methodName, request.get(), apiConfig);
+      }
+    };
+    ApiProxy.setDelegate(busyDelegate);
+    try {
+      VmAppLogsWriter busyWriter = createWriter(busyEnvironment);
+      busyWriter.addLogRecordAndMaybeFlush(record("a"));
+      busyWriter.flushAndWait();
+      VmAppLogsWriter writer = createWriter(mock(VmApiProxyEnvironment.class));
+      writer.addLogRecordAndMaybeFlush(record("b"));
+      writer.flushAndWait();
+
+      // The busy request does not hold up the shipper thread.
+      assertEquals("b", nextCall().group.getLogLine(0).getMessage());
+      long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+      while (busyTries.get() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1);
+      }
+      assertTrue(busyTries.get() >= 2);
+
+      busy.set(false);
+      assertEquals("a", nextCall().group.getLogLine(0).getMessage());
+    } finally {
+      busyDelegate.monitorThread.interrupt();
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.logservice.LogServicePb.FlushRequest;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogGroup;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests the splitting of long log messages by {@link VmAppLogsWriter}.
+ *
+ */
+public class VmAppLogsWriterTest extends TestCase {
+  private static final int MAX_LOG_MESSAGE_LENGTH = 1024;
+
+  private final VmAppLogsWriter writer = new VmAppLogsWriter(
+      new LinkedList<UserAppLogLine>(), 1024 * 1024L, MAX_LOG_MESSAGE_LENGTH, 0);
+
+  /**
+   * The splitting algorithm copying the remaining part of the message for each chunk.
+   */
+  private static List<String> splitByCopying(String message) {
+    int logCutLength = MAX_LOG_MESSAGE_LENGTH - VmAppLogsWriter.LOG_CONTINUATION_SUFFIX_LENGTH;
+    List<String> chunks = new ArrayList<>();
+    String remaining = message;
+    while (remaining.length() > 0) {
+      if (remaining.length() <= MAX_LOG_MESSAGE_LENGTH) {
+        chunks.add(remaining);
+        break;
+      }
+      int cutLength = logCutLength;
+      boolean cutAtNewline = false;
+      int friendlyCutLength = remaining.lastIndexOf('\n', logCutLength);
+      if (friendlyCutLength > logCutLength / 10) {
+        cutLength = friendlyCutLength;
+        cutAtNewline = true;
+      }
+      chunks.add(remaining.substring(0, cutLength) + VmAppLogsWriter.LOG_CONTINUATION_SUFFIX);
+      remaining = remaining.substring(cutLength + (cutAtNewline ? 1 : 0));
+      if (remaining.length() > MAX_LOG_MESSAGE_LENGTH
+          || remaining.length() + VmAppLogsWriter.LOG_CONTINUATION_PREFIX_LENGTH
+              <= MAX_LOG_MESSAGE_LENGTH) {
+        remaining = VmAppLogsWriter.LOG_CONTINUATION_PREFIX + remaining;
+      }
+    }
+    return chunks;
+  }
+
+  private List<String> split(String message) {
+    List<String> chunks = new ArrayList<>();
+    for (LogRecord record : writer.split(new LogRecord(LogRecord.Level.info, 1000L, message))) {
+      assertEquals(LogRecord.Level.info, record.getLevel());
+      assertEquals(1000L, record.getTimestamp());
+      assertTrue(record.getMessage().length() <= MAX_LOG_MESSAGE_LENGTH);
+      chunks.add(record.getMessage());
+    }
+    return chunks;
+  }
+
+  private static String repeat(char c, int count) {
+    StringBuilder builder = new StringBuilder(count);
+    for (int i = 0; i < count; i++) {
+      builder.append(c);
+    }
+    return builder.toString();
+  }
+
+  public void testSplit_ShortMessage() {
+    LogRecord record = new LogRecord(LogRecord.Level.info, 1000L, "message");
+    List<LogRecord> records = writer.split(record);
+    assertEquals(1, records.size());
+    assertSame(record, records.get(0));
+  }
+
+  public void testSplit_WithoutNewlines() {
+    String message = repeat('x', 3000);
+    List<String> chunks = split(message);
+    assertEquals(splitByCopying(message), chunks);
+    assertEquals(4, chunks.size());
+    assertTrue(chunks.get(0).endsWith(VmAppLogsWriter.LOG_CONTINUATION_SUFFIX));
+    assertTrue(chunks.get(1).startsWith(VmAppLogsWriter.LOG_CONTINUATION_PREFIX));
+  }
+
+  public void testSplit_AtNewlines() {
+    String message = repeat('x', 600) + "\n" + repeat('y', 600) + "\n" + repeat('z', 600);
+    List<String> chunks = split(message);
+    assertEquals(splitByCopying(message), chunks);
+    assertEquals(repeat('x', 600) + VmAppLogsWriter.LOG_CONTINUATION_SUFFIX, chunks.get(0));
+  }
+
+  public void testSplit_EndingWithNewline() {
+    String message = repeat('x', 1000) + "\n" + repeat('y', 100);
+    assertEquals(splitByCopying(message), split(message));
+  }
+
+  public void testSplit_SameAsCopying() {
+    Random random = new Random(42);
+    char[] alphabet = {'a', 'b', '\n'};
+    for (int i = 0; i < 200; i++) {
+      StringBuilder message = new StringBuilder();
+      int length = MAX_LOG_MESSAGE_LENGTH + random.nextInt(5 * MAX_LOG_MESSAGE_LENGTH);
+      // Sparse newlines, so that some chunks cannot be cut at one.
+      int newlineOdds = 1 + random.nextInt(2000);
+      for (int j = 0; j < length; j++) {
+        message.append(random.nextInt(newlineOdds) == 0 ? '\n' : alphabet[random.nextInt(2)]);
+      }
+      assertEquals(splitByCopying(message.toString()), split(message.toString()));
+    }
+  }
+
+  /**
+   * Logs the same records with {@code writer}, and returns the payloads of its flushes.
+   */
+  @SuppressWarnings("unchecked")
+  private static List<byte[]> flushes(VmAppLogsWriter writer) {
+    ApiProxy.Delegate<Environment> delegate = mock(ApiProxy.Delegate.class);
+    ApiProxy.Delegate<?> savedDelegate = ApiProxy.getDelegate();
+    ApiProxy.setDelegate(delegate);
+    ApiProxy.setEnvironmentForCurrentThread(mock(Environment.class));
+    try {
+      StringBuilder message = new StringBuilder();
+      for (int i = 0; i < 200; i++) {
+        message.append("line ").append(i).append(" \u00e9\u20ac\n");
+        writer.addLogRecordAndMaybeFlush(
+            new LogRecord(LogRecord.Level.values()[i % 5], 1000L * i, message.toString()));
+      }
+      writer.flushAndWait();
+      ArgumentCaptor<byte[]> requests = ArgumentCaptor.forClass(byte[].class);
+      verify(delegate, atLeastOnce()).makeAsyncCall(
+          any(Environment.class), anyString(), anyString(), requests.capture(),
+          any(ApiConfig.class));
+      return requests.getAllValues();
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+      ApiProxy.setDelegate(savedDelegate);
+    }
+  }
+
+  public void testEncodedBuffer_SameFlushes() {
+    List<byte[]> expected = flushes(new VmAppLogsWriter(
+        new LinkedList<UserAppLogLine>(), 64 * 1024L, MAX_LOG_MESSAGE_LENGTH, 0));
+    List<byte[]> actual = flushes(new VmAppLogsWriter(
+        new AppLogLineBuffer(), 64 * 1024L, MAX_LOG_MESSAGE_LENGTH, 0));
+    // The encoded lines are counted with their exact size, so they may fill a flush more.
+    assertTrue(actual.size() <= expected.size());
+    assertTrue(actual.size() > 1);
+    assertTrue(Arrays.equals(concatenateLines(expected), concatenateLines(actual)));
+  }
+
+  /**
+   * Returns the log lines of the flushes, as a serialized UserAppLogGroup.
+   */
+  private static byte[] concatenateLines(List<byte[]> flushes) {
+    UserAppLogGroup all = new UserAppLogGroup();
+    for (byte[] flush : flushes) {
+      FlushRequest request = new FlushRequest();
+      assertTrue(request.parseFrom(flush));
+      UserAppLogGroup group = new UserAppLogGroup();
+      assertTrue(group.parseFrom(request.getLogsAsBytes()));
+      for (UserAppLogLine logLine : group.logLines()) {
+        all.addLogLine(logLine);
+      }
+    }
+    return all.toByteArray();
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.apphosting.vmruntime;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tests that {@link VmRequestAttributes} behaves like a {@link HashMap}.
+ *
+ */
+public class VmRequestAttributesTest extends TestCase {
+  private static final String DEADLINE_KEY = VmApiProxyDelegate.API_DEADLINE_KEY;
+
+  private final VmRequestAttributes attributes = new VmRequestAttributes(4);
+
+  public void testPutAndGet() {
+    assertNull(attributes.put("key", "value"));
+    assertNull(attributes.put(DEADLINE_KEY, 5.0));
+    assertEquals("value", attributes.get("key"));
+    assertEquals(5.0, attributes.get(DEADLINE_KEY));
+    // Slots are found by key equality, not only by identity.
+    assertEquals(5.0, attributes.get(new String(DEADLINE_KEY)));
+    assertEquals(5.0, attributes.put(DEADLINE_KEY, 6.0));
+    assertEquals(2, attributes.size());
+    assertNull(attributes.get("missing"));
+  }
+
+  public void testNullKeysAndValues() {
+    attributes.put(DEADLINE_KEY, null);
+    attributes.put("key", null);
+    attributes.put(null, "value");
+    assertTrue(attributes.containsKey(DEADLINE_KEY));
+    assertTrue(attributes.containsKey("key"));
+    assertNull(attributes.get("key"));
+    assertEquals("value", attributes.get(null));
+    assertEquals(3, attributes.size());
+    assertFalse(attributes.containsKey("missing"));
+  }
+
+  public void testRemoveAndClear() {
+    attributes.put("key", "value");
+    attributes.put(DEADLINE_KEY, 5.0);
+    assertEquals(5.0, attributes.remove(DEADLINE_KEY));
+    assertFalse(attributes.containsKey(DEADLINE_KEY));
+    assertEquals(1, attributes.size());
+    attributes.clear();
+    assertTrue(attributes.isEmpty());
+  }
+
+  public void testEntrySet() {
+    Map<String, Object> expected = new HashMap<>();
+    expected.put("key", "value");
+    expected.put(null, null);
+    expected.put(DEADLINE_KEY, 5.0);
+    expected.put(VmApiProxyEnvironment.AttributeMapping.DAPPER_ID.attributeKey, "dapper");
+    attributes.putAll(expected);
+    assertEquals(expected, attributes);
+    assertEquals(attributes, expected);
+    assertEquals(expected.hashCode(), attributes.hashCode());
+    assertEquals(expected, new HashMap<>(attributes));
+
+    for (Iterator<Map.Entry<String, Object>> it = attributes.entrySet().iterator();
+        it.hasNext();) {
+      Map.Entry<String, Object> entry = it.next();
+      if (DEADLINE_KEY.equals(entry.getKey())) {
+        it.remove();
+      } else if ("key".equals(entry.getKey())) {
+        entry.setValue("other");
+      }
+    }
+    assertFalse(attributes.containsKey(DEADLINE_KEY));
+    assertEquals("other", attributes.get("key"));
+    assertEquals(3, attributes.size());
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.logging.StreamingJsonFormatter;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Tests for {@link VmRuntimeAsyncFileLogHandler}.
+ *
+ */
+public class VmRuntimeAsyncFileLogHandlerTest extends TestCase {
+  private File directory;
+  private String pattern;
+  private VmRuntimeAsyncFileLogHandler handler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = Files.createTempDirectory("logs").toFile();
+    pattern = directory.getPath() + "/app.%g.log.json";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (handler != null) {
+      handler.close();
+    }
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  private static LogRecord record(int i) {
+    LogRecord record = new LogRecord(Level.INFO, "message " + i);
+    record.setLoggerName("logger");
+    return record;
+  }
+
+  private static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  public void testRecordsAreWrittenInOrder() throws Exception {
+    handler = new VmRuntimeAsyncFileLogHandler(pattern, 0, 3, 16,
+        VmRuntimeAsyncFileLogHandler.OverflowPolicy.BLOCK);
+    StreamingJsonFormatter formatter = new StreamingJsonFormatter();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      LogRecord record = record(i);
+      expected.append(formatter.format(record));
+      handler.publish(record);
+    }
+    handler.flush();
+    assertEquals(expected.toString(), read(new File(directory, "app.0.log.json")));
+    handler.publish(new LogRecord(Level.FINEST, "finest"));
+    handler.close();
+    assertTrue(read(new File(directory, "app.0.log.json")).contains("finest"));
+  }
+
+  public void testExistingFileIsContinued() throws Exception {
+    Files.write(new File(directory, "app.0.log.json").toPath(),
+        "previous\n".getBytes(StandardCharsets.UTF_8));
+    handler = new VmRuntimeAsyncFileLogHandler(pattern, 1024, 3, 16,
+        VmRuntimeAsyncFileLogHandler.OverflowPolicy.BLOCK);
+    handler.publish(record(0));
+    handler.flush();
+    assertTrue(read(new File(directory, "app.0.log.json")).startsWith("previous\n{"));
+  }
+
+  public void testFilesAreRotatedLikeFileHandler() throws Exception {
+    int limit = 1000;
+    handler = new VmRuntimeAsyncFileLogHandler(pattern, limit, 3, 16,
+        VmRuntimeAsyncFileLogHandler.OverflowPolicy.BLOCK);
+    int recordLength = new StreamingJsonFormatter().formatBytes(record(100)).length;
+    for (int i = 100; i < 400; i++) {
+      handler.publish(record(i));
+    }
+    handler.flush();
+    assertFalse(new File(directory, "app.3.log.json").exists());
+    List<String> lines = new ArrayList<>();
+    for (int generation = 2; generation >= 0; generation--) {
+      File file = new File(directory, "app." + generation + ".log.json");
+      // A file is rotated after the record reaching the limit.
+      assertTrue(file.length() < limit + recordLength);
+      if (generation > 0) {
+        assertTrue(file.length() >= limit);
+      }
+      for (String line : read(file).split("\n")) {
+        lines.add(line);
+      }
+    }
+    // The last records are kept, in order.
+    int first = 400 - lines.size();
+    for (int i = 0; i < lines.size(); i++) {
+      assertTrue(lines.get(i), lines.get(i).contains("\"logger: message " + (first + i) + "\""));
+    }
+  }
+
+  public void testDropPolicy() throws Exception {
+    handler = new VmRuntimeAsyncFileLogHandler(pattern, 0, 1, 2,
+        VmRuntimeAsyncFileLogHandler.OverflowPolicy.DROP);
+    int records = 10000;
+    for (int i = 0; i < records; i++) {
+      handler.publish(record(i));
+    }
+    handler.close();
+    String[] lines = read(new File(directory, "app.0.log.json")).split("\n");
+    assertEquals(records, lines.length + handler.getDroppedCount());
+  }
+
+  public void testGenerationFile() throws Exception {
+    handler = new VmRuntimeAsyncFileLogHandler(directory.getPath() + "/app%%.log", 0, 2, 2,
+        VmRuntimeAsyncFileLogHandler.OverflowPolicy.BLOCK);
+    assertEquals(new File(directory, "app%.log.1"), handler.generationFile(1));
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.appengine.repackaged.com.google.common.collect.ImmutableMap;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Environment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.logging.LogRecord;
+
+/**
+ * Measures the throughput of {@link VmRuntimeLogHandler#publish} with concurrent request threads,
+ * each logging to the environment of its own request. Build with
+ * {@code mvn clean test-compile -Dbenchmarks} and run {@link #main}, which runs the benchmark
+ * with 1 thread and up to twice as many threads as there are cores: with no global lock the
+ * throughput should grow with the number of threads up to the number of cores.
+ *
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class VmRuntimeLogHandlerBenchmark {
+
+  /** The handler installed on the root logger, shared by all the threads. */
+  @State(Scope.Benchmark)
+  public static class SharedHandler {
+    final VmRuntimeLogHandler handler = new VmRuntimeLogHandler();
+    private ApiProxy.Delegate<?> savedDelegate;
+
+    @Setup
+    public void setUp() {
+      savedDelegate = ApiProxy.getDelegate();
+      ApiProxy.setDelegate(new FlushDelegate());
+    }
+
+    @TearDown
+    public void tearDown() {
+      ApiProxy.setDelegate(savedDelegate);
+    }
+  }
+
+  /** The request of a thread, with the record it logs. */
+  @State(Scope.Thread)
+  public static class Request {
+    LogRecord record;
+
+    @Setup
+    public void setUp() {
+      VmMetadataCache metadataCache = new VmMetadataCache() {
+        @Override
+        protected String getMetadataFromServer(String path) {
+          return "metadata-" + path.hashCode();
+        }
+      };
+      VmApiProxyEnvironment environment = VmApiProxyEnvironment.createDefaultContext(
+          ImmutableMap.<String, String>builder()
+              .put(VmApiProxyEnvironment.LONG_APP_ID_KEY, "benchmark")
+              .put(VmApiProxyEnvironment.PARTITION_KEY, "s")
+              .put(VmApiProxyEnvironment.MODULE_NAME_KEY, "default")
+              .put(VmApiProxyEnvironment.VERSION_KEY, "v1")
+              .put(VmApiProxyEnvironment.MINOR_VERSION_KEY, "123456")
+              .put(VmApiProxyEnvironment.USE_MVM_AGENT_KEY, "false")
+              .build(),
+          metadataCache, "localhost:10001", new VmTimer(), 86400000L, null);
+      ApiProxy.setEnvironmentForCurrentThread(environment);
+      record = new LogRecord(java.util.logging.Level.INFO, "Request {0} completed in {1} ms");
+      record.setLoggerName("com.google.apphosting.vmruntime.jetty9.VmRuntimeWebAppContext");
+      record.setParameters(new Object[] {"/_ah/health", "12"});
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+  }
+
+  /** Completes the log flushes immediately. */
+  private static class FlushDelegate implements ApiProxy.Delegate<Environment> {
+    @Override
+    public Future<byte[]> makeAsyncCall(Environment environment, String packageName,
+        String methodName, byte[] request, ApiConfig apiConfig) {
+      return CompletableFuture.completedFuture(new byte[0]);
+    }
+
+    @Override
+    public byte[] makeSyncCall(Environment environment, String packageName, String methodName,
+        byte[] request) {
+      return new byte[0];
+    }
+
+    @Override
+    public void log(Environment environment, ApiProxy.LogRecord record) {}
+
+    @Override
+    public void flushLogs(Environment environment) {}
+
+    @Override
+    public List<Thread> getRequestThreads(Environment environment) {
+      return null;
+    }
+  }
+
+  @Benchmark
+  public void publish(SharedHandler shared, Request request) {
+    shared.handler.publish(request.record);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+      new Runner(new OptionsBuilder()
+          .include(VmRuntimeLogHandlerBenchmark.class.getSimpleName())
+          .threads(threads)
+          .addProfiler(GCProfiler.class)
+          .build())
+          .run();
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.apphosting.api.ApiProxy;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Tests for {@link VmRuntimeLogHandler}.
+ *
+ */
+public class VmRuntimeLogHandlerTest extends TestCase {
+  private final VmRuntimeLogHandler handler = new VmRuntimeLogHandler();
+
+  /**
+   * Publishes records in a mock request environment, and returns the records it received.
+   */
+  private List<ApiProxy.LogRecord> publish(LogRecord... records) {
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    try {
+      for (LogRecord record : records) {
+        handler.publish(record);
+      }
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+    ArgumentCaptor<ApiProxy.LogRecord> captor = ArgumentCaptor.forClass(ApiProxy.LogRecord.class);
+    verify(environment, times(records.length)).addLogRecord(captor.capture());
+    return captor.getAllValues();
+  }
+
+  private static LogRecord record(Level level, String message) {
+    LogRecord record = new LogRecord(level, message);
+    record.setLoggerName("logger");
+    record.setMillis(1234);
+    return record;
+  }
+
+  public void testFormat() {
+    LogRecord withSource = record(Level.WARNING, "{0} and {1}");
+    withSource.setSourceClassName("class");
+    withSource.setSourceMethodName("method");
+    withSource.setParameters(new Object[] {"first", 2});
+    List<ApiProxy.LogRecord> logged = publish(record(Level.INFO, "message"), withSource);
+
+    assertEquals("logger: message\n", logged.get(0).getMessage());
+    assertEquals(ApiProxy.LogRecord.Level.info, logged.get(0).getLevel());
+    assertEquals(1234000L, logged.get(0).getTimestamp());
+    assertEquals("class method: first and 2\n", logged.get(1).getMessage());
+    assertEquals(ApiProxy.LogRecord.Level.warn, logged.get(1).getLevel());
+  }
+
+  public void testFormatStackTrace() {
+    LogRecord record = record(Level.SEVERE, "failed");
+    record.setThrown(new IllegalStateException("thrown").fillInStackTrace());
+    String message = publish(record).get(0).getMessage();
+    assertTrue(message, message.startsWith(
+        "logger: failed\njava.lang.IllegalStateException: thrown" + System.lineSeparator()
+        + "\tat " + getClass().getName() + ".testFormatStackTrace"));
+
+    // The builder of the thread is reused from scratch.
+    assertEquals("logger: next\n", publish(record(Level.INFO, "next")).get(0).getMessage());
+  }
+
+  public void testFormatIsReentrant() {
+    LogRecord record = record(Level.INFO, "outer {0}");
+    record.setParameters(new Object[] {new Object() {
+      @Override
+      public String toString() {
+        return handler.getFormatter().format(record(Level.INFO, "inner")).trim();
+      }
+    }});
+    assertEquals("logger: outer logger: inner\n", publish(record).get(0).getMessage());
+  }
+
+  public void testLevelTableRejectsRecords() {
+    VmRuntimeLogHandler handler = new VmRuntimeLogHandler(
+        LoggerLevelTable.parse("org.eclipse.jetty=INFO"));
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    try {
+      LogRecord fine = record(Level.FINE, "fine");
+      fine.setLoggerName("org.eclipse.jetty.server.Server");
+      handler.publish(fine);
+      LogRecord info = record(Level.INFO, "info");
+      info.setLoggerName("org.eclipse.jetty.server.Server");
+      handler.publish(info);
+      handler.publish(record(Level.FINE, "other"));
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+    ArgumentCaptor<ApiProxy.LogRecord> captor = ArgumentCaptor.forClass(ApiProxy.LogRecord.class);
+    verify(environment, times(2)).addLogRecord(captor.capture());
+    assertEquals("org.eclipse.jetty.server.Server: info\n",
+        captor.getAllValues().get(0).getMessage());
+    assertEquals("logger: other\n", captor.getAllValues().get(1).getMessage());
+  }
+
+  public void testRateLimitSuppressesRecords() {
+    VmRuntimeLogHandler handler = new VmRuntimeLogHandler(
+        LoggerLevelTable.EMPTY, LogRateLimiter.parse("INFO=3"));
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    try {
+      for (int i = 0; i < 100; i++) {
+        handler.publish(record(Level.INFO, "storm " + i));
+      }
+      handler.publish(record(Level.WARNING, "warning"));
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+    ArgumentCaptor<ApiProxy.LogRecord> captor = ArgumentCaptor.forClass(ApiProxy.LogRecord.class);
+    verify(environment, times(4)).addLogRecord(captor.capture());
+    assertEquals("logger: storm 0\n", captor.getAllValues().get(0).getMessage());
+    assertEquals("logger: warning\n", captor.getAllValues().get(3).getMessage());
+
+    // The storm stopped, its summary is logged at the end of the request.
+    handler.logSuppressedRecordsOf(environment);
+    captor = ArgumentCaptor.forClass(ApiProxy.LogRecord.class);
+    verify(environment, times(5)).addLogRecord(captor.capture());
+    ApiProxy.LogRecord summary = captor.getAllValues().get(4);
+    assertEquals(ApiProxy.LogRecord.Level.info, summary.getLevel());
+    assertEquals("Suppressed 97 log records of logger over the rate limit.\n",
+        summary.getMessage());
+    handler.logSuppressedRecordsOf(environment);
+    verify(environment, times(5)).addLogRecord(any(ApiProxy.LogRecord.class));
+  }
+
+  public void testRecordsOutsideRequestsAreNotFormatted() {
+    final AtomicInteger formatted = new AtomicInteger();
+    handler.setFormatter(new Formatter() {
+      @Override
+      public String format(LogRecord record) {
+        formatted.incrementAndGet();
+        return record.getMessage();
+      }
+    });
+    handler.publish(record(Level.INFO, "outside"));
+    assertEquals(0, formatted.get());
+    assertEquals("inside", publish(record(Level.INFO, "inside")).get(0).getMessage());
+    assertEquals(1, formatted.get());
+  }
+
+  public void testConcurrentThreads() throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<AssertionError> failures = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final String name = "thread" + t;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+          for (int i = 0; i < 200; i++) {
+            String expected = "logger: " + name + " " + i + "\n";
+            String message = publish(record(Level.INFO, name + " " + i)).get(0).getMessage();
+            if (!expected.equals(message)) {
+              throw new AssertionError(expected + " != " + message);
+            }
+          }
+        } catch (AssertionError e) {
+          synchronized (failures) {
+            failures.add(e);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.utils.config.AppEngineWebXml;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link VmVirtualThreads} and the thread factories using it.
+ *
+ */
+public class VmVirtualThreadsTest extends TestCase {
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(VmVirtualThreads.PROPERTY);
+    VmVirtualThreads.configure(null);
+    super.tearDown();
+  }
+
+  private static boolean isJava21OrLater() {
+    String version = System.getProperty("java.specification.version");
+    return !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+  }
+
+  public void testConfigureFromBetaSetting() {
+    AppEngineWebXml appEngineWebXml = new AppEngineWebXml();
+    appEngineWebXml.addBetaSetting(VmVirtualThreads.BETA_SETTING, "true");
+    VmVirtualThreads.configure(appEngineWebXml);
+    assertEquals("true", System.getProperty(VmVirtualThreads.PROPERTY));
+    assertEquals(isJava21OrLater(), VmVirtualThreads.isEnabled());
+    assertEquals(isJava21OrLater(), VmVirtualThreads.getRequestThreadFactory() != null);
+
+    VmVirtualThreads.configure(new AppEngineWebXml());
+    assertEquals(isJava21OrLater(), VmVirtualThreads.isEnabled());
+    System.clearProperty(VmVirtualThreads.PROPERTY);
+    VmVirtualThreads.configure(new AppEngineWebXml());
+    assertFalse(VmVirtualThreads.isEnabled());
+    assertNull(VmVirtualThreads.getRequestThreadFactory());
+  }
+
+  public void testApiCallExecutor() throws Exception {
+    ExecutorService executor = VmVirtualThreads.newApiCallExecutor();
+    if (!isJava21OrLater()) {
+      assertNull(executor);
+      return;
+    }
+    try {
+      Thread thread = executor.submit(Thread::currentThread).get();
+      assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+      assertTrue(thread.getName().startsWith("ApiCall-"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testRequestThreadFactoryPropagatesEnvironment() throws Exception {
+    ApiProxy.Environment environment = mock(ApiProxy.Environment.class);
+    final AtomicInteger created = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> {
+      created.incrementAndGet();
+      return new Thread(runnable);
+    };
+    VmRequestThreadFactory requestThreadFactory =
+        new VmRequestThreadFactory(environment, threadFactory);
+
+    final AtomicReference<ApiProxy.Environment> threadEnvironment = new AtomicReference<>();
+    Thread thread = requestThreadFactory.newThread(
+        () -> threadEnvironment.set(ApiProxy.getCurrentEnvironment()));
+    thread.start();
+    thread.join(TimeUnit.SECONDS.toMillis(5));
+
+    assertEquals(1, created.get());
+    assertSame(environment, threadEnvironment.get());
+    assertEquals(1, requestThreadFactory.getRequestThreads().size());
+  }
+}